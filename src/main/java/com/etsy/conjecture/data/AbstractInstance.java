@@ -57,6 +57,35 @@ public abstract class AbstractInstance<T extends AbstractInstance<T>> {
         return vector;
     }
 
+    /**
+     * Re-key the feature vector by feature hash (see HashedKeyedVector), so
+     * that models with hashed parameters can use it without hashing names.
+     */
+    public T hashFeatures(boolean keepDictionary) {
+        return hashFeatures(keepDictionary, 64);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T hashFeatures(boolean keepDictionary, int hashBits) {
+        if (!(vector instanceof HashedKeyedVector)
+                || ((HashedKeyedVector)vector).getHashBits() != hashBits) {
+            vector = new HashedKeyedVector(vector, keepDictionary, hashBits);
+        }
+        return (T)this;
+    }
+
+    /**
+     * Replace the feature vector by an immutable SortedKeyedVector, once the
+     * instance is built, for faster and more compact training.
+     */
+    @SuppressWarnings("unchecked")
+    public T freeze() {
+        if (!(vector instanceof SortedKeyedVector)) {
+            vector = new SortedKeyedVector(vector);
+        }
+        return (T)this;
+    }
+
     public void setSupportingData(String s) {
         supporting_data = s;
     }
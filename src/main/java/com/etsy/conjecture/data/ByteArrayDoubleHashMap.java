@@ -1,6 +1,7 @@
 package com.etsy.conjecture.data;
 
 import gnu.trove.function.TDoubleFunction;
+import gnu.trove.impl.hash.TObjectHash;
 import gnu.trove.iterator.TObjectDoubleIterator;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 
@@ -11,6 +12,7 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.util.AbstractMap;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -46,13 +48,32 @@ public class ByteArrayDoubleHashMap implements Serializable, KryoSerializable,
 
     public ByteArrayDoubleHashMap(int initialCapacity, float loadFactor,
             String keyEncoding, double defaultValue) {
-        this.map = new TByteArrayDoubleHashMap(initialCapacity, loadFactor,
-                defaultValue);
+        this.map = newMap(initialCapacity, loadFactor, defaultValue);
         this.keyEncoding = keyEncoding;
         this.loadFactor = loadFactor;
         this.defaultValue = defaultValue;
     }
 
+    /**
+     * Shares the given trove map rather than copying it.
+     */
+    ByteArrayDoubleHashMap(TObjectDoubleHashMap<byte[]> map, float loadFactor,
+            String keyEncoding, double defaultValue) {
+        this.map = map;
+        this.keyEncoding = keyEncoding;
+        this.loadFactor = loadFactor;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Builds the underlying trove map, subclasses may store more per entry.
+     */
+    protected TObjectDoubleHashMap<byte[]> newMap(int initialCapacity,
+            float loadFactor, double defaultValue) {
+        return new TByteArrayDoubleHashMap(initialCapacity, loadFactor,
+                defaultValue);
+    }
+
     public String byteArrayToString(byte[] b) {
         try {
             return new String(b, keyEncoding);
@@ -85,6 +106,10 @@ public class ByteArrayDoubleHashMap implements Serializable, KryoSerializable,
             return Arrays.hashCode((byte[])obj);
         }
 
+        double valueAt(int slot) {
+            return _values[slot];
+        }
+
         protected boolean equals(Object a, Object b) {
             return b != null && b != REMOVED
                     && Arrays.equals((byte[])a, (byte[])b);
@@ -196,6 +221,26 @@ public class ByteArrayDoubleHashMap implements Serializable, KryoSerializable,
         }
     }
 
+    // - slot by slot access to the trove map, to scan it without an
+    // iterator. a slot without a key gives null.
+
+    int slots() {
+        return map._set.length;
+    }
+
+    byte[] keyAt(int slot) {
+        Object key = map._set[slot];
+        return key == TObjectHash.FREE || key == TObjectHash.REMOVED ? null
+                : (byte[])key;
+    }
+
+    double valueAt(int slot) {
+        if (map instanceof TByteArrayDoubleHashMap) {
+            return ((TByteArrayDoubleHashMap)map).valueAt(slot);
+        }
+        return map.get(map._set[slot]);
+    }
+
     public double getPrimitive(byte[] key) {
         return map.get(key);
     }
@@ -258,9 +303,7 @@ public class ByteArrayDoubleHashMap implements Serializable, KryoSerializable,
             it.advance();
             byte[] key = it.key();
             output.writeInt(key.length);
-            for (int i = 0; i < key.length; i++) {
-                output.writeByte(key[i]);
-            }
+            output.write(key);
             output.writeDouble(it.value());
         }
     }
@@ -271,48 +314,128 @@ public class ByteArrayDoubleHashMap implements Serializable, KryoSerializable,
         loadFactor = input.readFloat();
         defaultValue = input.readDouble();
         int size = input.readInt();
-        map = new TByteArrayDoubleHashMap(size, loadFactor, defaultValue);
+        map = newMap(size, loadFactor, defaultValue);
         for (int i = 0; i < size; i++) {
-            int length = input.readInt();
-            byte[] key = new byte[length];
-            for (int j = 0; j < length; j++) {
-                key[j] = input.readByte();
-            }
+            byte[] key = new byte[input.readInt()];
+            input.readFully(key);
             double value = input.readDouble();
             map.put(key, value);
         }
     }
 
-    // - kryo serialization for use in scalding.
+    // - kryo serialization for use in scalding. kryo serializes maps with
+    // its MapSerializer by default, register the class with a
+    // KryoSerializableSerializer (see ConjectureKryoRegistrar) to use this.
     public void write(Kryo kryo, Output output) {
-        output.writeString(keyEncoding);
-        output.writeFloat(loadFactor);
-        output.writeDouble(defaultValue);
-        output.writeInt(map.size());
-        for (TObjectDoubleIterator<byte[]> it = map.iterator(); it.hasNext();) {
+        writeCompact(output, false);
+    }
+
+    public void read(Kryo kryo, Input input) {
+        readCompact(input);
+    }
+
+    private static final int CUSTOM_SETTINGS = 1;
+    private static final int PREFIX_KEYS = 2;
+    private static final int UNIT_VALUES = 4;
+
+    private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                int c = (a[i] & 0xff) - (b[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /**
+     * Writes varint lengths and whole keys. The settings are left out when
+     * they are those of a StringKeyedVector, and the values when they are
+     * all 1 (as with indicator features). With prefixKeys the keys are
+     * sorted, and each is written as the length of the prefix it shares
+     * with the one before and the rest of its bytes, which suits namespaced
+     * feature names.
+     */
+    void writeCompact(Output output, boolean prefixKeys) {
+        boolean custom = !StringKeyedVector.FEATURE_ENCODING.equals(keyEncoding)
+                || loadFactor != StringKeyedVector.LOAD_FACTOR
+                || defaultValue != 0.0;
+        boolean ones = true;
+        for (TObjectDoubleIterator<byte[]> it = map.iterator(); ones
+                && it.hasNext();) {
             it.advance();
-            byte[] key = it.key();
-            output.writeInt(key.length);
-            for (int i = 0; i < key.length; i++) {
-                output.writeByte(key[i]);
+            ones = it.value() == 1.0;
+        }
+        output.writeByte((custom ? CUSTOM_SETTINGS : 0)
+                | (prefixKeys ? PREFIX_KEYS : 0) | (ones ? UNIT_VALUES : 0));
+        if (custom) {
+            output.writeString(keyEncoding);
+            output.writeFloat(loadFactor);
+            output.writeDouble(defaultValue);
+        }
+        output.writeInt(map.size(), true);
+        if (prefixKeys) {
+            byte[][] keys = map.keys(new byte[map.size()][]);
+            Arrays.sort(keys, KEY_ORDER);
+            byte[] previous = new byte[0];
+            for (byte[] key : keys) {
+                int shared = 0;
+                int n = Math.min(previous.length, key.length);
+                while (shared < n && previous[shared] == key[shared]) {
+                    shared++;
+                }
+                output.writeInt(shared, true);
+                output.writeInt(key.length - shared, true);
+                output.writeBytes(key, shared, key.length - shared);
+                if (!ones) {
+                    output.writeDouble(map.get(key));
+                }
+                previous = key;
+            }
+        } else {
+            for (TObjectDoubleIterator<byte[]> it = map.iterator(); it
+                    .hasNext();) {
+                it.advance();
+                byte[] key = it.key();
+                output.writeInt(key.length, true);
+                output.writeBytes(key);
+                if (!ones) {
+                    output.writeDouble(it.value());
+                }
             }
-            output.writeDouble(it.value());
         }
     }
 
-    public void read(Kryo kryo, Input input) {
-        keyEncoding = input.readString();
-        loadFactor = input.readFloat();
-        defaultValue = input.readDouble();
-        int size = input.readInt();
-        map = new TByteArrayDoubleHashMap(size, loadFactor, defaultValue);
+    void readCompact(Input input) {
+        int flags = input.readByte();
+        if ((flags & CUSTOM_SETTINGS) != 0) {
+            keyEncoding = input.readString();
+            loadFactor = input.readFloat();
+            defaultValue = input.readDouble();
+        } else {
+            keyEncoding = StringKeyedVector.FEATURE_ENCODING;
+            loadFactor = StringKeyedVector.LOAD_FACTOR;
+            defaultValue = 0.0;
+        }
+        int size = input.readInt(true);
+        map = newMap(size, loadFactor, defaultValue);
+        byte[] previous = new byte[0];
         for (int i = 0; i < size; i++) {
-            int length = input.readInt();
-            byte[] key = new byte[length];
-            for (int j = 0; j < length; j++) {
-                key[j] = input.readByte();
+            byte[] key;
+            if ((flags & PREFIX_KEYS) != 0) {
+                int shared = input.readInt(true);
+                key = new byte[shared + input.readInt(true)];
+                System.arraycopy(previous, 0, key, 0, shared);
+                input.readBytes(key, shared, key.length - shared);
+                previous = key;
+            } else {
+                key = input.readBytes(input.readInt(true));
             }
-            double value = input.readDouble();
+            double value = (flags & UNIT_VALUES) != 0 ? 1.0 : input
+                    .readDouble();
             map.put(key, value);
         }
     }
@@ -0,0 +1,220 @@
+package com.etsy.conjecture.data;
+
+import gnu.trove.iterator.TObjectDoubleIterator;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+
+import java.util.Arrays;
+
+/**
+ * A ByteArrayDoubleHashMap which also stores a long alongside each value, in
+ * a parallel array of the same open addressing table. One probe of the key
+ * gives a slot index which addresses both the double and the long, which is
+ * what LazyVector uses to keep each weight next to the iteration it was last
+ * updated at.
+ *
+ * Serializes as a plain ByteArrayDoubleHashMap, the longs are not kept.
+ */
+public class ByteArrayDoubleLongHashMap extends ByteArrayDoubleHashMap {
+
+    private static final long serialVersionUID = 3236011863389208617L;
+
+    public ByteArrayDoubleLongHashMap() {
+        this(10, 0.8f, "ASCII", 0.0);
+    }
+
+    public ByteArrayDoubleLongHashMap(int initialCapacity, float loadFactor,
+            String keyEncoding, double defaultValue) {
+        super(initialCapacity, loadFactor, keyEncoding, defaultValue);
+    }
+
+    /**
+     * Copies the entries of map, giving each of them the long value l.
+     */
+    public ByteArrayDoubleLongHashMap(ByteArrayDoubleHashMap map, long l) {
+        this(map.size(), map.loadFactor, map.keyEncoding, map.defaultValue);
+        setDefaultLong(l);
+        for (TObjectDoubleIterator<byte[]> it = map.troveIterator(); it
+                .hasNext();) {
+            it.advance();
+            table().put(it.key(), it.value(), l);
+        }
+    }
+
+    /**
+     * Trove map with a long[] parallel to the keys and values.
+     */
+    static class TByteArrayDoubleLongHashMap extends
+            ByteArrayDoubleHashMap.TByteArrayDoubleHashMap {
+
+        // - not initialized here, setUp() runs from the super constructor.
+        protected transient long[] _longs;
+
+        // - long given to entries added through the plain put().
+        protected long defaultLong;
+
+        public TByteArrayDoubleLongHashMap(int initialSize, float loadFactor,
+                double defaultValue) {
+            super(initialSize, loadFactor, defaultValue);
+        }
+
+        public int setUp(int initialCapacity) {
+            int capacity = super.setUp(initialCapacity);
+            _longs = new long[capacity];
+            return capacity;
+        }
+
+        protected void rehash(int newCapacity) {
+            int oldCapacity = _set.length;
+            Object[] oldKeys = _set;
+            double[] oldValues = _values;
+            long[] oldLongs = _longs;
+
+            _set = new Object[newCapacity];
+            Arrays.fill(_set, FREE);
+            _values = new double[newCapacity];
+            _longs = new long[newCapacity];
+
+            for (int i = oldCapacity; i-- > 0;) {
+                Object o = oldKeys[i];
+                if (o != FREE && o != REMOVED) {
+                    int index = insertKey((byte[])o);
+                    _values[index] = oldValues[i];
+                    _longs[index] = oldLongs[i];
+                }
+            }
+        }
+
+        public double put(byte[] key, double value) {
+            return put(key, value, defaultLong, false);
+        }
+
+        public double put(byte[] key, double value, long l) {
+            return put(key, value, l, true);
+        }
+
+        private double put(byte[] key, double value, long l, boolean setLong) {
+            int index = insertKey(key);
+            double previous = 0.0;
+            boolean isNewMapping = true;
+            if (index < 0) {
+                index = -index - 1;
+                previous = _values[index];
+                isNewMapping = false;
+            }
+            _values[index] = value;
+            if (isNewMapping || setLong) {
+                _longs[index] = l;
+            }
+            if (isNewMapping) {
+                postInsertHook2(consumeFreeSlot);
+            }
+            return previous;
+        }
+
+        int indexOf(byte[] key) {
+            return index(key);
+        }
+
+        byte[] keyAt(int index) {
+            Object o = _set[index];
+            return o == FREE || o == REMOVED ? null : (byte[])o;
+        }
+
+        double valueAt(int index) {
+            return _values[index];
+        }
+
+        long longAt(int index) {
+            return _longs[index];
+        }
+
+        void setAt(int index, double value, long l) {
+            _values[index] = value;
+            _longs[index] = l;
+        }
+
+        protected void removeAt(int index) {
+            super.removeAt(index);
+        }
+    }
+
+    protected TObjectDoubleHashMap<byte[]> newMap(int initialCapacity,
+            float loadFactor, double defaultValue) {
+        return new TByteArrayDoubleLongHashMap(initialCapacity, loadFactor,
+                defaultValue);
+    }
+
+    private TByteArrayDoubleLongHashMap table() {
+        return (TByteArrayDoubleLongHashMap)map;
+    }
+
+    /**
+     * The long given to entries added without one, e.g. by putPrimitive.
+     */
+    public void setDefaultLong(long l) {
+        table().defaultLong = l;
+    }
+
+    /**
+     * Slot of key in the table, or a negative number if it is absent. Slots
+     * stay valid until the next insertion or removal.
+     */
+    public int indexOf(byte[] key) {
+        return table().indexOf(key);
+    }
+
+    /**
+     * The number of slots in the table.
+     */
+    public int capacity() {
+        return table().capacity();
+    }
+
+    /**
+     * The key stored in a slot, null if the slot is empty.
+     */
+    public byte[] keyAt(int index) {
+        return table().keyAt(index);
+    }
+
+    public double valueAt(int index) {
+        return table().valueAt(index);
+    }
+
+    public long longAt(int index) {
+        return table().longAt(index);
+    }
+
+    public void setAt(int index, double value, long l) {
+        table().setAt(index, value, l);
+    }
+
+    public void removeAt(int index) {
+        table().removeAt(index);
+    }
+
+    public double putPrimitive(byte[] key, double value, long l) {
+        return table().put(key, value, l);
+    }
+
+    public double putPrimitive(String key, double value, long l) {
+        return table().put(stringToByteArray(key), value, l);
+    }
+
+    /**
+     * Set the long of every entry to l.
+     */
+    public void fillLongs(long l) {
+        TByteArrayDoubleLongHashMap table = table();
+        for (int i = table.capacity(); i-- > 0;) {
+            if (table.keyAt(i) != null) {
+                table._longs[i] = l;
+            }
+        }
+    }
+
+    private Object writeReplace() throws java.io.ObjectStreamException {
+        return new ByteArrayDoubleHashMap(map, loadFactor, keyEncoding,
+                defaultValue);
+    }
+}
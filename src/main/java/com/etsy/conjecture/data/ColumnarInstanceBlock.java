@@ -0,0 +1,411 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A block of labeled instances stored by column, for training sets which are
+ * written once and read every epoch. A block holds:
+ *
+ * - a dictionary of the features in the block, by id: the feature hash and
+ * the feature name, if known, so features are not hashed again when read.
+ *
+ * - the labels (a byte per binary label, or category ids with a dictionary
+ * of the categories), then the weights, left out when all are 1.
+ *
+ * - the number of features of each instance, then the feature ids of each
+ * instance in increasing order as varint deltas, then the values as floats,
+ * left out when all are 1.
+ *
+ * Instances are read back with a SortedKeyedVector, so the ids and support
+ * data of the instances are not kept, and values lose the precision of a
+ * double.
+ */
+public class ColumnarInstanceBlock {
+
+    static final byte VERSION = 1;
+
+    static final int BINARY = 1;
+    static final int REAL = 2;
+    static final int MULTICLASS = 3;
+
+    private static final int UNIT_WEIGHTS = 1;
+    private static final int UNIT_VALUES = 2;
+    private static final int FRACTIONAL_LABELS = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ColumnarInstanceBlock() {
+    }
+
+    /**
+     * Collects instances into a block, all with the same kind of label.
+     */
+    public static class Builder {
+
+        private final int hashBits;
+
+        private int labelType = 0;
+
+        private int size = 0;
+
+        // - the feature dictionary.
+        private final TLongIntHashMap ids = new TLongIntHashMap(1024, 0.5f,
+                0L, -1);
+        private final TLongArrayList hashes = new TLongArrayList();
+        private final List<byte[]> names = new ArrayList<byte[]>();
+
+        private final TObjectIntHashMap<String> categoryIds = new TObjectIntHashMap<String>(
+                16, 0.5f, -1);
+        private final List<String> categories = new ArrayList<String>();
+
+        // - the columns.
+        private final TDoubleArrayList labels = new TDoubleArrayList();
+        private final TFloatArrayList weights = new TFloatArrayList();
+        private final TIntArrayList counts = new TIntArrayList();
+        private final TIntArrayList featureIds = new TIntArrayList();
+        private final TFloatArrayList values = new TFloatArrayList();
+
+        public Builder() {
+            this(64);
+        }
+
+        public Builder(int hashBits) {
+            checkArgument(hashBits > 0 && hashBits <= 64,
+                    "hash bits must be in [1, 64], given: %s", hashBits);
+            this.hashBits = hashBits;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void add(LabeledInstance<?> instance) {
+            Label label = instance.getLabel();
+            int type = label instanceof BinaryLabel ? BINARY
+                    : label instanceof RealValuedLabel ? REAL
+                            : label instanceof MulticlassLabel ? MULTICLASS : 0;
+            checkArgument(type != 0, "can not store a label of %s",
+                    label.getClass());
+            checkArgument(size == 0 || type == labelType,
+                    "a block holds labels of one kind");
+            labelType = type;
+            if (type == MULTICLASS) {
+                String category = ((MulticlassLabel)label).getLabel();
+                int id = categoryIds.get(category);
+                if (id < 0) {
+                    id = categories.size();
+                    categoryIds.put(category, id);
+                    categories.add(category);
+                }
+                labels.add(id);
+            } else {
+                labels.add(((RealValuedLabel)label).getValue());
+            }
+            weights.add((float)instance.getWeight());
+
+            // - the ids of the instance in increasing order, with the
+            // position of their value in the low bits.
+            StringKeyedVector x = instance.getVector();
+            long[] packed = new long[x.size()];
+            double[] xValues = new double[packed.length];
+            int n = 0;
+            if (x instanceof HashedVector) {
+                HashedVector hv = (HashedVector)x;
+                HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+                for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                    it.advance();
+                    packed[n] = ((long)idOf(it.key(), hv.getName(it.key())) << 32) | n;
+                    xValues[n++] = it.value();
+                }
+            } else {
+                for (Map.Entry<String, Double> e : x) {
+                    long key = FeatureHasher.hash(e.getKey(), hashBits);
+                    packed[n] = ((long)idOf(key, e.getKey()) << 32) | n;
+                    xValues[n++] = e.getValue();
+                }
+            }
+            Arrays.sort(packed, 0, n);
+            for (int i = 0; i < n; i++) {
+                featureIds.add((int)(packed[i] >>> 32));
+                values.add((float)xValues[(int)packed[i]]);
+            }
+            counts.add(n);
+            size++;
+        }
+
+        private int idOf(long key, String name) {
+            int id = ids.get(key);
+            if (id < 0) {
+                id = hashes.size();
+                ids.put(key, id);
+                hashes.add(key);
+                names.add(name == null || FeatureHasher.isHashName(name) ? null
+                        : SortedKeyedVector.nameBytes(name));
+            }
+            return id;
+        }
+
+        public void clear() {
+            size = 0;
+            ids.clear();
+            hashes.resetQuick();
+            names.clear();
+            categoryIds.clear();
+            categories.clear();
+            labels.resetQuick();
+            weights.resetQuick();
+            counts.resetQuick();
+            featureIds.resetQuick();
+            values.resetQuick();
+        }
+
+        public byte[] toBytes() {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                    16 + 12 * hashes.size() + 4 * featureIds.size());
+            DataOutputStream out = new DataOutputStream(bos);
+            try {
+                write(out);
+                out.flush();
+            } catch (IOException e) {
+                // - not thrown by a ByteArrayOutputStream.
+                throw new IllegalStateException(e);
+            }
+            return bos.toByteArray();
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            boolean unitWeights = true;
+            for (int i = 0; i < weights.size(); i++) {
+                unitWeights &= weights.getQuick(i) == 1.0f;
+            }
+            boolean unitValues = true;
+            for (int i = 0; i < values.size(); i++) {
+                unitValues &= values.getQuick(i) == 1.0f;
+            }
+            boolean fractionalLabels = false;
+            if (labelType == BINARY) {
+                for (int i = 0; i < labels.size(); i++) {
+                    double l = labels.getQuick(i);
+                    fractionalLabels |= l != 0.0 && l != 1.0;
+                }
+            }
+            out.writeByte(VERSION);
+            out.writeByte(labelType);
+            writeVarint(out, hashBits);
+            writeVarint(out, size);
+            out.writeByte((unitWeights ? UNIT_WEIGHTS : 0)
+                    | (unitValues ? UNIT_VALUES : 0)
+                    | (fractionalLabels ? FRACTIONAL_LABELS : 0));
+
+            writeVarint(out, hashes.size());
+            for (int i = 0; i < hashes.size(); i++) {
+                out.writeLong(hashes.getQuick(i));
+                byte[] name = names.get(i);
+                writeVarint(out, name == null ? 0 : name.length + 1);
+                if (name != null) {
+                    out.write(name);
+                }
+            }
+
+            if (labelType == MULTICLASS) {
+                writeVarint(out, categories.size());
+                for (String category : categories) {
+                    byte[] b = category.getBytes(UTF8);
+                    writeVarint(out, b.length);
+                    out.write(b);
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                double l = labels.getQuick(i);
+                if (labelType == MULTICLASS) {
+                    writeVarint(out, (int)l);
+                } else if (labelType == BINARY && !fractionalLabels) {
+                    out.writeByte((int)l);
+                } else {
+                    out.writeDouble(l);
+                }
+            }
+            if (!unitWeights) {
+                for (int i = 0; i < size; i++) {
+                    out.writeFloat(weights.getQuick(i));
+                }
+            }
+
+            for (int i = 0; i < size; i++) {
+                writeVarint(out, counts.getQuick(i));
+            }
+            int f = 0;
+            for (int i = 0; i < size; i++) {
+                int previous = 0;
+                for (int j = 0; j < counts.getQuick(i); j++, f++) {
+                    int id = featureIds.getQuick(f);
+                    writeVarint(out, id - previous);
+                    previous = id;
+                }
+            }
+            if (!unitValues) {
+                for (int i = 0; i < values.size(); i++) {
+                    out.writeFloat(values.getQuick(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * The instances of a block, read from the position of the buffer.
+     */
+    public static List<LabeledInstance<?>> decode(ByteBuffer in) {
+        byte version = in.get();
+        checkArgument(version == VERSION, "unknown block version: %s", version);
+        int labelType = in.get();
+        int hashBits = readVarint(in);
+        int size = readVarint(in);
+        int flags = in.get();
+
+        int features = readVarint(in);
+        long[] hashes = new long[features];
+        byte[][] names = new byte[features][];
+        boolean named = false;
+        for (int i = 0; i < features; i++) {
+            hashes[i] = in.getLong();
+            int length = readVarint(in);
+            if (length > 0) {
+                names[i] = new byte[length - 1];
+                in.get(names[i]);
+                named = true;
+            }
+        }
+
+        String[] categories = null;
+        if (labelType == MULTICLASS) {
+            categories = new String[readVarint(in)];
+            for (int i = 0; i < categories.length; i++) {
+                byte[] b = new byte[readVarint(in)];
+                in.get(b);
+                categories[i] = new String(b, UTF8);
+            }
+        }
+        double[] labels = new double[size];
+        for (int i = 0; i < size; i++) {
+            if (labelType == MULTICLASS) {
+                labels[i] = readVarint(in);
+            } else if (labelType == BINARY
+                    && (flags & FRACTIONAL_LABELS) == 0) {
+                labels[i] = in.get();
+            } else {
+                labels[i] = in.getDouble();
+            }
+        }
+        float[] weights = null;
+        if ((flags & UNIT_WEIGHTS) == 0) {
+            weights = new float[size];
+            for (int i = 0; i < size; i++) {
+                weights[i] = in.getFloat();
+            }
+        }
+
+        int[] counts = new int[size];
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            counts[i] = readVarint(in);
+            total += counts[i];
+        }
+        int[] ids = new int[total];
+        int f = 0;
+        for (int i = 0; i < size; i++) {
+            int id = 0;
+            for (int j = 0; j < counts[i]; j++) {
+                id += readVarint(in);
+                ids[f++] = id;
+            }
+        }
+
+        float[] values = null;
+        if ((flags & UNIT_VALUES) == 0) {
+            values = new float[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = in.getFloat();
+            }
+        }
+
+        List<LabeledInstance<?>> instances = new ArrayList<LabeledInstance<?>>(
+                size);
+        f = 0;
+        for (int i = 0; i < size; i++) {
+            long[] keys = new long[counts[i]];
+            double[] xValues = new double[counts[i]];
+            byte[][] xNames = named ? new byte[counts[i]][] : null;
+            for (int j = 0; j < counts[i]; j++, f++) {
+                keys[j] = hashes[ids[f]];
+                xValues[j] = values == null ? 1.0 : values[f];
+                if (named) {
+                    xNames[j] = names[ids[f]];
+                }
+            }
+            instances.add(newInstance(labelType, labels[i], categories,
+                    weights == null ? 1.0 : weights[i],
+                    SortedKeyedVector.fromUnsorted(keys, xValues, xNames,
+                            hashBits)));
+        }
+        return instances;
+    }
+
+    private static LabeledInstance<?> newInstance(int labelType, double label,
+            String[] categories, double weight, SortedKeyedVector vector) {
+        AbstractInstance<?> instance;
+        switch (labelType) {
+        case BINARY:
+            instance = new BinaryLabeledInstance(label, weight);
+            break;
+        case REAL:
+            instance = new RealValueLabeledInstance(label, weight);
+            break;
+        case MULTICLASS:
+            instance = new MulticlassLabeledInstance(categories[(int)label],
+                    weight);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown label type: "
+                    + labelType);
+        }
+        instance.vector = vector;
+        return (LabeledInstance<?>)instance;
+    }
+
+    static void writeVarint(DataOutputStream out, int value)
+            throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
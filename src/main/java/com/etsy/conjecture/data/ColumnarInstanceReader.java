@@ -0,0 +1,95 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the instances of a file written by a ColumnarInstanceWriter. Blocks
+ * are memory mapped and decoded one at a time as they are iterated, so a
+ * pass over the file holds a single block of instances. Each call to
+ * iterator() starts a new pass, one per epoch.
+ */
+public class ColumnarInstanceReader implements
+        Iterable<LabeledInstance<?>>, Closeable {
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    public ColumnarInstanceReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        channel.read(magic, 0);
+        magic.flip();
+        checkArgument(magic.remaining() == 4
+                && magic.getInt() == ColumnarInstanceWriter.MAGIC,
+                "not a columnar instance file: %s", file);
+    }
+
+    public Iterator<LabeledInstance<?>> iterator() {
+        return new Iterator<LabeledInstance<?>>() {
+            // - the position of the next block.
+            private long position = 4;
+
+            private final ByteBuffer length = ByteBuffer.allocate(4);
+
+            private Iterator<LabeledInstance<?>> block = Collections
+                    .<LabeledInstance<?>> emptyList().iterator();
+
+            public boolean hasNext() {
+                while (!block.hasNext()) {
+                    List<LabeledInstance<?>> next = readBlock();
+                    if (next == null) {
+                        return false;
+                    }
+                    block = next.iterator();
+                }
+                return true;
+            }
+
+            public LabeledInstance<?> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return block.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private List<LabeledInstance<?>> readBlock() {
+                try {
+                    if (position + 4 > channel.size()) {
+                        return null;
+                    }
+                    length.clear();
+                    channel.read(length, position);
+                    length.flip();
+                    int bytes = length.getInt();
+                    ByteBuffer buffer = channel.map(
+                            FileChannel.MapMode.READ_ONLY, position + 4, bytes);
+                    position += 4 + bytes;
+                    return ColumnarInstanceBlock.decode(buffer);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
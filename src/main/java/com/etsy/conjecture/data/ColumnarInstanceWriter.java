@@ -0,0 +1,72 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes labeled instances to a local file of ColumnarInstanceBlocks, to be
+ * read back any number of times with a ColumnarInstanceReader.
+ *
+ * File layout: the MAGIC int, then for each block its length in bytes as an
+ * int followed by the block.
+ */
+public class ColumnarInstanceWriter implements Closeable {
+
+    public static final int MAGIC = 0x434a4349;
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private final DataOutputStream out;
+
+    private final ColumnarInstanceBlock.Builder block;
+
+    private final int blockSize;
+
+    public ColumnarInstanceWriter(File file) throws IOException {
+        this(file, 64, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param hashBits
+     *            the hash bits of the features, as for a HashedKeyedVector.
+     * @param blockSize
+     *            the number of instances in each block.
+     */
+    public ColumnarInstanceWriter(File file, int hashBits, int blockSize)
+            throws IOException {
+        checkArgument(blockSize > 0, "block size must be positive, given: %s",
+                blockSize);
+        this.block = new ColumnarInstanceBlock.Builder(hashBits);
+        this.blockSize = blockSize;
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+    }
+
+    public void write(LabeledInstance<?> instance) throws IOException {
+        block.add(instance);
+        if (block.size() >= blockSize) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (block.size() > 0) {
+            byte[] bytes = block.toBytes();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            block.clear();
+        }
+    }
+
+    public void close() throws IOException {
+        flushBlock();
+        out.close();
+    }
+}
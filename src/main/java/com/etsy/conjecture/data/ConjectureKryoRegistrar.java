@@ -0,0 +1,214 @@
+package com.etsy.conjecture.data;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.DefaultSerializers.KryoSerializableSerializer;
+
+/**
+ * Registers compact kryo serializers for the conjecture data classes, for
+ * jobs that shuffle many instances. Registered classes are written as a
+ * small id rather than by name, instances and labels are written without
+ * kryo's field by field encoding, and a StringKeyedVector is written as
+ * varint lengths and whole keys, optionally sorted and prefix compressed.
+ *
+ * Both ends must register the same classes in the same order, and data
+ * written with these serializers can only be read with them registered.
+ */
+public class ConjectureKryoRegistrar {
+
+    private final boolean prefixKeys;
+
+    public ConjectureKryoRegistrar() {
+        this(false);
+    }
+
+    /**
+     * @param prefixKeys
+     *            sort the keys of a StringKeyedVector and write each as the
+     *            prefix shared with the one before and the rest of its bytes.
+     */
+    public ConjectureKryoRegistrar(boolean prefixKeys) {
+        this.prefixKeys = prefixKeys;
+    }
+
+    public void registerClasses(Kryo kryo) {
+        // - labels.
+        kryo.register(Label.class);
+        kryo.register(RealValuedLabel.class, new RealValuedLabelSerializer());
+        kryo.register(BinaryLabel.class, new BinaryLabelSerializer());
+        kryo.register(MulticlassLabel.class, new MulticlassLabelSerializer());
+        kryo.register(MulticlassPrediction.class);
+
+        // - vectors, the others are kryo serializable already. the maps
+        // would otherwise get kryo's MapSerializer, boxing every entry.
+        kryo.register(StringKeyedVector.class, new StringKeyedVectorSerializer(prefixKeys));
+        kryo.register(ByteArrayDoubleHashMap.class, new KryoSerializableSerializer());
+        kryo.register(ByteArrayDoubleLongHashMap.class, new KryoSerializableSerializer());
+        kryo.register(HashedKeyedVector.class);
+        kryo.register(SortedKeyedVector.class);
+        kryo.register(LazyVector.class);
+        kryo.register(HashedLazyVector.class);
+
+        // - instances.
+        kryo.register(Instance.class, new InstanceSerializer());
+        kryo.register(BinaryLabeledInstance.class, new BinaryLabeledInstanceSerializer());
+        kryo.register(RealValueLabeledInstance.class, new RealValueLabeledInstanceSerializer());
+        kryo.register(MulticlassLabeledInstance.class, new MulticlassLabeledInstanceSerializer());
+    }
+
+    // - labels.
+
+    static void writeBinaryValue(Output output, double value) {
+        // - 0 and 1 take a byte, anything between follows it.
+        if (value == 0.0 || value == 1.0) {
+            output.writeByte((int)value);
+        } else {
+            output.writeByte(2);
+            output.writeDouble(value);
+        }
+    }
+
+    static double readBinaryValue(Input input) {
+        int b = input.readByte();
+        return b == 2 ? input.readDouble() : b;
+    }
+
+    static class RealValuedLabelSerializer extends Serializer<RealValuedLabel> {
+        public void write(Kryo kryo, Output output, RealValuedLabel label) {
+            output.writeDouble(label.getValue());
+        }
+
+        public RealValuedLabel read(Kryo kryo, Input input, Class<RealValuedLabel> type) {
+            return new RealValuedLabel(input.readDouble());
+        }
+    }
+
+    static class BinaryLabelSerializer extends Serializer<BinaryLabel> {
+        public void write(Kryo kryo, Output output, BinaryLabel label) {
+            writeBinaryValue(output, label.getValue());
+        }
+
+        public BinaryLabel read(Kryo kryo, Input input, Class<BinaryLabel> type) {
+            return new BinaryLabel(readBinaryValue(input));
+        }
+    }
+
+    static class MulticlassLabelSerializer extends Serializer<MulticlassLabel> {
+        public void write(Kryo kryo, Output output, MulticlassLabel label) {
+            output.writeString(label.getLabel());
+        }
+
+        public MulticlassLabel read(Kryo kryo, Input input, Class<MulticlassLabel> type) {
+            return new MulticlassLabel(input.readString());
+        }
+    }
+
+    // - vectors.
+
+    static class StringKeyedVectorSerializer extends Serializer<StringKeyedVector> {
+        private final boolean prefixKeys;
+
+        StringKeyedVectorSerializer(boolean prefixKeys) {
+            this.prefixKeys = prefixKeys;
+        }
+
+        public void write(Kryo kryo, Output output, StringKeyedVector vector) {
+            output.writeBoolean(vector.freezeKeySet);
+            vector.vector.writeCompact(output, prefixKeys);
+        }
+
+        public StringKeyedVector read(Kryo kryo, Input input, Class<StringKeyedVector> type) {
+            boolean freezeKeySet = input.readBoolean();
+            ByteArrayDoubleHashMap map = new ByteArrayDoubleHashMap(0, StringKeyedVector.LOAD_FACTOR, 0.0);
+            map.readCompact(input);
+            StringKeyedVector vector = new StringKeyedVector(map);
+            vector.freezeKeySet = freezeKeySet;
+            return vector;
+        }
+    }
+
+    // - instances, a flag byte for the optional fields, the label, then the
+    // vector with its class.
+
+    private static final int HAS_ID = 1;
+    private static final int HAS_SUPPORTING_DATA = 2;
+    private static final int HAS_WEIGHT = 4;
+
+    abstract static class AbstractInstanceSerializer<T extends AbstractInstance<T>> extends Serializer<T> {
+
+        abstract void writeLabel(Output output, T instance);
+
+        // - an instance with the label read and the given weight.
+        abstract T readLabel(Input input, double weight);
+
+        public void write(Kryo kryo, Output output, T instance) {
+            output.writeByte((instance.id != null ? HAS_ID : 0)
+                    | (instance.supporting_data != null ? HAS_SUPPORTING_DATA : 0)
+                    | (instance.weight != 1.0 ? HAS_WEIGHT : 0));
+            if (instance.id != null) {
+                output.writeString(instance.id);
+            }
+            if (instance.supporting_data != null) {
+                output.writeString(instance.supporting_data);
+            }
+            if (instance.weight != 1.0) {
+                output.writeDouble(instance.weight);
+            }
+            writeLabel(output, instance);
+            kryo.writeClassAndObject(output, instance.vector);
+        }
+
+        public T read(Kryo kryo, Input input, Class<T> type) {
+            int flags = input.readByte();
+            String id = (flags & HAS_ID) != 0 ? input.readString() : null;
+            String supportingData = (flags & HAS_SUPPORTING_DATA) != 0 ? input.readString() : null;
+            double weight = (flags & HAS_WEIGHT) != 0 ? input.readDouble() : 1.0;
+            T instance = readLabel(input, weight);
+            instance.id = id;
+            instance.supporting_data = supportingData;
+            instance.vector = (StringKeyedVector)kryo.readClassAndObject(input);
+            return instance;
+        }
+    }
+
+    static class InstanceSerializer extends AbstractInstanceSerializer<Instance> {
+        void writeLabel(Output output, Instance instance) {
+        }
+
+        Instance readLabel(Input input, double weight) {
+            return new Instance().setWeight(weight);
+        }
+    }
+
+    static class BinaryLabeledInstanceSerializer extends AbstractInstanceSerializer<BinaryLabeledInstance> {
+        void writeLabel(Output output, BinaryLabeledInstance instance) {
+            writeBinaryValue(output, instance.getLabel().getValue());
+        }
+
+        BinaryLabeledInstance readLabel(Input input, double weight) {
+            return new BinaryLabeledInstance(readBinaryValue(input), weight);
+        }
+    }
+
+    static class RealValueLabeledInstanceSerializer extends AbstractInstanceSerializer<RealValueLabeledInstance> {
+        void writeLabel(Output output, RealValueLabeledInstance instance) {
+            output.writeDouble(instance.getLabel().getValue());
+        }
+
+        RealValueLabeledInstance readLabel(Input input, double weight) {
+            return new RealValueLabeledInstance(input.readDouble(), weight);
+        }
+    }
+
+    static class MulticlassLabeledInstanceSerializer extends AbstractInstanceSerializer<MulticlassLabeledInstance> {
+        void writeLabel(Output output, MulticlassLabeledInstance instance) {
+            output.writeString(instance.getLabel().getLabel());
+        }
+
+        MulticlassLabeledInstance readLabel(Input input, double weight) {
+            return new MulticlassLabeledInstance(input.readString(), weight);
+        }
+    }
+}
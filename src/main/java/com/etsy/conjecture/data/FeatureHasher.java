@@ -0,0 +1,131 @@
+package com.etsy.conjecture.data;
+
+/**
+ * Hashes feature names to 64 bit keys without allocating, for use by the
+ * hashed vector types.
+ *
+ * A hash which has no known name is rendered as HASH_PREFIX followed by its
+ * hex digits, and hashing that rendered name gives back the original hash.
+ * This means string keyed code (iterators, explanations, optimizers which
+ * key their state by feature name) stays consistent with the hashed vectors
+ * even when no reverse dictionary is kept.
+ */
+public class FeatureHasher {
+
+    public static final String HASH_PREFIX = "__hash__";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private FeatureHasher() {
+    }
+
+    /**
+     * 64 bit hash of a feature name.
+     */
+    public static long hash(String feature) {
+        if (isHashName(feature)) {
+            return parseHashName(feature);
+        }
+        long h = FNV_OFFSET;
+        for (int i = 0; i < feature.length(); i++) {
+            h ^= feature.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    /**
+     * 64 bit hash of a feature name given as its (single byte encoded)
+     * bytes, the same as hash() of the name.
+     */
+    public static long hash(byte[] feature) {
+        if (isHashName(feature)) {
+            return parseHashName(feature);
+        }
+        long h = FNV_OFFSET;
+        for (int i = 0; i < feature.length; i++) {
+            h ^= feature[i] & 0xff;
+            h *= FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Hash restricted to the given number of bits (1 to 64), for a smaller
+     * hash space at the cost of more collisions.
+     */
+    public static long hash(String feature, int bits) {
+        long h = hash(feature);
+        return bits >= 64 ? h : h & ((1L << bits) - 1L);
+    }
+
+    /**
+     * Name used for a hash without a dictionary entry.
+     */
+    public static String hashName(long hash) {
+        return HASH_PREFIX + Long.toHexString(hash);
+    }
+
+    /**
+     * Whether a name was produced by hashName.
+     */
+    public static boolean isHashName(String name) {
+        int len = name.length() - HASH_PREFIX.length();
+        if (len <= 0 || len > 16 || !name.startsWith(HASH_PREFIX)) {
+            return false;
+        }
+        for (int i = HASH_PREFIX.length(); i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHashName(byte[] name) {
+        int len = name.length - HASH_PREFIX.length();
+        if (len <= 0 || len > 16) {
+            return false;
+        }
+        for (int i = 0; i < HASH_PREFIX.length(); i++) {
+            if (name[i] != HASH_PREFIX.charAt(i)) {
+                return false;
+            }
+        }
+        for (int i = HASH_PREFIX.length(); i < name.length; i++) {
+            byte c = name[i];
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHashName(byte[] name) {
+        long h = 0L;
+        for (int i = HASH_PREFIX.length(); i < name.length; i++) {
+            h = (h << 4) | Character.digit(name[i], 16);
+        }
+        return h;
+    }
+
+    private static long parseHashName(String name) {
+        long h = 0L;
+        for (int i = HASH_PREFIX.length(); i < name.length(); i++) {
+            h = (h << 4) | Character.digit(name.charAt(i), 16);
+        }
+        return h;
+    }
+
+    // - murmur3 finalizer, spreads the FNV bits over the whole word.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
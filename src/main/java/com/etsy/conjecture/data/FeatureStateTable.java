@@ -0,0 +1,294 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Per feature state for optimizers: a fixed number of fields for each
+ * feature hash, stored next to each other so that one probe of the key gives
+ * every field. Fields are kept as doubles, or as floats to halve the memory
+ * per feature at the cost of precision.
+ *
+ * The table is split into segments by key. A slot, and the table structure
+ * of its segment, is only touched while holding lock(key) when the table is
+ * shared between threads, so features in different segments are updated
+ * concurrently. A segment allocates nothing until its first feature, so
+ * empty tables are cheap.
+ *
+ * Features are never removed, clear() the table to start over.
+ */
+public class FeatureStateTable implements Serializable, KryoSerializable {
+
+    private static final long serialVersionUID = -6254391825467308416L;
+
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    // - the largest array the vm reliably allocates.
+    static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    // - rows a segment's arrays start with once it has a feature.
+    static final int MIN_SEGMENT_ROWS = 8;
+
+    private int fields;
+
+    private boolean useFloats;
+
+    private int segmentBits;
+
+    // - the expected features of a segment, to size its map on first use.
+    private transient int perSegment;
+
+    private transient Segment[] segments;
+
+    private static class Segment {
+        // - feature hash to slot, slots are handed out in insertion order.
+        // null until the first feature.
+        TLongIntHashMap slots;
+        double[] doubles;
+        float[] floats;
+        int size;
+    }
+
+    // - for kryo.
+    private FeatureStateTable() {
+    }
+
+    public FeatureStateTable(int fields, boolean useFloats) {
+        this(fields, useFloats, 100, DEFAULT_SEGMENTS);
+    }
+
+    public FeatureStateTable(int fields, boolean useFloats, int initialCapacity) {
+        this(fields, useFloats, initialCapacity, DEFAULT_SEGMENTS);
+    }
+
+    public FeatureStateTable(int fields, boolean useFloats, int initialCapacity,
+            int segments) {
+        checkArgument(fields > 0, "fields must be positive, given: %s", fields);
+        checkArgument(initialCapacity > 0,
+                "capacity must be positive, given: %s", initialCapacity);
+        checkArgument(segments > 0 && Integer.bitCount(segments) == 1,
+                "segments must be a positive power of two, given: %s", segments);
+        this.fields = fields;
+        this.useFloats = useFloats;
+        this.segmentBits = Integer.numberOfTrailingZeros(segments);
+        init(initialCapacity);
+    }
+
+    private void init(int capacity) {
+        segments = new Segment[1 << segmentBits];
+        perSegment = Math.max(10, capacity >> segmentBits);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public int getFields() {
+        return fields;
+    }
+
+    public boolean usesFloats() {
+        return useFloats;
+    }
+
+    public int size() {
+        long size = 0;
+        for (Segment s : segments) {
+            size += s.size;
+        }
+        checkState(size <= Integer.MAX_VALUE, "too many features: %s", size);
+        return (int)size;
+    }
+
+    private int segmentOf(long key) {
+        return segmentOf(key, segmentBits);
+    }
+
+    /**
+     * The segment of a key among 2^segmentBits, for other segmented tables.
+     */
+    static int segmentOf(long key, int segmentBits) {
+        // - the low bits of the key pick the trove bucket, use the high ones.
+        return (int)((key * 0x9e3779b97f4a7c15L) >>> (64 - segmentBits))
+                & ((1 << segmentBits) - 1);
+    }
+
+    /**
+     * The object to synchronize on while touching the state of key.
+     */
+    public Object lock(long key) {
+        return segments[segmentOf(key)];
+    }
+
+    /**
+     * Slot of a feature, or -1 if it has no state yet.
+     */
+    public int indexOf(long key) {
+        int seg = segmentOf(key);
+        Segment s = segments[seg];
+        int local = s.slots == null ? -1 : s.slots.get(key);
+        return local < 0 ? -1 : (local << segmentBits) | seg;
+    }
+
+    /**
+     * Slot of a feature, adding it with every field zero if it is absent.
+     */
+    public int insert(long key) {
+        int seg = segmentOf(key);
+        Segment s = segments[seg];
+        if (s.slots == null) {
+            s.slots = new TLongIntHashMap(perSegment,
+                    StringKeyedVector.LOAD_FACTOR, 0L, -1);
+        }
+        int local = s.slots.get(key);
+        if (local < 0) {
+            // - slots keep the segment in their low bits.
+            checkState(s.size < (1 << (31 - segmentBits)),
+                    "feature state segment is full: %s features", s.size);
+            local = s.size;
+            grow(s, (long)(local + 1) * fields);
+            s.slots.put(key, local);
+            s.size++;
+        }
+        return (local << segmentBits) | seg;
+    }
+
+    // - room for needed values in the arrays of s, at least doubling them.
+    private void grow(Segment s, long needed) {
+        checkState(needed <= MAX_ARRAY_SIZE,
+                "feature state segment is full: %s values", needed);
+        int length = useFloats ? (s.floats == null ? 0 : s.floats.length)
+                : (s.doubles == null ? 0 : s.doubles.length);
+        if (needed <= length) {
+            return;
+        }
+        long grown = Math.max(needed,
+                Math.max(2L * length, (long)MIN_SEGMENT_ROWS * fields));
+        int capacity = (int)Math.min(grown, MAX_ARRAY_SIZE);
+        if (useFloats) {
+            s.floats = s.floats == null ? new float[capacity] : Arrays.copyOf(
+                    s.floats, capacity);
+        } else {
+            s.doubles = s.doubles == null ? new double[capacity] : Arrays
+                    .copyOf(s.doubles, capacity);
+        }
+    }
+
+    /**
+     * Every feature with state, in no particular order.
+     */
+    public long[] keys() {
+        long[] keys = new long[size()];
+        int i = 0;
+        for (Segment s : segments) {
+            if (s.slots != null) {
+                for (long key : s.slots.keys()) {
+                    keys[i++] = key;
+                }
+            }
+        }
+        return keys;
+    }
+
+    public double get(int slot, int field) {
+        Segment s = segments[slot & (segments.length - 1)];
+        int i = (slot >>> segmentBits) * fields + field;
+        return useFloats ? s.floats[i] : s.doubles[i];
+    }
+
+    public void set(int slot, int field, double value) {
+        Segment s = segments[slot & (segments.length - 1)];
+        int i = (slot >>> segmentBits) * fields + field;
+        if (useFloats) {
+            s.floats[i] = (float)value;
+        } else {
+            s.doubles[i] = value;
+        }
+    }
+
+    public void clear() {
+        init(100);
+    }
+
+    // - java serialization, writes only the used slots.
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+        output.writeInt(size());
+        for (Segment s : segments) {
+            if (s.slots == null) {
+                continue;
+            }
+            long[] keys = new long[s.size];
+            for (long key : s.slots.keys()) {
+                keys[s.slots.get(key)] = key;
+            }
+            for (int local = 0; local < s.size; local++) {
+                output.writeLong(keys[local]);
+                for (int f = 0; f < fields; f++) {
+                    if (useFloats) {
+                        output.writeFloat(s.floats[local * fields + f]);
+                    } else {
+                        output.writeDouble(s.doubles[local * fields + f]);
+                    }
+                }
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException,
+            ClassNotFoundException {
+        input.defaultReadObject();
+        int n = input.readInt();
+        init(Math.max(10, n));
+        for (int i = 0; i < n; i++) {
+            int slot = insert(input.readLong());
+            for (int f = 0; f < fields; f++) {
+                set(slot, f, useFloats ? input.readFloat() : input.readDouble());
+            }
+        }
+    }
+
+    // - kryo serialization for use in scalding.
+    public void write(Kryo kryo, Output output) {
+        output.writeInt(fields, true);
+        output.writeBoolean(useFloats);
+        output.writeInt(segmentBits, true);
+        output.writeInt(size(), true);
+        for (long key : keys()) {
+            int slot = indexOf(key);
+            output.writeLong(key);
+            for (int f = 0; f < fields; f++) {
+                if (useFloats) {
+                    output.writeFloat((float)get(slot, f));
+                } else {
+                    output.writeDouble(get(slot, f));
+                }
+            }
+        }
+    }
+
+    public void read(Kryo kryo, Input input) {
+        fields = input.readInt(true);
+        useFloats = input.readBoolean();
+        segmentBits = input.readInt(true);
+        int n = input.readInt(true);
+        init(Math.max(10, n));
+        for (int i = 0; i < n; i++) {
+            int slot = insert(input.readLong());
+            for (int f = 0; f < fields; f++) {
+                set(slot, f, useFloats ? input.readFloat() : input.readDouble());
+            }
+        }
+    }
+}
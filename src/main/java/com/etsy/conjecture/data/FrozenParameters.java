@@ -0,0 +1,260 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.impl.hash.TPrimitiveHash;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * An immutable copy of the parameters of one or more linear models, for
+ * scoring only. Each feature hash has a row holding its weight in every
+ * column, in an open addressing table of parallel arrays, so an inner
+ * product is one probe per feature of the instance for all the columns.
+ *
+ * Nothing is written after construction, so any number of threads may
+ * score at once without locking, and scoring a SortedKeyedVector, a
+ * HashedKeyedVector or a StringKeyedVector allocates nothing. Lazy
+ * parameters are caught up when copied.
+ *
+ * String keyed parameters are keyed by their 64 bit FeatureHasher hash, so
+ * distinct names with the same hash would share a row; hashed parameters
+ * keep their hash bits, and instances keyed by hash must have the same.
+ */
+public final class FrozenParameters implements Serializable {
+
+    private static final long serialVersionUID = -2383536227950767254L;
+
+    private final int hashBits;
+
+    private final int columns;
+
+    private final int size;
+
+    private final int mask;
+
+    private final int shift;
+
+    private final long[] keys;
+
+    private final boolean[] full;
+
+    // - the row of slot s is at s * columns.
+    private final double[] weights;
+
+    public FrozenParameters(StringKeyedVector param) {
+        this(new StringKeyedVector[] { param });
+    }
+
+    /**
+     * The parameters of several models, column k being params[k]. The
+     * params must all be string keyed or all hashed with the same bits.
+     */
+    public FrozenParameters(StringKeyedVector[] params) {
+        checkArgument(params.length > 0, "no parameters given");
+        this.columns = params.length;
+        this.hashBits = params[0] instanceof HashedVector ? ((HashedVector)params[0])
+                .getHashBits() : 64;
+        for (StringKeyedVector param : params) {
+            checkArgument((param instanceof HashedVector) == (params[0] instanceof HashedVector),
+                    "can not mix hashed and string keyed parameters");
+            if (param instanceof HashedVector) {
+                HashedKeyedVector.checkSameHashBits(hashBits, ((HashedVector)param).getHashBits());
+            }
+        }
+
+        // - find the rows first, to size the table once.
+        TLongDoubleHashMap rows = new TLongDoubleHashMap();
+        for (StringKeyedVector param : params) {
+            if (param instanceof HashedVector) {
+                for (TLongDoubleIterator it = ((HashedVector)param).hashedIterator(); it.hasNext();) {
+                    it.advance();
+                    if (it.value() != 0.0) {
+                        rows.put(it.key(), 0.0);
+                    }
+                }
+            } else {
+                for (Map.Entry<String, Double> e : param) {
+                    if (e.getValue() != 0.0) {
+                        rows.put(FeatureHasher.hash(e.getKey()), 0.0);
+                    }
+                }
+            }
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, rows.size()) * 2 - 1) << 1;
+        this.size = rows.size();
+        this.mask = capacity - 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        this.keys = new long[capacity];
+        this.full = new boolean[capacity];
+        this.weights = new double[capacity * columns];
+        for (long key : rows.keys()) {
+            int slot = slotOf(key);
+            keys[slot] = key;
+            full[slot] = true;
+        }
+
+        for (int k = 0; k < columns; k++) {
+            if (params[k] instanceof HashedVector) {
+                for (TLongDoubleIterator it = ((HashedVector)params[k]).hashedIterator(); it.hasNext();) {
+                    it.advance();
+                    weights[slotOf(it.key()) * columns + k] += it.value();
+                }
+            } else {
+                for (Map.Entry<String, Double> e : params[k]) {
+                    weights[slotOf(FeatureHasher.hash(e.getKey())) * columns + k] += e.getValue();
+                }
+            }
+        }
+    }
+
+    // - the slot of a key, or the free slot where it would go.
+    private int slotOf(long key) {
+        int slot = (int)((key * 0x9e3779b97f4a7c15L) >>> shift) & mask;
+        while (full[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public int getHashBits() {
+        return hashBits;
+    }
+
+    public int getColumnCount() {
+        return columns;
+    }
+
+    /**
+     * The number of features with a row.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long hash(String key) {
+        return FeatureHasher.hash(key, hashBits);
+    }
+
+    private long hash(byte[] key) {
+        long h = FeatureHasher.hash(key);
+        return hashBits >= 64 ? h : h & ((1L << hashBits) - 1L);
+    }
+
+    /**
+     * The weight of a feature in column k.
+     */
+    public double getWeight(long key, int k) {
+        int slot = slotOf(key);
+        return full[slot] ? weights[slot * columns + k] : 0.0;
+    }
+
+    /**
+     * The inner product of x with the first column.
+     */
+    public double dot(StringKeyedVector x) {
+        double res = 0.0;
+        if (x instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            boolean byName = sv.getHashBits() != hashBits && sv.hasNames();
+            if (!byName) {
+                HashedKeyedVector.checkSameHashBits(hashBits, sv.getHashBits());
+            }
+            for (int i = 0; i < sv.size(); i++) {
+                res += sv.valueAt(i) * weightAt(byName ? hash(sv.nameBytesAt(i)) : sv.keyAt(i));
+            }
+        } else if (x instanceof HashedKeyedVector) {
+            HashedKeyedVector hv = (HashedKeyedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            long[] set = hv.hashed._set;
+            byte[] states = hv.hashed._states;
+            for (int i = 0; i < set.length; i++) {
+                if (states[i] == TPrimitiveHash.FULL) {
+                    res += hv.hashed.get(set[i]) * weightAt(set[i]);
+                }
+            }
+        } else if (x instanceof HashedVector) {
+            HashedVector hv = (HashedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                res += it.value() * weightAt(it.key());
+            }
+        } else if (x.vector != null && !(x instanceof LazyVector)) {
+            for (int s = 0; s < x.vector.slots(); s++) {
+                byte[] key = x.vector.keyAt(s);
+                if (key != null) {
+                    res += x.vector.valueAt(s) * weightAt(hash(key));
+                }
+            }
+        } else {
+            for (Map.Entry<String, Double> e : x) {
+                res += e.getValue() * weightAt(hash(e.getKey()));
+            }
+        }
+        return res;
+    }
+
+    private double weightAt(long key) {
+        int slot = slotOf(key);
+        return full[slot] ? weights[slot * columns] : 0.0;
+    }
+
+    /**
+     * Add the inner product of x with column k into out[k], for every
+     * column, in one pass over the features of x.
+     */
+    public void innerProducts(StringKeyedVector x, double[] out) {
+        checkArgument(out.length >= columns, "need room for %s columns, given: %s", columns, out.length);
+        if (x instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            boolean byName = sv.getHashBits() != hashBits && sv.hasNames();
+            if (!byName) {
+                HashedKeyedVector.checkSameHashBits(hashBits, sv.getHashBits());
+            }
+            for (int i = 0; i < sv.size(); i++) {
+                addRow(byName ? hash(sv.nameBytesAt(i)) : sv.keyAt(i), sv.valueAt(i), out);
+            }
+        } else if (x instanceof HashedKeyedVector) {
+            HashedKeyedVector hv = (HashedKeyedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            long[] set = hv.hashed._set;
+            byte[] states = hv.hashed._states;
+            for (int i = 0; i < set.length; i++) {
+                if (states[i] == TPrimitiveHash.FULL) {
+                    addRow(set[i], hv.hashed.get(set[i]), out);
+                }
+            }
+        } else if (x instanceof HashedVector) {
+            HashedVector hv = (HashedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                addRow(it.key(), it.value(), out);
+            }
+        } else if (x.vector != null && !(x instanceof LazyVector)) {
+            for (int s = 0; s < x.vector.slots(); s++) {
+                byte[] key = x.vector.keyAt(s);
+                if (key != null) {
+                    addRow(hash(key), x.vector.valueAt(s), out);
+                }
+            }
+        } else {
+            for (Map.Entry<String, Double> e : x) {
+                addRow(hash(e.getKey()), e.getValue(), out);
+            }
+        }
+    }
+
+    private void addRow(long key, double value, double[] out) {
+        int slot = slotOf(key);
+        if (full[slot]) {
+            int row = slot * columns;
+            for (int k = 0; k < columns; k++) {
+                out[k] += value * weights[row + k];
+            }
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.function.TDoubleFunction;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.etsy.conjecture.Utilities;
+import com.google.gson.Gson;
+
+/**
+ * A sparse vector keyed by 64 bit (or fewer) feature hashes rather than by
+ * feature name bytes. Values live in a primitive open addressing long to
+ * double table, so lookups by hash do not allocate.
+ *
+ * The string keyed api of StringKeyedVector still works, names are hashed
+ * with FeatureHasher. An optional reverse dictionary remembers the name of
+ * each hash so that iteration and explanations show readable names,
+ * otherwise the synthetic FeatureHasher.hashName is used.
+ */
+public class HashedKeyedVector extends StringKeyedVector implements
+        HashedVector, Serializable, KryoSerializable {
+
+    private static final long serialVersionUID = 3961582839254411727L;
+
+    protected transient TLongDoubleHashMap hashed;
+
+    protected transient TLongObjectHashMap<String> dictionary;
+
+    protected int hashBits = 64;
+
+    public HashedKeyedVector() {
+        this(false);
+    }
+
+    public HashedKeyedVector(boolean keepDictionary) {
+        this(10, keepDictionary, 64);
+    }
+
+    public HashedKeyedVector(int initialCapacity, boolean keepDictionary,
+            int hashBits) {
+        super(1);
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        this.hashed = new TLongDoubleHashMap(initialCapacity, LOAD_FACTOR);
+        this.dictionary = keepDictionary ? new TLongObjectHashMap<String>()
+                : null;
+        this.hashBits = hashBits;
+    }
+
+    /**
+     * Copies a string keyed vector into a hashed one.
+     */
+    public HashedKeyedVector(StringKeyedVector skv, boolean keepDictionary) {
+        this(skv, keepDictionary, 64);
+    }
+
+    public HashedKeyedVector(StringKeyedVector skv, boolean keepDictionary,
+            int hashBits) {
+        this(skv.size(), keepDictionary, hashBits);
+        add(skv);
+    }
+
+    public int getHashBits() {
+        return hashBits;
+    }
+
+    public boolean hasDictionary() {
+        return dictionary != null;
+    }
+
+    public long hash(String key) {
+        return FeatureHasher.hash(key, hashBits);
+    }
+
+    /**
+     * The name of a hashed coordinate, from the dictionary if present.
+     */
+    public String getName(long key) {
+        if (dictionary != null) {
+            String name = dictionary.get(key);
+            if (name != null) {
+                return name;
+            }
+        }
+        return FeatureHasher.hashName(key);
+    }
+
+    protected void remember(long key, String name) {
+        if (dictionary != null && !FeatureHasher.isHashName(name)
+                && !dictionary.containsKey(key)) {
+            dictionary.put(key, name);
+        }
+    }
+
+    // - primitive, hash keyed access.
+
+    public double getCoordinate(long key) {
+        return hashed.get(key);
+    }
+
+    public double setCoordinate(long key, double value) {
+        if (Utilities.floatingPointEquals(value, 0d)) {
+            return deleteCoordinate(key);
+        } else if (!freezeKeySet) {
+            hashed.put(key, value);
+        }
+        return 0d;
+    }
+
+    public double deleteCoordinate(long key) {
+        if (hashed.containsKey(key) && !freezeKeySet) {
+            if (dictionary != null) {
+                dictionary.remove(key);
+            }
+            return hashed.remove(key);
+        } else {
+            return 0d;
+        }
+    }
+
+    public double addToCoordinate(long key, double value) {
+        if (hashed.containsKey(key)) {
+            double updated = hashed.get(key) + value;
+            if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                return deleteCoordinate(key);
+            } else {
+                return hashed.put(key, updated);
+            }
+        } else if (!freezeKeySet && !Utilities.floatingPointEquals(value, 0.0d)) {
+            hashed.put(key, value);
+        }
+        return 0d;
+    }
+
+    public boolean containsKey(long key) {
+        return hashed.containsKey(key);
+    }
+
+    public TLongDoubleIterator hashedIterator() {
+        return hashed.iterator();
+    }
+
+    // - string keyed api.
+
+    public double setCoordinate(String key, double value) {
+        long h = hash(key);
+        if (!Utilities.floatingPointEquals(value, 0d)) {
+            remember(h, key);
+        }
+        return setCoordinate(h, value);
+    }
+
+    public double deleteCoordinate(String key) {
+        return deleteCoordinate(hash(key));
+    }
+
+    public double addToCoordinate(String key, double value) {
+        long h = hash(key);
+        double res = addToCoordinate(h, value);
+        if (hashed.containsKey(h)) {
+            remember(h, key);
+        }
+        return res;
+    }
+
+    public double getCoordinate(String key) {
+        return getCoordinate(hash(key));
+    }
+
+    public boolean containsKey(String key) {
+        return containsKey(hash(key));
+    }
+
+    // - the coordinates are keyed by hash, not by name.
+    protected ByteArrayDoubleHashMap namedCoordinates() {
+        return null;
+    }
+
+    public Map<String, Double> getMap() {
+        Map<String, Double> res = new HashMap<String, Double>(hashed.size());
+        for (TLongDoubleIterator it = hashed.iterator(); it.hasNext();) {
+            it.advance();
+            res.put(getName(it.key()), it.value());
+        }
+        return res;
+    }
+
+    public void addScaled(StringKeyedVector vec, double scale) {
+        if (vec instanceof HashedVector) {
+            HashedVector hv = (HashedVector)vec;
+            checkSameHashBits(hv);
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                addToCoordinate(it.key(), scale * it.value());
+                if (dictionary != null && hashed.containsKey(it.key())) {
+                    remember(it.key(), hv.getName(it.key()));
+                }
+            }
+        } else {
+            for (Map.Entry<String, Double> e : vec) {
+                addToCoordinate(e.getKey(), scale * e.getValue());
+            }
+        }
+    }
+
+    public StringKeyedVector multiplyPointwise(StringKeyedVector vec) {
+        HashedKeyedVector res = emptyLike();
+        for (Map.Entry<String, Double> e : vec) {
+            long h = hash(e.getKey());
+            res.setCoordinate(h, hashed.get(h) * e.getValue());
+            res.remember(h, e.getKey());
+        }
+        return res;
+    }
+
+    public StringKeyedVector projectOntoNonZeroCoordinates(StringKeyedVector vec) {
+        HashedKeyedVector res = emptyLike();
+        for (Map.Entry<String, Double> e : vec) {
+            long h = hash(e.getKey());
+            res.addToCoordinate(h, hashed.get(h));
+            res.remember(h, e.getKey());
+        }
+        return res;
+    }
+
+    public int size() {
+        return hashed.size();
+    }
+
+    public Set<String> keySet() {
+        Set<String> res = new HashSet<String>();
+        for (TLongDoubleIterator it = hashed.iterator(); it.hasNext();) {
+            it.advance();
+            res.add(getName(it.key()));
+        }
+        return res;
+    }
+
+    public Set<Double> values() {
+        Set<Double> res = new HashSet<Double>();
+        for (double v : hashed.values()) {
+            res.add(v);
+        }
+        return res;
+    }
+
+    public void transformValues(TDoubleFunction func) {
+        hashed.transformValues(func);
+    }
+
+    public void removeZeroCoordinates() {
+        for (TLongDoubleIterator it = hashed.iterator(); it.hasNext();) {
+            it.advance();
+            if (Utilities.floatingPointEquals(it.value(), 0d)) {
+                if (dictionary != null) {
+                    dictionary.remove(it.key());
+                }
+                it.remove();
+            }
+        }
+    }
+
+    public double dot(StringKeyedVector vec) {
+        if (vec instanceof LazyVector) {
+            return vec.dot(this);
+        }
+        if (vec instanceof HashedKeyedVector) {
+            HashedKeyedVector hkv = (HashedKeyedVector)vec;
+            checkSameHashBits(hkv);
+            TLongDoubleHashMap small = size() > hkv.size() ? hkv.hashed : hashed;
+            TLongDoubleHashMap big = size() > hkv.size() ? hashed : hkv.hashed;
+            double res = 0.0;
+            for (TLongDoubleIterator it = small.iterator(); it.hasNext();) {
+                it.advance();
+                res += it.value() * big.get(it.key());
+            }
+            return res;
+        }
+        double res = 0.0;
+        for (Map.Entry<String, Double> e : vec) {
+            res += e.getValue() * hashed.get(hash(e.getKey()));
+        }
+        return res;
+    }
+
+    public double LPNorm(double p) {
+        double tot = 0d;
+        for (double v : hashed.values()) {
+            tot += Math.pow(Math.abs(v), p);
+        }
+        return Math.pow(tot, 1d / p);
+    }
+
+    public double max() {
+        double max = 0.0;
+        for (double v : hashed.values()) {
+            if (v > max) {
+                max = v;
+            }
+        }
+        return max;
+    }
+
+    public Iterator<Map.Entry<String, Double>> iterator() {
+        return new Iterator<Map.Entry<String, Double>>() {
+            private TLongDoubleIterator iter = hashed.iterator();
+
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            public void remove() {
+                if (dictionary != null) {
+                    dictionary.remove(iter.key());
+                }
+                iter.remove();
+            }
+
+            public Map.Entry<String, Double> next() {
+                iter.advance();
+                return new AbstractMap.SimpleImmutableEntry<String, Double>(
+                        getName(iter.key()), iter.value());
+            }
+        };
+    }
+
+    public String toString() {
+        return new Gson().toJson(getMap());
+    }
+
+    public StringKeyedVector copy() {
+        HashedKeyedVector out = emptyLike();
+        out.hashed.putAll(hashed);
+        if (dictionary != null) {
+            out.dictionary.putAll(dictionary);
+        }
+        return out;
+    }
+
+    protected HashedKeyedVector emptyLike() {
+        return new HashedKeyedVector(Math.max(10, size()), dictionary != null,
+                hashBits);
+    }
+
+    protected void checkSameHashBits(HashedVector other) {
+        checkSameHashBits(hashBits, other.getHashBits());
+    }
+
+    static void checkSameHashBits(int a, int b) {
+        checkArgument(a == b,
+                "hashed vectors must use the same number of hash bits, given: %s and %s",
+                a, b);
+    }
+
+    // - java serialization
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+        writeHashed(output, hashed, dictionary);
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException,
+            ClassNotFoundException {
+        input.defaultReadObject();
+        int size = input.readInt();
+        boolean keepDictionary = input.readBoolean();
+        hashed = new TLongDoubleHashMap(Math.max(10, size), LOAD_FACTOR);
+        dictionary = keepDictionary ? new TLongObjectHashMap<String>() : null;
+        for (int i = 0; i < size; i++) {
+            long key = input.readLong();
+            hashed.put(key, input.readDouble());
+            if (keepDictionary && input.readBoolean()) {
+                dictionary.put(key, input.readUTF());
+            }
+        }
+    }
+
+    static void writeHashed(ObjectOutputStream output,
+            TLongDoubleHashMap map, TLongObjectHashMap<String> dict)
+            throws IOException {
+        output.writeInt(map.size());
+        output.writeBoolean(dict != null);
+        for (TLongDoubleIterator it = map.iterator(); it.hasNext();) {
+            it.advance();
+            output.writeLong(it.key());
+            output.writeDouble(it.value());
+            if (dict != null) {
+                String name = dict.get(it.key());
+                output.writeBoolean(name != null);
+                if (name != null) {
+                    output.writeUTF(name);
+                }
+            }
+        }
+    }
+
+    // - kryo serialization for use in scalding.
+    public void write(Kryo kryo, Output output) {
+        output.writeBoolean(freezeKeySet);
+        output.writeInt(hashBits, true);
+        writeHashed(output, hashed, dictionary);
+    }
+
+    public void read(Kryo kryo, Input input) {
+        freezeKeySet = input.readBoolean();
+        hashBits = input.readInt(true);
+        int size = input.readInt(true);
+        boolean keepDictionary = input.readBoolean();
+        hashed = new TLongDoubleHashMap(Math.max(10, size), LOAD_FACTOR);
+        dictionary = keepDictionary ? new TLongObjectHashMap<String>() : null;
+        readHashed(input, size, hashed, dictionary);
+    }
+
+    static void writeHashed(Output output, TLongDoubleHashMap map,
+            TLongObjectHashMap<String> dict) {
+        output.writeInt(map.size(), true);
+        output.writeBoolean(dict != null);
+        for (TLongDoubleIterator it = map.iterator(); it.hasNext();) {
+            it.advance();
+            output.writeLong(it.key());
+            output.writeDouble(it.value());
+            if (dict != null) {
+                output.writeString(dict.get(it.key()));
+            }
+        }
+    }
+
+    static void readHashed(Input input, int size, TLongDoubleHashMap map,
+            TLongObjectHashMap<String> dict) {
+        for (int i = 0; i < size; i++) {
+            long key = input.readLong();
+            map.put(key, input.readDouble());
+            if (dict != null) {
+                String name = input.readString();
+                if (name != null) {
+                    dict.put(key, name);
+                }
+            }
+        }
+    }
+}
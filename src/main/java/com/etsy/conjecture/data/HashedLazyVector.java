@@ -0,0 +1,498 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.function.TDoubleFunction;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.etsy.conjecture.Utilities;
+import com.google.gson.Gson;
+
+/**
+ * A LazyVector keyed by feature hash, for use as the parameter vector of a
+ * linear model trained on HashedKeyedVector instances. Weights and the
+ * iteration of their last update are kept in primitive long keyed tables,
+ * so dot products and updates against hashed instances do not allocate.
+ */
+public class HashedLazyVector extends LazyVector implements HashedVector {
+
+    private static final long serialVersionUID = -2328497066407815473L;
+
+    protected transient TLongDoubleHashMap hashed;
+
+    protected transient TLongLongHashMap lastIteration;
+
+    protected transient TLongObjectHashMap<String> dictionary;
+
+    protected int hashBits = 64;
+
+    public HashedLazyVector() {
+        super();
+        init(100, false, 64);
+    }
+
+    public HashedLazyVector(UpdateFunction uf, boolean keepDictionary) {
+        this(100, uf, keepDictionary, 64);
+    }
+
+    public HashedLazyVector(int initialCapacity, UpdateFunction uf,
+            boolean keepDictionary, int hashBits) {
+        super(1, uf);
+        init(initialCapacity, keepDictionary, hashBits);
+    }
+
+    private void init(int initialCapacity, boolean keepDictionary, int hashBits) {
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        this.hashBits = hashBits;
+        this.hashed = new TLongDoubleHashMap(initialCapacity, LOAD_FACTOR);
+        this.lastIteration = new TLongLongHashMap(initialCapacity, LOAD_FACTOR);
+        this.dictionary = keepDictionary ? new TLongObjectHashMap<String>()
+                : null;
+    }
+
+    /**
+     * Copies the (delazified) values of a vector into a hashed lazy vector.
+     */
+    public HashedLazyVector(StringKeyedVector skv, UpdateFunction uf,
+            boolean keepDictionary, int hashBits) {
+        this(Math.max(10, skv.size()), uf, keepDictionary, hashBits);
+        addScaled(skv, 1.0);
+    }
+
+    public int getHashBits() {
+        return hashBits;
+    }
+
+    public boolean hasDictionary() {
+        return dictionary != null;
+    }
+
+    public long hash(String key) {
+        return FeatureHasher.hash(key, hashBits);
+    }
+
+    public String getName(long key) {
+        if (dictionary != null) {
+            String name = dictionary.get(key);
+            if (name != null) {
+                return name;
+            }
+        }
+        return FeatureHasher.hashName(key);
+    }
+
+    protected void remember(long key, String name) {
+        if (dictionary != null && !FeatureHasher.isHashName(name)
+                && !dictionary.containsKey(key)) {
+            dictionary.put(key, name);
+        }
+    }
+
+    protected void forget(long key) {
+        lastIteration.remove(key);
+        if (dictionary != null) {
+            dictionary.remove(key);
+        }
+    }
+
+    public void delazify() {
+        for (TLongDoubleIterator it = hashed.iterator(); it.hasNext();) {
+            it.advance();
+            long startIter = lastIteration.get(it.key());
+            if (startIter < iteration) {
+                it.setValue(updater.lazyUpdate(getName(it.key()), it.value(),
+                        startIter, iteration));
+                lastIteration.put(it.key(), iteration);
+            }
+        }
+        removeZeroCoordinates();
+    }
+
+    public double delazifyCoordinate(String key) {
+        return delazifyCoordinate(hash(key));
+    }
+
+    public double delazifyCoordinate(long key) {
+        if (hashed.containsKey(key)) {
+            long oldIteration = lastIteration.get(key);
+            double initial = hashed.get(key);
+            if (oldIteration < iteration) {
+                double updated = updater.lazyUpdate(getName(key), initial,
+                        oldIteration, iteration);
+                if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                    hashed.remove(key);
+                    forget(key);
+                } else {
+                    lastIteration.put(key, iteration);
+                    hashed.put(key, updated);
+                }
+                return updated;
+            } else {
+                return initial;
+            }
+        }
+        return 0.0;
+    }
+
+    public void skipToIteration(long iter) {
+        delazify();
+        iteration = iter;
+        for (TLongDoubleIterator it = hashed.iterator(); it.hasNext();) {
+            it.advance();
+            lastIteration.put(it.key(), iter);
+        }
+    }
+
+    // - primitive, hash keyed access.
+
+    public double getCoordinate(long key) {
+        return delazifyCoordinate(key);
+    }
+
+    public double setCoordinate(long key, double value) {
+        if (Utilities.floatingPointEquals(value, 0d)) {
+            return deleteCoordinate(key);
+        } else if (!freezeKeySet) {
+            hashed.put(key, value);
+            lastIteration.put(key, iteration);
+        }
+        return 0d;
+    }
+
+    public double deleteCoordinate(long key) {
+        if (hashed.containsKey(key) && !freezeKeySet) {
+            forget(key);
+            return hashed.remove(key);
+        } else {
+            return 0d;
+        }
+    }
+
+    public double addToCoordinate(long key, double value) {
+        delazifyCoordinate(key);
+        if (hashed.containsKey(key)) {
+            double updated = hashed.get(key) + value;
+            if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                forget(key);
+                return hashed.remove(key);
+            } else {
+                lastIteration.put(key, iteration);
+                return hashed.put(key, updated);
+            }
+        } else if (!freezeKeySet && !Utilities.floatingPointEquals(value, 0.0d)) {
+            hashed.put(key, value);
+            lastIteration.put(key, iteration);
+        }
+        return 0d;
+    }
+
+    public TLongDoubleIterator hashedIterator() {
+        delazify();
+        return hashed.iterator();
+    }
+
+    // - string keyed api.
+
+    public double setCoordinate(String key, double value) {
+        long h = hash(key);
+        if (!Utilities.floatingPointEquals(value, 0d)) {
+            remember(h, key);
+        }
+        return setCoordinate(h, value);
+    }
+
+    public double deleteCoordinate(String key) {
+        return deleteCoordinate(hash(key));
+    }
+
+    public double addToCoordinate(String key, double value) {
+        long h = hash(key);
+        double res = addToCoordinate(h, value);
+        if (hashed.containsKey(h)) {
+            remember(h, key);
+        }
+        return res;
+    }
+
+    public double getCoordinate(String key) {
+        return delazifyCoordinate(hash(key));
+    }
+
+    public Map<String, Double> getMap() {
+        delazify();
+        Map<String, Double> res = new HashMap<String, Double>(hashed.size());
+        for (TLongDoubleIterator it = hashed.iterator(); it.hasNext();) {
+            it.advance();
+            res.put(getName(it.key()), it.value());
+        }
+        return res;
+    }
+
+    public void addScaled(StringKeyedVector vec, double scale) {
+        if (vec instanceof HashedVector) {
+            HashedVector hv = (HashedVector)vec;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                addToCoordinate(it.key(), scale * it.value());
+                if (dictionary != null && hashed.containsKey(it.key())) {
+                    remember(it.key(), hv.getName(it.key()));
+                }
+            }
+        } else {
+            for (Map.Entry<String, Double> e : vec) {
+                addToCoordinate(e.getKey(), scale * e.getValue());
+            }
+        }
+    }
+
+    public void update(StringKeyedVector x, double scale, CoordinateUpdate u) {
+        if (x instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, sv.getHashBits());
+            for (int i = 0; i < sv.size(); i++) {
+                long k = sv.keyAt(i);
+                updateCoordinate(k, sv.valueAt(i), scale, u);
+                if (dictionary != null && hashed.containsKey(k)
+                        && !dictionary.containsKey(k)) {
+                    remember(k, sv.nameAt(i));
+                }
+            }
+        } else if (x instanceof HashedVector) {
+            HashedVector hv = (HashedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                updateCoordinate(it.key(), it.value(), scale, u);
+                if (dictionary != null && hashed.containsKey(it.key())) {
+                    remember(it.key(), hv.getName(it.key()));
+                }
+            }
+        } else {
+            for (Map.Entry<String, Double> e : x) {
+                long h = hash(e.getKey());
+                updateCoordinate(h, e.getValue(), scale, u);
+                if (hashed.containsKey(h)) {
+                    remember(h, e.getKey());
+                }
+            }
+        }
+    }
+
+    void updateCoordinate(long key, double x, double scale,
+            CoordinateUpdate u) {
+        double current = delazifyCoordinate(key);
+        double updated = u.update(key, current, x, scale);
+        if (updated == current) {
+            return;
+        }
+        if (Utilities.floatingPointEquals(updated, 0.0d)) {
+            if (current != 0.0) {
+                forget(key);
+                hashed.remove(key);
+            }
+        } else if (current != 0.0 || !freezeKeySet) {
+            hashed.put(key, updated);
+            lastIteration.put(key, iteration);
+        }
+    }
+
+    public StringKeyedVector multiplyPointwise(StringKeyedVector vec) {
+        HashedKeyedVector res = new HashedKeyedVector(10, dictionary != null,
+                hashBits);
+        for (Map.Entry<String, Double> e : vec) {
+            res.setCoordinate(e.getKey(), getCoordinate(e.getKey())
+                    * e.getValue());
+        }
+        return res;
+    }
+
+    public StringKeyedVector projectOntoNonZeroCoordinates(StringKeyedVector vec) {
+        HashedKeyedVector res = new HashedKeyedVector(10, dictionary != null,
+                hashBits);
+        for (Map.Entry<String, Double> e : vec) {
+            res.addToCoordinate(e.getKey(), getCoordinate(e.getKey()));
+        }
+        return res;
+    }
+
+    public int size() {
+        delazify();
+        return hashed.size();
+    }
+
+    public boolean containsKey(String key) {
+        return delazifyCoordinate(hash(key)) != 0.0;
+    }
+
+    public Set<String> keySet() {
+        delazify();
+        Set<String> res = new HashSet<String>();
+        for (TLongDoubleIterator it = hashed.iterator(); it.hasNext();) {
+            it.advance();
+            res.add(getName(it.key()));
+        }
+        return res;
+    }
+
+    public Set<Double> values() {
+        delazify();
+        Set<Double> res = new HashSet<Double>();
+        for (double v : hashed.values()) {
+            res.add(v);
+        }
+        return res;
+    }
+
+    public void transformValues(TDoubleFunction func) {
+        delazify();
+        hashed.transformValues(func);
+    }
+
+    public void removeZeroCoordinates() {
+        for (TLongDoubleIterator it = hashed.iterator(); it.hasNext();) {
+            it.advance();
+            if (Utilities.floatingPointEquals(it.value(), 0d)) {
+                forget(it.key());
+                it.remove();
+            }
+        }
+    }
+
+    public double dot(StringKeyedVector skv) {
+        double res = 0.0;
+        if (skv instanceof HashedVector) {
+            HashedVector hv = (HashedVector)skv;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                res += it.value() * delazifyCoordinate(it.key());
+            }
+        } else {
+            for (Map.Entry<String, Double> e : skv) {
+                res += e.getValue() * delazifyCoordinate(hash(e.getKey()));
+            }
+        }
+        return res;
+    }
+
+    public double LPNorm(double p) {
+        delazify();
+        double tot = 0d;
+        for (double v : hashed.values()) {
+            tot += Math.pow(Math.abs(v), p);
+        }
+        return Math.pow(tot, 1d / p);
+    }
+
+    public double max() {
+        delazify();
+        double max = 0.0;
+        for (double v : hashed.values()) {
+            if (v > max) {
+                max = v;
+            }
+        }
+        return max;
+    }
+
+    public Iterator<Map.Entry<String, Double>> iterator() {
+        delazify();
+        return new Iterator<Map.Entry<String, Double>>() {
+            private TLongDoubleIterator iter = hashed.iterator();
+
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            public void remove() {
+                forget(iter.key());
+                iter.remove();
+            }
+
+            public Map.Entry<String, Double> next() {
+                iter.advance();
+                return new AbstractMap.SimpleImmutableEntry<String, Double>(
+                        getName(iter.key()), iter.value());
+            }
+        };
+    }
+
+    public String toString() {
+        return new Gson().toJson(getMap());
+    }
+
+    public StringKeyedVector copy() {
+        delazify();
+        HashedKeyedVector out = new HashedKeyedVector(Math.max(10, size()),
+                dictionary != null, hashBits);
+        out.addScaled(this, 1.0);
+        return out;
+    }
+
+    // - java serialization
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        delazify();
+        output.defaultWriteObject();
+        HashedKeyedVector.writeHashed(output, hashed, dictionary);
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException,
+            ClassNotFoundException {
+        input.defaultReadObject();
+        int size = input.readInt();
+        boolean keepDictionary = input.readBoolean();
+        hashed = new TLongDoubleHashMap(Math.max(10, size), LOAD_FACTOR);
+        lastIteration = new TLongLongHashMap(Math.max(10, size), LOAD_FACTOR,
+                0L, iteration);
+        dictionary = keepDictionary ? new TLongObjectHashMap<String>() : null;
+        for (int i = 0; i < size; i++) {
+            long key = input.readLong();
+            hashed.put(key, input.readDouble());
+            if (keepDictionary && input.readBoolean()) {
+                dictionary.put(key, input.readUTF());
+            }
+        }
+    }
+
+    // - kryo serialization for use in scalding.
+    public void write(Kryo kryo, Output output) {
+        delazify();
+        output.writeLong(iteration);
+        kryo.writeClassAndObject(output, updater);
+        output.writeBoolean(freezeKeySet);
+        output.writeInt(hashBits, true);
+        HashedKeyedVector.writeHashed(output, hashed, dictionary);
+    }
+
+    public void read(Kryo kryo, Input input) {
+        iteration = input.readLong();
+        updater = (UpdateFunction)kryo.readClassAndObject(input);
+        freezeKeySet = input.readBoolean();
+        hashBits = input.readInt(true);
+        int size = input.readInt(true);
+        boolean keepDictionary = input.readBoolean();
+        hashed = new TLongDoubleHashMap(Math.max(10, size), LOAD_FACTOR);
+        // - every restored weight is up to date as of the saved iteration.
+        lastIteration = new TLongLongHashMap(Math.max(10, size), LOAD_FACTOR,
+                0L, iteration);
+        dictionary = keepDictionary ? new TLongObjectHashMap<String>() : null;
+        HashedKeyedVector.readHashed(input, size, hashed, dictionary);
+    }
+}
@@ -0,0 +1,28 @@
+package com.etsy.conjecture.data;
+
+import gnu.trove.iterator.TLongDoubleIterator;
+
+/**
+ * The common interface of vectors keyed by feature hash, used to take
+ * allocation free paths when two hashed vectors meet.
+ */
+public interface HashedVector {
+
+    // - number of bits of the feature hash used as the key.
+    public int getHashBits();
+
+    // - hash a feature name to a key of this vector.
+    public long hash(String key);
+
+    // - the feature name for a key, or FeatureHasher.hashName if unknown.
+    public String getName(long key);
+
+    public double getCoordinate(long key);
+
+    public double addToCoordinate(long key, double value);
+
+    // - iterate the non-zero coordinates, lazy vectors are caught up first.
+    public TLongDoubleIterator hashedIterator();
+
+    public int size();
+}
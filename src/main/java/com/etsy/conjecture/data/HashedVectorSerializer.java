@@ -0,0 +1,44 @@
+package com.etsy.conjecture.data;
+
+import gnu.trove.iterator.TLongDoubleIterator;
+
+import java.lang.reflect.Type;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+/**
+ * Writes vectors keyed by feature hash the way gson writes a string keyed
+ * vector, {"vector":{"feature":weight,...},"hashBits":bits}, naming each
+ * coordinate from the dictionary or by FeatureHasher.hashName. Their
+ * coordinates are not in the name map gson reflects on, so a model with
+ * hashed parameters has to be exported with a Gson from newGson().
+ */
+public class HashedVectorSerializer implements JsonSerializer<HashedVector> {
+
+    public static Gson newGson() {
+        return register(new GsonBuilder()).create();
+    }
+
+    public static GsonBuilder register(GsonBuilder builder) {
+        return builder.registerTypeHierarchyAdapter(HashedVector.class,
+                new HashedVectorSerializer());
+    }
+
+    public JsonElement serialize(HashedVector src, Type type,
+            JsonSerializationContext context) {
+        JsonObject vector = new JsonObject();
+        for (TLongDoubleIterator it = src.hashedIterator(); it.hasNext();) {
+            it.advance();
+            vector.addProperty(src.getName(it.key()), it.value());
+        }
+        JsonObject out = new JsonObject();
+        out.add("vector", vector);
+        out.addProperty("hashBits", src.getHashBits());
+        return out;
+    }
+}
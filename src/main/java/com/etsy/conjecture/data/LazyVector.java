@@ -23,7 +23,9 @@ public class LazyVector extends StringKeyedVector implements Serializable,
 
     private static final long serialVersionUID = -7070522686694887436L;
 
-    protected transient ByteArrayDoubleHashMap iterations;
+    // - same object as vector, which stores the iteration each coordinate
+    // was last brought up to date at alongside its value.
+    protected transient ByteArrayDoubleLongHashMap lazyVector;
 
     protected long iteration = 0;
 
@@ -37,6 +39,17 @@ public class LazyVector extends StringKeyedVector implements Serializable,
                 long endIteration);
     }
 
+    /**
+     * Computes the new value of a parameter from its up to date value, the
+     * value x of the instance it is being updated against and a scale shared
+     * by every coordinate of the update (e.g. the loss derivative). The
+     * feature is the 64 bit hash of the coordinate, as in FeatureHasher (or
+     * the key itself for hashed vectors).
+     */
+    public static interface CoordinateUpdate extends Serializable {
+        public double update(long feature, double param, double x, double scale);
+    }
+
     public LazyVector() {
         this(new UpdateFunction() {
             private static final long serialVersionUID = 1740773207106961880L;
@@ -52,33 +65,50 @@ public class LazyVector extends StringKeyedVector implements Serializable,
     }
 
     public LazyVector(int initialCapacity, UpdateFunction uf) {
-        super(initialCapacity);
-        iterations = new ByteArrayDoubleHashMap(initialCapacity, LOAD_FACTOR,
-                FEATURE_ENCODING, 0.0);
-        updater = uf;
+        this(new ByteArrayDoubleLongHashMap(initialCapacity, LOAD_FACTOR,
+                FEATURE_ENCODING, 0.0), uf);
     }
 
     public LazyVector(StringKeyedVector skv, UpdateFunction uf) {
-        if (skv instanceof LazyVector) {
-            ((LazyVector)skv).delazify();
+        this(skv.size(), uf);
+        if (skv instanceof HashedVector) {
+            for (Map.Entry<String, Double> e : skv) {
+                lazyVector.putPrimitive(e.getKey(), e.getValue(), iteration);
+            }
+        } else {
+            if (skv instanceof LazyVector) {
+                ((LazyVector)skv).delazify();
+            }
+            for (TObjectDoubleIterator<byte[]> it = skv.vector.troveIterator(); it
+                    .hasNext();) {
+                it.advance();
+                lazyVector.putPrimitive(it.key(), it.value(), iteration);
+            }
         }
-        this.vector = skv.vector;
-        iterations = new ByteArrayDoubleHashMap(skv.size(), LOAD_FACTOR,
-                FEATURE_ENCODING, 0.0);
-        updater = uf;
     }
 
     public LazyVector(ByteArrayDoubleHashMap map, UpdateFunction uf) {
+        this(new ByteArrayDoubleLongHashMap(map, 0L), uf);
+    }
+
+    public LazyVector(Map<String, Double> jmap, UpdateFunction uf) {
+        this(jmap.size(), uf);
+        for (Map.Entry<String, Double> e : jmap.entrySet()) {
+            lazyVector.putPrimitive(e.getKey(), e.getValue(), iteration);
+        }
+    }
+
+    private LazyVector(ByteArrayDoubleLongHashMap map, UpdateFunction uf) {
         super(map);
-        iterations = new ByteArrayDoubleHashMap(10, LOAD_FACTOR,
-                FEATURE_ENCODING, 0.0);
+        lazyVector = map;
         updater = uf;
     }
 
-    public LazyVector(Map<String, Double> jmap, UpdateFunction uf) {
-        super(jmap);
-        iterations = new ByteArrayDoubleHashMap(10, LOAD_FACTOR,
-                FEATURE_ENCODING, 0.0);
+    public UpdateFunction getUpdateFunction() {
+        return updater;
+    }
+
+    public void setUpdateFunction(UpdateFunction uf) {
         updater = uf;
     }
 
@@ -86,15 +116,17 @@ public class LazyVector extends StringKeyedVector implements Serializable,
         iteration++;
     }
 
+    public long getIteration() {
+        return iteration;
+    }
+
     public void delazify() {
-        for (TObjectDoubleIterator<byte[]> it = vector.troveIterator(); it
-                .hasNext();) {
-            it.advance();
-            long startIter = (long)iterations.getPrimitive(it.key()); // defaults
-                                                                      // to 0.0
-            if (startIter < iteration) {
-                it.setValue(updater.lazyUpdate(it.key().toString(), it.value(), startIter, iteration));
-                iterations.putPrimitive(it.key(), (double)iteration);
+        for (int i = lazyVector.capacity(); i-- > 0;) {
+            byte[] key = lazyVector.keyAt(i);
+            if (key != null && lazyVector.longAt(i) < iteration) {
+                lazyVector.setAt(i, updater.lazyUpdate(key.toString(),
+                        lazyVector.valueAt(i), lazyVector.longAt(i), iteration),
+                        iteration);
             }
         }
         removeZeroCoordinates();
@@ -105,35 +137,34 @@ public class LazyVector extends StringKeyedVector implements Serializable,
     }
 
     public double delazifyCoordinate(byte[] key) {
-        if (vector.containsKey(key)) {
-            long oldIteration = (long)iterations.getPrimitive(key);
-            double initial = vector.getPrimitive(key);
-            if (oldIteration < iteration) {
-                double updated = updater.lazyUpdate(key.toString(), initial, oldIteration,
-                        iteration);
-                if (Utilities.floatingPointEquals(updated, 0.0d)) {
-                    vector.removePrimitive(key);
-                    iterations.removePrimitive(key);
-                } else {
-                    iterations.putPrimitive(key, (double)iteration);
-                    vector.putPrimitive(key, updated);
-                }
-                return updated;
-            } else {
-                return initial;
+        int index = lazyVector.indexOf(key);
+        return index < 0 ? 0.0 : delazifyIndex(index, key);
+    }
+
+    /**
+     * bring the coordinate at a slot up to date, removing it if it became
+     * zero.
+     */
+    private double delazifyIndex(int index, byte[] key) {
+        long oldIteration = lazyVector.longAt(index);
+        double initial = lazyVector.valueAt(index);
+        if (oldIteration < iteration) {
+            double updated = updater.lazyUpdate(key.toString(), initial,
+                    oldIteration, iteration);
+            if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                lazyVector.removeAt(index);
+                return 0.0;
             }
+            lazyVector.setAt(index, updated, iteration);
+            return updated;
         }
-        return 0.0;
+        return initial;
     }
 
     public void skipToIteration(long iter) {
         delazify();
         iteration = iter;
-        for (TObjectDoubleIterator<byte[]> it = iterations.troveIterator(); it
-                .hasNext();) {
-            it.advance();
-            it.setValue((double)iter);
-        }
+        lazyVector.fillLongs(iter);
     }
 
     /**
@@ -144,8 +175,7 @@ public class LazyVector extends StringKeyedVector implements Serializable,
         if (Utilities.floatingPointEquals(value, 0d)) {
             return deleteCoordinate(key);
         } else if (!freezeKeySet) {
-            vector.putPrimitive(key, value);
-            iterations.putPrimitive(key, (double)iteration);
+            lazyVector.putPrimitive(key, value, iteration);
         }
         return 0d;
     }
@@ -154,9 +184,11 @@ public class LazyVector extends StringKeyedVector implements Serializable,
      * remove a coordinate from the vector (same as setting it to 0).
      */
     public double deleteCoordinate(String key) {
-        if (vector.containsKey(key) && !freezeKeySet) {
-            iterations.removePrimitive(key);
-            return vector.removePrimitive(key);
+        int index = lazyVector.indexOf(vector.stringToByteArray(key));
+        if (index >= 0 && !freezeKeySet) {
+            double value = lazyVector.valueAt(index);
+            lazyVector.removeAt(index);
+            return value;
         } else {
             return 0d;
         }
@@ -167,29 +199,83 @@ public class LazyVector extends StringKeyedVector implements Serializable,
     }
 
     protected double addToCoordinateInternal(byte[] bkey, double value) {
-        delazifyCoordinate(bkey);
-        if (vector.containsKey(bkey)) {
-            double updated = vector.getPrimitive(bkey) + value;
-            if (Utilities.floatingPointEquals(updated, 0.0d)) {
-                iterations.removePrimitive(bkey);
-                return vector.removePrimitive(bkey);
-            } else {
-                iterations.putPrimitive(bkey, (double)iteration);
-                return vector.putPrimitive(bkey, updated);
+        int index = lazyVector.indexOf(bkey);
+        if (index >= 0) {
+            // - zero means the lazy update removed the coordinate.
+            double current = delazifyIndex(index, bkey);
+            if (current != 0.0) {
+                double updated = current + value;
+                if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                    lazyVector.removeAt(index);
+                } else {
+                    lazyVector.setAt(index, updated, iteration);
+                }
+                return current;
             }
-        } else if (!freezeKeySet && !Utilities.floatingPointEquals(value, 0.0d)) {
-            vector.putPrimitive(bkey, value);
-            iterations.putPrimitive(bkey, (double)iteration);
+        }
+        if (!freezeKeySet && !Utilities.floatingPointEquals(value, 0.0d)) {
+            lazyVector.putPrimitive(bkey, value, iteration);
         }
         return 0d;
     }
 
+    /**
+     * Replace each parameter at a non-zero coordinate of x by the value given
+     * by u, in one probe per coordinate and without building an update
+     * vector.
+     */
+    public void update(StringKeyedVector x, double scale, CoordinateUpdate u) {
+        if (x instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            for (int i = 0; i < sv.size(); i++) {
+                byte[] name = sv.nameBytesAt(i);
+                if (name == null) {
+                    name = vector.stringToByteArray(sv.nameAt(i));
+                }
+                updateCoordinate(name, sv.keyAt(i), sv.valueAt(i), scale, u);
+            }
+        } else if (x instanceof HashedVector) {
+            for (Map.Entry<String, Double> e : x) {
+                updateCoordinate(vector.stringToByteArray(e.getKey()),
+                        FeatureHasher.hash(e.getKey()), e.getValue(), scale, u);
+            }
+        } else {
+            if (x instanceof LazyVector) {
+                ((LazyVector)x).delazify();
+            }
+            for (TObjectDoubleIterator<byte[]> it = x.vector.troveIterator(); it
+                    .hasNext();) {
+                it.advance();
+                updateCoordinate(it.key(), FeatureHasher.hash(it.key()),
+                        it.value(), scale, u);
+            }
+        }
+    }
+
+    private void updateCoordinate(byte[] bkey, long feature, double x,
+            double scale, CoordinateUpdate u) {
+        int index = lazyVector.indexOf(bkey);
+        double current = index < 0 ? 0.0 : delazifyIndex(index, bkey);
+        double updated = u.update(feature, current, x, scale);
+        if (updated == current) {
+            return;
+        }
+        if (Utilities.floatingPointEquals(updated, 0.0d)) {
+            if (current != 0.0) {
+                lazyVector.removeAt(index);
+            }
+        } else if (current != 0.0) {
+            lazyVector.setAt(index, updated, iteration);
+        } else if (!freezeKeySet) {
+            lazyVector.putPrimitive(bkey, updated, iteration);
+        }
+    }
+
     /**
      * return the value of a coordinate.
      */
     public double getCoordinate(String key) {
-        delazifyCoordinate(key);
-        return vector.getPrimitive(key);
+        return delazifyCoordinate(key);
     }
 
     /**
@@ -247,7 +333,6 @@ public class LazyVector extends StringKeyedVector implements Serializable,
                 .hasNext();) {
             it.advance();
             if (Utilities.floatingPointEquals(it.value(), 0d)) {
-                iterations.removePrimitive(it.key());
                 it.remove();
             }
         }
@@ -257,7 +342,15 @@ public class LazyVector extends StringKeyedVector implements Serializable,
      * compute the inner product between this and vec.
      */
     public double dot(StringKeyedVector skv) {
-        if (skv instanceof LazyVector) {
+        if (skv instanceof SortedKeyedVector) {
+            return skv.dot(this);
+        } else if (skv instanceof HashedVector) {
+            double res = 0.0;
+            for (Map.Entry<String, Double> e : skv) {
+                res += e.getValue() * getCoordinate(e.getKey());
+            }
+            return res;
+        } else if (skv instanceof LazyVector) {
             return dotWithLazy((LazyVector)skv);
         } else {
             return dotWithSKV(skv);
@@ -309,6 +402,11 @@ public class LazyVector extends StringKeyedVector implements Serializable,
         return super.LPNorm(p);
     }
 
+    // - other vectors read this through its own methods, which catch it up.
+    protected ByteArrayDoubleHashMap namedCoordinates() {
+        return null;
+    }
+
     /**
      * immutable access the underlying hash map.
      */
@@ -338,12 +436,12 @@ public class LazyVector extends StringKeyedVector implements Serializable,
     private void readObject(ObjectInputStream input) throws IOException,
             ClassNotFoundException {
         iteration = input.readLong();
-        vector = (ByteArrayDoubleHashMap)input.readObject();
+        // - written as a plain map, every coordinate is up to date.
+        lazyVector = new ByteArrayDoubleLongHashMap(
+                (ByteArrayDoubleHashMap)input.readObject(), iteration);
+        vector = lazyVector;
         updater = (UpdateFunction)input.readObject();
         freezeKeySet = input.readBoolean();
-        // set up iteration info,
-        iterations = new ByteArrayDoubleHashMap(10, LOAD_FACTOR,
-                (double)iteration);
     }
 
     // - kryo serialization for use in scalding.
@@ -357,11 +455,10 @@ public class LazyVector extends StringKeyedVector implements Serializable,
 
     public void read(Kryo kryo, Input input) {
         iteration = input.readLong();
-        vector = kryo.readObject(input, ByteArrayDoubleHashMap.class);
+        lazyVector = kryo.readObject(input, ByteArrayDoubleLongHashMap.class);
+        lazyVector.fillLongs(iteration);
+        vector = lazyVector;
         updater = (UpdateFunction)kryo.readClassAndObject(input);
         freezeKeySet = input.readBoolean();
-        // set up iteration info,
-        iterations = new ByteArrayDoubleHashMap(10, LOAD_FACTOR,
-                (double)iteration);
     }
 }
@@ -0,0 +1,490 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.etsy.conjecture.Utilities;
+
+/**
+ * The parameters of a one vs all multiclass linear model, keyed once per
+ * feature hash with a row holding the non zero weights of the categories.
+ * All the category scores of an instance come from a single pass over its
+ * features, one probe per feature rather than one per feature and category.
+ *
+ * Each category is trained through a ParameterColumnVector, a lazy vector
+ * over its column of the table. Rows are sparse, so a feature costs memory
+ * for the categories it has a weight in rather than for all of them, which
+ * matters with many categories. A row keeps, next to each weight, the
+ * iteration at which it was last brought up to date by the lazy update
+ * function of its column.
+ *
+ * Rows are never removed, a zero weight is an absent cell of its row. Rows
+ * may be shared between threads updating different categories, cells are
+ * only touched holding the lock of their row.
+ */
+public class MulticlassParameterTable implements Serializable, KryoSerializable {
+
+    private static final long serialVersionUID = 2849270125906372185L;
+
+    private String[] categories;
+
+    private int hashBits = 64;
+
+    private int segmentBits = Integer
+            .numberOfTrailingZeros(FeatureStateTable.DEFAULT_SEGMENTS);
+
+    // - the rows by feature hash, in segments locked separately, see
+    // FeatureStateTable.
+    private transient TLongObjectHashMap<Row>[] segments;
+
+    private transient TLongObjectHashMap<String> dictionary;
+
+    // - the columns register themselves, also when deserialized.
+    transient ParameterColumnVector[] columns;
+
+    // - for kryo.
+    private MulticlassParameterTable() {
+    }
+
+    public MulticlassParameterTable(String[] categories, boolean keepDictionary,
+            int hashBits) {
+        checkArgument(categories.length > 0, "no categories given");
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        this.categories = categories.clone();
+        this.hashBits = hashBits;
+        initSegments(10);
+        this.dictionary = keepDictionary ? new TLongObjectHashMap<String>()
+                : null;
+        this.columns = new ParameterColumnVector[categories.length];
+        for (int k = 0; k < categories.length; k++) {
+            new ParameterColumnVector(this, k);
+        }
+    }
+
+    /**
+     * The non zero weights of a feature: their columns in increasing order,
+     * each weight and the iteration of its column it was last caught up to.
+     */
+    static final class Row {
+        int[] columns;
+        double[] weights;
+        long[] iterations;
+        int size;
+
+        Row(int capacity) {
+            columns = new int[capacity];
+            weights = new double[capacity];
+            iterations = new long[capacity];
+        }
+
+        // - the cell of column k, or -(insertion point) - 1.
+        int find(int k) {
+            return Arrays.binarySearch(columns, 0, size, k);
+        }
+
+        void insert(int i, int k, double w, long iteration) {
+            if (size == columns.length) {
+                int capacity = Math.max(2, 2 * size);
+                columns = Arrays.copyOf(columns, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+                iterations = Arrays.copyOf(iterations, capacity);
+            }
+            System.arraycopy(columns, i, columns, i + 1, size - i);
+            System.arraycopy(weights, i, weights, i + 1, size - i);
+            System.arraycopy(iterations, i, iterations, i + 1, size - i);
+            columns[i] = k;
+            weights[i] = w;
+            iterations[i] = iteration;
+            size++;
+        }
+
+        void remove(int i) {
+            size--;
+            System.arraycopy(columns, i + 1, columns, i, size - i);
+            System.arraycopy(weights, i + 1, weights, i, size - i);
+            System.arraycopy(iterations, i + 1, iterations, i, size - i);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void initSegments(int capacity) {
+        segments = new TLongObjectHashMap[1 << segmentBits];
+        int perSegment = Math.max(10, capacity >> segmentBits);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new TLongObjectHashMap<Row>(perSegment,
+                    StringKeyedVector.LOAD_FACTOR);
+        }
+    }
+
+    private TLongObjectHashMap<Row> segment(long key) {
+        return segments[FeatureStateTable.segmentOf(key, segmentBits)];
+    }
+
+    public String[] getCategories() {
+        return categories;
+    }
+
+    public int getCategoryCount() {
+        return categories.length;
+    }
+
+    /**
+     * Index of a category, or -1 if the table has no such category.
+     */
+    public int indexOf(String category) {
+        for (int k = 0; k < categories.length; k++) {
+            if (categories[k].equals(category)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    public ParameterColumnVector getColumn(int k) {
+        return columns[k];
+    }
+
+    public ParameterColumnVector getColumn(String category) {
+        int k = indexOf(category);
+        checkArgument(k >= 0, "unknown category: %s", category);
+        return columns[k];
+    }
+
+    public int getHashBits() {
+        return hashBits;
+    }
+
+    public boolean hasDictionary() {
+        return dictionary != null;
+    }
+
+    /**
+     * The number of features with a row.
+     */
+    public int size() {
+        long size = 0;
+        for (TLongObjectHashMap<Row> segment : segments) {
+            size += segment.size();
+        }
+        checkState(size <= Integer.MAX_VALUE, "too many rows: %s", size);
+        return (int)size;
+    }
+
+    public long hash(String key) {
+        return FeatureHasher.hash(key, hashBits);
+    }
+
+    public String getName(long key) {
+        if (dictionary != null) {
+            synchronized (dictionary) {
+                String name = dictionary.get(key);
+                if (name != null) {
+                    return name;
+                }
+            }
+        }
+        return FeatureHasher.hashName(key);
+    }
+
+    void remember(long key, String name) {
+        if (dictionary != null && name != null
+                && !FeatureHasher.isHashName(name)) {
+            synchronized (dictionary) {
+                if (!dictionary.containsKey(key)) {
+                    dictionary.put(key, name);
+                }
+            }
+        }
+    }
+
+    // - row access, callers hold lock(key).
+
+    Object lock(long key) {
+        return segment(key);
+    }
+
+    /**
+     * The row of a feature, or null if it has none.
+     */
+    Row rowOf(long key) {
+        return segment(key).get(key);
+    }
+
+    Row insertRow(long key) {
+        TLongObjectHashMap<Row> segment = segment(key);
+        Row row = segment.get(key);
+        if (row == null) {
+            row = new Row(2);
+            segment.put(key, row);
+        }
+        return row;
+    }
+
+    long[] keys() {
+        long[] keys = new long[size()];
+        int i = 0;
+        for (TLongObjectHashMap<Row> segment : segments) {
+            for (long key : segment.keys()) {
+                keys[i++] = key;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * The weight of column k in a row, caught up to the iteration of the
+     * column.
+     */
+    double weight(Row row, int k, long key) {
+        int i = row.find(k);
+        return i < 0 ? 0.0 : weightAt(row, i, key);
+    }
+
+    // - the weight of a cell caught up, which removes it if it reaches zero.
+    private double weightAt(Row row, int i, long key) {
+        double w = row.weights[i];
+        ParameterColumnVector column = columns[row.columns[i]];
+        if (column == null) {
+            return w;
+        }
+        long last = row.iterations[i];
+        if (last < column.iteration) {
+            w = column.updater.lazyUpdate(getName(key), w, last,
+                    column.iteration);
+            if (Utilities.floatingPointEquals(w, 0.0d)) {
+                row.remove(i);
+                return 0.0;
+            }
+            row.weights[i] = w;
+            row.iterations[i] = column.iteration;
+        }
+        return w;
+    }
+
+    void setWeight(Row row, int k, double w, long iteration) {
+        int i = row.find(k);
+        if (w == 0.0) {
+            if (i >= 0) {
+                row.remove(i);
+            }
+        } else if (i < 0) {
+            row.insert(-i - 1, k, w, iteration);
+        } else {
+            row.weights[i] = w;
+            row.iterations[i] = iteration;
+        }
+    }
+
+    /**
+     * Add the inner product of x with every column into out, in one pass
+     * over the features of x.
+     */
+    public void innerProducts(StringKeyedVector x, double[] out) {
+        checkArgument(out.length >= categories.length,
+                "need room for %s categories, given: %s", categories.length,
+                out.length);
+        innerProducts(x, null, out);
+    }
+
+    /**
+     * Add the inner product of x with columns[i] into out[i], in one pass
+     * over the features of x. The cost does not depend on the number of
+     * other columns.
+     */
+    public void innerProducts(StringKeyedVector x, int[] columns, double[] out) {
+        if (x instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, sv.getHashBits());
+            for (int i = 0; i < sv.size(); i++) {
+                addRow(sv.keyAt(i), sv.valueAt(i), columns, out);
+            }
+        } else if (x instanceof HashedVector) {
+            HashedVector hv = (HashedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                addRow(it.key(), it.value(), columns, out);
+            }
+        } else {
+            for (Map.Entry<String, Double> e : x) {
+                addRow(hash(e.getKey()), e.getValue(), columns, out);
+            }
+        }
+    }
+
+    // - every column if columns is null.
+    private void addRow(long key, double value, int[] columns, double[] out) {
+        TLongObjectHashMap<Row> segment = segment(key);
+        synchronized (segment) {
+            Row row = segment.get(key);
+            if (row == null) {
+                return;
+            }
+            if (columns == null) {
+                // - backwards, catching a cell up may remove it.
+                for (int i = row.size - 1; i >= 0; i--) {
+                    int k = row.columns[i];
+                    out[k] += value * weightAt(row, i, key);
+                }
+            } else {
+                for (int i = 0; i < columns.length; i++) {
+                    out[i] += value * weight(row, columns[i], key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bring every weight up to date with its column.
+     */
+    public void delazify() {
+        for (TLongObjectHashMap<Row> segment : segments) {
+            synchronized (segment) {
+                for (TLongObjectIterator<Row> it = segment.iterator(); it
+                        .hasNext();) {
+                    it.advance();
+                    Row row = it.value();
+                    for (int i = row.size - 1; i >= 0; i--) {
+                        weightAt(row, i, it.key());
+                    }
+                }
+            }
+        }
+    }
+
+    // - java serialization, the weights are written up to date.
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        delazify();
+        output.defaultWriteObject();
+        output.writeInt(size());
+        for (TLongObjectHashMap<Row> segment : segments) {
+            for (TLongObjectIterator<Row> it = segment.iterator(); it
+                    .hasNext();) {
+                it.advance();
+                Row row = it.value();
+                output.writeLong(it.key());
+                output.writeInt(row.size);
+                for (int i = 0; i < row.size; i++) {
+                    output.writeInt(row.columns[i]);
+                    output.writeDouble(row.weights[i]);
+                    output.writeLong(row.iterations[i]);
+                }
+            }
+        }
+        output.writeBoolean(dictionary != null);
+        if (dictionary != null) {
+            output.writeInt(dictionary.size());
+            for (long key : dictionary.keys()) {
+                output.writeLong(key);
+                output.writeUTF(dictionary.get(key));
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException,
+            ClassNotFoundException {
+        input.defaultReadObject();
+        columns = new ParameterColumnVector[categories.length];
+        int n = input.readInt();
+        initSegments(n);
+        for (int r = 0; r < n; r++) {
+            long key = input.readLong();
+            int size = input.readInt();
+            Row row = new Row(Math.max(2, size));
+            for (int i = 0; i < size; i++) {
+                row.columns[i] = input.readInt();
+                row.weights[i] = input.readDouble();
+                row.iterations[i] = input.readLong();
+            }
+            row.size = size;
+            segment(key).put(key, row);
+        }
+        if (input.readBoolean()) {
+            int size = input.readInt();
+            dictionary = new TLongObjectHashMap<String>(Math.max(10, size));
+            for (int i = 0; i < size; i++) {
+                dictionary.put(input.readLong(), input.readUTF());
+            }
+        }
+    }
+
+    // - kryo serialization for use in scalding.
+    public void write(Kryo kryo, Output output) {
+        delazify();
+        output.writeInt(categories.length, true);
+        for (String c : categories) {
+            output.writeString(c);
+        }
+        output.writeInt(hashBits, true);
+        output.writeInt(segmentBits, true);
+        output.writeInt(size(), true);
+        for (TLongObjectHashMap<Row> segment : segments) {
+            for (TLongObjectIterator<Row> it = segment.iterator(); it
+                    .hasNext();) {
+                it.advance();
+                Row row = it.value();
+                output.writeLong(it.key());
+                output.writeInt(row.size, true);
+                for (int i = 0; i < row.size; i++) {
+                    output.writeInt(row.columns[i], true);
+                    output.writeDouble(row.weights[i]);
+                    output.writeLong(row.iterations[i], true);
+                }
+            }
+        }
+        output.writeBoolean(dictionary != null);
+        if (dictionary != null) {
+            output.writeInt(dictionary.size(), true);
+            for (long key : dictionary.keys()) {
+                output.writeLong(key);
+                output.writeString(dictionary.get(key));
+            }
+        }
+    }
+
+    public void read(Kryo kryo, Input input) {
+        categories = new String[input.readInt(true)];
+        for (int k = 0; k < categories.length; k++) {
+            categories[k] = input.readString();
+        }
+        hashBits = input.readInt(true);
+        segmentBits = input.readInt(true);
+        int n = input.readInt(true);
+        initSegments(n);
+        for (int r = 0; r < n; r++) {
+            long key = input.readLong();
+            int size = input.readInt(true);
+            Row row = new Row(Math.max(2, size));
+            for (int i = 0; i < size; i++) {
+                row.columns[i] = input.readInt(true);
+                row.weights[i] = input.readDouble();
+                row.iterations[i] = input.readLong(true);
+            }
+            row.size = size;
+            segment(key).put(key, row);
+        }
+        columns = new ParameterColumnVector[categories.length];
+        if (input.readBoolean()) {
+            int size = input.readInt(true);
+            dictionary = new TLongObjectHashMap<String>(Math.max(10, size));
+            for (int i = 0; i < size; i++) {
+                dictionary.put(input.readLong(), input.readString());
+            }
+        }
+    }
+}
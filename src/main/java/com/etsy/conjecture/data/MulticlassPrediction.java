@@ -1,48 +1,92 @@
 package com.etsy.conjecture.data;
 
+import java.util.HashMap;
 import java.util.Map;
-import com.google.common.collect.Maps;
 
 /**
  * representing a probability of membership in each class
+ *
+ * The probabilities are held in an array parallel to the categories, the
+ * map view is only built when asked for.
  */
 public class MulticlassPrediction extends MulticlassLabel {
 
     private static final long serialVersionUID = -1L;
 
+    private String[] categories;
+
     /**
      * class membership probabilities
      */
-    private Map<String, Double> classProbs;
+    private double[] probs;
+
+    private transient Map<String, Double> classProbs;
 
     public MulticlassPrediction(Map<String, Double> classProbs) {
-        this.classProbs = Maps.newHashMap(classProbs);
-        boolean first = true;
-        double maxProb = 0;
-        String maxCategory = null;
-        for (String key : classProbs.keySet()) {
-            if (first || classProbs.get(key) > maxProb) {
-                maxProb = classProbs.get(key);
-                maxCategory = key;
-                first = false;
+        this.categories = new String[classProbs.size()];
+        this.probs = new double[classProbs.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> e : classProbs.entrySet()) {
+            categories[i] = e.getKey();
+            probs[i] = e.getValue();
+            i++;
+        }
+        setLabel(argMax());
+    }
+
+    /**
+     * Takes ownership of probs, categories may be shared between predictions
+     * and must not be modified.
+     */
+    public MulticlassPrediction(String[] categories, double[] probs) {
+        this.categories = categories;
+        this.probs = probs;
+        setLabel(argMax());
+    }
+
+    private String argMax() {
+        int best = -1;
+        for (int i = 0; i < probs.length; i++) {
+            if (best < 0 || probs[i] > probs[best]) {
+                best = i;
             }
         }
-        setLabel(maxCategory);
+        return best < 0 ? null : categories[best];
+    }
+
+    /**
+     * The number of categories.
+     */
+    public int size() {
+        return probs.length;
+    }
+
+    public String getCategory(int i) {
+        return categories[i];
+    }
+
+    public double getProb(int i) {
+        return probs[i];
     }
 
     public Double getProb(String category) {
-        return classProbs.get(category);
+        return getMap().get(category);
     }
 
     public Double getProbOrElse(String category, Double def) {
-        if (classProbs.containsKey(category)) {
-            return classProbs.get(category);
-        } else {
-            return def;
-        }
+        Double prob = getMap().get(category);
+        return prob == null ? def : prob;
     }
 
     public Map<String, Double> getMap() {
+        if (classProbs == null) {
+            Map<String, Double> map = new HashMap<String, Double>(
+                    2 * probs.length);
+            for (int i = 0; i < probs.length; i++) {
+                map.put(categories[i], probs[i]);
+            }
+            classProbs = map;
+        }
         return classProbs;
     }
 
@@ -0,0 +1,375 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An open addressing hash table from long keys to a double value and a long
+ * stamp, kept outside the java heap. The slots live either in direct
+ * buffers, or in a memory mapped file which can later be opened again
+ * (read only if desired) without deserializing anything.
+ *
+ * Slots are found by linear probing. Each is 24 bytes: the key, the value,
+ * and the stamp plus one, where zero marks a free slot and -1 a removed one.
+ * The table is split into segments so it may exceed the 2G limit of a single
+ * buffer.
+ *
+ * File layout: a HEADER_BYTES header (magic, capacity, size, META_FIELDS
+ * longs for the owner's use, then the count of removed slots), followed by
+ * the slots.
+ */
+public class OffHeapHashTable {
+
+    public static final int HEADER_BYTES = 64;
+
+    public static final int META_FIELDS = 4;
+
+    static final int SLOT_BYTES = 24;
+
+    static final long MAGIC = 0x636f6e6a4f484854L;
+
+    // - slots per segment, keeps each buffer under 2G.
+    static final int SEGMENT_BITS = 26;
+
+    static final long FREE = 0L;
+    static final long REMOVED = -1L;
+
+    static final double MAX_LOAD = 0.75;
+
+    protected File file;
+    protected boolean readOnly;
+
+    protected ByteBuffer header;
+    protected ByteBuffer[] segments;
+
+    protected long capacity;
+    protected long size;
+    protected long removed;
+    protected int shift;
+
+    /**
+     * A table in direct memory.
+     */
+    public OffHeapHashTable(long initialCapacity) {
+        this(null, initialCapacity);
+    }
+
+    /**
+     * A table in a new memory mapped file, or in direct memory if file is
+     * null. Any existing file is overwritten.
+     */
+    public OffHeapHashTable(File file, long initialCapacity) {
+        checkArgument(initialCapacity > 0,
+                "capacity must be positive, given: %s", initialCapacity);
+        this.file = file;
+        this.readOnly = false;
+        long cap = 16;
+        while (cap * MAX_LOAD < initialCapacity) {
+            cap <<= 1;
+        }
+        try {
+            allocate(cap);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not map " + file, e);
+        }
+        header.putLong(0, MAGIC);
+        header.putLong(8, capacity);
+        writeSize();
+    }
+
+    private OffHeapHashTable(File file, boolean readOnly) throws IOException {
+        this.file = file;
+        this.readOnly = readOnly;
+        header = map(0, HEADER_BYTES);
+        if (header.getLong(0) != MAGIC) {
+            throw new IOException(file + " is not an off heap hash table");
+        }
+        capacity = header.getLong(8);
+        size = header.getLong(16);
+        removed = header.getLong(56);
+        shift = 64 - Long.numberOfTrailingZeros(capacity);
+        segments = mapSegments(capacity);
+    }
+
+    /**
+     * Map an existing table file, as written by flush().
+     */
+    public static OffHeapHashTable open(File file, boolean readOnly)
+            throws IOException {
+        return new OffHeapHashTable(file, readOnly);
+    }
+
+    private void allocate(long cap) throws IOException {
+        capacity = cap;
+        size = 0;
+        removed = 0;
+        shift = 64 - Long.numberOfTrailingZeros(cap);
+        if (file == null) {
+            header = ByteBuffer.allocate(HEADER_BYTES);
+            segments = new ByteBuffer[segmentCount(cap)];
+            for (int s = 0; s < segments.length; s++) {
+                segments[s] = ByteBuffer.allocateDirect(segmentBytes(cap, s));
+            }
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                raf.setLength(HEADER_BYTES + cap * SLOT_BYTES);
+            } finally {
+                raf.close();
+            }
+            header = map(0, HEADER_BYTES);
+            segments = mapSegments(cap);
+        }
+    }
+
+    private ByteBuffer[] mapSegments(long cap) throws IOException {
+        ByteBuffer[] res = new ByteBuffer[segmentCount(cap)];
+        for (int s = 0; s < res.length; s++) {
+            res[s] = map(HEADER_BYTES + ((long)s << SEGMENT_BITS) * SLOT_BYTES,
+                    segmentBytes(cap, s));
+        }
+        return res;
+    }
+
+    private MappedByteBuffer map(long position, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        try {
+            return raf.getChannel().map(
+                    readOnly ? FileChannel.MapMode.READ_ONLY
+                            : FileChannel.MapMode.READ_WRITE, position, length);
+        } finally {
+            // - the mapping stays valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    private static int segmentCount(long cap) {
+        return (int)((cap + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+    }
+
+    private static int segmentBytes(long cap, int s) {
+        long slots = Math.min(1L << SEGMENT_BITS, cap - ((long)s << SEGMENT_BITS));
+        return (int)(slots * SLOT_BYTES);
+    }
+
+    // - slot access.
+
+    private ByteBuffer segment(long index) {
+        return segments[(int)(index >>> SEGMENT_BITS)];
+    }
+
+    private static int offset(long index) {
+        return (int)(index & ((1L << SEGMENT_BITS) - 1)) * SLOT_BYTES;
+    }
+
+    private long home(long key) {
+        return (key * 0x9e3779b97f4a7c15L) >>> shift;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Whether a slot holds an entry.
+     */
+    public boolean isFull(long index) {
+        long s = segment(index).getLong(offset(index) + 16);
+        return s != FREE && s != REMOVED;
+    }
+
+    public long keyAt(long index) {
+        return segment(index).getLong(offset(index));
+    }
+
+    public double valueAt(long index) {
+        return segment(index).getDouble(offset(index) + 8);
+    }
+
+    public long stampAt(long index) {
+        return segment(index).getLong(offset(index) + 16) - 1L;
+    }
+
+    public void setValueAt(long index, double value) {
+        segment(index).putDouble(offset(index) + 8, value);
+    }
+
+    public void setAt(long index, double value, long stamp) {
+        ByteBuffer b = segment(index);
+        int off = offset(index);
+        b.putDouble(off + 8, value);
+        b.putLong(off + 16, stamp + 1L);
+    }
+
+    /**
+     * Slot of key, or -1 if it is absent. Slots stay valid until the next
+     * insertion.
+     */
+    public long indexOf(long key) {
+        long mask = capacity - 1;
+        for (long i = home(key);; i = (i + 1) & mask) {
+            ByteBuffer b = segment(i);
+            int off = offset(i);
+            long s = b.getLong(off + 16);
+            if (s == FREE) {
+                return -1;
+            } else if (s != REMOVED && b.getLong(off) == key) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Insert or overwrite the entry for key.
+     */
+    public void put(long key, double value, long stamp) {
+        long index = indexOf(key);
+        if (index >= 0) {
+            setAt(index, value, stamp);
+            return;
+        }
+        if (size + removed + 1 > capacity * MAX_LOAD) {
+            // - grow, or just sweep out removed slots if that is enough.
+            rehash(size + 1 > capacity * MAX_LOAD / 2 ? capacity << 1
+                    : capacity);
+        }
+        long mask = capacity - 1;
+        long i = home(key);
+        long s = segment(i).getLong(offset(i) + 16);
+        while (s != FREE && s != REMOVED) {
+            i = (i + 1) & mask;
+            s = segment(i).getLong(offset(i) + 16);
+        }
+        if (s == REMOVED) {
+            removed--;
+        }
+        segment(i).putLong(offset(i), key);
+        setAt(i, value, stamp);
+        size++;
+    }
+
+    /**
+     * Remove the entry in a slot. Nothing moves, so it is safe to call while
+     * scanning the slots.
+     */
+    public void removeAt(long index) {
+        segment(index).putLong(offset(index) + 16, REMOVED);
+        size--;
+        removed++;
+    }
+
+    /**
+     * Set the stamp of every entry.
+     */
+    public void fillStamps(long stamp) {
+        for (long i = 0; i < capacity; i++) {
+            if (isFull(i)) {
+                segment(i).putLong(offset(i) + 16, stamp + 1L);
+            }
+        }
+    }
+
+    public void clear() {
+        for (long i = 0; i < capacity; i++) {
+            segment(i).putLong(offset(i) + 16, FREE);
+        }
+        size = 0;
+        removed = 0;
+    }
+
+    private void rehash(long newCapacity) {
+        ByteBuffer[] old = segments;
+        long oldCapacity = capacity;
+        // - the new header starts out empty.
+        long[] meta = new long[META_FIELDS];
+        for (int f = 0; f < META_FIELDS; f++) {
+            meta[f] = getMeta(f);
+        }
+        File tmp = null;
+        try {
+            if (file != null) {
+                // - build the new table beside the old one, then swap it in.
+                File target = file;
+                tmp = new File(file.getPath() + ".rehash");
+                file = tmp;
+                allocate(newCapacity);
+                file = target;
+            } else {
+                allocate(newCapacity);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("could not grow " + file, e);
+        }
+        for (long i = 0; i < oldCapacity; i++) {
+            ByteBuffer b = old[(int)(i >>> SEGMENT_BITS)];
+            int off = offset(i);
+            long s = b.getLong(off + 16);
+            if (s != FREE && s != REMOVED) {
+                put(b.getLong(off), b.getDouble(off + 8), s - 1L);
+            }
+        }
+        header.putLong(0, MAGIC);
+        header.putLong(8, capacity);
+        for (int f = 0; f < META_FIELDS; f++) {
+            setMeta(f, meta[f]);
+        }
+        writeSize();
+        if (tmp != null && !tmp.renameTo(file)) {
+            throw new IllegalStateException("could not replace " + file);
+        }
+    }
+
+    // - owner data kept in the header.
+
+    public long getMeta(int field) {
+        checkArgument(field >= 0 && field < META_FIELDS,
+                "no such meta field: %s", field);
+        return header.getLong(24 + 8 * field);
+    }
+
+    public void setMeta(int field, long value) {
+        checkArgument(field >= 0 && field < META_FIELDS,
+                "no such meta field: %s", field);
+        header.putLong(24 + 8 * field, value);
+    }
+
+    private void writeSize() {
+        header.putLong(16, size);
+        header.putLong(56, removed);
+    }
+
+    /**
+     * Write the header and, for a mapped file, force everything to disk.
+     */
+    public void flush() {
+        if (readOnly) {
+            return;
+        }
+        writeSize();
+        if (file != null) {
+            ((MappedByteBuffer)header).force();
+            for (ByteBuffer b : segments) {
+                ((MappedByteBuffer)b).force();
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
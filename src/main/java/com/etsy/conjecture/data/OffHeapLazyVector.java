@@ -0,0 +1,537 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.function.TDoubleFunction;
+import gnu.trove.iterator.TLongDoubleIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.etsy.conjecture.Utilities;
+import com.google.gson.Gson;
+
+/**
+ * A LazyVector keyed by feature hash whose weights live off the java heap, in
+ * an OffHeapHashTable backed by direct memory or by a memory mapped file. It
+ * grows without GC pressure, and a flushed file can be opened again (read
+ * only for scoring) without deserializing the parameters.
+ *
+ * No dictionary of feature names is kept, so coordinates are named by
+ * FeatureHasher.hashName in iteration and explanations.
+ */
+public class OffHeapLazyVector extends LazyVector implements HashedVector {
+
+    private static final long serialVersionUID = 6391560513346617412L;
+
+    // - meta fields of the table header.
+    static final int META_ITERATION = 0;
+    static final int META_HASH_BITS = 1;
+    static final int META_FREEZE_KEY_SET = 2;
+
+    protected transient OffHeapHashTable table;
+
+    protected int hashBits = 64;
+
+    public OffHeapLazyVector() {
+        super();
+        this.table = new OffHeapHashTable(100);
+    }
+
+    /**
+     * A vector in direct memory.
+     */
+    public OffHeapLazyVector(int initialCapacity, UpdateFunction uf,
+            int hashBits) {
+        this(null, initialCapacity, uf, hashBits);
+    }
+
+    /**
+     * A vector in a new memory mapped file, or in direct memory if file is
+     * null.
+     */
+    public OffHeapLazyVector(File file, long initialCapacity, UpdateFunction uf,
+            int hashBits) {
+        this(new OffHeapHashTable(file, initialCapacity), uf, hashBits);
+    }
+
+    /**
+     * Copies the (delazified) values of a vector into a new off heap vector.
+     */
+    public OffHeapLazyVector(StringKeyedVector skv, File file,
+            UpdateFunction uf, int hashBits) {
+        this(file, Math.max(10, skv.size()), uf, hashBits);
+        addScaled(skv, 1.0);
+    }
+
+    private OffHeapLazyVector(OffHeapHashTable table, UpdateFunction uf,
+            int hashBits) {
+        super(1, uf);
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        this.table = table;
+        this.hashBits = hashBits;
+    }
+
+    /**
+     * Map a vector file written by flush(). A read only vector has a frozen
+     * key set, and is meant for scoring.
+     */
+    public static OffHeapLazyVector open(File file, UpdateFunction uf,
+            boolean readOnly) throws IOException {
+        OffHeapHashTable table = OffHeapHashTable.open(file, readOnly);
+        OffHeapLazyVector res = new OffHeapLazyVector(table, uf,
+                (int)table.getMeta(META_HASH_BITS));
+        res.iteration = table.getMeta(META_ITERATION);
+        res.freezeKeySet = readOnly || table.getMeta(META_FREEZE_KEY_SET) != 0;
+        return res;
+    }
+
+    /**
+     * Bring every weight up to date and write the table out, after which the
+     * file can be opened again.
+     */
+    public void flush() {
+        if (table.isReadOnly()) {
+            return;
+        }
+        delazify();
+        table.setMeta(META_ITERATION, iteration);
+        table.setMeta(META_HASH_BITS, hashBits);
+        table.setMeta(META_FREEZE_KEY_SET, freezeKeySet ? 1 : 0);
+        table.flush();
+    }
+
+    public File getFile() {
+        return table.getFile();
+    }
+
+    public int getHashBits() {
+        return hashBits;
+    }
+
+    public long hash(String key) {
+        return FeatureHasher.hash(key, hashBits);
+    }
+
+    public String getName(long key) {
+        return FeatureHasher.hashName(key);
+    }
+
+    public void delazify() {
+        if (table.isReadOnly()) {
+            return;
+        }
+        boolean zeros = false;
+        for (long i = 0; i < table.capacity(); i++) {
+            if (table.isFull(i)) {
+                long startIter = table.stampAt(i);
+                if (startIter < iteration) {
+                    double updated = updater.lazyUpdate(
+                            getName(table.keyAt(i)), table.valueAt(i),
+                            startIter, iteration);
+                    table.setAt(i, updated, iteration);
+                    zeros |= Utilities.floatingPointEquals(updated, 0d);
+                }
+            }
+        }
+        if (zeros) {
+            removeZeroCoordinates();
+        }
+    }
+
+    public double delazifyCoordinate(String key) {
+        return delazifyCoordinate(hash(key));
+    }
+
+    public double delazifyCoordinate(long key) {
+        long index = table.indexOf(key);
+        return index < 0 ? 0.0 : delazifyIndex(index);
+    }
+
+    private double delazifyIndex(long index) {
+        long oldIteration = table.stampAt(index);
+        double initial = table.valueAt(index);
+        if (oldIteration < iteration) {
+            double updated = updater.lazyUpdate(getName(table.keyAt(index)),
+                    initial, oldIteration, iteration);
+            if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                table.removeAt(index);
+                return 0.0;
+            }
+            table.setAt(index, updated, iteration);
+            return updated;
+        }
+        return initial;
+    }
+
+    public void skipToIteration(long iter) {
+        delazify();
+        iteration = iter;
+        table.fillStamps(iter);
+    }
+
+    // - primitive, hash keyed access.
+
+    public double getCoordinate(long key) {
+        return delazifyCoordinate(key);
+    }
+
+    public double setCoordinate(long key, double value) {
+        if (Utilities.floatingPointEquals(value, 0d)) {
+            return deleteCoordinate(key);
+        } else if (!freezeKeySet) {
+            table.put(key, value, iteration);
+        }
+        return 0d;
+    }
+
+    public double deleteCoordinate(long key) {
+        long index = table.indexOf(key);
+        if (index >= 0 && !freezeKeySet) {
+            double value = table.valueAt(index);
+            table.removeAt(index);
+            return value;
+        } else {
+            return 0d;
+        }
+    }
+
+    public double addToCoordinate(long key, double value) {
+        long index = table.indexOf(key);
+        if (index >= 0) {
+            // - zero means the lazy update removed the coordinate.
+            double current = delazifyIndex(index);
+            if (current != 0.0) {
+                double updated = current + value;
+                if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                    table.removeAt(index);
+                } else {
+                    table.setAt(index, updated, iteration);
+                }
+                return current;
+            }
+        }
+        if (!freezeKeySet && !Utilities.floatingPointEquals(value, 0.0d)) {
+            table.put(key, value, iteration);
+        }
+        return 0d;
+    }
+
+    public TLongDoubleIterator hashedIterator() {
+        delazify();
+        return new TLongDoubleIterator() {
+            private long current = -1;
+            private long next = findNext(0);
+
+            private long findNext(long from) {
+                for (long i = from; i < table.capacity(); i++) {
+                    if (table.isFull(i)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            public void advance() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                current = next;
+                next = findNext(current + 1);
+            }
+
+            public long key() {
+                return table.keyAt(current);
+            }
+
+            public double value() {
+                return table.valueAt(current);
+            }
+
+            public double setValue(double value) {
+                double old = table.valueAt(current);
+                table.setValueAt(current, value);
+                return old;
+            }
+
+            public void remove() {
+                table.removeAt(current);
+            }
+        };
+    }
+
+    // - string keyed api.
+
+    public double setCoordinate(String key, double value) {
+        return setCoordinate(hash(key), value);
+    }
+
+    public double deleteCoordinate(String key) {
+        return deleteCoordinate(hash(key));
+    }
+
+    public double addToCoordinate(String key, double value) {
+        return addToCoordinate(hash(key), value);
+    }
+
+    public double getCoordinate(String key) {
+        return delazifyCoordinate(hash(key));
+    }
+
+    public Map<String, Double> getMap() {
+        Map<String, Double> res = new HashMap<String, Double>();
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            res.put(getName(it.key()), it.value());
+        }
+        return res;
+    }
+
+    public void addScaled(StringKeyedVector vec, double scale) {
+        if (vec instanceof HashedVector) {
+            HashedVector hv = (HashedVector)vec;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                addToCoordinate(it.key(), scale * it.value());
+            }
+        } else {
+            for (Map.Entry<String, Double> e : vec) {
+                addToCoordinate(e.getKey(), scale * e.getValue());
+            }
+        }
+    }
+
+    public void update(StringKeyedVector x, double scale, CoordinateUpdate u) {
+        if (x instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, sv.getHashBits());
+            for (int i = 0; i < sv.size(); i++) {
+                updateCoordinate(sv.keyAt(i), sv.valueAt(i), scale, u);
+            }
+        } else if (x instanceof HashedVector) {
+            HashedVector hv = (HashedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                updateCoordinate(it.key(), it.value(), scale, u);
+            }
+        } else {
+            for (Map.Entry<String, Double> e : x) {
+                updateCoordinate(hash(e.getKey()), e.getValue(), scale, u);
+            }
+        }
+    }
+
+    private void updateCoordinate(long key, double x, double scale,
+            CoordinateUpdate u) {
+        long index = table.indexOf(key);
+        double current = index < 0 ? 0.0 : delazifyIndex(index);
+        double updated = u.update(key, current, x, scale);
+        if (updated == current) {
+            return;
+        }
+        if (Utilities.floatingPointEquals(updated, 0.0d)) {
+            if (current != 0.0) {
+                table.removeAt(index);
+            }
+        } else if (current != 0.0) {
+            table.setAt(index, updated, iteration);
+        } else if (!freezeKeySet) {
+            table.put(key, updated, iteration);
+        }
+    }
+
+    public StringKeyedVector multiplyPointwise(StringKeyedVector vec) {
+        HashedKeyedVector res = new HashedKeyedVector(10, false, hashBits);
+        for (Map.Entry<String, Double> e : vec) {
+            res.setCoordinate(e.getKey(), getCoordinate(e.getKey())
+                    * e.getValue());
+        }
+        return res;
+    }
+
+    public StringKeyedVector projectOntoNonZeroCoordinates(StringKeyedVector vec) {
+        HashedKeyedVector res = new HashedKeyedVector(10, false, hashBits);
+        for (Map.Entry<String, Double> e : vec) {
+            res.addToCoordinate(e.getKey(), getCoordinate(e.getKey()));
+        }
+        return res;
+    }
+
+    public int size() {
+        delazify();
+        return (int)table.size();
+    }
+
+    public boolean containsKey(String key) {
+        return delazifyCoordinate(hash(key)) != 0.0;
+    }
+
+    public Set<String> keySet() {
+        Set<String> res = new HashSet<String>();
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            res.add(getName(it.key()));
+        }
+        return res;
+    }
+
+    public Set<Double> values() {
+        Set<Double> res = new HashSet<Double>();
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            res.add(it.value());
+        }
+        return res;
+    }
+
+    public void transformValues(TDoubleFunction func) {
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            it.setValue(func.execute(it.value()));
+        }
+    }
+
+    public void removeZeroCoordinates() {
+        for (long i = 0; i < table.capacity(); i++) {
+            if (table.isFull(i)
+                    && Utilities.floatingPointEquals(table.valueAt(i), 0d)) {
+                table.removeAt(i);
+            }
+        }
+    }
+
+    public double dot(StringKeyedVector skv) {
+        double res = 0.0;
+        if (skv instanceof HashedVector) {
+            HashedVector hv = (HashedVector)skv;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                res += it.value() * delazifyCoordinate(it.key());
+            }
+        } else {
+            for (Map.Entry<String, Double> e : skv) {
+                res += e.getValue() * delazifyCoordinate(hash(e.getKey()));
+            }
+        }
+        return res;
+    }
+
+    public double LPNorm(double p) {
+        double tot = 0d;
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            tot += Math.pow(Math.abs(it.value()), p);
+        }
+        return Math.pow(tot, 1d / p);
+    }
+
+    public double max() {
+        double max = 0.0;
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            if (it.value() > max) {
+                max = it.value();
+            }
+        }
+        return max;
+    }
+
+    public Iterator<Map.Entry<String, Double>> iterator() {
+        return new Iterator<Map.Entry<String, Double>>() {
+            private TLongDoubleIterator iter = hashedIterator();
+
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            public void remove() {
+                iter.remove();
+            }
+
+            public Map.Entry<String, Double> next() {
+                iter.advance();
+                return new AbstractMap.SimpleImmutableEntry<String, Double>(
+                        getName(iter.key()), iter.value());
+            }
+        };
+    }
+
+    public String toString() {
+        return new Gson().toJson(getMap());
+    }
+
+    public StringKeyedVector copy() {
+        HashedKeyedVector out = new HashedKeyedVector(Math.max(10, size()),
+                false, hashBits);
+        out.addScaled(this, 1.0);
+        return out;
+    }
+
+    // - java serialization, the weights are copied into direct memory on read.
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        delazify();
+        output.defaultWriteObject();
+        output.writeLong(table.size());
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            output.writeLong(it.key());
+            output.writeDouble(it.value());
+        }
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException,
+            ClassNotFoundException {
+        input.defaultReadObject();
+        long size = input.readLong();
+        table = new OffHeapHashTable(Math.max(10, size));
+        for (long i = 0; i < size; i++) {
+            table.put(input.readLong(), input.readDouble(), iteration);
+        }
+    }
+
+    // - kryo serialization for use in scalding.
+    public void write(Kryo kryo, Output output) {
+        delazify();
+        output.writeLong(iteration);
+        kryo.writeClassAndObject(output, updater);
+        output.writeBoolean(freezeKeySet);
+        output.writeInt(hashBits, true);
+        output.writeLong(table.size(), true);
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            output.writeLong(it.key());
+            output.writeDouble(it.value());
+        }
+    }
+
+    public void read(Kryo kryo, Input input) {
+        iteration = input.readLong();
+        updater = (UpdateFunction)kryo.readClassAndObject(input);
+        freezeKeySet = input.readBoolean();
+        hashBits = input.readInt(true);
+        long size = input.readLong(true);
+        table = new OffHeapHashTable(Math.max(10, size));
+        for (long i = 0; i < size; i++) {
+            table.put(input.readLong(), input.readDouble(), iteration);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.etsy.conjecture.data;
+
+import gnu.trove.function.TDoubleFunction;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.etsy.conjecture.Utilities;
+import com.etsy.conjecture.data.MulticlassParameterTable.Row;
+import com.google.gson.Gson;
+
+/**
+ * The parameters of one category of a MulticlassParameterTable, as a hash
+ * keyed lazy vector so that a per category linear model trains on them like
+ * on a HashedLazyVector. The coordinates are the non zero weights of the
+ * column.
+ *
+ * Bulk operations scan every row of the table. hashedIterator iterates a
+ * copy of the column, which is not written back.
+ */
+public class ParameterColumnVector extends LazyVector implements HashedVector {
+
+    private static final long serialVersionUID = -3305795018442466021L;
+
+    private MulticlassParameterTable table;
+
+    private int column;
+
+    // - for kryo.
+    public ParameterColumnVector() {
+        super();
+    }
+
+    ParameterColumnVector(MulticlassParameterTable table, int column) {
+        super(1, null);
+        this.table = table;
+        this.column = column;
+        updater = new UpdateFunction() {
+            private static final long serialVersionUID = -2546137216582911290L;
+
+            public double lazyUpdate(String key, double param, long start,
+                    long end) {
+                return param;
+            }
+        };
+        table.columns[column] = this;
+    }
+
+    public MulticlassParameterTable getTable() {
+        return table;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public int getHashBits() {
+        return table.getHashBits();
+    }
+
+    public long hash(String key) {
+        return table.hash(key);
+    }
+
+    public String getName(long key) {
+        return table.getName(key);
+    }
+
+    public void skipToIteration(long iter) {
+        delazify();
+        iteration = iter;
+        for (long key : table.keys()) {
+            synchronized (table.lock(key)) {
+                Row row = table.rowOf(key);
+                double w = table.weight(row, column, key);
+                if (w != 0.0) {
+                    table.setWeight(row, column, w, iter);
+                }
+            }
+        }
+    }
+
+    public void delazify() {
+        for (long key : table.keys()) {
+            synchronized (table.lock(key)) {
+                table.weight(table.rowOf(key), column, key);
+            }
+        }
+    }
+
+    // - primitive, hash keyed access.
+
+    public double delazifyCoordinate(long key) {
+        synchronized (table.lock(key)) {
+            Row row = table.rowOf(key);
+            return row == null ? 0.0 : table.weight(row, column, key);
+        }
+    }
+
+    public double getCoordinate(long key) {
+        return delazifyCoordinate(key);
+    }
+
+    public double setCoordinate(long key, double value) {
+        if (Utilities.floatingPointEquals(value, 0d)) {
+            return deleteCoordinate(key);
+        }
+        synchronized (table.lock(key)) {
+            Row row = table.rowOf(key);
+            if (freezeKeySet && (row == null || table.weight(row, column, key) == 0.0)) {
+                return 0d;
+            }
+            if (row == null) {
+                row = table.insertRow(key);
+            }
+            table.setWeight(row, column, value, iteration);
+        }
+        return 0d;
+    }
+
+    public double deleteCoordinate(long key) {
+        synchronized (table.lock(key)) {
+            Row row = table.rowOf(key);
+            if (row == null || freezeKeySet) {
+                return 0d;
+            }
+            double old = table.weight(row, column, key);
+            table.setWeight(row, column, 0.0, iteration);
+            return old;
+        }
+    }
+
+    public double addToCoordinate(long key, double value) {
+        synchronized (table.lock(key)) {
+            Row row = table.rowOf(key);
+            double current = row == null ? 0.0 : table.weight(row, column, key);
+            if (current == 0.0 && (freezeKeySet
+                    || Utilities.floatingPointEquals(value, 0.0d))) {
+                return 0d;
+            }
+            double updated = current + value;
+            if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                updated = 0.0;
+            }
+            if (row == null) {
+                row = table.insertRow(key);
+            }
+            table.setWeight(row, column, updated, iteration);
+            return current;
+        }
+    }
+
+    private void updateCoordinate(long key, double x, double scale,
+            CoordinateUpdate u, String name) {
+        synchronized (table.lock(key)) {
+            Row row = table.rowOf(key);
+            double current = row == null ? 0.0 : table.weight(row, column, key);
+            double updated = u.update(key, current, x, scale);
+            if (updated == current) {
+                return;
+            }
+            if (Utilities.floatingPointEquals(updated, 0.0d)) {
+                updated = 0.0;
+            } else if (current == 0.0 && freezeKeySet) {
+                return;
+            }
+            if (row == null) {
+                if (updated == 0.0) {
+                    return;
+                }
+                row = table.insertRow(key);
+            }
+            table.setWeight(row, column, updated, iteration);
+        }
+        if (isStored(key)) {
+            table.remember(key, name);
+        }
+    }
+
+    private boolean isStored(long key) {
+        return table.hasDictionary() && delazifyCoordinate(key) != 0.0;
+    }
+
+    public TLongDoubleIterator hashedIterator() {
+        TLongDoubleHashMap copy = new TLongDoubleHashMap(Math.max(10,
+                table.size()), LOAD_FACTOR);
+        for (long key : table.keys()) {
+            double w = delazifyCoordinate(key);
+            if (w != 0.0) {
+                copy.put(key, w);
+            }
+        }
+        return copy.iterator();
+    }
+
+    // - string keyed api.
+
+    public double delazifyCoordinate(String key) {
+        return delazifyCoordinate(hash(key));
+    }
+
+    public double getCoordinate(String key) {
+        return delazifyCoordinate(hash(key));
+    }
+
+    public double setCoordinate(String key, double value) {
+        long h = hash(key);
+        double res = setCoordinate(h, value);
+        if (isStored(h)) {
+            table.remember(h, key);
+        }
+        return res;
+    }
+
+    public double deleteCoordinate(String key) {
+        return deleteCoordinate(hash(key));
+    }
+
+    public double addToCoordinate(String key, double value) {
+        long h = hash(key);
+        double res = addToCoordinate(h, value);
+        if (isStored(h)) {
+            table.remember(h, key);
+        }
+        return res;
+    }
+
+    public boolean containsKey(String key) {
+        return delazifyCoordinate(hash(key)) != 0.0;
+    }
+
+    public double dot(StringKeyedVector skv) {
+        double res = 0.0;
+        if (skv instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)skv;
+            HashedKeyedVector.checkSameHashBits(getHashBits(), sv.getHashBits());
+            for (int i = 0; i < sv.size(); i++) {
+                res += sv.valueAt(i) * delazifyCoordinate(sv.keyAt(i));
+            }
+        } else if (skv instanceof HashedVector) {
+            HashedVector hv = (HashedVector)skv;
+            HashedKeyedVector.checkSameHashBits(getHashBits(), hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                res += it.value() * delazifyCoordinate(it.key());
+            }
+        } else {
+            for (Map.Entry<String, Double> e : skv) {
+                res += e.getValue() * delazifyCoordinate(hash(e.getKey()));
+            }
+        }
+        return res;
+    }
+
+    public void addScaled(StringKeyedVector vec, double scale) {
+        if (vec instanceof HashedVector) {
+            HashedVector hv = (HashedVector)vec;
+            HashedKeyedVector.checkSameHashBits(getHashBits(), hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                addToCoordinate(it.key(), scale * it.value());
+                if (isStored(it.key())) {
+                    table.remember(it.key(), hv.getName(it.key()));
+                }
+            }
+        } else {
+            for (Map.Entry<String, Double> e : vec) {
+                addToCoordinate(e.getKey(), scale * e.getValue());
+            }
+        }
+    }
+
+    public void update(StringKeyedVector x, double scale, CoordinateUpdate u) {
+        boolean names = table.hasDictionary();
+        if (x instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            HashedKeyedVector.checkSameHashBits(getHashBits(), sv.getHashBits());
+            for (int i = 0; i < sv.size(); i++) {
+                updateCoordinate(sv.keyAt(i), sv.valueAt(i), scale, u,
+                        names ? sv.nameAt(i) : null);
+            }
+        } else if (x instanceof HashedVector) {
+            HashedVector hv = (HashedVector)x;
+            HashedKeyedVector.checkSameHashBits(getHashBits(), hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                updateCoordinate(it.key(), it.value(), scale, u,
+                        names ? hv.getName(it.key()) : null);
+            }
+        } else {
+            for (Map.Entry<String, Double> e : x) {
+                updateCoordinate(hash(e.getKey()), e.getValue(), scale, u,
+                        e.getKey());
+            }
+        }
+    }
+
+    public StringKeyedVector multiplyPointwise(StringKeyedVector vec) {
+        HashedKeyedVector res = new HashedKeyedVector(10,
+                table.hasDictionary(), getHashBits());
+        for (Map.Entry<String, Double> e : vec) {
+            res.setCoordinate(e.getKey(), getCoordinate(e.getKey())
+                    * e.getValue());
+        }
+        return res;
+    }
+
+    public StringKeyedVector projectOntoNonZeroCoordinates(StringKeyedVector vec) {
+        HashedKeyedVector res = new HashedKeyedVector(10,
+                table.hasDictionary(), getHashBits());
+        for (Map.Entry<String, Double> e : vec) {
+            res.addToCoordinate(e.getKey(), getCoordinate(e.getKey()));
+        }
+        return res;
+    }
+
+    // - bulk operations, scanning the rows of the table.
+
+    public int size() {
+        int size = 0;
+        for (long key : table.keys()) {
+            if (delazifyCoordinate(key) != 0.0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public Map<String, Double> getMap() {
+        Map<String, Double> res = new HashMap<String, Double>();
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            res.put(getName(it.key()), it.value());
+        }
+        return res;
+    }
+
+    public Set<String> keySet() {
+        return getMap().keySet();
+    }
+
+    public Set<Double> values() {
+        return new HashSet<Double>(getMap().values());
+    }
+
+    public void transformValues(TDoubleFunction func) {
+        for (long key : table.keys()) {
+            synchronized (table.lock(key)) {
+                Row row = table.rowOf(key);
+                double w = table.weight(row, column, key);
+                if (w != 0.0) {
+                    double t = func.execute(w);
+                    table.setWeight(row, column,
+                            Utilities.floatingPointEquals(t, 0.0d) ? 0.0 : t,
+                            iteration);
+                }
+            }
+        }
+    }
+
+    public void removeZeroCoordinates() {
+        // - zero weights are absent already.
+    }
+
+    public double LPNorm(double p) {
+        double tot = 0d;
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            tot += Math.pow(Math.abs(it.value()), p);
+        }
+        return Math.pow(tot, 1d / p);
+    }
+
+    public double max() {
+        double max = 0.0;
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            max = Math.max(max, it.value());
+        }
+        return max;
+    }
+
+    /**
+     * Iterates a copy of the column, removal deletes from the table.
+     */
+    public Iterator<Map.Entry<String, Double>> iterator() {
+        final List<Long> keys = new ArrayList<Long>();
+        final List<Double> values = new ArrayList<Double>();
+        for (TLongDoubleIterator it = hashedIterator(); it.hasNext();) {
+            it.advance();
+            keys.add(it.key());
+            values.add(it.value());
+        }
+        return new Iterator<Map.Entry<String, Double>>() {
+            private int i = -1;
+
+            public boolean hasNext() {
+                return i + 1 < keys.size();
+            }
+
+            public Map.Entry<String, Double> next() {
+                i++;
+                return new AbstractMap.SimpleImmutableEntry<String, Double>(
+                        getName(keys.get(i)), values.get(i));
+            }
+
+            public void remove() {
+                deleteCoordinate(keys.get(i));
+            }
+        };
+    }
+
+    public StringKeyedVector copy() {
+        HashedKeyedVector out = new HashedKeyedVector(10,
+                table.hasDictionary(), getHashBits());
+        out.addScaled(this, 1.0);
+        return out;
+    }
+
+    public String toString() {
+        return new Gson().toJson(getMap());
+    }
+
+    // - java serialization, the table is written once for all columns.
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException,
+            ClassNotFoundException {
+        input.defaultReadObject();
+        table.columns[column] = this;
+    }
+
+    // - kryo serialization for use in scalding.
+    public void write(Kryo kryo, Output output) {
+        kryo.writeClassAndObject(output, table);
+        output.writeInt(column, true);
+        output.writeLong(iteration);
+        kryo.writeClassAndObject(output, updater);
+        output.writeBoolean(freezeKeySet);
+    }
+
+    public void read(Kryo kryo, Input input) {
+        table = (MulticlassParameterTable)kryo.readClassAndObject(input);
+        column = input.readInt(true);
+        iteration = input.readLong();
+        updater = (UpdateFunction)kryo.readClassAndObject(input);
+        freezeKeySet = input.readBoolean();
+        table.columns[column] = this;
+    }
+}
@@ -0,0 +1,635 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.function.TDoubleFunction;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.iterator.TObjectDoubleIterator;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.etsy.conjecture.Utilities;
+import com.google.gson.Gson;
+
+/**
+ * An immutable sparse vector for training instances, which are built once
+ * and then read many times. Coordinates are kept in parallel arrays sorted
+ * by feature hash, so iteration is a linear scan, the dot product with
+ * another sorted vector is a merge join, and serialization delta encodes
+ * the keys.
+ *
+ * The feature name bytes are kept alongside the hashes unless the vector
+ * was built from a hashed vector without a dictionary, so that models with
+ * string keyed parameters can probe them without allocating. The key set
+ * can not change, but the values can be scaled (as gradients are), and
+ * copy() is cheap since it shares the keys.
+ */
+public class SortedKeyedVector extends StringKeyedVector implements
+        HashedVector, Serializable, KryoSerializable {
+
+    private static final long serialVersionUID = -5427366408409941626L;
+
+    protected transient long[] keys;
+
+    protected transient double[] values;
+
+    // - feature name bytes by position, null if unknown.
+    protected transient byte[][] names;
+
+    protected int hashBits = 64;
+
+    public SortedKeyedVector() {
+        this(new long[0], new double[0], null, 64);
+    }
+
+    protected SortedKeyedVector(long[] keys, double[] values, byte[][] names,
+            int hashBits) {
+        // - the inherited map is unused, every accessor below reads the
+        // sorted arrays instead.
+        super((ByteArrayDoubleHashMap)null);
+        this.keys = keys;
+        this.values = values;
+        this.names = names;
+        this.hashBits = hashBits;
+        this.freezeKeySet = true;
+    }
+
+    /**
+     * Freeze the non-zero coordinates of a vector.
+     */
+    public SortedKeyedVector(StringKeyedVector skv) {
+        this(new long[0], new double[0], null, 64);
+        if (skv instanceof SortedKeyedVector) {
+            SortedKeyedVector sorted = (SortedKeyedVector)skv;
+            keys = sorted.keys;
+            values = sorted.values.clone();
+            names = sorted.names;
+            hashBits = sorted.hashBits;
+            return;
+        }
+        int n = skv.size();
+        keys = new long[n];
+        values = new double[n];
+        names = new byte[n][];
+        boolean named = false;
+        int i = 0;
+        if (skv instanceof HashedVector) {
+            HashedVector hv = (HashedVector)skv;
+            hashBits = hv.getHashBits();
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                keys[i] = it.key();
+                values[i] = it.value();
+                String name = hv.getName(it.key());
+                if (!FeatureHasher.isHashName(name)) {
+                    names[i] = nameBytes(name);
+                    named = true;
+                }
+                i++;
+            }
+        } else {
+            if (skv instanceof LazyVector) {
+                ((LazyVector)skv).delazify();
+            }
+            for (TObjectDoubleIterator<byte[]> it = skv.vector.troveIterator(); it
+                    .hasNext();) {
+                it.advance();
+                keys[i] = FeatureHasher.hash(skv.vector.byteArrayToString(it
+                        .key()));
+                values[i] = it.value();
+                names[i] = it.key();
+                i++;
+            }
+            named = true;
+        }
+        if (!named) {
+            names = null;
+        }
+        sort(0, n - 1);
+    }
+
+    /**
+     * Takes the given arrays, which need not be sorted by key but must not
+     * repeat one.
+     */
+    static SortedKeyedVector fromUnsorted(long[] keys, double[] values,
+            byte[][] names, int hashBits) {
+        SortedKeyedVector vector = new SortedKeyedVector(keys, values, names,
+                hashBits);
+        vector.sort(0, keys.length - 1);
+        return vector;
+    }
+
+    // - quicksort of the parallel arrays by key.
+    private void sort(int lo, int hi) {
+        while (hi - lo > 16) {
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+                swap(j - 1, j);
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        double v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+        if (names != null) {
+            byte[] b = names[i];
+            names[i] = names[j];
+            names[j] = b;
+        }
+    }
+
+    /**
+     * Position of the first coordinate with the given key, or -1.
+     */
+    protected int find(long key) {
+        int i = Arrays.binarySearch(keys, key);
+        if (i < 0) {
+            return -1;
+        }
+        while (i > 0 && keys[i - 1] == key) {
+            i--;
+        }
+        return i;
+    }
+
+    public int getHashBits() {
+        return hashBits;
+    }
+
+    public boolean hasNames() {
+        return names != null;
+    }
+
+    public long hash(String key) {
+        return FeatureHasher.hash(key, hashBits);
+    }
+
+    public String getName(long key) {
+        int i = find(key);
+        return i < 0 ? FeatureHasher.hashName(key) : nameAt(i);
+    }
+
+    protected String nameAt(int i) {
+        if (names == null || names[i] == null) {
+            return FeatureHasher.hashName(keys[i]);
+        }
+        try {
+            return new String(names[i], FEATURE_ENCODING);
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // - positional access for allocation free loops.
+
+    public long keyAt(int i) {
+        return keys[i];
+    }
+
+    public double valueAt(int i) {
+        return values[i];
+    }
+
+    public byte[] nameBytesAt(int i) {
+        return names == null ? null : names[i];
+    }
+
+    public double getCoordinate(long key) {
+        double res = 0.0;
+        for (int i = find(key); i >= 0 && i < keys.length && keys[i] == key; i++) {
+            res += values[i];
+        }
+        return res;
+    }
+
+    public double getCoordinate(String key) {
+        if (names == null) {
+            return getCoordinate(hash(key));
+        }
+        long h = hash(key);
+        byte[] b = null;
+        for (int i = find(h); i >= 0 && i < keys.length && keys[i] == h; i++) {
+            if (names[i] == null) {
+                return values[i];
+            }
+            if (b == null) {
+                b = nameBytes(key);
+            }
+            if (Arrays.equals(b, names[i])) {
+                return values[i];
+            }
+        }
+        return 0.0;
+    }
+
+    static byte[] nameBytes(String key) {
+        try {
+            return key.getBytes(FEATURE_ENCODING);
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public TLongDoubleIterator hashedIterator() {
+        return new TLongDoubleIterator() {
+            private int i = -1;
+
+            public boolean hasNext() {
+                return i + 1 < keys.length;
+            }
+
+            public void advance() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                i++;
+            }
+
+            public long key() {
+                return keys[i];
+            }
+
+            public double value() {
+                return values[i];
+            }
+
+            public double setValue(double value) {
+                double old = values[i];
+                values[i] = value;
+                return old;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "sorted vectors are immutable");
+            }
+        };
+    }
+
+    // - the key set can not change.
+
+    public double addToCoordinate(long key, double value) {
+        throw new UnsupportedOperationException("sorted vectors are immutable");
+    }
+
+    public double setCoordinate(String key, double value) {
+        throw new UnsupportedOperationException("sorted vectors are immutable");
+    }
+
+    public double deleteCoordinate(String key) {
+        throw new UnsupportedOperationException("sorted vectors are immutable");
+    }
+
+    public double addToCoordinate(String key, double value) {
+        throw new UnsupportedOperationException("sorted vectors are immutable");
+    }
+
+    protected double addToCoordinateInternal(byte[] bkey, double value) {
+        throw new UnsupportedOperationException("sorted vectors are immutable");
+    }
+
+    public void addScaled(StringKeyedVector vec, double scale) {
+        throw new UnsupportedOperationException("sorted vectors are immutable");
+    }
+
+    public void setFreezeKeySet(boolean freeze) {
+        checkArgument(freeze, "sorted vectors are immutable");
+    }
+
+    // - the coordinates are in the sorted arrays.
+    protected ByteArrayDoubleHashMap namedCoordinates() {
+        return null;
+    }
+
+    /**
+     * add a multiple of this to target, the fast path of target.addScaled.
+     */
+    protected void addScaledTo(StringKeyedVector target, double scale) {
+        if (target instanceof HashedVector) {
+            HashedVector hv = (HashedVector)target;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (int i = 0; i < keys.length; i++) {
+                hv.addToCoordinate(keys[i], scale * values[i]);
+            }
+        } else {
+            for (int i = 0; i < keys.length; i++) {
+                if (names != null && names[i] != null) {
+                    target.addToCoordinateInternal(names[i], scale * values[i]);
+                } else {
+                    target.addToCoordinate(nameAt(i), scale * values[i]);
+                }
+            }
+        }
+    }
+
+    public Map<String, Double> getMap() {
+        Map<String, Double> res = new HashMap<String, Double>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            res.put(nameAt(i), values[i]);
+        }
+        return res;
+    }
+
+    public StringKeyedVector multiplyPointwise(StringKeyedVector vec) {
+        StringKeyedVector res = names == null ? new HashedKeyedVector(10,
+                false, hashBits) : new StringKeyedVector();
+        for (int i = 0; i < keys.length; i++) {
+            String name = nameAt(i);
+            res.addToCoordinate(name, values[i] * vec.getCoordinate(name));
+        }
+        return res;
+    }
+
+    public StringKeyedVector projectOntoNonZeroCoordinates(StringKeyedVector vec) {
+        StringKeyedVector res = vec instanceof HashedVector ? new HashedKeyedVector(
+                10, false, hashBits) : new StringKeyedVector();
+        for (Map.Entry<String, Double> e : vec) {
+            res.addToCoordinate(e.getKey(), getCoordinate(e.getKey()));
+        }
+        return res;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public boolean containsKey(String key) {
+        return getCoordinate(key) != 0.0;
+    }
+
+    public Set<String> keySet() {
+        Set<String> res = new HashSet<String>();
+        for (int i = 0; i < keys.length; i++) {
+            res.add(nameAt(i));
+        }
+        return res;
+    }
+
+    public Set<Double> values() {
+        Set<Double> res = new HashSet<Double>();
+        for (double v : values) {
+            res.add(v);
+        }
+        return res;
+    }
+
+    public void transformValues(TDoubleFunction func) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = func.execute(values[i]);
+        }
+    }
+
+    public void removeZeroCoordinates() {
+        int n = 0;
+        for (double v : values) {
+            n += Utilities.floatingPointEquals(v, 0d) ? 0 : 1;
+        }
+        if (n == values.length) {
+            return;
+        }
+        long[] k = new long[n];
+        double[] v = new double[n];
+        byte[][] b = names == null ? null : new byte[n][];
+        for (int i = 0, j = 0; i < values.length; i++) {
+            if (!Utilities.floatingPointEquals(values[i], 0d)) {
+                k[j] = keys[i];
+                v[j] = values[i];
+                if (b != null) {
+                    b[j] = names[i];
+                }
+                j++;
+            }
+        }
+        keys = k;
+        values = v;
+        names = b;
+    }
+
+    public double dot(StringKeyedVector vec) {
+        double res = 0.0;
+        if (vec instanceof SortedKeyedVector) {
+            SortedKeyedVector other = (SortedKeyedVector)vec;
+            HashedKeyedVector.checkSameHashBits(hashBits, other.hashBits);
+            int i = 0;
+            int j = 0;
+            while (i < keys.length && j < other.keys.length) {
+                if (keys[i] < other.keys[j]) {
+                    i++;
+                } else if (keys[i] > other.keys[j]) {
+                    j++;
+                } else {
+                    res += values[i++] * other.values[j++];
+                }
+            }
+        } else if (vec instanceof HashedVector) {
+            HashedVector hv = (HashedVector)vec;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (int i = 0; i < keys.length; i++) {
+                res += values[i] * hv.getCoordinate(keys[i]);
+            }
+        } else if (vec instanceof LazyVector) {
+            LazyVector lv = (LazyVector)vec;
+            for (int i = 0; i < keys.length; i++) {
+                res += values[i] * (names != null && names[i] != null
+                        ? lv.delazifyCoordinate(names[i])
+                        : lv.getCoordinate(nameAt(i)));
+            }
+        } else {
+            ByteArrayDoubleHashMap named = vec.namedCoordinates();
+            for (int i = 0; i < keys.length; i++) {
+                res += values[i] * (named != null && names != null
+                        && names[i] != null ? named.getPrimitive(names[i])
+                        : vec.getCoordinate(nameAt(i)));
+            }
+        }
+        return res;
+    }
+
+    public double LPNorm(double p) {
+        double tot = 0d;
+        for (double v : values) {
+            tot += Math.pow(Math.abs(v), p);
+        }
+        return Math.pow(tot, 1d / p);
+    }
+
+    public double max() {
+        double max = 0.0;
+        for (double v : values) {
+            if (v > max) {
+                max = v;
+            }
+        }
+        return max;
+    }
+
+    public Iterator<Map.Entry<String, Double>> iterator() {
+        return new Iterator<Map.Entry<String, Double>>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < keys.length;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "sorted vectors are immutable");
+            }
+
+            public Map.Entry<String, Double> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, Double> e = new AbstractMap.SimpleImmutableEntry<String, Double>(
+                        nameAt(i), values[i]);
+                i++;
+                return e;
+            }
+        };
+    }
+
+    public String toString() {
+        return new Gson().toJson(getMap());
+    }
+
+    /**
+     * A copy sharing the keys, with its own values.
+     */
+    public StringKeyedVector copy() {
+        return new SortedKeyedVector(keys, values.clone(), names, hashBits);
+    }
+
+    // - java serialization
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+        output.writeInt(keys.length);
+        output.writeBoolean(names != null);
+        for (int i = 0; i < keys.length; i++) {
+            output.writeLong(keys[i]);
+            output.writeDouble(values[i]);
+            if (names != null) {
+                output.writeInt(names[i] == null ? -1 : names[i].length);
+                if (names[i] != null) {
+                    output.write(names[i]);
+                }
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException,
+            ClassNotFoundException {
+        input.defaultReadObject();
+        int n = input.readInt();
+        boolean named = input.readBoolean();
+        keys = new long[n];
+        values = new double[n];
+        names = named ? new byte[n][] : null;
+        for (int i = 0; i < n; i++) {
+            keys[i] = input.readLong();
+            values[i] = input.readDouble();
+            if (named) {
+                int length = input.readInt();
+                if (length >= 0) {
+                    names[i] = new byte[length];
+                    input.readFully(names[i]);
+                }
+            }
+        }
+    }
+
+    // - kryo serialization for use in scalding. keys are delta encoded
+    // varints, and the values are left out when they are all 1 (as with
+    // indicator features).
+    public void write(Kryo kryo, Output output) {
+        output.writeInt(hashBits, true);
+        output.writeInt(keys.length, true);
+        boolean ones = true;
+        for (double v : values) {
+            ones &= v == 1.0;
+        }
+        output.writeByte((names != null ? 1 : 0) | (ones ? 2 : 0));
+        long previous = 0L;
+        for (int i = 0; i < keys.length; i++) {
+            output.writeLong(keys[i] - previous, true);
+            previous = keys[i];
+        }
+        if (!ones) {
+            for (double v : values) {
+                output.writeDouble(v);
+            }
+        }
+        if (names != null) {
+            for (byte[] b : names) {
+                output.writeInt(b == null ? 0 : b.length + 1, true);
+                if (b != null) {
+                    output.writeBytes(b);
+                }
+            }
+        }
+    }
+
+    public void read(Kryo kryo, Input input) {
+        hashBits = input.readInt(true);
+        int n = input.readInt(true);
+        int flags = input.readByte();
+        keys = new long[n];
+        values = new double[n];
+        long previous = 0L;
+        for (int i = 0; i < n; i++) {
+            keys[i] = previous + input.readLong(true);
+            previous = keys[i];
+        }
+        for (int i = 0; i < n; i++) {
+            values[i] = (flags & 2) != 0 ? 1.0 : input.readDouble();
+        }
+        names = (flags & 1) != 0 ? new byte[n][] : null;
+        if (names != null) {
+            for (int i = 0; i < n; i++) {
+                int length = input.readInt(true);
+                names[i] = length == 0 ? null : input.readBytes(length - 1);
+            }
+        }
+    }
+}
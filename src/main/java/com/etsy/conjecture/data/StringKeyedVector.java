@@ -43,6 +43,13 @@ public class StringKeyedVector implements Serializable,
         add(skv);
     }
 
+    /**
+     * uses the given map as is, for subclasses which need a specialized map.
+     */
+    protected StringKeyedVector(ByteArrayDoubleHashMap map) {
+        vector = map;
+    }
+
     public StringKeyedVector(Map<String, Double> jmap) {
         vector = new ByteArrayDoubleHashMap(jmap.size(), LOAD_FACTOR,
                 FEATURE_ENCODING, 0.0);
@@ -122,26 +129,53 @@ public class StringKeyedVector implements Serializable,
         return vector.getPrimitive(key);
     }
 
+    /**
+     * The map holding every coordinate of this vector by name, for other
+     * vectors to read directly, or null if they are kept elsewhere or lazily.
+     * Those vectors are read through their own iterator, addScaledTo and
+     * dot instead.
+     */
+    protected ByteArrayDoubleHashMap namedCoordinates() {
+        return vector;
+    }
+
     /**
      * add a multiple of vec to this.
      */
     public void addScaled(StringKeyedVector vec, double scale) {
-        if (vec instanceof LazyVector) {
-            ((LazyVector)vec).delazify();
+        ByteArrayDoubleHashMap named = vec.namedCoordinates();
+        if (named == null) {
+            vec.addScaledTo(this, scale);
+            return;
         }
-        for (TObjectDoubleIterator<byte[]> it = vec.vector.troveIterator(); it
+        for (TObjectDoubleIterator<byte[]> it = named.troveIterator(); it
                 .hasNext();) {
             it.advance();
             addToCoordinateInternal(it.key(), scale * it.value());
         }
     }
 
+    /**
+     * add a multiple of this to target, for target.addScaled when this has no
+     * named coordinates.
+     */
+    protected void addScaledTo(StringKeyedVector target, double scale) {
+        for (Map.Entry<String, Double> e : this) {
+            target.addToCoordinate(e.getKey(), scale * e.getValue());
+        }
+    }
+
     public StringKeyedVector multiplyPointwise(StringKeyedVector vec) {
         StringKeyedVector res = new StringKeyedVector();
-        if (vec instanceof LazyVector) {
-            ((LazyVector)vec).delazify();
+        ByteArrayDoubleHashMap named = vec.namedCoordinates();
+        if (named == null) {
+            for (Map.Entry<String, Double> e : vec) {
+                res.vector.putPrimitive(e.getKey(), getCoordinate(e.getKey())
+                        * e.getValue());
+            }
+            return res;
         }
-        for (TObjectDoubleIterator<byte[]> it = vec.vector.troveIterator(); it
+        for (TObjectDoubleIterator<byte[]> it = named.troveIterator(); it
                 .hasNext();) {
             it.advance();
             res.vector.putPrimitive(it.key(), vector.getPrimitive(it.key())
@@ -152,10 +186,14 @@ public class StringKeyedVector implements Serializable,
 
     public StringKeyedVector projectOntoNonZeroCoordinates(StringKeyedVector vec) {
         StringKeyedVector res = new StringKeyedVector();
-        if (vec instanceof LazyVector) {
-            ((LazyVector)vec).delazify();
+        ByteArrayDoubleHashMap named = vec.namedCoordinates();
+        if (named == null) {
+            for (Map.Entry<String, Double> e : vec) {
+                res.addToCoordinate(e.getKey(), getCoordinate(e.getKey()));
+            }
+            return res;
         }
-        for (TObjectDoubleIterator<byte[]> it = vec.vector.troveIterator(); it
+        for (TObjectDoubleIterator<byte[]> it = named.troveIterator(); it
                 .hasNext();) {
             it.advance();
             res.addToCoordinateInternal(it.key(), vector.getPrimitive(it.key()));
@@ -250,13 +288,14 @@ public class StringKeyedVector implements Serializable,
      * compute the inner product between this and vec.
      */
     public double dot(StringKeyedVector vec) {
-        if (vec instanceof LazyVector) {
+        ByteArrayDoubleHashMap named = vec.namedCoordinates();
+        if (named == null) {
             return vec.dot(this);
         }
-        ByteArrayDoubleHashMap vec_small = this.size() > vec.size() ? vec.vector
+        ByteArrayDoubleHashMap vec_small = this.size() > named.size() ? named
                 : this.vector;
-        ByteArrayDoubleHashMap vec_big = this.size() > vec.size() ? this.vector
-                : vec.vector;
+        ByteArrayDoubleHashMap vec_big = this.size() > named.size() ? this.vector
+                : named;
         double res = 0.0;
         for (TObjectDoubleIterator<byte[]> it = vec_small.troveIterator(); it
                 .hasNext();) {
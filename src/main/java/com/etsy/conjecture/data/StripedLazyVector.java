@@ -0,0 +1,530 @@
+package com.etsy.conjecture.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.function.TDoubleFunction;
+import gnu.trove.iterator.TLongDoubleIterator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.Iterators;
+import com.google.gson.Gson;
+
+/**
+ * A hash keyed lazy vector which may be read and updated by several threads
+ * at once, for use as the parameter vector of a model trained hogwild style.
+ * Features are split between HashedLazyVector stripes by hash, and every
+ * access to a coordinate holds only the lock of its stripe, so threads
+ * updating different features rarely contend. A whole dot product or update
+ * is not atomic, only each coordinate of it is.
+ *
+ * The iteration is shared by all stripes and is brought up to date in a
+ * stripe before each access, so lazy updates see the same iteration whatever
+ * stripe a feature is in.
+ *
+ * Bulk operations (iteration over the coordinates, size, norms, copies) lock
+ * one stripe at a time, they are meant for when no thread is training. Java
+ * serialization writes a single HashedLazyVector.
+ */
+public class StripedLazyVector extends LazyVector implements HashedVector {
+
+    private static final long serialVersionUID = 6113502839577215012L;
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    private HashedLazyVector[] stripes;
+
+    private int stripeBits;
+
+    private int hashBits = 64;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    // - for kryo.
+    public StripedLazyVector() {
+        super();
+    }
+
+    public StripedLazyVector(int stripes, UpdateFunction uf,
+            boolean keepDictionary, int hashBits) {
+        this(100, stripes, uf, keepDictionary, hashBits);
+    }
+
+    public StripedLazyVector(int initialCapacity, int stripes,
+            UpdateFunction uf, boolean keepDictionary, int hashBits) {
+        super(1, uf);
+        checkArgument(stripes > 0 && Integer.bitCount(stripes) == 1,
+                "stripes must be a positive power of two, given: %s", stripes);
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        this.hashBits = hashBits;
+        this.stripeBits = Integer.numberOfTrailingZeros(stripes);
+        this.stripes = new HashedLazyVector[stripes];
+        int perStripe = Math.max(10, initialCapacity / stripes);
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new HashedLazyVector(perStripe, uf,
+                    keepDictionary, hashBits);
+        }
+    }
+
+    /**
+     * Copies the (delazified) values of a vector into a striped lazy vector.
+     */
+    public StripedLazyVector(StringKeyedVector skv, int stripes,
+            UpdateFunction uf, boolean keepDictionary, int hashBits) {
+        this(Math.max(10, skv.size()), stripes, uf, keepDictionary, hashBits);
+        addScaled(skv, 1.0);
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    public int getHashBits() {
+        return hashBits;
+    }
+
+    public boolean hasDictionary() {
+        return stripes[0].hasDictionary();
+    }
+
+    public long hash(String key) {
+        return FeatureHasher.hash(key, hashBits);
+    }
+
+    public String getName(long key) {
+        HashedLazyVector s = stripe(key);
+        synchronized (s) {
+            return s.getName(key);
+        }
+    }
+
+    private HashedLazyVector stripe(long key) {
+        // - the low bits of the key pick the trove bucket, use the high ones.
+        return stripes[(int)((key * 0x9e3779b97f4a7c15L) >>> (64 - stripeBits))
+                & (stripes.length - 1)];
+    }
+
+    // - call holding the lock of s.
+    private HashedLazyVector catchUp(HashedLazyVector s) {
+        long current = clock.get();
+        if (s.iteration < current) {
+            s.iteration = current;
+        }
+        return s;
+    }
+
+    public void setUpdateFunction(UpdateFunction uf) {
+        updater = uf;
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                s.setUpdateFunction(uf);
+            }
+        }
+    }
+
+    public void incrementIteration() {
+        clock.incrementAndGet();
+    }
+
+    public long getIteration() {
+        return clock.get();
+    }
+
+    public void skipToIteration(long iter) {
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                s.skipToIteration(iter);
+            }
+        }
+        clock.set(iter);
+    }
+
+    public void delazify() {
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                catchUp(s).delazify();
+            }
+        }
+    }
+
+    public void setFreezeKeySet(boolean freeze) {
+        freezeKeySet = freeze;
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                s.setFreezeKeySet(freeze);
+            }
+        }
+    }
+
+    // - primitive, hash keyed access.
+
+    public double delazifyCoordinate(long key) {
+        HashedLazyVector s = stripe(key);
+        synchronized (s) {
+            return catchUp(s).delazifyCoordinate(key);
+        }
+    }
+
+    public double getCoordinate(long key) {
+        return delazifyCoordinate(key);
+    }
+
+    public double setCoordinate(long key, double value) {
+        HashedLazyVector s = stripe(key);
+        synchronized (s) {
+            return catchUp(s).setCoordinate(key, value);
+        }
+    }
+
+    public double deleteCoordinate(long key) {
+        HashedLazyVector s = stripe(key);
+        synchronized (s) {
+            return catchUp(s).deleteCoordinate(key);
+        }
+    }
+
+    public double addToCoordinate(long key, double value) {
+        HashedLazyVector s = stripe(key);
+        synchronized (s) {
+            return catchUp(s).addToCoordinate(key, value);
+        }
+    }
+
+    private void addToCoordinate(long key, double value, String name) {
+        HashedLazyVector s = stripe(key);
+        synchronized (s) {
+            catchUp(s).addToCoordinate(key, value);
+            if (s.dictionary != null && s.hashed.containsKey(key)) {
+                s.remember(key, name);
+            }
+        }
+    }
+
+    private void updateCoordinate(long key, double x, double scale,
+            CoordinateUpdate u, String name) {
+        HashedLazyVector s = stripe(key);
+        synchronized (s) {
+            catchUp(s).updateCoordinate(key, x, scale, u);
+            if (s.dictionary != null && name != null
+                    && s.hashed.containsKey(key)) {
+                s.remember(key, name);
+            }
+        }
+    }
+
+    // - string keyed api, the stripes hash with the same bits.
+
+    public double delazifyCoordinate(String key) {
+        return delazifyCoordinate(hash(key));
+    }
+
+    public double getCoordinate(String key) {
+        return delazifyCoordinate(hash(key));
+    }
+
+    public double setCoordinate(String key, double value) {
+        HashedLazyVector s = stripe(hash(key));
+        synchronized (s) {
+            return catchUp(s).setCoordinate(key, value);
+        }
+    }
+
+    public double deleteCoordinate(String key) {
+        return deleteCoordinate(hash(key));
+    }
+
+    public double addToCoordinate(String key, double value) {
+        HashedLazyVector s = stripe(hash(key));
+        synchronized (s) {
+            return catchUp(s).addToCoordinate(key, value);
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return delazifyCoordinate(hash(key)) != 0.0;
+    }
+
+    public double dot(StringKeyedVector skv) {
+        double res = 0.0;
+        if (skv instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)skv;
+            HashedKeyedVector.checkSameHashBits(hashBits, sv.getHashBits());
+            for (int i = 0; i < sv.size(); i++) {
+                res += sv.valueAt(i) * delazifyCoordinate(sv.keyAt(i));
+            }
+        } else if (skv instanceof HashedVector) {
+            HashedVector hv = (HashedVector)skv;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                res += it.value() * delazifyCoordinate(it.key());
+            }
+        } else {
+            for (Map.Entry<String, Double> e : skv) {
+                res += e.getValue() * delazifyCoordinate(hash(e.getKey()));
+            }
+        }
+        return res;
+    }
+
+    public void addScaled(StringKeyedVector vec, double scale) {
+        if (vec instanceof HashedVector) {
+            HashedVector hv = (HashedVector)vec;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            boolean names = hasDictionary();
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                addToCoordinate(it.key(), scale * it.value(),
+                        names ? hv.getName(it.key()) : null);
+            }
+        } else {
+            for (Map.Entry<String, Double> e : vec) {
+                addToCoordinate(e.getKey(), scale * e.getValue());
+            }
+        }
+    }
+
+    public void update(StringKeyedVector x, double scale, CoordinateUpdate u) {
+        boolean names = hasDictionary();
+        if (x instanceof SortedKeyedVector) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, sv.getHashBits());
+            for (int i = 0; i < sv.size(); i++) {
+                updateCoordinate(sv.keyAt(i), sv.valueAt(i), scale, u,
+                        names ? sv.nameAt(i) : null);
+            }
+        } else if (x instanceof HashedVector) {
+            HashedVector hv = (HashedVector)x;
+            HashedKeyedVector.checkSameHashBits(hashBits, hv.getHashBits());
+            for (TLongDoubleIterator it = hv.hashedIterator(); it.hasNext();) {
+                it.advance();
+                updateCoordinate(it.key(), it.value(), scale, u,
+                        names ? hv.getName(it.key()) : null);
+            }
+        } else {
+            for (Map.Entry<String, Double> e : x) {
+                updateCoordinate(hash(e.getKey()), e.getValue(), scale, u,
+                        e.getKey());
+            }
+        }
+    }
+
+    public StringKeyedVector multiplyPointwise(StringKeyedVector vec) {
+        HashedKeyedVector res = new HashedKeyedVector(10, hasDictionary(),
+                hashBits);
+        for (Map.Entry<String, Double> e : vec) {
+            res.setCoordinate(e.getKey(), getCoordinate(e.getKey())
+                    * e.getValue());
+        }
+        return res;
+    }
+
+    public StringKeyedVector projectOntoNonZeroCoordinates(StringKeyedVector vec) {
+        HashedKeyedVector res = new HashedKeyedVector(10, hasDictionary(),
+                hashBits);
+        for (Map.Entry<String, Double> e : vec) {
+            res.addToCoordinate(e.getKey(), getCoordinate(e.getKey()));
+        }
+        return res;
+    }
+
+    // - bulk operations, one stripe at a time.
+
+    public int size() {
+        int size = 0;
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                size += catchUp(s).size();
+            }
+        }
+        return size;
+    }
+
+    public void transformValues(TDoubleFunction func) {
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                catchUp(s).transformValues(func);
+            }
+        }
+    }
+
+    public void removeZeroCoordinates() {
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                s.removeZeroCoordinates();
+            }
+        }
+    }
+
+    public Map<String, Double> getMap() {
+        Map<String, Double> res = new HashMap<String, Double>();
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                res.putAll(catchUp(s).getMap());
+            }
+        }
+        return res;
+    }
+
+    public Set<String> keySet() {
+        Set<String> res = new HashSet<String>();
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                res.addAll(catchUp(s).keySet());
+            }
+        }
+        return res;
+    }
+
+    public Set<Double> values() {
+        Set<Double> res = new HashSet<Double>();
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                res.addAll(catchUp(s).values());
+            }
+        }
+        return res;
+    }
+
+    public double LPNorm(double p) {
+        double tot = 0d;
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                tot += Math.pow(catchUp(s).LPNorm(p), p);
+            }
+        }
+        return Math.pow(tot, 1d / p);
+    }
+
+    public double max() {
+        double max = 0.0;
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                max = Math.max(max, catchUp(s).max());
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Iterates the stripes in turn, removal is supported.
+     */
+    public Iterator<Map.Entry<String, Double>> iterator() {
+        List<Iterator<Map.Entry<String, Double>>> its = new ArrayList<Iterator<Map.Entry<String, Double>>>(
+                stripes.length);
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                its.add(catchUp(s).iterator());
+            }
+        }
+        return Iterators.concat(its.iterator());
+    }
+
+    public TLongDoubleIterator hashedIterator() {
+        delazify();
+        return new TLongDoubleIterator() {
+            private int stripe = 0;
+            private TLongDoubleIterator current = stripes[0].hashed.iterator();
+
+            public boolean hasNext() {
+                while (!current.hasNext() && stripe + 1 < stripes.length) {
+                    current = stripes[++stripe].hashed.iterator();
+                }
+                return current.hasNext();
+            }
+
+            public void advance() {
+                hasNext();
+                current.advance();
+            }
+
+            public long key() {
+                return current.key();
+            }
+
+            public double value() {
+                return current.value();
+            }
+
+            public double setValue(double val) {
+                return current.setValue(val);
+            }
+
+            public void remove() {
+                synchronized (stripes[stripe]) {
+                    stripes[stripe].forget(current.key());
+                    current.remove();
+                }
+            }
+        };
+    }
+
+    /**
+     * The coordinates merged into a single HashedLazyVector, as of the
+     * current iteration.
+     */
+    public HashedLazyVector merge() {
+        HashedLazyVector res = new HashedLazyVector(Math.max(10, size()),
+                updater, hasDictionary(), hashBits);
+        res.iteration = clock.get();
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                res.addScaled(catchUp(s), 1.0);
+            }
+        }
+        res.setFreezeKeySet(freezeKeySet);
+        return res;
+    }
+
+    public StringKeyedVector copy() {
+        HashedKeyedVector out = new HashedKeyedVector(Math.max(10, size()),
+                hasDictionary(), hashBits);
+        out.addScaled(this, 1.0);
+        return out;
+    }
+
+    public String toString() {
+        return new Gson().toJson(getMap());
+    }
+
+    // - java serialization
+    private Object writeReplace() throws java.io.ObjectStreamException {
+        return merge();
+    }
+
+    // - kryo serialization for use in scalding.
+    public void write(Kryo kryo, Output output) {
+        output.writeLong(clock.get());
+        kryo.writeClassAndObject(output, updater);
+        output.writeBoolean(freezeKeySet);
+        output.writeInt(hashBits, true);
+        output.writeInt(stripes.length, true);
+        for (HashedLazyVector s : stripes) {
+            synchronized (s) {
+                kryo.writeObject(output, catchUp(s));
+            }
+        }
+    }
+
+    public void read(Kryo kryo, Input input) {
+        clock.set(input.readLong());
+        updater = (UpdateFunction)kryo.readClassAndObject(input);
+        freezeKeySet = input.readBoolean();
+        hashBits = input.readInt(true);
+        stripes = new HashedLazyVector[input.readInt(true)];
+        stripeBits = Integer.numberOfTrailingZeros(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = kryo.readObject(input, HashedLazyVector.class);
+        }
+    }
+}
@@ -9,10 +9,14 @@ import java.util.*;
  *  AdaGrad provides adaptive per-feature learning rates at each time step t.
  *  Described here: http://www.ark.cs.cmu.edu/cdyer/adagrad.pdf
  */
-public class AdagradOptimizer<L extends Label> extends SGDOptimizer<L> {
+public class AdagradOptimizer<L extends Label> extends SGDOptimizer<L>
+        implements LazyVector.CoordinateUpdate {
 
-    private StringKeyedVector unnormalizedGradients = new StringKeyedVector();
-    private StringKeyedVector summedGradients = new StringKeyedVector();
+    // - summed squared and summed gradients, keyed by feature hash (see
+    // FeatureHasher) and safe to share between training threads.
+    static final int SUMMED = 0;
+    static final int UNNORMALIZED = 1;
+    private FeatureStateTable state = new FeatureStateTable(2, false);
 
     @Override
     public StringKeyedVector getUpdate(LabeledInstance instance) {
@@ -23,18 +27,56 @@ public class AdagradOptimizer<L extends Label> extends SGDOptimizer<L> {
             Map.Entry<String,Double> pairs = (Map.Entry)it.next();
             String feature = pairs.getKey();
             double gradient = pairs.getValue();
-            double featureLearningRate = updateAndGetFeatureLearningRate(feature, gradient);
+            long key = FeatureHasher.hash(feature);
+            double featureLearningRate;
+            synchronized (state.lock(key)) {
+                if (isRejected(key)) {
+                    continue;
+                }
+                featureLearningRate = updateAndGetFeatureLearningRate(key, gradient);
+            }
             updateVec.setCoordinate(feature, gradient * -featureLearningRate);
        }
        return updateVec;
     }
 
+    @Override
+    public void applyUpdate(LabeledInstance<L> instance) {
+        double derivative = getLossDerivative(instance);
+        if (derivative != 0.0) {
+            model.param.update(instance.getVector(), derivative, this);
+        }
+    }
+
+    public double update(long feature, double param, double x, double derivative) {
+        synchronized (state.lock(feature)) {
+            if (isRejected(feature)) {
+                return param;
+            }
+            double gradient = x * derivative;
+            return param - gradient * updateAndGetFeatureLearningRate(feature, gradient);
+        }
+    }
+
+    private boolean isRejected(long feature) {
+        return admission != null && state.indexOf(feature) < 0
+            && rejectFeature(feature);
+    }
+
     /**
      *  Update adaptive feature specific learning rates
      */
     public double updateAndGetFeatureLearningRate(String feature, double gradient) {
+        long key = FeatureHasher.hash(feature);
+        synchronized (state.lock(key)) {
+            return updateAndGetFeatureLearningRate(key, gradient);
+        }
+    }
+
+    public double updateAndGetFeatureLearningRate(long feature, double gradient) {
         double gradUpdate = 0.0;
-        if (summedGradients.containsKey(feature)) {
+        int slot = state.indexOf(feature);
+        if (slot >= 0) {
             gradUpdate = gradient * gradient;
         } else {
             /**
@@ -43,14 +85,27 @@ public class AdagradOptimizer<L extends Label> extends SGDOptimizer<L> {
              *  helps avoid oscillation.
              */
             gradUpdate = 1d+(gradient * gradient);
+            slot = state.insert(feature);
         }
-        summedGradients.addToCoordinate(feature, gradUpdate);
-        unnormalizedGradients.addToCoordinate(feature, gradient);
-        return getFeatureLearningRate(feature);
+        double summed = state.get(slot, SUMMED) + gradUpdate;
+        state.set(slot, SUMMED, summed);
+        state.set(slot, UNNORMALIZED, state.get(slot, UNNORMALIZED) + gradient);
+        return initialLearningRate/Math.sqrt(summed);
     }
 
     public double getFeatureLearningRate(String feature) {
-        return initialLearningRate/Math.sqrt(summedGradients.getCoordinate(feature));
+        return getFeatureLearningRate(FeatureHasher.hash(feature));
+    }
+
+    public double getFeatureLearningRate(long feature) {
+        synchronized (state.lock(feature)) {
+            return initialLearningRate/Math.sqrt(getState(feature, SUMMED));
+        }
+    }
+
+    private double getState(long feature, int field) {
+        int slot = state.indexOf(feature);
+        return slot < 0 ? 0.0 : state.get(slot, field);
     }
 
     /**
@@ -78,8 +133,14 @@ public class AdagradOptimizer<L extends Label> extends SGDOptimizer<L> {
     }
 
     public double adagradL1(String feature, double param, long iter) {
-        double eta = (initialLearningRate*iter)/Math.sqrt(summedGradients.getCoordinate(feature));
-        double u = unnormalizedGradients.getCoordinate(feature);
+        long key = FeatureHasher.hash(feature);
+        double summed;
+        double u;
+        synchronized (state.lock(key)) {
+            summed = getState(key, SUMMED);
+            u = getState(key, UNNORMALIZED);
+        }
+        double eta = (initialLearningRate*iter)/Math.sqrt(summed);
         double normalizedGradient = u/iter;
         if (Math.abs(normalizedGradient) <= laplace) {
             param = 0.0;
@@ -91,8 +152,7 @@ public class AdagradOptimizer<L extends Label> extends SGDOptimizer<L> {
 
     @Override
     public void teardown() {
-        summedGradients = new StringKeyedVector();
-        unnormalizedGradients = new StringKeyedVector();
+        state = new FeatureStateTable(2, false);
     }
 
 }
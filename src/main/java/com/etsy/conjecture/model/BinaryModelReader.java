@@ -0,0 +1,318 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.iterator.TLongDoubleIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import com.etsy.conjecture.data.FeatureHasher;
+import com.etsy.conjecture.data.HashedVector;
+import com.etsy.conjecture.data.SortedKeyedVector;
+import com.etsy.conjecture.data.StringKeyedVector;
+
+/**
+ * Opens a model written by BinaryModelWriter by memory mapping it. Only the
+ * header is read up front; a weight is found by binary search of the sorted
+ * feature hashes, so opening takes the same time for any size of model and
+ * pages are read as they are used.
+ *
+ * A section of the file is mapped as chunks of at most a gigabyte, since a
+ * single mapping stops at 2 GB, and elements never straddle chunks. The
+ * buffers are only read with absolute gets, so a reader may be shared
+ * between threads.
+ */
+public class BinaryModelReader {
+
+    // - log2 of the bytes of a chunk, a multiple of 8.
+    static final int CHUNK_SHIFT = 30;
+
+    private final String modelType;
+    private final String argString;
+    private final long epoch;
+    private final int hashBits;
+    private final int flags;
+    private final int size;
+    private final String[] categories;
+
+    private final Section keys;
+    private final Section weights;
+    private final Section offsets;
+    private final Section names;
+
+    public BinaryModelReader(File file) throws IOException {
+        this(file, CHUNK_SHIFT);
+    }
+
+    BinaryModelReader(File file, int chunkShift) throws IOException {
+        checkArgument(chunkShift >= 3 && chunkShift <= CHUNK_SHIFT,
+                "chunks must be 8 bytes to 1 GB, given: 2^%s", chunkShift);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer start = ByteBuffer.allocate(12);
+            channel.read(start, 0);
+            start.flip();
+            checkArgument(start.remaining() == 12
+                    && start.getInt() == BinaryModelWriter.MAGIC,
+                    "not a binary model file: %s", file);
+            int version = start.getInt();
+            checkArgument(version == BinaryModelWriter.VERSION,
+                    "unknown binary model version: %s", version);
+            int headerLength = start.getInt();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 12,
+                    headerLength);
+            modelType = readString(header);
+            argString = readString(header);
+            epoch = header.getLong();
+            hashBits = header.getInt();
+            flags = header.getInt();
+            size = header.getInt();
+            categories = new String[header.getInt()];
+            for (int k = 0; k < categories.length; k++) {
+                categories[k] = readString(header);
+            }
+
+            long position = (12 + headerLength + 7) / 8 * 8;
+            keys = new Section(channel, position, 8L * size, chunkShift);
+            position += 8L * size;
+            long weightBytes = (long)size * categories.length
+                    * ((flags & BinaryModelWriter.DOUBLE_WEIGHTS) != 0 ? 8 : 4);
+            weights = new Section(channel, position, weightBytes, chunkShift);
+            position += weightBytes;
+            if ((flags & BinaryModelWriter.NAMES) != 0) {
+                offsets = new Section(channel, position, 8L * (size + 1), chunkShift);
+                position += 8L * (size + 1);
+                names = new Section(channel, position, offsets.getLong(8L * size), chunkShift);
+            } else {
+                offsets = null;
+                names = null;
+            }
+        } finally {
+            // - the mappings stay valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * A section of the file mapped in chunks of 2^shift bytes, read at long
+     * offsets from its start.
+     */
+    static final class Section {
+
+        private final ByteBuffer[] chunks;
+        private final int shift;
+        private final long mask;
+
+        Section(FileChannel channel, long position, long length, int shift)
+                throws IOException {
+            this.shift = shift;
+            this.mask = (1L << shift) - 1L;
+            chunks = new ByteBuffer[(int)((length + mask) >>> shift)];
+            for (int c = 0; c < chunks.length; c++) {
+                long from = (long)c << shift;
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position + from, Math.min(length - from, 1L << shift));
+            }
+        }
+
+        byte get(long at) {
+            return chunks[(int)(at >>> shift)].get((int)(at & mask));
+        }
+
+        float getFloat(long at) {
+            return chunks[(int)(at >>> shift)].getFloat((int)(at & mask));
+        }
+
+        long getLong(long at) {
+            return chunks[(int)(at >>> shift)].getLong((int)(at & mask));
+        }
+
+        double getDouble(long at) {
+            return chunks[(int)(at >>> shift)].getDouble((int)(at & mask));
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return new String(b, BinaryModelWriter.UTF8);
+    }
+
+    public String getModelType() {
+        return modelType;
+    }
+
+    public String getArgString() {
+        return argString;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getHashBits() {
+        return hashBits;
+    }
+
+    public String[] getCategories() {
+        return categories.clone();
+    }
+
+    public int getColumnCount() {
+        return categories.length;
+    }
+
+    public boolean hasNames() {
+        return names != null;
+    }
+
+    public LinkFunction getLinkFunction() {
+        return (flags & BinaryModelWriter.LOGISTIC) != 0 ? LinkFunction.LOGISTIC
+                : LinkFunction.IDENTITY;
+    }
+
+    /**
+     * The number of features.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long hash(String feature) {
+        return FeatureHasher.hash(feature, hashBits);
+    }
+
+    public long keyAt(int i) {
+        return keys.getLong(8L * i);
+    }
+
+    /**
+     * The name of the i-th feature, or FeatureHasher.hashName of its key if
+     * the name was not kept.
+     */
+    public String nameAt(int i) {
+        if (names != null) {
+            long from = offsets.getLong(8L * i);
+            long to = offsets.getLong(8L * (i + 1));
+            if (to > from) {
+                byte[] b = new byte[(int)(to - from)];
+                for (int j = 0; j < b.length; j++) {
+                    b[j] = names.get(from + j);
+                }
+                return new String(b, BinaryModelWriter.UTF8);
+            }
+        }
+        return FeatureHasher.hashName(keyAt(i));
+    }
+
+    public double weightAt(int i, int column) {
+        long w = (long)i * categories.length + column;
+        return (flags & BinaryModelWriter.DOUBLE_WEIGHTS) != 0 ? weights
+                .getDouble(8 * w) : weights.getFloat(4 * w);
+    }
+
+    /**
+     * The index of a feature hash, or -1 if the model has no such feature.
+     */
+    public int indexOf(long key) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = keyAt(mid);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public double getWeight(long key, int column) {
+        int i = indexOf(key);
+        return i < 0 ? 0.0 : weightAt(i, column);
+    }
+
+    public double getWeight(String feature) {
+        return getWeight(hash(feature), 0);
+    }
+
+    public double getWeight(String feature, int column) {
+        return getWeight(hash(feature), column);
+    }
+
+    /**
+     * The inner product of x with the first column.
+     */
+    public double dot(StringKeyedVector x) {
+        double[] out = new double[categories.length];
+        innerProducts(x, out);
+        return out[0];
+    }
+
+    /**
+     * The prediction of a binary or regression model.
+     */
+    public double score(StringKeyedVector x) {
+        return getLinkFunction().apply(dot(x));
+    }
+
+    /**
+     * Add the inner product of x with column k into out[k], for every
+     * column, in one pass over the features of x.
+     */
+    public void innerProducts(StringKeyedVector x, double[] out) {
+        checkArgument(out.length >= categories.length,
+                "need room for %s columns, given: %s", categories.length,
+                out.length);
+        if (x instanceof SortedKeyedVector
+                && ((SortedKeyedVector)x).getHashBits() == hashBits) {
+            SortedKeyedVector sv = (SortedKeyedVector)x;
+            for (int i = 0; i < sv.size(); i++) {
+                addRow(sv.keyAt(i), sv.valueAt(i), out);
+            }
+        } else if (x instanceof HashedVector
+                && ((HashedVector)x).getHashBits() == hashBits) {
+            for (TLongDoubleIterator it = ((HashedVector)x).hashedIterator(); it.hasNext();) {
+                it.advance();
+                addRow(it.key(), it.value(), out);
+            }
+        } else {
+            for (Map.Entry<String, Double> e : x) {
+                addRow(hash(e.getKey()), e.getValue(), out);
+            }
+        }
+    }
+
+    private void addRow(long key, double value, double[] out) {
+        int i = indexOf(key);
+        if (i >= 0) {
+            for (int k = 0; k < categories.length; k++) {
+                out[k] += value * weightAt(i, k);
+            }
+        }
+    }
+
+    /**
+     * Set the weights of column k on the parameters of a model, e.g. to
+     * train it further.
+     */
+    public <M extends UpdateableLinearModel<?>> M loadInto(M model, int column) {
+        for (int i = 0; i < size; i++) {
+            double w = weightAt(i, column);
+            if (w != 0.0) {
+                model.setParameter(nameAt(i), w);
+            }
+        }
+        model.setEpoch(epoch);
+        return model;
+    }
+}
@@ -0,0 +1,319 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.iterator.TLongDoubleIterator;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.etsy.conjecture.data.FeatureHasher;
+import com.etsy.conjecture.data.HashedVector;
+import com.etsy.conjecture.data.StringKeyedVector;
+
+/**
+ * Writes the parameters of a linear model in a binary format which
+ * BinaryModelReader memory maps, rather than as one gson string. The rows
+ * come from a Rows source in increasing key order and each section is
+ * streamed out in turn, so the writer holds no more than its output buffer
+ * whatever the size of the model.
+ *
+ * File layout, big endian:
+ *
+ * - MAGIC, VERSION, then the length of the header and the header: the model
+ * type, the arg string, the epoch, hash bits, flags, the number of features
+ * n and the category names (one column of weights each, a single unnamed
+ * column for a binary or regression model).
+ *
+ * - padding to a multiple of 8 bytes, then the n feature hashes sorted in
+ * increasing order, then the weights of each feature in turn, as doubles
+ * or floats, then if NAMES is set n + 1 long offsets into the name bytes
+ * which follow.
+ */
+public class BinaryModelWriter implements Closeable {
+
+    public static final int MAGIC = 0x434a4d46;
+
+    // - 2 has long name offsets.
+    public static final int VERSION = 2;
+
+    // - flags.
+    public static final int DOUBLE_WEIGHTS = 1;
+    public static final int NAMES = 2;
+    public static final int LOGISTIC = 4;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The rows of a model file, read once for each section.
+     */
+    public interface Rows {
+
+        // - the number of rows, whose keys increase with the index.
+        public int size();
+
+        public long keyAt(int i);
+
+        public double weightAt(int i, int column);
+
+        // - whether names are kept, else nameAt is not called.
+        public boolean hasNames();
+
+        // - the name of a row, unless null or a FeatureHasher.hashName.
+        public String nameAt(int i);
+    }
+
+    private final DataOutputStream out;
+
+    private final String modelType;
+    private final String argString;
+    private final long epoch;
+    private final int hashBits;
+    private final String[] categories;
+    private final boolean doubleWeights;
+    private final boolean logistic;
+
+    public BinaryModelWriter(File file, String modelType, String argString,
+            long epoch, int hashBits, String[] categories,
+            boolean doubleWeights, LinkFunction link) throws IOException {
+        this(new FileOutputStream(file), modelType, argString, epoch, hashBits,
+                categories, doubleWeights, link);
+    }
+
+    /**
+     * @param categories
+     *            the names of the weight columns, one per category of a
+     *            multiclass model.
+     * @param doubleWeights
+     *            keep the weights as doubles rather than floats.
+     * @param link
+     *            how the inner product becomes the prediction, logistic
+     *            or identity.
+     */
+    public BinaryModelWriter(OutputStream out, String modelType,
+            String argString, long epoch, int hashBits, String[] categories,
+            boolean doubleWeights, LinkFunction link) {
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        checkArgument(categories.length > 0, "need at least one column");
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.modelType = modelType == null ? "" : modelType;
+        this.argString = argString == null ? "" : argString;
+        this.epoch = epoch;
+        this.hashBits = hashBits;
+        this.categories = categories.clone();
+        this.doubleWeights = doubleWeights;
+        this.logistic = link == LinkFunction.LOGISTIC;
+    }
+
+    /**
+     * Stream the header and then each section of the rows, whose keys are
+     * hashes with the hash bits of the file.
+     */
+    public void write(Rows rows) throws IOException {
+        int n = rows.size();
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        writeString(header, modelType);
+        writeString(header, argString);
+        header.writeLong(epoch);
+        header.writeInt(hashBits);
+        header.writeInt((doubleWeights ? DOUBLE_WEIGHTS : 0)
+                | (rows.hasNames() ? NAMES : 0) | (logistic ? LOGISTIC : 0));
+        header.writeInt(n);
+        header.writeInt(categories.length);
+        for (String category : categories) {
+            writeString(header, category);
+        }
+        header.flush();
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(headerBytes.size());
+        headerBytes.writeTo(out);
+        int position = 12 + headerBytes.size();
+        for (; position % 8 != 0; position++) {
+            out.writeByte(0);
+        }
+
+        for (int i = 0; i < n; i++) {
+            long key = rows.keyAt(i);
+            // - the reader binary searches the keys.
+            checkArgument(i == 0 || key > rows.keyAt(i - 1),
+                    "keys must increase, %s follows %s", key, i == 0 ? 0 : rows.keyAt(i - 1));
+            out.writeLong(key);
+        }
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < categories.length; k++) {
+                if (doubleWeights) {
+                    out.writeDouble(rows.weightAt(i, k));
+                } else {
+                    out.writeFloat((float)rows.weightAt(i, k));
+                }
+            }
+        }
+        if (rows.hasNames()) {
+            long offset = 0;
+            out.writeLong(offset);
+            for (int i = 0; i < n; i++) {
+                offset += nameBytes(rows.nameAt(i)).length;
+                out.writeLong(offset);
+            }
+            for (int i = 0; i < n; i++) {
+                out.write(nameBytes(rows.nameAt(i)));
+            }
+        }
+    }
+
+    private static byte[] nameBytes(String name) {
+        return name == null || FeatureHasher.isHashName(name) ? new byte[0]
+                : name.getBytes(UTF8);
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    // - the hash bits of the parameters, 64 for string keyed ones.
+    private static int hashBits(StringKeyedVector param) {
+        return param instanceof HashedVector ? ((HashedVector)param)
+                .getHashBits() : 64;
+    }
+
+    /**
+     * The rows of the non-zero weights of parameter vectors, a column each,
+     * in key order. Only the sorted keys are held, and for string keyed
+     * parameters the names to look the weights up by.
+     */
+    static class ParameterRows implements Rows {
+
+        private final StringKeyedVector[] columns;
+        private final int hashBits;
+        private final long[] keys;
+        private final TLongObjectHashMap<String> names = new TLongObjectHashMap<String>();
+        private boolean named = false;
+
+        ParameterRows(StringKeyedVector[] columns) {
+            this.columns = columns;
+            this.hashBits = hashBits(columns[0]);
+            TLongHashSet seen = new TLongHashSet();
+            for (StringKeyedVector column : columns) {
+                checkArgument(hashBits(column) == hashBits,
+                        "columns hashed with %s and %s bits", hashBits, hashBits(column));
+                if (column instanceof HashedVector) {
+                    HashedVector hashed = (HashedVector)column;
+                    for (TLongDoubleIterator it = hashed.hashedIterator(); it.hasNext();) {
+                        it.advance();
+                        if (it.value() != 0.0) {
+                            seen.add(it.key());
+                            named |= !FeatureHasher.isHashName(hashed.getName(it.key()));
+                        }
+                    }
+                } else {
+                    for (Iterator<Map.Entry<String, Double>> it = column.iterator(); it.hasNext();) {
+                        Map.Entry<String, Double> e = it.next();
+                        if (e.getValue() != 0.0) {
+                            long key = FeatureHasher.hash(e.getKey(), hashBits);
+                            seen.add(key);
+                            if (!names.containsKey(key)) {
+                                names.put(key, e.getKey());
+                            }
+                            named |= !FeatureHasher.isHashName(e.getKey());
+                        }
+                    }
+                }
+            }
+            keys = seen.toArray();
+            Arrays.sort(keys);
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        public long keyAt(int i) {
+            return keys[i];
+        }
+
+        public double weightAt(int i, int column) {
+            StringKeyedVector param = columns[column];
+            if (param instanceof HashedVector) {
+                return ((HashedVector)param).getCoordinate(keys[i]);
+            }
+            String name = names.get(keys[i]);
+            return name == null ? 0.0 : param.getCoordinate(name);
+        }
+
+        public boolean hasNames() {
+            return named;
+        }
+
+        public String nameAt(int i) {
+            String name = names.get(keys[i]);
+            for (int k = 0; name == null && k < columns.length; k++) {
+                if (columns[k] instanceof HashedVector) {
+                    name = ((HashedVector)columns[k]).getName(keys[i]);
+                    name = FeatureHasher.isHashName(name) ? null : name;
+                }
+            }
+            return name;
+        }
+    }
+
+    /**
+     * Write a binary or regression model.
+     */
+    public static void write(UpdateableLinearModel<?> model, OutputStream out,
+            boolean doubleWeights) throws IOException {
+        BinaryModelWriter writer = new BinaryModelWriter(out,
+                model.modelType, model.getArgString(), model.getEpoch(),
+                hashBits(model.param), new String[] { "" },
+                doubleWeights, model.getLinkFunction());
+        try {
+            writer.write(new ParameterRows(new StringKeyedVector[] { model.param }));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write a multiclass model, a column per category.
+     */
+    public static void write(UpdateableMulticlassLinearModel model,
+            OutputStream out, boolean doubleWeights) throws IOException {
+        String[] categories = model.param.keySet().toArray(
+                new String[model.param.size()]);
+        Arrays.sort(categories);
+        StringKeyedVector[] columns = new StringKeyedVector[categories.length];
+        for (int k = 0; k < categories.length; k++) {
+            columns[k] = model.param.get(categories[k]).param;
+        }
+        BinaryModelWriter writer = new BinaryModelWriter(out,
+                model.getModelType(), model.getArgString(), model.getEpoch(),
+                hashBits(columns[0]), categories, doubleWeights,
+                model.param.get(categories[0]).getLinkFunction());
+        try {
+            writer.write(new ParameterRows(columns));
+        } finally {
+            writer.close();
+        }
+    }
+}
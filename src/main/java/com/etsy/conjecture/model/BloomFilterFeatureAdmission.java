@@ -0,0 +1,106 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Admits a feature once it has been seen a minimum number of times, counted
+ * in a counting Bloom filter rather than per feature, so memory stays fixed
+ * however many distinct features there are. Counts may be over estimated
+ * (never under), so an occasional feature is admitted early.
+ *
+ * Uses conservative update: only the smallest of a feature's counters are
+ * incremented, which keeps over estimates down. One filter may be shared by
+ * optimizers updated on several threads. The counters are not locked, so a
+ * racing sighting may go uncounted, which only delays an admission.
+ *
+ * The counters are transient, allocated on the first sighting: a model
+ * shipped between tasks or written out carries only the configuration, and
+ * its copy counts afresh, as a filter is never merged.
+ */
+public class BloomFilterFeatureAdmission implements FeatureAdmission {
+
+    private static final long serialVersionUID = -3309417270934613870L;
+
+    // - counters saturate here, well above any sensible minimum count.
+    static final int MAX_COUNT = 127;
+
+    private final int minCount;
+
+    private final int hashes;
+
+    private final int counters;
+
+    private transient volatile byte[] counts;
+
+    public BloomFilterFeatureAdmission(int minCount) {
+        this(minCount, 1 << 24, 3);
+    }
+
+    public BloomFilterFeatureAdmission(int minCount, int counters, int hashes) {
+        checkArgument(minCount > 0 && minCount <= MAX_COUNT,
+                "minimum count must be in [1, %s], given: %s", MAX_COUNT,
+                minCount);
+        checkArgument(counters > 0, "counters must be positive, given: %s",
+                counters);
+        checkArgument(hashes > 0, "hashes must be positive, given: %s",
+                hashes);
+        this.minCount = minCount;
+        this.hashes = hashes;
+        this.counters = counters;
+    }
+
+    private byte[] counts() {
+        byte[] c = counts;
+        if (c == null) {
+            synchronized (this) {
+                c = counts;
+                if (c == null) {
+                    c = new byte[counters];
+                    counts = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public boolean admit(long feature) {
+        byte[] counts = counts();
+        // - double hashing over a remixed key, hashed vectors may have
+        // their high bits masked off.
+        long h = mix(feature);
+        int h1 = (int)h;
+        int h2 = (int)(h >>> 32) | 1;
+        int min = MAX_COUNT;
+        for (int i = 0; i < hashes; i++) {
+            min = Math.min(min, counts[cell(h1, h2, i, counts.length)]);
+        }
+        if (min < MAX_COUNT) {
+            for (int i = 0; i < hashes; i++) {
+                int c = cell(h1, h2, i, counts.length);
+                if (counts[c] == min) {
+                    // - not ++, so racing threads can not pass MAX_COUNT.
+                    counts[c] = (byte)(min + 1);
+                }
+            }
+            min++;
+        }
+        return min >= minCount;
+    }
+
+    private static int cell(int h1, int h2, int i, int counters) {
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % counters;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public int getMinCount() {
+        return minCount;
+    }
+}
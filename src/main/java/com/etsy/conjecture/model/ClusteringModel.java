@@ -11,6 +11,7 @@ import com.etsy.conjecture.data.LabeledInstance;
 
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -28,6 +29,9 @@ public abstract class ClusteringModel<ClusterLabel extends Label> implements Upd
 
   protected Map<String, StringKeyedVector> param = new HashMap<String, StringKeyedVector>();
 
+  // - the sorted cluster names, kept between batches, see clusterOrder.
+  private transient String[] clusters;
+
   public void update(LabeledInstance<ClusterLabel> instance) {
     update(instance.getVector());
   }
@@ -42,6 +46,30 @@ public abstract class ClusteringModel<ClusterLabel extends Label> implements Upd
 
   public abstract ClusterLabel predict(StringKeyedVector instance);
 
+  /**
+   *  The score of each cluster, in the order of getClusters(), for each of
+   *  instances[0, count) into the rows of out.
+   */
+  public abstract void predictBatch(StringKeyedVector[] instances, int count, double[][] out);
+
+  /**
+   *  The cluster names in the order of the scores of predictBatch.
+   */
+  public String[] getClusters() {
+    return clusterOrder().clone();
+  }
+
+  // - sorted once rather than per batch: clusters are only ever added, never
+  // - renamed, so the order is stale only when the count has changed.
+  protected String[] clusterOrder() {
+    if (clusters == null || clusters.length != param.size()) {
+      String[] sorted = param.keySet().toArray(new String[param.size()]);
+      Arrays.sort(sorted);
+      clusters = sorted;
+    }
+    return clusters;
+  }
+
   protected ClusteringModel() {
     Map<String, StringKeyedVector> init_param = new HashMap<String, StringKeyedVector>();
     for (int i = 0; i < numClusters; i++) {
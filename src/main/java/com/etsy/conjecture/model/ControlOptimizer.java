@@ -7,9 +7,12 @@ import java.util.*;
 /**
  *  Current search ads control. Remove after current exp.
  */
-public class ControlOptimizer<L extends Label> extends SGDOptimizer<L> {
+public class ControlOptimizer<L extends Label> extends SGDOptimizer<L>
+        implements LazyVector.CoordinateUpdate {
 
-    private StringKeyedVector summedGradients = new StringKeyedVector();
+    // - summed squared gradients, keyed by feature hash (see FeatureHasher)
+    // and safe to share between training threads.
+    private FeatureStateTable summedGradients = new FeatureStateTable(1, false);
 
     @Override
     public StringKeyedVector getUpdate(LabeledInstance instance) {
@@ -20,18 +23,56 @@ public class ControlOptimizer<L extends Label> extends SGDOptimizer<L> {
             Map.Entry<String,Double> pairs = (Map.Entry)it.next();
             String feature = pairs.getKey();
             double gradient = pairs.getValue();
-            double featureLearningRate = updateAndGetFeatureLearningRate(feature, gradient);
+            long key = FeatureHasher.hash(feature);
+            double featureLearningRate;
+            synchronized (summedGradients.lock(key)) {
+                if (isRejected(key)) {
+                    continue;
+                }
+                featureLearningRate = updateAndGetFeatureLearningRate(key, gradient);
+            }
             updateVec.setCoordinate(feature, gradient * -featureLearningRate);
        }
        return updateVec;
     }
 
+    @Override
+    public void applyUpdate(LabeledInstance<L> instance) {
+        double derivative = getLossDerivative(instance);
+        if (derivative != 0.0) {
+            model.param.update(instance.getVector(), derivative, this);
+        }
+    }
+
+    public double update(long feature, double param, double x, double derivative) {
+        synchronized (summedGradients.lock(feature)) {
+            if (isRejected(feature)) {
+                return param;
+            }
+            double gradient = x * derivative;
+            return param - gradient * updateAndGetFeatureLearningRate(feature, gradient);
+        }
+    }
+
+    private boolean isRejected(long feature) {
+        return admission != null && summedGradients.indexOf(feature) < 0
+            && rejectFeature(feature);
+    }
+
     /**
      *  Update adaptive feature specific learning rates
      */
     public double updateAndGetFeatureLearningRate(String feature, double gradient) {
+        long key = FeatureHasher.hash(feature);
+        synchronized (summedGradients.lock(key)) {
+            return updateAndGetFeatureLearningRate(key, gradient);
+        }
+    }
+
+    public double updateAndGetFeatureLearningRate(long feature, double gradient) {
         double gradUpdate = 0.0;
-        if (summedGradients.containsKey(feature)) {
+        int slot = summedGradients.indexOf(feature);
+        if (slot >= 0) {
             gradUpdate = gradient * gradient;
         } else {
             /**
@@ -40,17 +81,27 @@ public class ControlOptimizer<L extends Label> extends SGDOptimizer<L> {
              *  helps avoid oscillation.
              */
             gradUpdate = 1d+(gradient * gradient);
+            slot = summedGradients.insert(feature);
         }
-        summedGradients.addToCoordinate(feature, gradUpdate);
-        return getFeatureLearningRate(feature);
+        double summed = summedGradients.get(slot, 0) + gradUpdate;
+        summedGradients.set(slot, 0, summed);
+        return initialLearningRate/Math.sqrt(summed);
     }
 
     public double getFeatureLearningRate(String feature) {
-        return initialLearningRate/Math.sqrt(summedGradients.getCoordinate(feature));
+        return getFeatureLearningRate(FeatureHasher.hash(feature));
+    }
+
+    public double getFeatureLearningRate(long feature) {
+        synchronized (summedGradients.lock(feature)) {
+            int slot = summedGradients.indexOf(feature);
+            double summed = slot < 0 ? 0.0 : summedGradients.get(slot, 0);
+            return initialLearningRate/Math.sqrt(summed);
+        }
     }
 
     @Override
     public void teardown() {
-        summedGradients = new StringKeyedVector();
+        summedGradients = new FeatureStateTable(1, false);
     }
 }
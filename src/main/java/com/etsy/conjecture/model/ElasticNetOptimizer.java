@@ -12,4 +12,13 @@ public class ElasticNetOptimizer<L extends Label> extends SGDOptimizer<L> implem
         return gradients;
     }
 
+    @Override
+    public void applyUpdate(LabeledInstance<L> instance) {
+        double derivative = getLossDerivative(instance);
+        if (derivative != 0.0) {
+            double learningRate = getDecreasingLearningRate(model.epoch);
+            model.param.addScaled(instance.getVector(), -learningRate * derivative);
+        }
+    }
+
 }
@@ -1,5 +1,7 @@
 package com.etsy.conjecture.model;
 
+import com.etsy.conjecture.data.FeatureHasher;
+import com.etsy.conjecture.data.FeatureStateTable;
 import com.etsy.conjecture.data.LazyVector;
 import com.etsy.conjecture.data.StringKeyedVector;
 import static com.google.common.base.Preconditions.checkArgument;
@@ -13,12 +15,39 @@ import java.util.Iterator;
  *  Implements  FTRL-Proximal online learning as described
  *  here: http://static.googleusercontent.com/media/research.google.com/en/us/pubs/archive/41159.pdf
  */
-public class FTRLOptimizer<L extends Label> extends SGDOptimizer<L> {
+public class FTRLOptimizer<L extends Label> extends SGDOptimizer<L>
+        implements LazyVector.CoordinateUpdate {
 
     private double alpha;
     private double beta;
-    private StringKeyedVector z = new StringKeyedVector();
-    private StringKeyedVector n = new StringKeyedVector();
+    private boolean useFloatState = false;
+
+    // - z, n and the weight they give, for each feature hash.
+    static final int Z = 0;
+    static final int N = 1;
+    static final int W = 2;
+    private FeatureStateTable state = new FeatureStateTable(3, false);
+
+    // - sets the weights of an instance's features from their state.
+    private LazyVector.CoordinateUpdate regularization = new Regularization(this);
+
+    /**
+     *  Not an anonymous class, since kryo does not restore the outer
+     *  instance of one, so the optimizer is an explicit field.
+     */
+    static class Regularization implements LazyVector.CoordinateUpdate {
+        private static final long serialVersionUID = -1402957104720339385L;
+
+        private final FTRLOptimizer<?> optimizer;
+
+        Regularization(FTRLOptimizer<?> optimizer) {
+            this.optimizer = optimizer;
+        }
+
+        public double update(long feature, double param, double x, double scale) {
+            return optimizer.getRegularizedWeight(feature);
+        }
+    }
 
     @Override
     public StringKeyedVector getUpdate(LabeledInstance<L> instance) {
@@ -29,26 +58,63 @@ public class FTRLOptimizer<L extends Label> extends SGDOptimizer<L> {
             Map.Entry<String,Double> pairs = (Map.Entry)it.next();
             String feature = pairs.getKey();
             double gradient = pairs.getValue();
-            double eta = getFeatureLearningRate(feature, gradient);
-            double z_i = 0.0; // if first round, set z_i to 0.0
-            if (z.containsKey(feature)) {
-                z_i = z.getCoordinate(feature);
-            }
-            double update = (z_i + gradient) - eta * model.param.getCoordinate(feature);
-            z.setCoordinate(feature, update);
-            double n_i = 0.0; // if first round, set n_i to 0.0
-            if (n.containsKey(feature)) {
-                n_i = n.getCoordinate(feature);
-            }
-            n.setCoordinate(feature, n_i + gradient * gradient);
+            double weight = updateState(FeatureHasher.hash(feature), gradient, model.param.getCoordinate(feature));
+            model.param.setCoordinate(feature, weight);
        }
        return new StringKeyedVector(); // Model updates happen in the FTRLRegularization step
     }
 
+    @Override
+    public void applyUpdate(LabeledInstance<L> instance) {
+        model.param.update(instance.getVector(), 0.0, regularization);
+        double derivative = getLossDerivative(instance);
+        if (derivative != 0.0) {
+            model.param.update(instance.getVector(), derivative, this);
+        }
+    }
+
+    /**
+     *  Accumulates z and n, and sets the weight they now give.
+     */
+    public double update(long feature, double param, double x, double derivative) {
+        return updateState(feature, x * derivative, param);
+    }
+
+    private double updateState(long feature, double gradient, double weight) {
+        synchronized (state.lock(feature)) {
+            int slot = state.indexOf(feature);
+            if (slot < 0) {
+                if (rejectFeature(feature)) {
+                    return weight;
+                }
+                // - first round, z_i and n_i start at 0.0
+                slot = state.insert(feature);
+            }
+            return updateSlot(slot, gradient, weight);
+        }
+    }
+
+    private double updateSlot(int slot, double gradient, double weight) {
+        double n_i = state.get(slot, N);
+        double eta = 1d/alpha * (Math.sqrt(n_i + gradient * gradient) - Math.sqrt(n_i));
+        double z_i = state.get(slot, Z) + gradient - eta * weight;
+        n_i += gradient * gradient;
+        double w_i = regularizedWeight(z_i, n_i);
+        state.set(slot, Z, z_i);
+        state.set(slot, N, n_i);
+        state.set(slot, W, w_i);
+        return w_i;
+    }
+
     public double getFeatureLearningRate(String feature, double gradient) {
-        double n_i = 0.0;
-        if (n.containsKey(feature)) {
-            n_i = n.getCoordinate(feature);
+        return getFeatureLearningRate(FeatureHasher.hash(feature), gradient);
+    }
+
+    public double getFeatureLearningRate(long feature, double gradient) {
+        double n_i;
+        synchronized (state.lock(feature)) {
+            int slot = state.indexOf(feature);
+            n_i = slot < 0 ? 0.0 : state.get(slot, N);
         }
         return 1d/alpha * (Math.sqrt(n_i + gradient * gradient) - Math.sqrt(n_i));
     }
@@ -65,22 +131,29 @@ public class FTRLOptimizer<L extends Label> extends SGDOptimizer<L> {
        }
     }
 
+    public double getRegularizedWeight(String feature) {
+        return getRegularizedWeight(FeatureHasher.hash(feature));
+    }
+
     /**
-     *  If z doesn't contain the key, it's initialized at 0.0
-     *  and therefore less than laplace which is always >= 0.0
+     *  The weight of a feature as of its last update, 0.0 if it has none.
      */
-    public double getRegularizedWeight(String feature) {
-        if (z.containsKey(feature)){
-            double z_i = z.getCoordinate(feature);
-            if (Math.abs(z_i) <= laplace) {
-                return 0.0d;
-            } else {
-                double n_i = n.getCoordinate(feature);
-                double w_i = -1.0/(((beta + Math.sqrt(n_i))/alpha) + gaussian) * (z_i - Math.signum(z_i) * laplace);
-                return w_i;
-            }
+    public double getRegularizedWeight(long feature) {
+        synchronized (state.lock(feature)) {
+            int slot = state.indexOf(feature);
+            return slot < 0 ? 0.0 : state.get(slot, W);
+        }
+    }
+
+    /**
+     *  If z is within laplace of 0.0 (as it is for a new feature, laplace
+     *  being >= 0.0) the weight is 0.0.
+     */
+    private double regularizedWeight(double z_i, double n_i) {
+        if (Math.abs(z_i) <= laplace) {
+            return 0.0d;
         } else {
-            return 0.0;
+            return -1.0/(((beta + Math.sqrt(n_i))/alpha) + gaussian) * (z_i - Math.signum(z_i) * laplace);
         }
     }
 
@@ -105,10 +178,26 @@ public class FTRLOptimizer<L extends Label> extends SGDOptimizer<L> {
         return this;
     }
 
+    /**
+     *  Keep z, n and the weights as floats rather than doubles, which halves
+     *  the memory per feature. Set before training, as it discards any state.
+     */
+    public FTRLOptimizer<L> setUseFloatState(boolean useFloatState) {
+        this.useFloatState = useFloatState;
+        this.state = new FeatureStateTable(3, useFloatState);
+        return this;
+    }
+
+    @Override
+    public FTRLOptimizer<L> copyConfiguration() {
+        FTRLOptimizer<L> copy = (FTRLOptimizer<L>)super.copyConfiguration();
+        copy.regularization = new Regularization(copy);
+        return copy;
+    }
+
     @Override
     public void teardown() {
-        z = new StringKeyedVector();
-        n = new StringKeyedVector();
+        state = new FeatureStateTable(3, useFloatState);
     }
 
 }
@@ -0,0 +1,19 @@
+package com.etsy.conjecture.model;
+
+import java.io.Serializable;
+
+/**
+ * Decides whether an optimizer should start keeping state, and so a weight,
+ * for a feature it has no state for yet. Asked each time such a feature is
+ * seen in a training instance, so rare features which would never earn a
+ * useful weight need not stay resident.
+ */
+public interface FeatureAdmission extends Serializable {
+
+    /**
+     * Whether to admit the feature (keyed by its hash, see FeatureHasher)
+     * on this sighting.
+     */
+    public boolean admit(long feature);
+
+}
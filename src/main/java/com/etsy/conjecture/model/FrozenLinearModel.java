@@ -0,0 +1,64 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+
+import com.etsy.conjecture.data.FrozenParameters;
+import com.etsy.conjecture.data.StringKeyedVector;
+
+/**
+ *  A read only snapshot of an UpdateableLinearModel for serving, made by
+ *  freeze(). Unlike the model it is safe to share between threads, since
+ *  scoring never catches up lazy parameters, and score returns the value
+ *  of the prediction as a primitive, so scoring allocates nothing.
+ *
+ *  Later updates to the model are not seen by the snapshot.
+ */
+public final class FrozenLinearModel implements Serializable {
+
+    private static final long serialVersionUID = 4164128707953993045L;
+
+    private final FrozenParameters param;
+
+    private final String modelType;
+
+    private final LinkFunction link;
+
+    public FrozenLinearModel(FrozenParameters param, String modelType, LinkFunction link) {
+        this.param = param;
+        this.modelType = modelType;
+        this.link = link;
+    }
+
+    public double innerProduct(StringKeyedVector instance) {
+        return param.dot(instance);
+    }
+
+    /**
+     *  The value of predict(instance) of the model.
+     */
+    public double score(StringKeyedVector instance) {
+        return link.apply(param.dot(instance));
+    }
+
+    /**
+     *  The score of each of instances[0, count) into out.
+     */
+    public void score(StringKeyedVector[] instances, int count, double[] out) {
+        checkArgument(count <= instances.length && count <= out.length,
+                "a batch of %s does not fit in %s instances and %s scores", count,
+                instances.length, out.length);
+        for (int i = 0; i < count; i++) {
+            out[i] = score(instances[i]);
+        }
+    }
+
+    public FrozenParameters getParam() {
+        return param;
+    }
+
+    public String getModelType() {
+        return modelType;
+    }
+}
@@ -0,0 +1,117 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+
+import com.etsy.conjecture.data.FrozenParameters;
+import com.etsy.conjecture.data.MulticlassPrediction;
+import com.etsy.conjecture.data.StringKeyedVector;
+
+/**
+ *  A read only snapshot of an UpdateableMulticlassLinearModel for serving,
+ *  made by freeze(). The weights of every category share one table, so all
+ *  the category scores come from one pass over the instance, and score
+ *  writes them into an array of the caller, so it allocates nothing. Safe
+ *  to share between threads.
+ *
+ *  Later updates to the model are not seen by the snapshot.
+ */
+public final class FrozenMulticlassLinearModel implements Serializable {
+
+    private static final long serialVersionUID = -7127617310420919734L;
+
+    private final String[] categories;
+
+    private final FrozenParameters param;
+
+    private final String modelType;
+
+    // - per category, unused with softmax.
+    private final LinkFunction[] links;
+
+    // - normalize by softmax of the inner products rather than by the sum.
+    private final boolean softmax;
+
+    public FrozenMulticlassLinearModel(String[] categories, FrozenParameters param,
+            String modelType, LinkFunction[] links, boolean softmax) {
+        checkArgument(categories.length == param.getColumnCount()
+                && links.length == categories.length,
+                "need a column for each of %s categories", categories.length);
+        this.categories = categories.clone();
+        this.param = param;
+        this.modelType = modelType;
+        this.links = links.clone();
+        this.softmax = softmax;
+    }
+
+    public String[] getCategories() {
+        return categories.clone();
+    }
+
+    public int getCategoryCount() {
+        return categories.length;
+    }
+
+    /**
+     *  The probability of each category, in the order of getCategories(),
+     *  into out.
+     */
+    public void score(StringKeyedVector instance, double[] out) {
+        checkArgument(out.length >= categories.length,
+                "need room for %s categories, given: %s", categories.length, out.length);
+        for (int k = 0; k < categories.length; k++) {
+            out[k] = 0.0;
+        }
+        param.innerProducts(instance, out);
+        if (softmax) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < categories.length; k++) {
+                max = Math.max(max, out[k]);
+            }
+            double normalization = 0.0;
+            for (int k = 0; k < categories.length; k++) {
+                out[k] = Math.exp(out[k] - max);
+                normalization += out[k];
+            }
+            for (int k = 0; k < categories.length; k++) {
+                out[k] /= normalization;
+            }
+            return;
+        }
+        double normalization = 0.0;
+        for (int k = 0; k < categories.length; k++) {
+            out[k] = links[k].apply(out[k]);
+            normalization += out[k];
+        }
+        for (int k = 0; k < categories.length; k++) {
+            out[k] /= normalization;
+        }
+    }
+
+    /**
+     *  The scores of each of instances[0, count) into the rows of out.
+     */
+    public void score(StringKeyedVector[] instances, int count, double[][] out) {
+        checkArgument(count <= instances.length && count <= out.length,
+                "a batch of %s does not fit in %s instances and %s rows", count,
+                instances.length, out.length);
+        for (int i = 0; i < count; i++) {
+            score(instances[i], out[i]);
+        }
+    }
+
+    public MulticlassPrediction predict(StringKeyedVector instance) {
+        double[] scores = new double[categories.length];
+        score(instance, scores);
+        return new MulticlassPrediction(categories, scores);
+    }
+
+    public FrozenParameters getParam() {
+        return param;
+    }
+
+    public String getModelType() {
+        return modelType;
+    }
+}
@@ -43,17 +43,15 @@ public class Hinge extends UpdateableLinearModel<BinaryLabel> {
     }
 
     @Override
-    public StringKeyedVector getGradients(LabeledInstance<BinaryLabel> instance) {
-        StringKeyedVector gradients = instance.getVector().copy();
+    public double getLossDerivative(LabeledInstance<BinaryLabel> instance) {
         double inner = param.dot(instance.getVector());
         double label = instance.getLabel().getAsPlusMinus();
         double z = inner * label;
         if (z <= this.threshold) {
-            gradients.mul(-label);
-            return gradients;
+            return -label;
         } else {
-            return new StringKeyedVector();
-        }        
+            return 0.0;
+        }
     }
 
     @Override
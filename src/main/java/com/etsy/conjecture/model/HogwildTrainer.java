@@ -0,0 +1,206 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.etsy.conjecture.data.HashedLazyVector;
+import com.etsy.conjecture.data.HashedVector;
+import com.etsy.conjecture.data.Label;
+import com.etsy.conjecture.data.LabeledInstance;
+import com.etsy.conjecture.data.StripedLazyVector;
+
+/**
+ * Trains an UpdateableLinearModel on several threads of one machine at once,
+ * hogwild style (Niu et al. 2011): every thread updates the shared model
+ * from its own instances without locking whole updates. The parameters are
+ * moved into a StripedLazyVector, and the per feature state of the
+ * optimizers is kept in segmented FeatureStateTables, so each coordinate is
+ * only locked while it is being updated.
+ *
+ * Updates of one instance may interleave with those of another, which for
+ * sparse features costs little accuracy. Feature admission counters are
+ * updated without locks and are approximate, the epoch and the count of
+ * rejected features are exact.
+ */
+public class HogwildTrainer<L extends Label> {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    /**
+     * Turns a line of a training file into an instance, lines are parsed by
+     * the worker threads.
+     */
+    public static interface InstanceParser<L extends Label> {
+        public LabeledInstance<L> parse(String line);
+    }
+
+    private final UpdateableLinearModel<L> model;
+
+    private final int threads;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    public HogwildTrainer(UpdateableLinearModel<L> model, int threads) {
+        this(model, threads, StripedLazyVector.DEFAULT_STRIPES);
+    }
+
+    /**
+     * Moves the parameters of model into a StripedLazyVector with the given
+     * number of stripes, keeping the hash bits and dictionary of already
+     * hashed parameters.
+     */
+    public HogwildTrainer(UpdateableLinearModel<L> model, int threads,
+            int stripes) {
+        checkArgument(threads > 0, "threads must be positive, given: %s",
+                threads);
+        this.model = model;
+        this.threads = threads;
+        if (!(model.param instanceof StripedLazyVector)) {
+            int hashBits = 64;
+            boolean keepDictionary = false;
+            if (model.param instanceof HashedVector) {
+                hashBits = ((HashedVector)model.param).getHashBits();
+            }
+            if (model.param instanceof HashedLazyVector) {
+                keepDictionary = ((HashedLazyVector)model.param).hasDictionary();
+            }
+            model.setStripedParameters(stripes, keepDictionary, hashBits);
+        }
+    }
+
+    /**
+     * How many instances a thread takes from the input at a time.
+     */
+    public HogwildTrainer<L> setBlockSize(int blockSize) {
+        checkArgument(blockSize > 0, "block size must be positive, given: %s",
+                blockSize);
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public UpdateableLinearModel<L> getModel() {
+        return model;
+    }
+
+    /**
+     * One pass over the instances.
+     */
+    public UpdateableLinearModel<L> train(
+            Iterable<? extends LabeledInstance<L>> instances)
+            throws InterruptedException {
+        return train(instances.iterator());
+    }
+
+    /**
+     * One pass over the instances.
+     */
+    public UpdateableLinearModel<L> train(
+            Iterator<? extends LabeledInstance<L>> instances)
+            throws InterruptedException {
+        return run(instances, null);
+    }
+
+    /**
+     * One pass over the lines of a file, skipping blank ones.
+     */
+    public UpdateableLinearModel<L> train(File file, InstanceParser<L> parser)
+            throws IOException, InterruptedException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            return run(new Iterator<String>() {
+                private String next = advance();
+
+                private String advance() {
+                    try {
+                        String line;
+                        do {
+                            line = reader.readLine();
+                        } while (line != null && line.trim().isEmpty());
+                        return line;
+                    } catch (IOException e) {
+                        throw new IllegalStateException("could not read input",
+                                e);
+                    }
+                }
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public String next() {
+                    String res = next;
+                    next = advance();
+                    return res;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            }, parser);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // - inputs are instances, or lines if a parser is given.
+    private UpdateableLinearModel<L> run(final Iterator<?> input,
+            final InstanceParser<L> parser) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> workers = new ArrayList<Future<Void>>(threads);
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(new Callable<Void>() {
+                    public Void call() {
+                        List<Object> block = new ArrayList<Object>(blockSize);
+                        while (true) {
+                            block.clear();
+                            synchronized (input) {
+                                while (block.size() < blockSize
+                                        && input.hasNext()) {
+                                    block.add(input.next());
+                                }
+                            }
+                            if (block.isEmpty()) {
+                                return null;
+                            }
+                            for (Object o : block) {
+                                model.update(instance(o, parser));
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("training thread failed",
+                            e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return model;
+    }
+
+    @SuppressWarnings("unchecked")
+    private LabeledInstance<L> instance(Object o, InstanceParser<L> parser) {
+        return parser == null ? (LabeledInstance<L>)o : parser
+                .parse((String)o);
+    }
+}
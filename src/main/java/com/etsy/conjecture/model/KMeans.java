@@ -13,6 +13,8 @@ import java.util.Map;
 import java.util.HashMap;
 import com.google.common.collect.Maps;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  *  Implements sparse, streaming kmeans as described here:
  *  http://www.eecs.tufts.edu/~dsculley/papers/fastkmeans.pdf
@@ -47,6 +49,19 @@ public class KMeans extends ClusteringModel<ClusterLabel> {
     return new ClusterPrediction(scores);
   }
 
+  @Override
+  public void predictBatch(StringKeyedVector[] instances, int count, double[][] out) {
+    checkArgument(count <= instances.length && count <= out.length,
+        "a batch of %s does not fit in %s instances and %s rows", count, instances.length, out.length);
+    String[] clusters = clusterOrder();
+    for (int k = 0; k < clusters.length; k++) {
+      StringKeyedVector center = param.get(clusters[k]);
+      for (int i = 0; i < count; i++) {
+        out[i][k] = center.dot(instances[i]);
+      }
+    }
+  }
+
   public void update(StringKeyedVector instance) {
     // Get closest center to instance
     String closest_center = predict(instance).getLabel();
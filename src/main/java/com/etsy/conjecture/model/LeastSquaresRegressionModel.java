@@ -22,6 +22,11 @@ public class LeastSquaresRegressionModel extends
         return new RealValuedLabel(param.dot(instance));
     }
 
+    @Override
+    public LinkFunction getLinkFunction() {
+        return LinkFunction.IDENTITY;
+    }
+
     @Override
     public double loss (LabeledInstance<RealValuedLabel> instance) {
         double label = instance.getLabel().getValue();
@@ -30,12 +35,10 @@ public class LeastSquaresRegressionModel extends
     }
 
     @Override
-    public StringKeyedVector getGradients(LabeledInstance<RealValuedLabel> instance) {
-        StringKeyedVector gradients = instance.getVector().copy();
+    public double getLossDerivative(LabeledInstance<RealValuedLabel> instance) {
         double hypothesis = param.dot(instance.getVector());
         double label = instance.getLabel().getValue();
-        gradients.mul((2 * (hypothesis-label)));
-        return gradients;
+        return 2 * (hypothesis - label);
     }
 
     @Override
@@ -0,0 +1,25 @@
+package com.etsy.conjecture.model;
+
+import com.etsy.conjecture.Utilities;
+
+/**
+ *  How a linear model turns the inner product of an instance with its
+ *  parameters into the value of its prediction. Models and their frozen
+ *  copies share it, so they always score alike.
+ */
+public enum LinkFunction {
+
+    LOGISTIC {
+        public double apply(double inner) {
+            return Utilities.logistic(inner);
+        }
+    },
+
+    IDENTITY {
+        public double apply(double inner) {
+            return inner;
+        }
+    };
+
+    public abstract double apply(double inner);
+}
@@ -33,13 +33,10 @@ public class LogisticRegression extends UpdateableLinearModel<BinaryLabel> {
     }
 
     @Override
-    public StringKeyedVector getGradients(LabeledInstance<BinaryLabel> instance) {
-        StringKeyedVector gradients = instance.getVector().copy();
+    public double getLossDerivative(LabeledInstance<BinaryLabel> instance) {
         double label = instance.getLabel().getAsPlusMinus();
         double inner = instance.getVector().dot(param);
-        double gradient = -label / (Math.exp(label * inner) + 1.0);
-        gradients.mul(gradient);
-        return gradients;
+        return -label / (Math.exp(label * inner) + 1.0);
     }
 
     protected String getModelType() {
@@ -32,18 +32,16 @@ public class MIRA extends UpdateableLinearModel<BinaryLabel> {
     }
 
     @Override
-    public StringKeyedVector getGradients(LabeledInstance<BinaryLabel> instance) {
-        StringKeyedVector gradients = instance.getVector().copy();
+    public double getLossDerivative(LabeledInstance<BinaryLabel> instance) {
         double label = instance.getLabel().getAsPlusMinus();
         double prediction = param.dot(instance.getVector());
         double loss = Math.max(0, 1d - label * prediction);
         if (loss > 0) {
             double norm = instance.getVector().LPNorm(2d);
             double tau = loss / (norm * norm);
-            gradients.mul(tau * label);
-            return gradients;
+            return tau * label;
         } else {
-        	return new StringKeyedVector();
+            return 0.0;
         }
     }
 
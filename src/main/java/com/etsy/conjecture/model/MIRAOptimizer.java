@@ -12,4 +12,12 @@ public class MIRAOptimizer<L extends Label> extends SGDOptimizer<L> {
     public StringKeyedVector getUpdate(LabeledInstance instance) {
         return model.getGradients(instance);
     }
+
+    @Override
+    public void applyUpdate(LabeledInstance<L> instance) {
+        double tau = getLossDerivative(instance);
+        if (tau != 0.0) {
+            model.param.addScaled(instance.getVector(), tau);
+        }
+    }
 }
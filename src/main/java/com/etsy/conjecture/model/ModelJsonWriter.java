@@ -0,0 +1,150 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.etsy.conjecture.data.BinaryLabel;
+
+/**
+ * Writes models as the json the php client (Conjecture_Finder) reads, a
+ * feature at a time, instead of building the gson document of the whole
+ * model. Only the model type and the weights are written:
+ *
+ * {"modelType":"...","param":{"vector":{"feature":weight,...}}}
+ *
+ * for a linear model, and for a multiclass model a vector per category:
+ *
+ * {"modelType":"...","param":{"category":{"vector":{...}},...}}
+ *
+ * Weights smaller in magnitude than the threshold are left out, and may be
+ * rounded to a number of significant digits. Only quotes, backslashes and
+ * control characters are escaped, since the client strips slashes before
+ * decoding.
+ */
+public class ModelJsonWriter {
+
+    private double threshold = 0.0;
+
+    private int digits = 0;
+
+    public ModelJsonWriter setThreshold(double threshold) {
+        checkArgument(threshold >= 0, "threshold must be non-negative, given: %s", threshold);
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Round weights to this many significant digits, 0 (the default) writes
+     * them in full. 7 keeps the precision of a float.
+     */
+    public ModelJsonWriter setDigits(int digits) {
+        checkArgument(digits >= 0, "digits must be non-negative, given: %s", digits);
+        this.digits = digits;
+        return this;
+    }
+
+    public void write(UpdateableLinearModel<?> model, Writer out) throws IOException {
+        out.write("{\"modelType\":");
+        writeString(model.modelType, out);
+        out.write(",\"param\":");
+        writeVector(model.decompose(), out);
+        out.write("}");
+        out.flush();
+    }
+
+    public void write(UpdateableMulticlassLinearModel model, Writer out) throws IOException {
+        String[] categories = model.param.keySet().toArray(new String[model.param.size()]);
+        Arrays.sort(categories);
+        out.write("{\"modelType\":");
+        writeString(model.getModelType(), out);
+        out.write(",\"param\":{");
+        for (int k = 0; k < categories.length; k++) {
+            if (k > 0) {
+                out.write(",");
+            }
+            UpdateableLinearModel<BinaryLabel> m = model.param.get(categories[k]);
+            writeString(categories[k], out);
+            out.write(":");
+            writeVector(m.decompose(), out);
+        }
+        out.write("}}");
+        out.flush();
+    }
+
+    public String toJson(UpdateableLinearModel<?> model) {
+        StringWriter out = new StringWriter();
+        try {
+            write(model, out);
+        } catch (IOException e) {
+            // - not thrown by a StringWriter.
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    public String toJson(UpdateableMulticlassLinearModel model) {
+        StringWriter out = new StringWriter();
+        try {
+            write(model, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    private void writeVector(Iterator<Map.Entry<String, Double>> it, Writer out) throws IOException {
+        out.write("{\"vector\":{");
+        boolean first = true;
+        while (it.hasNext()) {
+            Map.Entry<String, Double> e = it.next();
+            double w = e.getValue();
+            // - json has no NaN or infinities.
+            if (Math.abs(w) < threshold || w == 0.0 || Double.isNaN(w) || Double.isInfinite(w)) {
+                continue;
+            }
+            if (!first) {
+                out.write(",");
+            }
+            first = false;
+            writeString(e.getKey(), out);
+            out.write(":");
+            out.write(formatWeight(w));
+        }
+        out.write("}}");
+    }
+
+    String formatWeight(double w) {
+        if (digits == 0) {
+            return Double.toString(w);
+        }
+        return new BigDecimal(w).round(new MathContext(digits)).stripTrailingZeros().toString();
+    }
+
+    static void writeString(String s, Writer out) throws IOException {
+        if (s == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int)c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -19,6 +19,17 @@ public class PassiveAggressiveOptimizer extends SGDOptimizer<RealValuedLabel> {
 
     @Override
     public StringKeyedVector getUpdate(LabeledInstance<RealValuedLabel> instance) {
+        StringKeyedVector updateVec = instance.getVector().copy();
+        updateVec.mul(getStep(instance));
+        return updateVec;
+    }
+
+    @Override
+    public void applyUpdate(LabeledInstance<RealValuedLabel> instance) {
+        model.param.addScaled(instance.getVector(), getStep(instance));
+    }
+
+    private double getStep(LabeledInstance<RealValuedLabel> instance) {
         double norm = instance.getVector().LPNorm(2d);
         double update = model.loss(instance) / (norm * norm + 0.5 / C);
         if(isHinge) {
@@ -30,9 +41,7 @@ public class PassiveAggressiveOptimizer extends SGDOptimizer<RealValuedLabel> {
             /** Regression **/
             update = update * -1;
         }
-        StringKeyedVector updateVec = instance.getVector().copy();
-        updateVec.mul(update);
-        return updateVec;
+        return update;
     }
 
     public PassiveAggressiveOptimizer setC(double C) {
@@ -0,0 +1,40 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Random;
+
+/**
+ * Admits a feature with a fixed probability each time it is seen, so a
+ * feature is admitted after 1 / p sightings on average and features seen
+ * only once or twice mostly are not. See "Ad Click Prediction: a View from
+ * the Trenches" (McMahan et al.), section 5.1.
+ */
+public class PoissonFeatureAdmission implements FeatureAdmission {
+
+    private static final long serialVersionUID = 4210835525763130581L;
+
+    private final double probability;
+
+    private final Random random;
+
+    public PoissonFeatureAdmission(double probability) {
+        this(probability, new Random());
+    }
+
+    public PoissonFeatureAdmission(double probability, Random random) {
+        checkArgument(probability > 0.0 && probability <= 1.0,
+                "admission probability must be in (0, 1], given: %s",
+                probability);
+        this.probability = probability;
+        this.random = random;
+    }
+
+    public boolean admit(long feature) {
+        return random.nextDouble() < probability;
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+}
@@ -7,6 +7,7 @@ import com.etsy.conjecture.data.Label;
 import com.etsy.conjecture.data.LabeledInstance;
 import com.etsy.conjecture.data.StringKeyedVector;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  *  Builds the weight updates as a function
@@ -17,7 +18,7 @@ import java.util.Collection;
  *  REG: Lazily applied L1 and L2 regularization
  *  Subclasses overwrite LR and REG functions as necessary
  */
-public abstract class SGDOptimizer<L extends Label> implements LazyVector.UpdateFunction {
+public abstract class SGDOptimizer<L extends Label> implements LazyVector.UpdateFunction, Cloneable {
 
     private static final long serialVersionUID = 9153480933266800474L;
     double laplace = 0.0;
@@ -28,6 +29,21 @@ public abstract class SGDOptimizer<L extends Label> implements LazyVector.Update
     double examplesPerEpoch = 10000;
     boolean useExponentialLearningRate = false;
     double exponentialLearningRateBase = 0.99;
+    boolean useClosedFormLazyUpdate = false;
+
+    // decides which new features get per feature state, null admits all.
+    FeatureAdmission admission = null;
+    // refused sightings of new features, counted from several threads in
+    // hogwild training. a long updated atomically rather than an AtomicLong,
+    // so it is serialized (kryo, json) as a number.
+    volatile long rejectedFeatures = 0;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<SGDOptimizer> REJECTED =
+        AtomicLongFieldUpdater.newUpdater(SGDOptimizer.class, "rejectedFeatures");
+
+    // below this index harmonic style sums are accumulated exactly,
+    // above it the asymptotic expansions are accurate to machine precision.
+    private static final long ASYMPTOTIC_SUM_CUTOFF = 32;
 
     public SGDOptimizer() {}
 
@@ -44,7 +60,7 @@ public abstract class SGDOptimizer<L extends Label> implements LazyVector.Update
         for (LabeledInstance<L> instance : minibatch) {
             updateVec.add(getUpdate(instance)); // accumulate gradient
             model.truncate(instance);
-            model.epoch++;
+            model.incrementEpoch();
         }
         updateVec.mul(1.0/minibatch.size()); // do a single update, scaling weights by the
                                            // average gradient over the minibatch
@@ -59,10 +75,75 @@ public abstract class SGDOptimizer<L extends Label> implements LazyVector.Update
      */
     public abstract StringKeyedVector getUpdate(LabeledInstance<L> instance);
 
+    /**
+     *  Apply the update for a single instance to the model parameters.
+     *  Subclasses override this to write the update straight into the
+     *  parameters from the model's loss derivative, rather than adding
+     *  the vector built by getUpdate.
+     */
+    public void applyUpdate(LabeledInstance<L> instance) {
+        model.param.add(getUpdate(instance));
+    }
+
+    /**
+     *  The loss derivative of the model being trained, whose instances are
+     *  labeled L as this optimizer's are.
+     */
+    @SuppressWarnings("unchecked")
+    protected double getLossDerivative(LabeledInstance<L> instance) {
+        return ((UpdateableLinearModel<L>)model).getLossDerivative(instance);
+    }
+
     public void teardown() {
 
     }
 
+    /**
+     *  A new optimizer configured as this one is, for another model to
+     *  train with. It has the same learning rate schedule and regularization
+     *  and shares the feature admission policy, but it has none of this
+     *  optimizer's per feature state or counts. Subclasses drop their state
+     *  in teardown, which also gives the copy an empty state.
+     */
+    @SuppressWarnings("unchecked")
+    public SGDOptimizer<L> copyConfiguration() {
+        SGDOptimizer<L> copy;
+        try {
+            copy = (SGDOptimizer<L>)clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        copy.model = null;
+        copy.rejectedFeatures = 0;
+        copy.teardown();
+        return copy;
+    }
+
+    /**
+     *  Whether to refuse state to a feature this optimizer has none for yet,
+     *  according to the admission policy. Each refusal is counted.
+     */
+    protected boolean rejectFeature(long feature) {
+        if (admission == null || admission.admit(feature)) {
+            return false;
+        }
+        REJECTED.incrementAndGet(this);
+        return true;
+    }
+
+    /**
+     *  The number of times a new feature was refused state. This counts
+     *  sightings, not distinct features: a feature admitted on its third
+     *  sighting has been refused twice.
+     */
+    public long getRejectedFeatures() {
+        return rejectedFeatures;
+    }
+
+    void addRejectedFeatures(long rejected) {
+        REJECTED.addAndGet(this, rejected);
+    }
+
     /**
      *  Implements lazy updating of regularization when the regularization
      *  updates aren't sparse (e.g. elastic net l1 and l2, adagrad l1).
@@ -76,6 +157,9 @@ public abstract class SGDOptimizer<L extends Label> implements LazyVector.Update
             && Utilities.floatingPointEquals(gaussian, 0.0d)) {
             return param;
         }
+        if (useClosedFormLazyUpdate) {
+            return closedFormLazyUpdate(param, start, end);
+        }
         for (long iter = start + 1; iter <= end; iter++) {
             if (Utilities.floatingPointEquals(param, 0.0d)) {
                 return 0.0d;
@@ -94,6 +178,125 @@ public abstract class SGDOptimizer<L extends Label> implements LazyVector.Update
         return param;
     }
 
+    /**
+     *  Catches a parameter up from start to end in constant time, rather
+     *  than stepping through every skipped iteration.
+     *
+     *  Treats the skipped l1 and l2 steps as the continuous shrinkage
+     *  dp/du = -gaussian * p - laplace * sign(p), where u is the summed
+     *  learning rate over the gap. The l2 decay uses the sums of eta and
+     *  eta^2 so it agrees with the product of (1 - eta * gaussian) terms to
+     *  second order, and pure l1 catch up is exact.
+     */
+    public double closedFormLazyUpdate(double param, long start, long end) {
+        if (end <= start || Utilities.floatingPointEquals(param, 0.0d)) {
+            return param;
+        }
+        double etaSum = getLearningRateSum(start, end);
+        double decay = gaussian * etaSum;
+        if (gaussian > 0.0) {
+            decay += 0.5 * gaussian * gaussian * getSquaredLearningRateSum(start, end);
+        }
+        double scale = Math.exp(-decay);
+        double shrinkage = laplace * etaSum;
+        if (decay > Utilities.SMALL) {
+            shrinkage *= (1.0 - scale) / decay;
+        }
+        double magnitude = Math.abs(param) * scale - shrinkage;
+        if (magnitude <= 0.0 || Utilities.floatingPointEquals(magnitude, 0.0d)) {
+            return 0.0d;
+        }
+        return Math.signum(param) * magnitude;
+    }
+
+    /**
+     *  Sum of getDecreasingLearningRate(t) for t in (start, end].
+     */
+    public double getLearningRateSum(long start, long end) {
+        return learningRateSum(start, end, 1);
+    }
+
+    /**
+     *  Sum of getDecreasingLearningRate(t)^2 for t in (start, end].
+     */
+    public double getSquaredLearningRateSum(long start, long end) {
+        return learningRateSum(start, end, 2);
+    }
+
+    private double learningRateSum(long start, long end, int power) {
+        if (end <= start) {
+            return 0.0;
+        }
+        // the schedule is written in terms of n = t + 1.
+        long lo = start + 2;
+        long hi = end + 1;
+        // learning rate is flat while n <= examplesPerEpoch.
+        long flatEnd = Math.min(hi, (long)Math.floor(examplesPerEpoch));
+        double flatRate = getDecreasingLearningRate(0);
+        double sum = 0.0;
+        if (flatEnd >= lo) {
+            sum += (flatEnd - lo + 1) * Math.pow(flatRate, power);
+            lo = flatEnd + 1;
+        }
+        if (lo > hi) {
+            return sum;
+        }
+        if (useExponentialLearningRate) {
+            // rate * base^(n / examplesPerEpoch), a geometric series in n.
+            double q = Math.pow(exponentialLearningRateBase, power / examplesPerEpoch);
+            double scale = Math.pow(initialLearningRate, power);
+            if (Utilities.floatingPointEquals(q, 1.0)) {
+                sum += scale * (hi - lo + 1);
+            } else {
+                sum += scale * (Math.pow(q, lo) - Math.pow(q, hi + 1)) / (1.0 - q);
+            }
+        } else {
+            // rate * examplesPerEpoch / n, a harmonic style series in n.
+            double scale = Math.pow(initialLearningRate * examplesPerEpoch, power);
+            sum += scale * inversePowerSum(lo, hi, power);
+        }
+        return sum;
+    }
+
+    /**
+     *  Sum of 1/n^power for n in [lo, hi], power 1 or 2.
+     */
+    static double inversePowerSum(long lo, long hi, int power) {
+        double sum = 0.0;
+        long n = lo;
+        for (; n <= hi && n < ASYMPTOTIC_SUM_CUTOFF; n++) {
+            sum += power == 1 ? 1.0 / n : 1.0 / ((double)n * n);
+        }
+        if (n > hi) {
+            return sum;
+        }
+        if (power == 1) {
+            return sum + harmonicTail(hi) - harmonicTail(n - 1);
+        } else {
+            return sum + inverseSquareTail(n - 1) - inverseSquareTail(hi);
+        }
+    }
+
+    /**
+     *  Asymptotic expansion of H(n) minus the Euler-Mascheroni constant.
+     */
+    private static double harmonicTail(long n) {
+        double x = (double)n;
+        double x2 = x * x;
+        return Math.log(x) + 1.0 / (2.0 * x) - 1.0 / (12.0 * x2)
+            + 1.0 / (120.0 * x2 * x2);
+    }
+
+    /**
+     *  Asymptotic expansion of the sum of 1/k^2 for k > n.
+     */
+    private static double inverseSquareTail(long n) {
+        double x = (double)n;
+        double x2 = x * x;
+        return 1.0 / x - 1.0 / (2.0 * x2) + 1.0 / (6.0 * x2 * x)
+            - 1.0 / (30.0 * x2 * x2 * x);
+    }
+
     /**
      *  Computes a linearly or exponentially decreasing
      *  learning rate as a function of the current epoch.
@@ -144,6 +347,25 @@ public abstract class SGDOptimizer<L extends Label> implements LazyVector.Update
         return this;
     }
 
+    /**
+     *  Whether to catch up lazy l1 / l2 regularization in closed form
+     *  rather than by iterating over every skipped iteration.
+     */
+    public SGDOptimizer<L> setUseClosedFormLazyUpdate(boolean closedForm) {
+        this.useClosedFormLazyUpdate = closedForm;
+        return this;
+    }
+
+    /**
+     *  Policy deciding which new features optimizers with per feature
+     *  state (adagrad, ftrl, control) start keeping state and a weight
+     *  for. Null, the default, admits every feature.
+     */
+    public SGDOptimizer<L> setFeatureAdmission(FeatureAdmission admission) {
+        this.admission = admission;
+        return this;
+    }
+
     public SGDOptimizer<L> setGaussianRegularizationWeight(double gaussian) {
         checkArgument(gaussian >= 0.0,
                 "gaussian regularization weight must be non-negative, given: %f",
@@ -0,0 +1,399 @@
+package com.etsy.conjecture.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.etsy.conjecture.Utilities;
+import com.etsy.conjecture.data.BinaryLabel;
+import com.etsy.conjecture.data.FrozenParameters;
+import com.etsy.conjecture.data.LabeledInstance;
+import com.etsy.conjecture.data.MulticlassLabel;
+import com.etsy.conjecture.data.MulticlassPrediction;
+import com.etsy.conjecture.data.StringKeyedVector;
+
+/**
+ *  Multinomial logistic regression: the probability of each category is the
+ *  softmax of its score, and the loss is the negative log probability of the
+ *  true category.
+ *
+ *  The parameters are kept in a shared MulticlassParameterTable, so an
+ *  update scores every category in one pass over the instance, and the
+ *  derivative of the loss w.r.t. the score of category k is p_k - y_k. Each
+ *  category then takes a sparse step along the instance with its own
+ *  optimizer configured as the given one (SGDOptimizer.copyConfiguration),
+ *  which applies learning rates, per feature state and lazy regularization
+ *  as for a binary model. The state of a category is allocated as it first
+ *  updates a feature. No category does a dot
+ *  product of its own.
+ *
+ *  For very many categories, setSampledNegatives trains each instance on
+ *  its true category and a sample of negatives only (sampled softmax,
+ *  Jean et al. 2015), so the cost of an update does not depend on the
+ *  number of categories. Negatives are drawn uniformly, by how often each
+ *  category has been the label so far, or as the highest scoring of a
+ *  larger uniform sample. predict still gives the full softmax.
+ */
+public class SoftmaxLogisticRegression extends UpdateableMulticlassLinearModel {
+
+    private static final long serialVersionUID = -4423617406126380651L;
+
+    public static enum NegativeSampling {
+        UNIFORM, FREQUENCY, HARD
+    }
+
+    // - uniform candidates scored for each hard negative kept.
+    static final int HARD_CANDIDATES = 4;
+
+    // - label counts are smoothed and raised to this power for sampling.
+    static final double FREQUENCY_POWER = 0.75;
+
+    // - updates between rebuilds of the frequency sampling table.
+    static final int FREQUENCY_REBUILD = 10000;
+
+    // - 0 trains on every category.
+    private int negatives = 0;
+
+    private NegativeSampling sampling = NegativeSampling.UNIFORM;
+
+    private Random random = new Random();
+
+    private long[] labelCounts;
+
+    private long sinceRebuild = 0;
+
+    private transient int[] frequencyTable;
+
+    private transient double[] frequencyProbs;
+
+    public SoftmaxLogisticRegression(String[] categories, SGDOptimizer optimizer) {
+        this(categories, optimizer, false, 64);
+    }
+
+    /**
+     *  The categories share a table of parameters keyed by feature hash of
+     *  the given bits, see setSharedParameters, which is built here once.
+     */
+    public SoftmaxLogisticRegression(String[] categories, SGDOptimizer optimizer,
+            boolean keepDictionary, int hashBits) {
+        super(buildCategoryModels(categories, optimizer));
+        setModelType("softmax_logistic_regression");
+        setSharedParameters(keepDictionary, hashBits);
+        for (Map.Entry<String, UpdateableLinearModel<BinaryLabel>> e : param.entrySet()) {
+            CategoryModel model = (CategoryModel)e.getValue();
+            model.owner = this;
+            model.category = table.indexOf(e.getKey());
+        }
+    }
+
+    private static Map<String, UpdateableLinearModel<BinaryLabel>> buildCategoryModels(
+            String[] categories, SGDOptimizer optimizer) {
+        checkArgument(categories.length > 1, "need at least two categories, given: %s", categories.length);
+        Map<String, UpdateableLinearModel<BinaryLabel>> param = new HashMap<String, UpdateableLinearModel<BinaryLabel>>();
+        for (String category : categories) {
+            // - categories keep separate per feature state, which one optimizer
+            // keys by feature alone, so each takes the configuration only.
+            param.put(category, new CategoryModel(optimizer.copyConfiguration()));
+        }
+        return param;
+    }
+
+    /**
+     *  The per category model, whose loss derivative is set from the
+     *  softmax before it is updated.
+     */
+    static class CategoryModel extends UpdateableLinearModel<BinaryLabel> {
+
+        private static final long serialVersionUID = 6504133751376003374L;
+
+        double derivative;
+
+        // - the model this is a category of, and its column in the table.
+        SoftmaxLogisticRegression owner;
+
+        int category;
+
+        CategoryModel(SGDOptimizer optimizer) {
+            super(optimizer);
+        }
+
+        @Override
+        public double getLossDerivative(LabeledInstance<BinaryLabel> instance) {
+            return derivative;
+        }
+
+        @Override
+        public BinaryLabel predict(StringKeyedVector instance) {
+            return new BinaryLabel(Utilities.logistic(param.dot(instance)));
+        }
+
+        /**
+         *  The cross entropy of the softmax probability of this category
+         *  and whether the instance is of it, whose derivative w.r.t. the
+         *  score of this category is the p_k - y_k it is trained with.
+         */
+        @Override
+        public double loss(LabeledInstance<BinaryLabel> instance) {
+            double p = owner.probabilities(instance.getVector())[category];
+            if (instance.getLabel().getValue() > 0.5) {
+                return -Math.log(Math.max(p, Utilities.SMALL));
+            }
+            return -Math.log(Math.max(1.0 - p, Utilities.SMALL));
+        }
+
+        @Override
+        protected String getModelType() {
+            return "softmax_category";
+        }
+    }
+
+    /**
+     *  Train each instance on its true category and the given number of
+     *  negatives, or on every category if negatives is 0. Update threads are
+     *  not used for sampled updates.
+     */
+    public SoftmaxLogisticRegression setSampledNegatives(int negatives, NegativeSampling sampling) {
+        checkArgument(negatives >= 0, "negatives must be non-negative, given: %s", negatives);
+        this.negatives = negatives;
+        this.sampling = sampling;
+        return this;
+    }
+
+    public int getSampledNegatives() {
+        return negatives;
+    }
+
+    public SoftmaxLogisticRegression setRandom(Random random) {
+        this.random = random;
+        return this;
+    }
+
+    /**
+     *  The probability of every category, in the order of the categories of
+     *  the parameter table.
+     */
+    protected double[] probabilities(StringKeyedVector instance) {
+        double[] p = new double[table.getCategoryCount()];
+        table.innerProducts(instance, p);
+        softmax(p);
+        return p;
+    }
+
+    private static void softmax(double[] p) {
+        softmax(p, p.length);
+    }
+
+    // - of p[0, n).
+    private static void softmax(double[] p, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < n; k++) {
+            max = Math.max(max, p[k]);
+        }
+        double normalization = 0.0;
+        for (int k = 0; k < n; k++) {
+            p[k] = Math.exp(p[k] - max);
+            normalization += p[k];
+        }
+        for (int k = 0; k < n; k++) {
+            p[k] /= normalization;
+        }
+    }
+
+    @Override
+    public MulticlassPrediction predict(StringKeyedVector instance) {
+        return new MulticlassPrediction(table.getCategories(), probabilities(instance));
+    }
+
+    /**
+     *  The full softmax of each of instances[0, count) into the rows of out,
+     *  in the order of the categories of the parameter table.
+     */
+    @Override
+    public void predictBatch(StringKeyedVector[] instances, int count, double[][] out) {
+        checkArgument(count <= instances.length && count <= out.length,
+            "a batch of %s does not fit in %s instances and %s rows", count, instances.length, out.length);
+        int n = table.getCategoryCount();
+        for (int i = 0; i < count; i++) {
+            Arrays.fill(out[i], 0, n, 0.0);
+            table.innerProducts(instances[i], out[i]);
+            softmax(out[i], n);
+        }
+    }
+
+    /**
+     *  A read only copy of the model for scoring, giving the full softmax.
+     */
+    @Override
+    public FrozenMulticlassLinearModel freeze() {
+        String[] categories = table.getCategories();
+        StringKeyedVector[] columns = new StringKeyedVector[categories.length];
+        LinkFunction[] links = new LinkFunction[categories.length];
+        for (int k = 0; k < categories.length; k++) {
+            columns[k] = table.getColumn(k);
+            links[k] = LinkFunction.IDENTITY;
+        }
+        return new FrozenMulticlassLinearModel(categories, new FrozenParameters(columns),
+            getModelType(), links, true);
+    }
+
+    public double loss(LabeledInstance<MulticlassLabel> instance) {
+        int k = table.indexOf(instance.getLabel().getLabel());
+        checkArgument(k >= 0, "label is of unknown category: %s", instance.getLabel().getLabel());
+        return -Math.log(Math.max(probabilities(instance.getVector())[k], Utilities.SMALL));
+    }
+
+    /**
+     *  Minibatch gradient update
+     */
+    @Override
+    public void update(Collection<LabeledInstance<MulticlassLabel>> instances) {
+        for (LabeledInstance<MulticlassLabel> instance : instances) {
+            update(instance);
+        }
+    }
+
+    /**
+     *  Single gradient update.
+     */
+    @Override
+    public void update(LabeledInstance<MulticlassLabel> instance) {
+        String[] categories = table.getCategories();
+        if (negatives > 0 && negatives < categories.length - 1) {
+            sampledUpdate(instance);
+            return;
+        }
+        double[] p = probabilities(instance.getVector());
+        String label = instance.getLabel().getLabel();
+        for (int k = 0; k < categories.length; k++) {
+            ((CategoryModel)param.get(categories[k])).derivative =
+                p[k] - (categories[k].equals(label) ? 1.0 : 0.0);
+        }
+        if (updateThreads > 1) {
+            updateInParallel(Collections.singletonList(instance));
+            return;
+        }
+        for (int k = 0; k < categories.length; k++) {
+            param.get(categories[k]).update(new CategoryInstance(categories[k], instance));
+        }
+        epoch++;
+    }
+
+    private void sampledUpdate(LabeledInstance<MulticlassLabel> instance) {
+        String[] categories = table.getCategories();
+        int y = table.indexOf(instance.getLabel().getLabel());
+        checkArgument(y >= 0, "label is of unknown category: %s", instance.getLabel().getLabel());
+        int[] columns = sampleColumns(y, instance.getVector());
+        double[] p = new double[columns.length];
+        table.innerProducts(instance.getVector(), columns, p);
+        if (sampling == NegativeSampling.FREQUENCY) {
+            // - correct the scores for how likely each column was to be drawn.
+            for (int i = 0; i < columns.length; i++) {
+                p[i] -= Math.log(frequencyProbs[columns[i]]);
+            }
+        }
+        softmax(p);
+        for (int i = 0; i < columns.length; i++) {
+            String category = categories[columns[i]];
+            CategoryModel model = (CategoryModel)param.get(category);
+            model.derivative = p[i] - (i == 0 ? 1.0 : 0.0);
+            model.update(new CategoryInstance(category, instance));
+        }
+        epoch++;
+    }
+
+    /**
+     *  The true column y followed by the sampled negatives.
+     */
+    private int[] sampleColumns(int y, StringKeyedVector x) {
+        int[] drawn;
+        if (sampling == NegativeSampling.HARD) {
+            // - keep the highest scoring of a larger uniform sample.
+            int[] pool = drawNegatives(y, HARD_CANDIDATES * negatives);
+            final double[] scores = new double[pool.length];
+            table.innerProducts(x, pool, scores);
+            Integer[] order = new Integer[pool.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(scores[b], scores[a]);
+                }
+            });
+            drawn = new int[Math.min(negatives, pool.length)];
+            for (int i = 0; i < drawn.length; i++) {
+                drawn[i] = pool[order[i]];
+            }
+        } else {
+            if (sampling == NegativeSampling.FREQUENCY) {
+                countLabel(y);
+            }
+            drawn = drawNegatives(y, negatives);
+        }
+        int[] columns = new int[drawn.length + 1];
+        columns[0] = y;
+        System.arraycopy(drawn, 0, columns, 1, drawn.length);
+        return columns;
+    }
+
+    // - distinct columns other than y, fewer if they are hard to find.
+    private int[] drawNegatives(int y, int count) {
+        int k = table.getCategoryCount();
+        count = Math.min(count, k - 1);
+        TIntHashSet seen = new TIntHashSet(2 * count);
+        int[] res = new int[count];
+        int n = 0;
+        for (int tries = 0; n < count && tries < 10 * count + 100; tries++) {
+            int c = sampling == NegativeSampling.FREQUENCY
+                ? frequencyTable[random.nextInt(frequencyTable.length)]
+                : random.nextInt(k);
+            if (c != y && seen.add(c)) {
+                res[n++] = c;
+            }
+        }
+        return n == count ? res : Arrays.copyOf(res, n);
+    }
+
+    private void countLabel(int y) {
+        int k = table.getCategoryCount();
+        if (labelCounts == null || labelCounts.length != k) {
+            labelCounts = new long[k];
+            frequencyTable = null;
+        }
+        labelCounts[y]++;
+        if (frequencyTable == null || ++sinceRebuild >= FREQUENCY_REBUILD) {
+            rebuildFrequencyTable();
+        }
+    }
+
+    private void rebuildFrequencyTable() {
+        int k = labelCounts.length;
+        frequencyProbs = new double[k];
+        double total = 0.0;
+        for (int c = 0; c < k; c++) {
+            frequencyProbs[c] = Math.pow(labelCounts[c] + 1.0, FREQUENCY_POWER);
+            total += frequencyProbs[c];
+        }
+        frequencyTable = new int[Math.max(1 << 16, 4 * k)];
+        int c = 0;
+        double cumulative = frequencyProbs[0] / total;
+        for (int i = 0; i < frequencyTable.length; i++) {
+            while ((i + 0.5) / frequencyTable.length > cumulative && c < k - 1) {
+                c++;
+                cumulative += frequencyProbs[c] / total;
+            }
+            frequencyTable[i] = c;
+        }
+        for (c = 0; c < k; c++) {
+            frequencyProbs[c] /= total;
+        }
+        sinceRebuild = 0;
+    }
+}
@@ -2,19 +2,30 @@ package com.etsy.conjecture.model;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import gnu.trove.function.TDoubleFunction;
+import gnu.trove.list.array.TDoubleArrayList;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
-import com.etsy.conjecture.Utilities;
+import com.etsy.conjecture.data.FeatureHasher;
+import com.etsy.conjecture.data.FrozenParameters;
+import com.etsy.conjecture.data.HashedLazyVector;
+import com.etsy.conjecture.data.HashedVector;
 import com.etsy.conjecture.data.Label;
 import com.etsy.conjecture.data.LabeledInstance;
 import com.etsy.conjecture.data.LazyVector;
+import com.etsy.conjecture.data.OffHeapLazyVector;
 import com.etsy.conjecture.data.StringKeyedVector;
+import com.etsy.conjecture.data.StripedLazyVector;
 
 public abstract class UpdateableLinearModel<L extends Label> implements
         UpdateableModel<L, UpdateableLinearModel<L>>,
@@ -24,7 +35,11 @@ public abstract class UpdateableLinearModel<L extends Label> implements
     protected LazyVector param;
     protected final String modelType;
 
-    protected long epoch;
+    // - counted from several threads in hogwild training, see SGDOptimizer.rejectedFeatures.
+    protected volatile long epoch;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<UpdateableLinearModel> EPOCH =
+        AtomicLongFieldUpdater.newUpdater(UpdateableLinearModel.class, "epoch");
 
     protected SGDOptimizer optimizer;
 
@@ -64,10 +79,25 @@ public abstract class UpdateableLinearModel<L extends Label> implements
         modelType = getModelType();
     }
 
+    /**
+     *  The derivative of the loss w.r.t. the inner product of the parameters
+     *  and the instance, so the gradient is this times the instance vector.
+     *  Optimizers use it to update the parameters in place.
+     */
+    public abstract double getLossDerivative(LabeledInstance<L> instance);
+
     /**
      *  Get a StringKeyedVector holding the gradient of the loss w.r.t. every model parameter.
      */
-    public abstract StringKeyedVector getGradients(LabeledInstance<L> instance);
+    public StringKeyedVector getGradients(LabeledInstance<L> instance) {
+        double derivative = getLossDerivative(instance);
+        if (derivative == 0.0) {
+            return new StringKeyedVector();
+        }
+        StringKeyedVector gradients = instance.getVector().copy();
+        gradients.mul(derivative);
+        return gradients;
+    }
 
     /**
      *  Minibatch gradient update
@@ -89,14 +119,70 @@ public abstract class UpdateableLinearModel<L extends Label> implements
         if (epoch > 0) {
             param.incrementIteration();
         }
-        StringKeyedVector update = optimizer.getUpdate(instance);
-        param.add(update);
+        typedOptimizer().applyUpdate(instance);
         truncate(instance);
-        epoch++;
+        EPOCH.incrementAndGet(this);
+    }
+
+    // - the optimizer trains this model, so it takes instances labeled L.
+    @SuppressWarnings("unchecked")
+    private SGDOptimizer<L> typedOptimizer() {
+        return (SGDOptimizer<L>)optimizer;
     }
 
     public abstract L predict(StringKeyedVector instance);
 
+    /**
+     *  The value of the prediction for an instance whose inner product with
+     *  the parameters is given, for when the inner products of several
+     *  models are computed together, see getLinkFunction.
+     */
+    public double predictFromInnerProduct(double inner) {
+        return getLinkFunction().apply(inner);
+    }
+
+    /**
+     *  How the inner product becomes the prediction, for the model and for
+     *  its frozen copies. Logistic unless overridden.
+     */
+    public LinkFunction getLinkFunction() {
+        return LinkFunction.LOGISTIC;
+    }
+
+    /**
+     *  The value of predict for each of instances[0, count) into out, which
+     *  the caller reuses rather than taking a label per instance. Like
+     *  predict, not to be called by several threads at once.
+     */
+    public void predictBatch(StringKeyedVector[] instances, int count, double[] out) {
+        checkArgument(count <= instances.length && count <= out.length,
+                "a batch of %s does not fit in %s instances and %s scores", count,
+                instances.length, out.length);
+        for (int i = 0; i < count; i++) {
+            out[i] = predictFromInnerProduct(param.dot(instances[i]));
+        }
+    }
+
+    /**
+     *  As predictBatch into out[i][0], for callers of any UpdateableModel.
+     */
+    public void predictBatch(StringKeyedVector[] instances, int count, double[][] out) {
+        checkArgument(count <= instances.length && count <= out.length,
+                "a batch of %s does not fit in %s instances and %s rows", count,
+                instances.length, out.length);
+        for (int i = 0; i < count; i++) {
+            out[i][0] = predictFromInnerProduct(param.dot(instances[i]));
+        }
+    }
+
+    /**
+     *  A read only copy of the model for scoring, which unlike the model may
+     *  be shared between threads, see FrozenLinearModel.
+     */
+    public FrozenLinearModel freeze() {
+        return new FrozenLinearModel(new FrozenParameters(param), modelType, getLinkFunction());
+    }
+
     public abstract double loss(LabeledInstance<L> instance);
 
     protected abstract String getModelType();
@@ -109,6 +195,20 @@ public abstract class UpdateableLinearModel<L extends Label> implements
         param.setCoordinate(name, value);
     }
 
+    /**
+     *  The key of the parameter of a feature, or of a name given by
+     *  decompose, the same for both. Hashed parameters are named by a
+     *  dictionary or by FeatureHasher.hashName, so their key is the hash
+     *  name of the feature, whether a dictionary is kept or not. Otherwise
+     *  the key is the name itself.
+     */
+    public String parameterKey(String name) {
+        if (param instanceof HashedVector) {
+            return FeatureHasher.hashName(((HashedVector)param).hash(name));
+        }
+        return name;
+    }
+
     public StringKeyedVector getParam() {
         return param;
     }
@@ -117,13 +217,98 @@ public abstract class UpdateableLinearModel<L extends Label> implements
         param.mul(scale);
     }
 
+    /**
+     *  Train with another optimizer, which also becomes the lazy update
+     *  function of the parameters.
+     */
+    public UpdateableLinearModel<L> setOptimizer(SGDOptimizer optimizer) {
+        this.optimizer = optimizer;
+        optimizer.model = this;
+        param.setUpdateFunction(optimizer);
+        return this;
+    }
+
+    public SGDOptimizer getOptimizer() {
+        return optimizer;
+    }
+
     public void setFreezeFeatureSet(boolean freeze) {
         param.setFreezeKeySet(freeze);
     }
 
+    /**
+     *  Key the parameters by feature hash rather than by feature name bytes,
+     *  optionally keeping a dictionary of names for explainPrediction.
+     *  Instances should be hashed with the same number of bits.
+     *  Hashed weights are not held in param.vector, so the model must be
+     *  exported with a Gson from HashedVectorSerializer.newGson().
+     */
+    public UpdateableLinearModel<L> setHashedParameters(boolean keepDictionary, int hashBits) {
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        HashedLazyVector hashed = new HashedLazyVector(param, optimizer, keepDictionary, hashBits);
+        hashed.skipToIteration(param.getIteration());
+        hashed.setFreezeKeySet(param.getFreezeKeySet());
+        param = hashed;
+        return this;
+    }
+
+    /**
+     *  Key the parameters by feature hash as with setHashedParameters, split
+     *  into stripes which are locked separately so that several threads may
+     *  update the model at once, see HogwildTrainer.
+     */
+    public UpdateableLinearModel<L> setStripedParameters(int stripes, boolean keepDictionary, int hashBits) {
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        StripedLazyVector striped = new StripedLazyVector(param, stripes, optimizer, keepDictionary, hashBits);
+        striped.skipToIteration(param.getIteration());
+        striped.setFreezeKeySet(param.getFreezeKeySet());
+        param = striped;
+        return this;
+    }
+
+    /**
+     *  Keep the parameters off the java heap, keyed by feature hash as with
+     *  setHashedParameters but without a dictionary. They are held in a
+     *  memory mapped file if one is given, which after flushing the
+     *  OffHeapLazyVector can be reopened with openOffHeapParameters,
+     *  otherwise in direct memory.
+     */
+    public UpdateableLinearModel<L> setOffHeapParameters(File file, int hashBits) {
+        checkArgument(hashBits > 0 && hashBits <= 64,
+                "hash bits must be in [1, 64], given: %s", hashBits);
+        OffHeapLazyVector offHeap = new OffHeapLazyVector(param, file, optimizer, hashBits);
+        offHeap.skipToIteration(param.getIteration());
+        offHeap.setFreezeKeySet(param.getFreezeKeySet());
+        param = offHeap;
+        return this;
+    }
+
+    /**
+     *  Map parameters flushed to a file by an OffHeapLazyVector instead of
+     *  deserializing them. Read only parameters are for scoring.
+     */
+    public UpdateableLinearModel<L> openOffHeapParameters(File file, boolean readOnly)
+            throws IOException {
+        param = OffHeapLazyVector.open(file, optimizer, readOnly);
+        return this;
+    }
+
     public void merge(UpdateableLinearModel<L> model, double scaling) {
         param.addScaled(model.param, scaling);
-        epoch += model.epoch;
+        EPOCH.addAndGet(this, model.epoch);
+        if (optimizer != model.optimizer) {
+            optimizer.addRejectedFeatures(model.optimizer.getRejectedFeatures());
+        }
+    }
+
+    /**
+     *  How many sightings of new features training refused state to, see
+     *  SGDOptimizer.getRejectedFeatures.
+     */
+    public long getRejectedFeatures() {
+        return optimizer.getRejectedFeatures();
     }
 
     public void teardown() {
@@ -163,6 +348,10 @@ public abstract class UpdateableLinearModel<L extends Label> implements
         return epoch;
     }
 
+    void incrementEpoch() {
+        EPOCH.incrementAndGet(this);
+    }
+
     public void setEpoch(long e) {
         epoch = e;
     }
@@ -206,25 +395,58 @@ public abstract class UpdateableLinearModel<L extends Label> implements
         return explainPrediction(x, -1);
     }
 
+    /**
+     *  The features of x with the n largest contributions |x_i * w_i| to the
+     *  inner product, largest first, or all of them if n is -1. The top n are
+     *  kept in a heap rather than sorting every contribution.
+     */
     public String explainPrediction(StringKeyedVector x, int n) {
-        StringBuilder out = new StringBuilder();
-        Map<String, Double> weights = new HashMap<String, Double>();
-        for (String dim : x.keySet()) {
-            if (param.getCoordinate(dim) != 0.0) {
-                weights.put(
-                        dim,
-                        Math.abs(x.getCoordinate(dim)
-                                * param.getCoordinate(dim)));
+        checkArgument(n >= -1, "n must be -1 or non-negative, given: %s", n);
+        List<String> keys = new ArrayList<String>();
+        TDoubleArrayList values = new TDoubleArrayList();
+        TDoubleArrayList weights = new TDoubleArrayList();
+        for (Map.Entry<String, Double> e : x) {
+            double w = param.getCoordinate(e.getKey());
+            if (w != 0.0) {
+                keys.add(e.getKey());
+                values.add(e.getValue());
+                weights.add(w);
+            }
+        }
+        final double[] contributions = new double[keys.size()];
+        for (int i = 0; i < contributions.length; i++) {
+            contributions[i] = Math.abs(values.getQuick(i) * weights.getQuick(i));
+        }
+        int top = n == -1 ? contributions.length : Math.min(n, contributions.length);
+        if (top == 0) {
+            return "";
+        }
+
+        // - a min heap of the top indices, whose head is the next to go.
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(top, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(contributions[a], contributions[b]);
+            }
+        });
+        for (int i = 0; i < contributions.length; i++) {
+            if (heap.size() < top) {
+                heap.add(i);
+            } else if (contributions[i] > contributions[heap.peek()]) {
+                heap.poll();
+                heap.add(i);
             }
         }
-        ArrayList<String> keys = com.etsy.conjecture.Utilities
-                .orderKeysByValue(weights, true);
-        for (int i = 0; (n == -1 || i < n) && i < keys.size(); i++) {
-            String k = keys.get(i);
-            out.append(k + ":" + String.format("%.2f", x.getCoordinate(k))
-                    + "->" + String.format("%.2f", param.getCoordinate(k))
+        int[] order = new int[heap.size()];
+        for (int i = order.length - 1; i >= 0; i--) {
+            order[i] = heap.poll();
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (int i : order) {
+            out.append(keys.get(i) + ":" + String.format("%.2f", values.getQuick(i))
+                    + "->" + String.format("%.2f", weights.getQuick(i))
                     + " ");
         }
         return out.toString();
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,7 @@ import java.util.Collection;
 
 import com.etsy.conjecture.data.Label;
 import com.etsy.conjecture.data.LabeledInstance;
+import com.etsy.conjecture.data.StringKeyedVector;
 
 public interface UpdateableModel<L extends Label, M extends UpdateableModel<L, M>>
         extends Model<L>, Decomposable {
@@ -26,4 +27,9 @@ public interface UpdateableModel<L extends Label, M extends UpdateableModel<L, M
     public void setEpoch(long epoch);
 
     public long getEpoch();
+
+    // - score instances[0, count) into the rows of out, which the caller reuses:
+    // - a linear model fills the first column, a multiclass model a column per
+    // - category and a clustering model a column per cluster, in a fixed order.
+    public void predictBatch(StringKeyedVector[] instances, int count, double[][] out);
 }
@@ -5,21 +5,34 @@ import gnu.trove.function.TDoubleFunction;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.etsy.conjecture.Utilities;
+import com.etsy.conjecture.data.FrozenParameters;
 import com.etsy.conjecture.data.MulticlassLabel;
 import com.etsy.conjecture.data.LabeledInstance;
-import com.etsy.conjecture.data.BinaryLabeledInstance;
 import com.etsy.conjecture.data.MulticlassLabeledInstance;
+import com.etsy.conjecture.data.MulticlassParameterTable;
 import com.etsy.conjecture.data.MulticlassPrediction;
+import com.etsy.conjecture.data.ParameterColumnVector;
 import com.etsy.conjecture.data.LazyVector;
 import com.etsy.conjecture.data.StringKeyedVector;
 import com.etsy.conjecture.data.RealValuedLabel;
 import com.etsy.conjecture.data.BinaryLabel;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class UpdateableMulticlassLinearModel implements
     UpdateableModel<MulticlassLabel, UpdateableMulticlassLinearModel>,
@@ -34,6 +47,16 @@ public class UpdateableMulticlassLinearModel implements
 
     protected Map<String, UpdateableLinearModel<BinaryLabel>> param = new HashMap<String, UpdateableLinearModel<BinaryLabel>>();
 
+    // - the parameters of every category when they are shared, see setSharedParameters.
+    protected MulticlassParameterTable table;
+
+    protected int updateThreads = 1;
+
+    private transient ExecutorService updatePool;
+
+    // - scratch of predictBatch, a category's scores of a batch.
+    private transient double[] batchScores;
+
     public UpdateableMulticlassLinearModel(Map<String, UpdateableLinearModel<BinaryLabel>> param) {
         this.param = param;
         this.epoch = 0;
@@ -70,16 +93,55 @@ public class UpdateableMulticlassLinearModel implements
         }
     }
 
+    public UpdateableLinearModel<BinaryLabel> getCategoryModel(String category) {
+        return param.get(category);
+    }
+
     public void setFreezeFeatureSet(boolean freeze) {
         for (Map.Entry<String, UpdateableLinearModel<BinaryLabel>> e : param.entrySet()) {
             e.getValue().param.setFreezeKeySet(freeze);
         }
     }
 
+    /**
+     *  Update the per category models on several threads, each taking a
+     *  share of the categories through every instance of a minibatch, so
+     *  larger minibatches spread the cost of handing out the work. The
+     *  categories must not share an optimizer, so each category after the
+     *  first gets a new optimizer with the shared one's configuration, see
+     *  SGDOptimizer.copyConfiguration. Call it before training.
+     */
+    public UpdateableMulticlassLinearModel setUpdateThreads(int threads) {
+        checkArgument(threads > 0, "threads must be positive, given: %s", threads);
+        this.updateThreads = threads;
+        if (updatePool != null) {
+            updatePool.shutdown();
+            updatePool = null;
+        }
+        if (threads > 1) {
+            Set<SGDOptimizer> seen = Collections.newSetFromMap(new IdentityHashMap<SGDOptimizer, Boolean>());
+            for (UpdateableLinearModel<BinaryLabel> m : param.values()) {
+                if (!seen.add(m.optimizer)) {
+                    m.setOptimizer(m.optimizer.copyConfiguration());
+                    seen.add(m.optimizer);
+                }
+            }
+        }
+        return this;
+    }
+
+    public int getUpdateThreads() {
+        return updateThreads;
+    }
+
     /**
      *  Minibatch gradient update
      */
     public void update(Collection<LabeledInstance<MulticlassLabel>> instances) {
+        if (updateThreads > 1) {
+            updateInParallel(instances);
+            return;
+        }
         for (LabeledInstance<MulticlassLabel> instance : instances) {
             update(instance);
         }
@@ -89,42 +151,256 @@ public class UpdateableMulticlassLinearModel implements
      *  Single gradient update.
      */
     public void update(LabeledInstance<MulticlassLabel> instance) {
+        if (updateThreads > 1) {
+            updateInParallel(Collections.singletonList(instance));
+            return;
+        }
         for (Map.Entry<String, UpdateableLinearModel<BinaryLabel>> e : param.entrySet()) {
-            String category = e.getKey();
-            UpdateableLinearModel<BinaryLabel> model = e.getValue();
-            double label = e.getKey().equals(instance.getLabel().getLabel()) ? 1.0 : 0.0;
-            BinaryLabeledInstance blInstance = new BinaryLabeledInstance(label, instance.getVector());
-            model.update(blInstance);
+            e.getValue().update(new CategoryInstance(e.getKey(), instance));
         }
         epoch++;
     }
 
+    protected void updateInParallel(final Collection<LabeledInstance<MulticlassLabel>> instances) {
+        if (updatePool == null) {
+            updatePool = Executors.newFixedThreadPool(updateThreads,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("multiclass-update-%d").build());
+        }
+        // - deal the categories out to one task per thread.
+        int tasks = Math.min(updateThreads, param.size());
+        List<List<Map.Entry<String, UpdateableLinearModel<BinaryLabel>>>> shares =
+            new ArrayList<List<Map.Entry<String, UpdateableLinearModel<BinaryLabel>>>>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            shares.add(new ArrayList<Map.Entry<String, UpdateableLinearModel<BinaryLabel>>>());
+        }
+        int i = 0;
+        for (Map.Entry<String, UpdateableLinearModel<BinaryLabel>> e : param.entrySet()) {
+            shares.get(i++ % tasks).add(e);
+        }
+        List<Callable<Void>> work = new ArrayList<Callable<Void>>(tasks);
+        for (final List<Map.Entry<String, UpdateableLinearModel<BinaryLabel>>> share : shares) {
+            work.add(new Callable<Void>() {
+                public Void call() {
+                    for (LabeledInstance<MulticlassLabel> instance : instances) {
+                        for (Map.Entry<String, UpdateableLinearModel<BinaryLabel>> e : share) {
+                            e.getValue().update(new CategoryInstance(e.getKey(), instance));
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : updatePool.invokeAll(work)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while updating", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("category update failed", e.getCause());
+        }
+        epoch += instances.size();
+    }
+
+    /**
+     *  A multiclass instance seen as a binary one for a single category,
+     *  sharing its vector rather than copying it.
+     */
+    static class CategoryInstance implements LabeledInstance<BinaryLabel> {
+        private final BinaryLabel label;
+        private final LabeledInstance<MulticlassLabel> instance;
+
+        CategoryInstance(String category, LabeledInstance<MulticlassLabel> instance) {
+            this.label = new BinaryLabel(category.equals(instance.getLabel().getLabel()) ? 1.0 : 0.0);
+            this.instance = instance;
+        }
+
+        public BinaryLabel getLabel() {
+            return label;
+        }
+
+        public StringKeyedVector getVector() {
+            return instance.getVector();
+        }
+
+        public double getWeight() {
+            return instance.getWeight();
+        }
+    }
+
     @Override
     public MulticlassPrediction predict(StringKeyedVector instance) {
-        Map<String, Double> scores = new HashMap<String, Double>();
+        String[] categories;
+        double[] scores;
+        if (table != null) {
+            // - every category score from one pass over the instance.
+            categories = table.getCategories();
+            scores = new double[categories.length];
+            table.innerProducts(instance, scores);
+            for (int k = 0; k < categories.length; k++) {
+                scores[k] = param.get(categories[k]).predictFromInnerProduct(scores[k]);
+            }
+        } else {
+            categories = param.keySet().toArray(new String[param.size()]);
+            scores = new double[categories.length];
+            for (int k = 0; k < categories.length; k++) {
+                scores[k] = ((RealValuedLabel)param.get(categories[k]).predict(instance)).getValue();
+            }
+        }
+
         double normalization = 0;
+        for (double score : scores) {
+            normalization += score;
+        }
+        for (int k = 0; k < scores.length; k++) {
+            scores[k] /= normalization;
+        }
 
-        for (Map.Entry<String, UpdateableLinearModel<BinaryLabel>> e : param.entrySet()) {
-            double prediction = ((RealValuedLabel)e.getValue().predict(instance)).getValue();
-            scores.put(e.getKey(), prediction);
-            normalization += prediction;
+        return new MulticlassPrediction(categories, scores);
+    }
+
+    /**
+     *  The categories in the order of the scores of predictBatch: those of
+     *  the shared parameters, else sorted.
+     */
+    public String[] getCategories() {
+        if (table != null) {
+            return table.getCategories().clone();
+        }
+        String[] categories = param.keySet().toArray(new String[param.size()]);
+        Arrays.sort(categories);
+        return categories;
+    }
+
+    /**
+     *  The probability of each category, in the order of getCategories(),
+     *  for each of instances[0, count) into the rows of out. With shared
+     *  parameters every category is scored in one pass over an instance,
+     *  else each category model scores the whole batch in turn, see
+     *  UpdateableLinearModel.predictBatch.
+     */
+    @Override
+    public void predictBatch(StringKeyedVector[] instances, int count, double[][] out) {
+        checkArgument(count <= instances.length && count <= out.length,
+            "a batch of %s does not fit in %s instances and %s rows", count, instances.length, out.length);
+        String[] categories = getCategories();
+        if (table != null) {
+            for (int i = 0; i < count; i++) {
+                double[] row = out[i];
+                Arrays.fill(row, 0, categories.length, 0.0);
+                table.innerProducts(instances[i], row);
+                for (int k = 0; k < categories.length; k++) {
+                    row[k] = param.get(categories[k]).predictFromInnerProduct(row[k]);
+                }
+            }
+        } else {
+            if (batchScores == null || batchScores.length < count) {
+                batchScores = new double[count];
+            }
+            for (int k = 0; k < categories.length; k++) {
+                param.get(categories[k]).predictBatch(instances, count, batchScores);
+                for (int i = 0; i < count; i++) {
+                    out[i][k] = batchScores[i];
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            double normalization = 0;
+            for (int k = 0; k < categories.length; k++) {
+                normalization += out[i][k];
+            }
+            for (int k = 0; k < categories.length; k++) {
+                out[i][k] /= normalization;
+            }
         }
+    }
 
-        for (Map.Entry<String, Double> e : scores.entrySet()) {
-            scores.put(e.getKey(), e.getValue() / normalization);
+    /**
+     *  A read only copy of the model for scoring, with the weights of every
+     *  category in one table whether or not they are shared here. Unlike the
+     *  model it may be shared between threads, see
+     *  FrozenMulticlassLinearModel.
+     */
+    public FrozenMulticlassLinearModel freeze() {
+        String[] categories = table != null ? table.getCategories()
+            : param.keySet().toArray(new String[param.size()]);
+        if (table == null) {
+            Arrays.sort(categories);
+        }
+        StringKeyedVector[] columns = new StringKeyedVector[categories.length];
+        LinkFunction[] links = new LinkFunction[categories.length];
+        for (int k = 0; k < categories.length; k++) {
+            UpdateableLinearModel<BinaryLabel> m = param.get(categories[k]);
+            columns[k] = m.param;
+            links[k] = m.getLinkFunction();
         }
+        return new FrozenMulticlassLinearModel(categories, new FrozenParameters(columns),
+            modelType, links, false);
+    }
 
-        return new MulticlassPrediction(scores);
+    /**
+     *  Keep the parameters of every category in one MulticlassParameterTable
+     *  keyed by feature hash, so each feature is stored and hashed once and
+     *  predict scores all the categories in one pass over an instance.
+     *  Instances should be hashed with the same number of bits.
+     */
+    public UpdateableMulticlassLinearModel setSharedParameters(boolean keepDictionary, int hashBits) {
+        String[] categories = param.keySet().toArray(new String[param.size()]);
+        Arrays.sort(categories);
+        MulticlassParameterTable shared = new MulticlassParameterTable(categories, keepDictionary, hashBits);
+        for (int k = 0; k < categories.length; k++) {
+            UpdateableLinearModel<BinaryLabel> m = param.get(categories[k]);
+            ParameterColumnVector column = shared.getColumn(k);
+            column.setUpdateFunction(m.optimizer);
+            column.addScaled(m.param, 1.0);
+            column.skipToIteration(m.param.getIteration());
+            column.setFreezeKeySet(m.param.getFreezeKeySet());
+            m.param = column;
+        }
+        table = shared;
+        return this;
+    }
+
+    public MulticlassParameterTable getSharedParameters() {
+        return table;
     }
 
     public void merge(UpdateableMulticlassLinearModel model, double scale) {
+        // - categories may share an optimizer, count its rejections once.
+        Set<SGDOptimizer> merged = Collections.newSetFromMap(new IdentityHashMap<SGDOptimizer, Boolean>());
         for (String cat : param.keySet()) {
-            param.get(cat).param.addScaled(model.param.get(cat).param, scale);
+            UpdateableLinearModel<BinaryLabel> mine = param.get(cat);
+            UpdateableLinearModel<BinaryLabel> theirs = model.param.get(cat);
+            mine.param.addScaled(theirs.param, scale);
+            if (mine.optimizer != theirs.optimizer && merged.add(theirs.optimizer)) {
+                mine.optimizer.addRejectedFeatures(theirs.optimizer.getRejectedFeatures());
+            }
         }
         epoch += model.epoch;
     }
 
+    /**
+     *  How many sightings of new features training refused state to, see
+     *  SGDOptimizer.getRejectedFeatures.
+     */
+    public long getRejectedFeatures() {
+        Set<SGDOptimizer> counted = Collections.newSetFromMap(new IdentityHashMap<SGDOptimizer, Boolean>());
+        long rejected = 0;
+        for (UpdateableLinearModel<BinaryLabel> m : param.values()) {
+            if (counted.add(m.optimizer)) {
+                rejected += m.getRejectedFeatures();
+            }
+        }
+        return rejected;
+    }
+
     public void teardown() {
+        if (updatePool != null) {
+            updatePool.shutdown();
+            updatePool = null;
+        }
         for (Map.Entry<String, UpdateableLinearModel<BinaryLabel>> e : param.entrySet()) {
             e.getValue().teardown();
         }
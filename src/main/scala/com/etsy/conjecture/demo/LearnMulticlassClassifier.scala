@@ -3,10 +3,9 @@ package com.etsy.conjecture.demo
 import com.twitter.scalding._
 import com.etsy.conjecture.scalding.evaluate.{ MulticlassCrossValidator, MulticlassEvaluator }
 import com.etsy.conjecture.scalding.train.MulticlassModelTrainer
-import com.etsy.conjecture.data.{ MulticlassLabel, MulticlassLabeledInstance }
+import com.etsy.conjecture.data.{ HashedVectorSerializer, MulticlassLabel, MulticlassLabeledInstance }
 import com.etsy.conjecture.model.UpdateableMulticlassLinearModel
 
-import com.google.gson.Gson
 
 import cascading.tuple.Fields
 
@@ -29,7 +28,7 @@ class LearnMulticlassClassifier(args: Args) extends Job(args) {
 
     model_pipe
         .write(SequenceFile(out_dir + "/model"))
-        .mapTo('model -> 'json) { x: UpdateableMulticlassLinearModel => new Gson().toJson(x) }
+        .mapTo('model -> 'json) { x: UpdateableMulticlassLinearModel => HashedVectorSerializer.newGson().toJson(x) }
         .write(Tsv(out_dir + "/model_json"))
 
     if (folds > 0) {
@@ -5,8 +5,10 @@ import com.etsy.conjecture._
 import com.etsy.conjecture.data._
 import com.etsy.conjecture.evaluation._
 import com.etsy.conjecture.model._
+import com.etsy.conjecture.scalding.util.BatchScorer
 
 import cascading.pipe.Pipe
+import cascading.tuple.Fields
 
 abstract class GenericEvaluator[L <: Label] extends Serializable {
 
@@ -38,15 +40,19 @@ abstract class GenericEvaluator[L <: Label] extends Serializable {
         evaluate(instances_with_predictions, label_field, 'prediction, evaluation_field)
     }
 
+    // The models are UpdateableModels, which score the instances in batches, see BatchScorer.
     def assign_predictions(instance_pipe: Pipe, instance_field: Symbol, label_field: Symbol, model_pipe: Pipe, model_field: Symbol, prediction_field: Symbol = 'prediction) = {
-        instance_pipe.crossWithTiny(model_pipe)
-            .map((instance_field, model_field) -> (label_field, prediction_field)) { x: (LabeledInstance[L], Model[L]) => (x._1.getLabel, x._2.predict(x._1.getVector)) }
-            .project(label_field, prediction_field)
+        BatchScorer.score(instance_pipe.crossWithTiny(model_pipe), new Fields(model_field.name), new Fields(instance_field.name), prediction_field, '__explain)
+            .mapTo((instance_field, prediction_field) -> (label_field, prediction_field)) { x: (LabeledInstance[L], AnyRef) => (x._1.getLabel, toLabel(x._2)) }
     }
+
+    // The label of a prediction of BatchScorer, of which the multiclass and cluster predictions already are.
+    def toLabel(prediction: AnyRef): L = prediction.asInstanceOf[L]
 }
 
 class BinaryEvaluator extends GenericEvaluator[BinaryLabel] {
     def build() = new BinaryModelEvaluation()
+    override def toLabel(prediction: AnyRef) = new BinaryLabel(prediction.asInstanceOf[java.lang.Double].doubleValue)
 }
 
 class MulticlassEvaluator(categories: Array[String]) extends GenericEvaluator[MulticlassLabel] {
@@ -55,4 +61,5 @@ class MulticlassEvaluator(categories: Array[String]) extends GenericEvaluator[Mu
 
 class RegressionEvaluator extends GenericEvaluator[RealValuedLabel] {
     def build() = new RegressionModelEvaluation()
+    override def toLabel(prediction: AnyRef) = new RealValuedLabel(prediction.asInstanceOf[java.lang.Double].doubleValue)
 }
@@ -61,6 +61,17 @@ class BinaryModelTrainer(args: Args) extends AbstractModelTrainer[BinaryLabel, U
      */
     val examplesPerEpoch = args.getOrElse("examples_per_epoch", "10000").toDouble
 
+    /** Whether to catch up lazy l1 / l2 regularization in closed form instead of looping over skipped iterations. **/
+    val closedFormLazyUpdate = args.boolean("closed_form_lazy_update")
+
+    /** Key the model parameters by 64 bit feature hash, optionally keeping names for explanations. **/
+    val hashedFeatures = args.boolean("hashed_features")
+    val hashDictionary = args.boolean("hash_dictionary")
+    val hashBits = args.getOrElse("hash_bits", "64").toInt
+
+    /** Keep the (hashed) model parameters in direct memory, off the java heap. **/
+    val offHeap = args.boolean("off_heap")
+
     /** How to subsample each class, in the case of imbalanced data. **/
     val zeroClassProb = args.getOrElse("zero_class_prob", "1.0").toDouble
     val oneClassProb = args.getOrElse("one_class_prob", "1.0").toDouble
@@ -82,6 +93,19 @@ class BinaryModelTrainer(args: Args) extends AbstractModelTrainer[BinaryLabel, U
      */
     val ftrlAlpha = args.getOrElse("ftrlAlpha", "1.0").toDouble
     val ftrlBeta = args.getOrElse("ftrlBeta", "1.0").toDouble
+    val ftrlFloatState = args.boolean("ftrl_float_state")
+
+    /**
+     *  Which new features optimizers with per feature state (adagrad, ftrl,
+     *  control) keep state for: "none" admits all, "poisson" admits with
+     *  probability admission_prob on each sighting, "bloom" admits once a
+     *  feature has been seen admission_count times.
+     */
+    val featureAdmission: FeatureAdmission = args.getOrElse("feature_admission", "none") match {
+        case "none" => null
+        case "poisson" => new PoissonFeatureAdmission(args.getOrElse("admission_prob", "0.1").toDouble)
+        case "bloom" => new BloomFilterFeatureAdmission(args.getOrElse("admission_count", "2").toInt)
+    }
 
     /**
      *  Choose an optimizer to use
@@ -90,7 +114,7 @@ class BinaryModelTrainer(args: Args) extends AbstractModelTrainer[BinaryLabel, U
             case "elastic_net" => new ElasticNetOptimizer()
             case "adagrad" => new AdagradOptimizer()
             case "passive_aggressive" => new PassiveAggressiveOptimizer().setC(aggressiveness).isHinge(true)
-            case "ftrl" => new FTRLOptimizer().setAlpha(ftrlAlpha).setBeta(ftrlBeta)
+            case "ftrl" => new FTRLOptimizer().setAlpha(ftrlAlpha).setBeta(ftrlBeta).setUseFloatState(ftrlFloatState)
             case "control" => new ControlOptimizer()
             case "mira" => new MIRAOptimizer()
         }
@@ -101,6 +125,8 @@ class BinaryModelTrainer(args: Args) extends AbstractModelTrainer[BinaryLabel, U
         .setUseExponentialLearningRate(useExponentialLearningRate)
         .setExponentialLearningRateBase(exponentialLearningRateBase)
         .setInitialLearningRate(initialLearningRate)
+        .setUseClosedFormLazyUpdate(closedFormLazyUpdate)
+        .setFeatureAdmission(featureAdmission)
 
     /** Period of gradient truncation updates **/
     val truncationPeriod = args.getOrElse("period", Int.MaxValue.toString).toInt
@@ -130,6 +156,7 @@ class BinaryModelTrainer(args: Args) extends AbstractModelTrainer[BinaryLabel, U
 
     override def modelPostProcess(m: UpdateableLinearModel[BinaryLabel]): UpdateableLinearModel[BinaryLabel] = {
         m.thresholdParameters(finalThresholding)
+        println("rejected features: " + m.getRejectedFeatures)
         m.setArgString(args.toString)
         m.teardown()
         m
@@ -149,12 +176,27 @@ class BinaryModelTrainer(args: Args) extends AbstractModelTrainer[BinaryLabel, U
         model.setTruncationPeriod(truncationPeriod)
              .setTruncationThreshold(truncationThresh)
              .setTruncationUpdate(truncationAlpha)
+        if (offHeap) model.setOffHeapParameters(null, hashBits)
+        else if (hashedFeatures) model.setHashedParameters(hashDictionary, hashBits)
         model
     }
 
     val bins = args.getOrElse("bins", "100").toInt
 
-    val trainer = if (args.boolean("large")) new LargeModelTrainer(this, bins) else new SmallModelTrainer(this)
+    /** Merge the mapper models through a tree of reducers aggregation_levels deep, each merging about aggregation_fan_in models. 0 merges them on one reducer. **/
+    val aggregationFanIn = args.getOrElse("aggregation_fan_in", "0").toInt
+    val aggregationLevels = args.getOrElse("aggregation_levels", "2").toInt
+
+    /**
+     * With --sharded, or when retraining with --large, the parameters are partitioned over this many reducers,
+     * and each bin only receives those it needs.
+     */
+    val shards = args.getOrElse("shards", "100").toInt
+
+    val trainer =
+        if (args.boolean("sharded")) new ShardedModelTrainer(this, bins, shards)
+        else if (args.boolean("large")) new LargeModelTrainer(this, bins, shards)
+        else new SmallModelTrainer(this, aggregationFanIn, aggregationLevels)
 
     def train(instances: Pipe, instanceField: Symbol = 'instance, modelField: Symbol = 'model): Pipe = {
         trainer.train(instances, instanceField, modelField)
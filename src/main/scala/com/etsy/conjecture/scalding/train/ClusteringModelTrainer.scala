@@ -40,7 +40,11 @@ class ClusteringModelTrainer(args: Args, centers: Map[String, StringKeyedVector]
 
     val bins = args.getOrElse("bins", "100").toInt
 
-    val trainer = if (args.boolean("large")) new LargeModelTrainer(this, bins) else new SmallModelTrainer(this)
+    /** Merge the mapper models through a tree of reducers aggregation_levels deep, each merging about aggregation_fan_in models. 0 merges them on one reducer. **/
+    val aggregationFanIn = args.getOrElse("aggregation_fan_in", "0").toInt
+    val aggregationLevels = args.getOrElse("aggregation_levels", "2").toInt
+
+    val trainer = if (args.boolean("large")) new LargeModelTrainer(this, bins) else new SmallModelTrainer(this, aggregationFanIn, aggregationLevels)
 
     def train(instances: Pipe, instanceField: Symbol = 'instance, modelField: Symbol = 'model): Pipe = {
         trainer.train(instances, instanceField, modelField)
@@ -0,0 +1,173 @@
+package com.etsy.conjecture.scalding.train
+
+import java.io.{BufferedReader, InputStreamReader}
+
+import cascading.pipe.Pipe
+
+import com.etsy.conjecture.data._
+import com.etsy.conjecture.model._
+import com.etsy.conjecture.scalding.util.{ColumnarInstances, CompactInstances}
+
+import com.twitter.scalding._
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FileSystem, Path}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Trains a model in passes over the instances, one job per pass by overriding Job.next (as ALSJob does), rather
+ * than building every pass into one cascading flow. A failure only reruns its own pass, the planner only sees one
+ * pass at a time, and the instances are only read from the input once: pass 0 writes a copy of them with the
+ * compact serializers (see CompactInstances), which the later passes read. With --columnar the copy is a columnar
+ * cache instead (see ColumnarInstances), smaller and quicker to decode, but without instance ids and with float
+ * values. Either cache encodes the instances itself, so the job keeps the default kryo and the models it writes can
+ * be read by any job.
+ *
+ * The model of pass p is written to base_dir/model/p. With --resume the job starts with the pass after the last
+ * written model. Training stops after --passes passes, once the parameters of a pass changed by less than
+ * --min_change relative to the last (linear models only), or once the file base_dir/STOP (or --stop_file) exists.
+ *
+ * The concrete job supplies the instances, with field 'instance, and a trainer which does a single pass:
+ *
+ *   class MyTraining(args : Args) extends IterativeTrainingJob[BinaryLabel, UpdateableLinearModel[BinaryLabel]](args) {
+ *     def instances = SequenceFile(args("input"), 'instance).read
+ *     def trainer = new BinaryModelTrainer(args)
+ *   }
+ *
+ * The instances are only computed on the first pass, so they should not do any other work.
+ */
+abstract class IterativeTrainingJob[L <: Label, M <: UpdateableModel[L, M]](args: Args) extends Job(args) {
+
+    val baseDir = args.getOrElse("base_dir", "iterative_training")
+
+    val passes = args.getOrElse("passes", "10").toInt
+
+    val minChange = args.getOrElse("min_change", "0.0").toDouble
+
+    val stopFile = args.getOrElse("stop_file", baseDir + "/STOP")
+
+    val columnar = args.boolean("columnar")
+    val columnarHashBits = args.getOrElse("hash_bits", "64").toInt
+
+    val prefixKeys = args.boolean("kryo_prefix_keys")
+
+    // The instances to train on, with field 'instance. Only read on the first pass.
+    def instances: Pipe
+
+    // Trains on the instances once, the job fails if a strategy trainer has iters other than 1.
+    def trainer: AbstractModelTrainer[L, M]
+
+    def instancePath = baseDir + "/instances"
+
+    def modelPath(pass: Int) = baseDir + "/model/" + pass
+
+    def changePath(pass: Int) = baseDir + "/change/" + pass
+
+    // The pass done by this job.
+    val pass = args.optional("pass").map { _.toInt }.getOrElse {
+        if (args.boolean("resume")) Iterator.from(0).find { p => !completed(p) }.get else 0
+    }
+
+    if (pass >= passes) {
+        throw new IllegalArgumentException("all " + passes + " passes are done, see " + modelPath(passes - 1))
+    }
+
+    val passTrainer = trainer
+
+    // A job does one pass, so more iterations of the trainer would silently multiply the passes.
+    passTrainer match {
+        case strategy: ModelTrainerStrategy[_, _] if strategy.getIters != 1 =>
+            throw new IllegalArgumentException("the trainer does " + strategy.getIters
+                + " iterations per pass, use --passes rather than --iters")
+        case _ =>
+    }
+
+    val training = if (pass == 0 && columnar) {
+        val in = instances.project('instance)
+        ColumnarInstances.write(in, 'instance, instancePath, columnarHashBits)
+        in
+    } else if (pass == 0) {
+        val in = instances.project('instance)
+        CompactInstances.write(in, 'instance, instancePath, prefixKeys)
+        in
+    } else if (columnar) {
+        ColumnarInstances.read(instancePath)
+    } else {
+        CompactInstances.read(instancePath, 'instance, prefixKeys)
+    }
+
+    val model = if (pass == 0) {
+        passTrainer.train(training, 'instance, 'model)
+    } else {
+        passTrainer.reTrain(training, 'instance, SequenceFile(modelPath(pass - 1), 'model).read, 'model)
+    }
+
+    model.write(SequenceFile(modelPath(pass), 'model))
+
+    if (pass > 0 && minChange > 0.0) {
+        model
+            .crossWithTiny(SequenceFile(modelPath(pass - 1), 'model).read.rename('model -> 'previous))
+            .mapTo(('model, 'previous) -> 'change) { x: (M, M) => relativeChange(x._1, x._2) }
+            .write(Tsv(changePath(pass)))
+    }
+
+    // ||current - previous|| / ||previous||.
+    def relativeChange(current: M, previous: M): Double = {
+        val old = scala.collection.mutable.HashMap[String, Double]()
+        previous.decompose.asScala.foreach { e => old(e.getKey) = e.getValue }
+        val norm = old.values.map { v => v * v }.sum
+        var diff = 0.0
+        current.decompose.asScala.foreach { e =>
+            val d = e.getValue - old.remove(e.getKey).getOrElse(0.0)
+            diff += d * d
+        }
+        diff += old.values.map { v => v * v }.sum
+        if (norm == 0.0) Double.PositiveInfinity else math.sqrt(diff / norm)
+    }
+
+    def stopRequested: Boolean = exists(stopFile)
+
+    def converged: Boolean = pass > 0 && minChange > 0.0 && readChange(pass).exists { _ < minChange }
+
+    override def next: Option[Job] = {
+        if (pass + 1 < passes && !stopRequested && !converged) {
+            Some(clone(args + ("pass", Some((pass + 1).toString))))
+        } else {
+            None
+        }
+    }
+
+    protected def fileSystem(path: String): (FileSystem, Path) = {
+        val conf = mode match {
+            case hadoop: HadoopMode => hadoop.jobConf
+            case _ => new Configuration
+        }
+        val p = new Path(path)
+        (p.getFileSystem(conf), p)
+    }
+
+    protected def exists(path: String): Boolean = {
+        val (fs, p) = fileSystem(path)
+        fs.exists(p)
+    }
+
+    // Hadoop marks a finished output.
+    protected def completed(pass: Int): Boolean = mode match {
+        case hadoop: HadoopMode => exists(modelPath(pass) + "/_SUCCESS")
+        case _ => exists(modelPath(pass))
+    }
+
+    protected def readChange(pass: Int): Option[Double] = {
+        val (fs, p) = fileSystem(changePath(pass))
+        if (!fs.exists(p)) {
+            None
+        } else {
+            val files = if (fs.getFileStatus(p).isDirectory) fs.listStatus(p).map { _.getPath }.filter { _.getName.startsWith("part") } else Array(p)
+            files.toList.flatMap { f =>
+                val in = new BufferedReader(new InputStreamReader(fs.open(f)))
+                try { Option(in.readLine).filter { _.trim.nonEmpty } } finally { in.close() }
+            }.headOption.map { _.trim.toDouble }
+        }
+    }
+}
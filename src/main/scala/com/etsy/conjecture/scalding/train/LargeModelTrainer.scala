@@ -4,21 +4,27 @@ import cascading.flow._
 import cascading.operation._
 import cascading.pipe._
 import cascading.pipe.joiner.InnerJoin
+import cascading.tuple.Fields
 
 import com.etsy.conjecture.data._
 import com.etsy.conjecture.model._
 
 import com.twitter.scalding._
 
-class LargeModelTrainer[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelTrainerStrategy[L, M], training_bins: Int) extends AbstractModelTrainer[L, M] {
+class LargeModelTrainer[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelTrainerStrategy[L, M], training_bins: Int, shards: Int = 0) extends AbstractModelTrainer[L, M] {
     import Dsl._
 
     def train(instances: Pipe, instanceField: Symbol = 'instance, modelField: Symbol = 'model): Pipe = {
         trainRecursively(None, modelField, binTrainingData(instances, instanceField), instanceField, strategy.getIters)
     }
 
+    // Continue training from an existing model without copying it to every bin: the parameters are spread over
+    // shards, each bin is seeded with only the parameters its instances touch, and sends back the change of them
+    // (see ShardedModelTrainer). Parameters no bin touches keep their values. Parameters are matched to the features
+    // of the instances by ModelTrainerStrategy.parameterKey, so hashed models without a dictionary retrain as well.
     def reTrain(instances: Pipe, instanceField: Symbol, model: Pipe, modelField: Symbol): Pipe = {
-        throw new UnsupportedOperationException("not implemented due to expensiveness of model duplication")
+        new ShardedModelTrainer(strategy, training_bins, if (shards > 0) shards else training_bins)
+            .reTrain(instances, instanceField, model, modelField)
     }
 
     def binTrainingData(instances: Pipe, instanceField: Symbol): Pipe = {
@@ -33,20 +39,17 @@ class LargeModelTrainer[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelT
         val modelCountField = '__model_count__
         // Subsample instances.
         val subsampled = instancePipe.filter(instanceField) { i: LabeledInstance[L] => math.random < strategy.sampleProb(i.getLabel) }
-        // Get models on each mapper.
-        (modelPipe match {
-            case Some(pipe) => subsampled.joinWithSmaller('bin -> 'bin, pipe, new InnerJoin(), training_bins)
-            case _ => subsampled.map(instanceField -> (instanceField, modelField)) { x: LabeledInstance[L] => (x, strategy.getModel) }
-        })
-            // Count iteration numbers.
-            .insert(iterationField, 0)
-            .insert(modelCountField, 1)
-            // Convert instances to instance list.
-            .map(instanceField -> instanceField) { i: LabeledInstance[L] => List(i) }
-            // Perform map-side aggregation of models, which are then sent to a single reduce node for merging.
+        // Train a model for each bin on each mapper, streaming the instances into the models.
+        val (trainingPipe, argumentFields) = modelPipe match {
+            case Some(pipe) => (subsampled.joinWithSmaller('bin -> 'bin, pipe, new InnerJoin(), training_bins), ('bin, instanceField, modelField))
+            case _ => (subsampled, ('bin, instanceField))
+        }
+        new Each(trainingPipe, argumentFields,
+            new ModelTrainingFunction[L, M](strategy, ('bin, modelField, iterationField, modelCountField)), Fields.RESULTS)
+            // Merge the models of each bin.
             .groupBy('bin) {
-                _.reduce[(M, List[LabeledInstance[L]], Int, Int)](
-                    (modelField, instanceField, iterationField, modelCountField) -> (modelField, instanceField, iterationField, modelCountField))(strategy.modelReduceFunction)
+                _.reduce[(M, Int, Int)](
+                    (modelField, iterationField, modelCountField) -> (modelField, iterationField, modelCountField))(strategy.mergeTrainedModels)
                     .reducers(training_bins)
             }
             .mapTo((modelField, iterationField) -> modelField) { x: (M, Int) => strategy.endIteration(x._1, x._2, training_bins) }
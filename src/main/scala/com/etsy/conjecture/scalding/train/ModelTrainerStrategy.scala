@@ -7,6 +7,8 @@ import com.etsy.conjecture.model._
 
 import com.twitter.scalding._
 
+import scala.collection.JavaConverters._
+
 trait ModelTrainerStrategy[L <: Label, M <: UpdateableModel[L, M]] extends Serializable {
     import Dsl._
 
@@ -25,6 +27,21 @@ trait ModelTrainerStrategy[L <: Label, M <: UpdateableModel[L, M]] extends Seria
 
     def miniBatchSize: Int = 1
 
+    // The parameters which training on an instance reads or writes, for the ShardedModelTrainer, as parameterKey
+    // names them. By default the features of the instance, as for linear models.
+    def parameterNames(instance: LabeledInstance[L]): Iterator[String] = instance.getVector.iterator.asScala.map { e => parameterKey(e.getKey) }
+
+    // The key which the ShardedModelTrainer joins and sums a parameter by, the same for a feature and for the name
+    // decompose gives its parameter (see UpdateableLinearModel.parameterKey), hashed parameters without a
+    // dictionary being named by their hash. Other models use the name as it is.
+    def parameterKey(name: String): String = keyModel match {
+        case m: UpdateableLinearModel[_] => m.parameterKey(name)
+        case _ => name
+    }
+
+    // An empty model to key parameters with, made once per task.
+    @transient private lazy val keyModel: M = getModel
+
     // Function to merge two sub-models.
     // Can be overriden to change default behavior.
     def mergeModels(model1: M, model2: M, iteration1: Int, iteration2: Int): M = {
@@ -32,48 +49,14 @@ trait ModelTrainerStrategy[L <: Label, M <: UpdateableModel[L, M]] extends Seria
         model1
     }
 
+    // Merge two models trained on separate instances, with their iteration and model counts.
+    def mergeTrainedModels(a: (M, Int, Int), b: (M, Int, Int)): (M, Int, Int) = {
+        (mergeModels(a._1, b._1, a._2, b._2), a._2 + b._2, a._3 + b._3)
+    }
+
     // Do something at the end of the iteration.
     def endIteration(model: M, iteration: Int, models: Int): M = {
         model.reScale(1.0 / models)
         model
     }
-
-    // Train the model on a mini batch.
-    // Returns the trained model, remining instances from the list, and the iteration number.
-    def updateModelOnMiniBatch(model: M, instances: List[LabeledInstance[L]], start_iteration: Int): (M, List[LabeledInstance[L]], Int) = {
-        val batch_sz = miniBatchSize // might be something that needs computing who knows.   
-        val mini_batch = new java.util.ArrayList[LabeledInstance[L]](miniBatchSize)
-        val n_batches = instances.size / batch_sz
-        var batch = 0
-        val iterator = instances.iterator
-        while (batch < n_batches) { // one extra iteration to get the remainder into the array.
-            (0 until batch_sz).foreach { i => mini_batch.add(i, iterator.next) }
-            model.update(mini_batch)
-            batch += 1
-        }
-        val remainder = iterator.toList
-        (model, remainder, start_iteration + n_batches)
-    }
-
-    // This implements the associative operation of the model training.
-    // Note that each tuple contains an instance not yet used for training.
-    def modelReduceFunction(a: (M, List[LabeledInstance[L]], Int, Int), b: (M, List[LabeledInstance[L]], Int, Int)): (M, List[LabeledInstance[L]], Int, Int) = {
-        if (a._3 > 0 && b._3 > 0) {
-            // Both models have some prior training.
-            val ua = updateModelOnMiniBatch(a._1, a._2, a._3)
-            val ub = updateModelOnMiniBatch(b._1, b._2, b._3)
-            // Merge together
-            (mergeModels(ua._1, ub._1, ua._3, ub._3), ua._2 ++ ub._2, ua._3 + ub._3, a._4 + b._4)
-        } else if (b._3 > 0) {
-            // Only model b has some prior training.
-            // Update model b using all instances.
-            val uba = updateModelOnMiniBatch(b._1, a._2 ++ b._2, b._3)
-            (uba._1, uba._2, uba._3, b._4)
-        } else {
-            // Either no model is trained, or only a is.
-            // Update model a using whatever intances are available.
-            val uab = updateModelOnMiniBatch(a._1, a._2 ++ b._2, a._3)
-            (uab._1, uab._2, uab._3, a._4)
-        }
-    }
 }
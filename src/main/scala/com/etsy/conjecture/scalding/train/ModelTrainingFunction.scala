@@ -0,0 +1,80 @@
+package com.etsy.conjecture.scalding.train
+
+import cascading.flow.FlowProcess
+import cascading.operation.{BaseOperation, Function, FunctionCall, OperationCall}
+import cascading.tuple.{Fields, Tuple}
+
+import com.etsy.conjecture.data._
+import com.etsy.conjecture.model._
+
+/**
+ * Trains models on the instances of a task as they stream past, without grouping them or carrying them in tuples,
+ * and emits the trained models when the task ends.
+ *
+ * The arguments are (key, instance) or (key, instance, model), the key being e.g. the training bin. A model is
+ * trained for each key seen: the model of the first tuple of the key if given, otherwise a new one from the strategy.
+ * Instances are only buffered up to the mini batch size. The results are (key, model, iterations, 1) for each key,
+ * iterations counting the mini batches, to be merged with ModelTrainerStrategy.mergeTrainedModels.
+ */
+class ModelTrainingFunction[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelTrainerStrategy[L, M], fields: Fields)
+    extends BaseOperation[java.util.HashMap[AnyRef, ModelTrainingFunction.State[L, M]]](fields)
+    with Function[java.util.HashMap[AnyRef, ModelTrainingFunction.State[L, M]]] {
+
+    type Context = java.util.HashMap[AnyRef, ModelTrainingFunction.State[L, M]]
+
+    override def prepare(flowProcess: FlowProcess[_], call: OperationCall[Context]) {
+        call.setContext(new java.util.HashMap[AnyRef, ModelTrainingFunction.State[L, M]]())
+    }
+
+    def operate(flowProcess: FlowProcess[_], call: FunctionCall[Context]) {
+        val arguments = call.getArguments
+        val key = arguments.getObject(0)
+        var state = call.getContext.get(key)
+        if (state == null) {
+            val model = if (arguments.size > 2) arguments.getObject(2).asInstanceOf[M] else strategy.getModel
+            state = new ModelTrainingFunction.State[L, M](model, strategy.miniBatchSize)
+            call.getContext.put(key, state)
+        }
+        state.add(arguments.getObject(1).asInstanceOf[LabeledInstance[L]])
+    }
+
+    // Called at the end of the task, rather than for a tuple.
+    override def flush(flowProcess: FlowProcess[_], call: OperationCall[Context]) {
+        val collector = call.asInstanceOf[FunctionCall[Context]].getOutputCollector
+        val it = call.getContext.entrySet.iterator
+        while (it.hasNext) {
+            val e = it.next
+            e.getValue.finish()
+            collector.add(new Tuple(e.getKey, e.getValue.model, Int.box(e.getValue.iterations), Int.box(1)))
+        }
+        call.getContext.clear()
+    }
+}
+
+object ModelTrainingFunction {
+
+    class State[L <: Label, M <: UpdateableModel[L, M]](val model: M, batchSize: Int) {
+        val batch = new java.util.ArrayList[LabeledInstance[L]](batchSize)
+        var iterations = 0
+
+        def add(instance: LabeledInstance[L]) {
+            batch.add(instance)
+            if (batch.size >= batchSize) {
+                update()
+            }
+        }
+
+        // Train on what remains of the last mini batch.
+        def finish() {
+            if (!batch.isEmpty) {
+                update()
+            }
+        }
+
+        private def update() {
+            model.update(batch)
+            batch.clear()
+            iterations += 1
+        }
+    }
+}
@@ -58,6 +58,30 @@ class MulticlassModelTrainer(args: Args, categories: Array[String]) extends Abst
      */
     val examplesPerEpoch = args.getOrElse("examples_per_epoch", "10000").toDouble
 
+    /** Whether to catch up lazy l1 / l2 regularization in closed form instead of looping over skipped iterations. **/
+    val closedFormLazyUpdate = args.boolean("closed_form_lazy_update")
+
+    /** Key the model parameters by 64 bit feature hash, optionally keeping names for explanations. **/
+    val hashedFeatures = args.boolean("hashed_features")
+    val hashDictionary = args.boolean("hash_dictionary")
+    val hashBits = args.getOrElse("hash_bits", "64").toInt
+
+    /** Keep the (hashed) model parameters in direct memory, off the java heap. **/
+    val offHeap = args.boolean("off_heap")
+
+    /** Keep the (hashed) parameters of all categories in one table, scoring every category in one pass. **/
+    val sharedParameters = args.boolean("shared_parameters")
+
+    /** Threads updating the per category models, each takes a share of the categories through a whole minibatch. **/
+    val updateThreads = args.getOrElse("update_threads", "1").toInt
+
+    /**
+     * Softmax only: train each instance on its true category and this many sampled negatives, 0 for every category.
+     * Negatives are drawn "uniform", by label "frequency", or "hard" as the best scoring of a larger uniform sample.
+     */
+    val sampledNegatives = args.getOrElse("sampled_negatives", "0").toInt
+    val negativeSampling = SoftmaxLogisticRegression.NegativeSampling.valueOf(args.getOrElse("negative_sampling", "uniform").toUpperCase)
+
     /**
      * Weight on laplace regularization- a laplace prior on the parameters
      * sparsity inducing ala lasso
@@ -90,6 +114,19 @@ class MulticlassModelTrainer(args: Args, categories: Array[String]) extends Abst
      */
     val ftrlAlpha = args.getOrElse("ftrlAlpha", "1.0").toDouble
     val ftrlBeta = args.getOrElse("ftrlBeta", "1.0").toDouble
+    val ftrlFloatState = args.boolean("ftrl_float_state")
+
+    /**
+     *  Which new features optimizers with per feature state (adagrad, ftrl,
+     *  control) keep state for: "none" admits all, "poisson" admits with
+     *  probability admission_prob on each sighting, "bloom" admits once a
+     *  feature has been seen admission_count times.
+     */
+    val featureAdmission: FeatureAdmission = args.getOrElse("feature_admission", "none") match {
+        case "none" => null
+        case "poisson" => new PoissonFeatureAdmission(args.getOrElse("admission_prob", "0.1").toDouble)
+        case "bloom" => new BloomFilterFeatureAdmission(args.getOrElse("admission_count", "2").toInt)
+    }
 
     val classSampleProbabilities = args.optional("class_probs")
       .map { entries : String =>
@@ -125,6 +162,7 @@ class MulticlassModelTrainer(args: Args, categories: Array[String]) extends Abst
 
     override def modelPostProcess(m: UpdateableMulticlassLinearModel) : UpdateableMulticlassLinearModel = {
         m.thresholdParameters(finalThresholding)
+        println("rejected features: " + m.getRejectedFeatures)
         m.setArgString(args.toString)
         m.teardown()
         m
@@ -137,7 +175,7 @@ class MulticlassModelTrainer(args: Args, categories: Array[String]) extends Abst
             case "elastic_net" => new ElasticNetOptimizer()
             case "adagrad" => new AdagradOptimizer()
             case "passive_aggressive" => new PassiveAggressiveOptimizer().setC(aggressiveness).isHinge(true)
-            case "ftrl" => new FTRLOptimizer().setAlpha(ftrlAlpha).setBeta(ftrlBeta)
+            case "ftrl" => new FTRLOptimizer().setAlpha(ftrlAlpha).setBeta(ftrlBeta).setUseFloatState(ftrlFloatState)
             case "mira" => new MIRAOptimizer()
         }
 
@@ -147,16 +185,32 @@ class MulticlassModelTrainer(args: Args, categories: Array[String]) extends Abst
         .setUseExponentialLearningRate(useExponentialLearningRate)
         .setExponentialLearningRateBase(exponentialLearningRateBase)
         .setInitialLearningRate(initialLearningRate)
+        .setUseClosedFormLazyUpdate(closedFormLazyUpdate)
+        .setFeatureAdmission(featureAdmission)
 
     def buildMultiClassModel(buildSubModel : () => UpdateableLinearModel[BinaryLabel], categories : Array[String]) : UpdateableMulticlassLinearModel = {
         val param = categories.map{ i : String => 
-            (i, buildSubModel().setTruncationPeriod(truncationPeriod)
+            val subModel = buildSubModel().setTruncationPeriod(truncationPeriod)
                 .setTruncationThreshold(truncationThresh)
-                .setTruncationUpdate(truncationAlpha))
+                .setTruncationUpdate(truncationAlpha)
+            if (offHeap) subModel.setOffHeapParameters(null, hashBits)
+            else if (hashedFeatures) subModel.setHashedParameters(hashDictionary, hashBits)
+            (i, subModel)
             }.toMap
         new UpdateableMulticlassLinearModel(new java.util.HashMap[String,UpdateableLinearModel[BinaryLabel]](param) )
     }
 
+    def buildSoftmaxModel(categories : Array[String]) : UpdateableMulticlassLinearModel = {
+        // The parameters are shared from the start, with the hash bits of the instances.
+        val model = new SoftmaxLogisticRegression(categories, optimizer, hashDictionary, hashBits)
+        categories.foreach { c : String =>
+            model.getCategoryModel(c).setTruncationPeriod(truncationPeriod)
+                .setTruncationThreshold(truncationThresh)
+                .setTruncationUpdate(truncationAlpha)
+        }
+        model.setSampledNegatives(sampledNegatives, negativeSampling)
+    }
+
     if(modelType == "mira" && optimizerType != "mira"){
         throw new IllegalArgumentException("MIRA only uses a MIRAOptimizer");
     }
@@ -165,18 +219,24 @@ class MulticlassModelTrainer(args: Args, categories: Array[String]) extends Abst
       val model = modelType match {
         case "perceptron" => buildMultiClassModel({() => new Hinge(optimizer).setThreshold(0.0)}, categories)
         case "linear_svm" => buildMultiClassModel({() => new Hinge(optimizer).setThreshold(1.0)}, categories)
-        // TODO: re-make proper multiclass logistic regression instead of this one vs all thing.
         case "logistic_regression" => buildMultiClassModel({() => new LogisticRegression(optimizer)}, categories)
+        case "softmax_logistic_regression" => buildSoftmaxModel(categories)
         // TODO: re-make multiclass mira.
         case "mira" => buildMultiClassModel({() => new MIRA()}, categories)
       }
       model.setModelType(modelType)
+      if (sharedParameters && modelType != "softmax_logistic_regression") model.setSharedParameters(hashDictionary, hashBits)
+      model.setUpdateThreads(updateThreads)
       model
     }
 
     val bins = args.getOrElse("bins", "100").toInt
 
-    val trainer = if (args.boolean("large")) new LargeModelTrainer(this, bins) else new SmallModelTrainer(this)
+    /** Merge the mapper models through a tree of reducers aggregation_levels deep, each merging about aggregation_fan_in models. 0 merges them on one reducer. **/
+    val aggregationFanIn = args.getOrElse("aggregation_fan_in", "0").toInt
+    val aggregationLevels = args.getOrElse("aggregation_levels", "2").toInt
+
+    val trainer = if (args.boolean("large")) new LargeModelTrainer(this, bins) else new SmallModelTrainer(this, aggregationFanIn, aggregationLevels)
 
     /** Size of minibatch for mini-batch training, defaults to 1 which is just SGD. **/
     val batchsz = args.getOrElse("mini_batch_size", "1").toInt
@@ -43,6 +43,21 @@ class RegressionModelTrainer(args: Args) extends AbstractModelTrainer[RealValued
 
     val ftrlBeta = args.getOrElse("ftrlBeta", "1.0").toDouble
 
+    // keep the ftrl per feature state as floats, halving its memory.
+    val ftrlFloatState = args.boolean("ftrl_float_state")
+
+    /**
+     *  Which new features optimizers with per feature state (adagrad, ftrl,
+     *  control) keep state for: "none" admits all, "poisson" admits with
+     *  probability admission_prob on each sighting, "bloom" admits once a
+     *  feature has been seen admission_count times.
+     */
+    val featureAdmission: FeatureAdmission = args.getOrElse("feature_admission", "none") match {
+        case "none" => null
+        case "poisson" => new PoissonFeatureAdmission(args.getOrElse("admission_prob", "0.1").toDouble)
+        case "bloom" => new BloomFilterFeatureAdmission(args.getOrElse("admission_count", "2").toInt)
+    }
+
     // initial learning rate used for SGD learning. this decays according to the
     // inverse of the epoch
     val initialLearningRate = args.getOrElse("rate", "0.1").toDouble
@@ -57,6 +72,17 @@ class RegressionModelTrainer(args: Args) extends AbstractModelTrainer[RealValued
     // in which case the "epoch" will take a fractional amount equal to {# examples seen} / examples_per_epoch.
     val examplesPerEpoch = args.getOrElse("examples_per_epoch", "10000").toDouble
 
+    // Whether to catch up lazy l1 / l2 regularization in closed form instead of looping over skipped iterations.
+    val closedFormLazyUpdate = args.boolean("closed_form_lazy_update")
+
+    /** Key the model parameters by 64 bit feature hash, optionally keeping names for explanations. **/
+    val hashedFeatures = args.boolean("hashed_features")
+    val hashDictionary = args.boolean("hash_dictionary")
+    val hashBits = args.getOrElse("hash_bits", "64").toInt
+
+    /** Keep the (hashed) model parameters in direct memory, off the java heap. **/
+    val offHeap = args.boolean("off_heap")
+
     /**
      *  Choose an optimizer to use
      */
@@ -64,23 +90,45 @@ class RegressionModelTrainer(args: Args) extends AbstractModelTrainer[RealValued
         case "elastic_net" => new ElasticNetOptimizer()
         case "adagrad" => new AdagradOptimizer()
         case "passive_aggressive" => new PassiveAggressiveOptimizer().setC(aggressiveness).isHinge(false)
-        case "ftrl" => new FTRLOptimizer().setAlpha(ftrlAlpha).setBeta(ftrlBeta)
+        case "ftrl" => new FTRLOptimizer().setAlpha(ftrlAlpha).setBeta(ftrlBeta).setUseFloatState(ftrlFloatState)
     }
     val optimizer = o.setExamplesPerEpoch(examplesPerEpoch)
                      .setUseExponentialLearningRate(useExponentialLearningRate)
                      .setExponentialLearningRateBase(exponentialLearningRateBase)
                      .setInitialLearningRate(initialLearningRate)
+                     .setUseClosedFormLazyUpdate(closedFormLazyUpdate)
+                     .setFeatureAdmission(featureAdmission)
+
+    override def modelPostProcess(m: UpdateableLinearModel[RealValuedLabel]): UpdateableLinearModel[RealValuedLabel] = {
+        println("rejected features: " + m.getRejectedFeatures)
+        m
+    }
 
     def getModel: UpdateableLinearModel[RealValuedLabel] = {
         val model = modelType match {
             case "least_squares" => new LeastSquaresRegressionModel(optimizer)
         }
+        if (offHeap) model.setOffHeapParameters(null, hashBits)
+        else if (hashedFeatures) model.setHashedParameters(hashDictionary, hashBits)
         model
     }
 
     val bins = args.getOrElse("bins", "100").toInt
 
-    val trainer = if (args.boolean("large")) new LargeModelTrainer(this, bins) else new SmallModelTrainer(this)
+    /** Merge the mapper models through a tree of reducers aggregation_levels deep, each merging about aggregation_fan_in models. 0 merges them on one reducer. **/
+    val aggregationFanIn = args.getOrElse("aggregation_fan_in", "0").toInt
+    val aggregationLevels = args.getOrElse("aggregation_levels", "2").toInt
+
+    /**
+     * With --sharded, or when retraining with --large, the parameters are partitioned over this many reducers,
+     * and each bin only receives those it needs.
+     */
+    val shards = args.getOrElse("shards", "100").toInt
+
+    val trainer =
+        if (args.boolean("sharded")) new ShardedModelTrainer(this, bins, shards)
+        else if (args.boolean("large")) new LargeModelTrainer(this, bins, shards)
+        else new SmallModelTrainer(this, aggregationFanIn, aggregationLevels)
 
     def train(instances: Pipe, instanceField: Symbol = 'instance, modelField: Symbol = 'model): Pipe = {
         trainer.train(instances, instanceField, modelField)
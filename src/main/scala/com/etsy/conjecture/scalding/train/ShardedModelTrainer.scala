@@ -0,0 +1,150 @@
+package com.etsy.conjecture.scalding.train
+
+import cascading.pipe.Pipe
+import cascading.pipe.joiner.InnerJoin
+
+import com.etsy.conjecture.data._
+import com.etsy.conjecture.model._
+
+import com.twitter.scalding._
+
+import scala.collection.JavaConverters._
+
+/**
+ * Trains a model too large to copy to every bin. The parameters are kept as a pipe of ('param, 'value),
+ * partitioned by parameter over `shards` reducers, and an iteration:
+ *
+ *  - collects the parameters each bin of instances reads or writes (see ModelTrainerStrategy.parameterNames),
+ *  - joins these requests with the shards by ModelTrainerStrategy.parameterKey, so a bin receives only the
+ *    parameters it needs, hashed ones included,
+ *  - trains a partial model on each bin and sends back the sparse change of its parameters,
+ *  - adds the average change over the bins to the parameters of each shard.
+ *
+ * Shuffle and memory per task scale with the parameters active in a bin rather than with the whole model,
+ * unlike the LargeModelTrainer which sends every parameter to every bin. Parameters a bin does not touch
+ * are left as they are, so lazy regularization only reaches the active ones, and optimizer state
+ * (e.g., adagrad) starts afresh each iteration as with the LargeModelTrainer.
+ */
+class ShardedModelTrainer[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelTrainerStrategy[L, M], training_bins: Int, shards: Int) extends AbstractModelTrainer[L, M] {
+    import Dsl._
+    import ShardedModelTrainer.Epoch
+
+    def train(instances: Pipe, instanceField: Symbol = 'instance, modelField: Symbol = 'model): Pipe = {
+        assemble(trainParameters(instances, instanceField, None), modelField)
+    }
+
+    def reTrain(instances: Pipe, instanceField: Symbol, model: Pipe, modelField: Symbol): Pipe = {
+        assemble(trainParameters(instances, instanceField, Some(decompose(model, modelField))), modelField)
+    }
+
+    /**
+     * The trained parameters as ('param, 'value), left sharded, starting from the given parameters if any.
+     */
+    def trainParameters(instances: Pipe, instanceField: Symbol, initial: Option[Pipe]): Pipe = {
+        val binned = instances
+            .project(instanceField)
+            .map(instanceField -> 'bin) { b: LabeledInstance[L] => b.hashCode % training_bins }
+        (1 to strategy.getIters).foldLeft(initial) { (params, i) => Some(trainIteration(params, binned, instanceField)) }.get
+    }
+
+    // The parameters of a model as ('param, 'value), its epoch included.
+    def decompose(model: Pipe, modelField: Symbol): Pipe = {
+        model.flatMapTo(modelField -> ('param, 'value)) { m: M =>
+            m.decompose.asScala.map { e => (e.getKey, e.getValue.doubleValue) } ++ Iterator((Epoch, m.getEpoch.toDouble))
+        }
+    }
+
+    // Build the model from its parameters, on a single reducer.
+    def assemble(params: Pipe, modelField: Symbol): Pipe = {
+        params.groupAll {
+            _.mapStream[(String, Double), M](('param, 'value) -> modelField) { it =>
+                val model = strategy.getModel
+                it.foreach { case (param, value) =>
+                    if (param == Epoch) model.setEpoch(value.toLong) else model.setParameter(param, value)
+                }
+                Iterator(strategy.modelPostProcess(model))
+            }
+        }
+    }
+
+    protected def trainIteration(params: Option[Pipe], binned: Pipe, instanceField: Symbol): Pipe = {
+        val kindField = '__kind__
+        // Subsample instances.
+        val subsampled = binned.filter(instanceField) { i: LabeledInstance[L] => math.random < strategy.sampleProb(i.getLabel) }
+        val instances = subsampled
+            .insert((kindField, 'param, 'value), (1, null: String, 0.0))
+            .project('bin, kindField, 'param, 'value, instanceField)
+        // Send each bin the parameters it needs, none are needed to start from zero.
+        val stream = params match {
+            case Some(pipe) =>
+                subsampled
+                    .flatMapTo((instanceField, 'bin) -> ('param, 'bin)) { x: (LabeledInstance[L], Int) =>
+                        strategy.parameterNames(x._1).map { p => (p, x._2) } ++ Iterator((Epoch, x._2))
+                    }
+                    .groupBy('param, 'bin) { _.size('__requests__).reducers(shards) }
+                    .rename('param -> '__request__)
+                    .joinWithSmaller('__request__ -> '__key__, keyed(pipe), new InnerJoin(), shards)
+                    .insert((kindField, instanceField), (0, null: LabeledInstance[L]))
+                    .project('bin, kindField, 'param, 'value, instanceField) ++ instances
+            case None => instances
+        }
+        val deltas = stream
+            // Parameters first, then the instances of the bin.
+            .groupBy('bin) {
+                _.sortBy(kindField)
+                    .mapStream[(Int, String, Double, LabeledInstance[L]), (String, Double)](
+                        (kindField, 'param, 'value, instanceField) -> ('param, 'value))(trainBin)
+                    .reducers(training_bins)
+            }
+            .mapTo(('param, 'value) -> ('param, 'value)) { x: (String, Double) => (x._1, x._2 / training_bins) }
+        // Bins may name a hashed parameter by its feature or by its hash, so the sum is by key.
+        keyed(params.map { _ ++ deltas }.getOrElse(deltas))
+            .groupBy('__key__) {
+                _.sum[Double]('value)
+                    .reduce('param) { (a: String, b: String) => if (FeatureHasher.isHashName(a)) b else a }
+                    .reducers(shards)
+            }
+            .filter('value) { v: Double => v != 0.0 }
+            .project('param, 'value)
+    }
+
+    // The parameters with their key, the epoch keeping its name.
+    protected def keyed(params: Pipe): Pipe = {
+        params.map('param -> '__key__) { p: String => if (p == Epoch) p else strategy.parameterKey(p) }
+    }
+
+    // Train a partial model on a bin, returning the change of its parameters.
+    protected def trainBin(tuples: Iterator[(Int, String, Double, LabeledInstance[L])]): Iterator[(String, Double)] = {
+        val model = strategy.getModel
+        val initial = scala.collection.mutable.HashMap[String, Double]()
+        val batch = new java.util.ArrayList[LabeledInstance[L]](strategy.miniBatchSize)
+        var startEpoch = model.getEpoch
+        tuples.foreach { case (kind, param, value, instance) =>
+            if (kind == 0) {
+                if (param == Epoch) {
+                    startEpoch = value.toLong
+                    model.setEpoch(startEpoch)
+                } else {
+                    model.setParameter(param, value)
+                    initial(param) = value
+                }
+            } else {
+                batch.add(instance)
+                if (batch.size >= strategy.miniBatchSize) {
+                    model.update(batch)
+                    batch.clear()
+                }
+            }
+        }
+        if (!batch.isEmpty) model.update(batch)
+        // Parameters which went to zero are no longer in the model.
+        val trained = model.decompose.asScala.map { e => (e.getKey, e.getValue - initial.remove(e.getKey).getOrElse(0.0)) }.toList
+        (trained.iterator ++ initial.iterator.map { case (p, v) => (p, -v) } ++ Iterator((Epoch, (model.getEpoch - startEpoch).toDouble)))
+            .filter { _._2 != 0.0 }
+    }
+}
+
+object ShardedModelTrainer {
+    // The epoch travels with the parameters under this name.
+    val Epoch = "__epoch__"
+}
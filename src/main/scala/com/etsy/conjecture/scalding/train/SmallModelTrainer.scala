@@ -1,18 +1,24 @@
 package com.etsy.conjecture.scalding.train
 
-import cascading.pipe.Pipe
+import cascading.flow.FlowProcess
+import cascading.operation.{BaseOperation, Function, FunctionCall}
+import cascading.pipe.{Each, Pipe}
+import cascading.tuple.{Fields, Tuple}
 
 import com.etsy.conjecture.data._
 import com.etsy.conjecture.model._
 
 import com.twitter.scalding._
 
-class SmallModelTrainer[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelTrainerStrategy[L, M]) extends AbstractModelTrainer[L, M] {
+class SmallModelTrainer[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelTrainerStrategy[L, M], aggregationFanIn: Int = 0, aggregationLevels: Int = 2) extends AbstractModelTrainer[L, M] {
     import Dsl._
 
     // Functionality to train a small model (hundreds of thousands of features, arbitrarily many instances)
     // Trains a model on each mapper, then aggregates them on one reducer.
     // The last step is expensive if the dimensionality is great, since the reducer has to deserialize large StringKeyedVectors.
+    // With an aggregation fan in above 1 the mapper models are instead merged through a tree of reducers: each level
+    // has as many groups as the models of the level below over the fan in, so a group merges about fan in models,
+    // and the last reducer merges what remains of the last level.
     def train(instances: Pipe, instanceField: Symbol = 'instance, modelField: Symbol = 'mode): Pipe = {
         // Begin training.
         trainRecursively(None, modelField, instances, instanceField, strategy.getIters)
@@ -30,24 +36,43 @@ class SmallModelTrainer[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelT
         val modelCountField: Symbol = '__model_count__
         // Subsample instances.
         val subsampled = instancePipe.filter(instanceField) { i: LabeledInstance[L] => math.random < strategy.sampleProb(i.getLabel) }
-        // Get models on each mapper.
-        (modelPipe match {
-            case Some(pipe) => subsampled.project(instanceField).crossWithTiny(pipe.project(modelField))
-            case _ => subsampled.mapTo(instanceField -> (instanceField, modelField)) { x: LabeledInstance[L] => (x, strategy.getModel) }
-        })
-            // Count iteration numbers.
-            .insert(iterationField, 0)
-            .insert(modelCountField, 1)
-            // Convert instances to instance list.
-            .map(instanceField -> instanceField) { i: LabeledInstance[L] => List(i) }
-            // Perform map-side aggregation of models, which are then sent to a single reduce node for merging.
-            .groupAll {
-                _.reduce[(M, List[LabeledInstance[L]], Int, Int)](
-                    (modelField, instanceField, iterationField, modelCountField) -> (modelField, instanceField, iterationField, modelCountField))(strategy.modelReduceFunction)
-            }
+        // Train a model on each mapper, streaming its instances into the model.
+        val keyField = '__key__
+        val (trainingPipe, argumentFields) = modelPipe match {
+            case Some(pipe) => (subsampled.project(instanceField).crossWithTiny(pipe.project(modelField)), (keyField, instanceField, modelField))
+            case _ => (subsampled.project(instanceField), (keyField, instanceField))
+        }
+        val trained = new Each(trainingPipe.insert(keyField, 0), argumentFields,
+            new ModelTrainingFunction[L, M](strategy, (keyField, modelField, iterationField, modelCountField)), Fields.RESULTS)
+        // The models are then merged on one reducer, or through a tree of them.
+        aggregate(trained, (modelField, iterationField, modelCountField))
             .mapTo((modelField, iterationField, modelCountField) -> modelField) { x: (M, Int, Int) => strategy.endIteration(x._1, x._2, x._3) }
     }
 
+    // The merge is associative, and the iteration and model counts add up, so endIteration averages the same way
+    // whether the models are merged in one reducer or in several levels.
+    protected def aggregate(pipe: Pipe, fields: (Symbol, Symbol, Symbol)): Pipe = {
+        def merge(group: GroupBuilder): GroupBuilder =
+            group.reduce[(M, Int, Int)](fields -> fields)(strategy.mergeTrainedModels)
+        if (aggregationFanIn > 1 && aggregationLevels > 1) {
+            def groupField(level: Int) = Symbol("__group_" + level + "__")
+            val tasksField = '__tasks__
+            // The groups of a level for the models of the tasks, about a fan in of models of the level below each.
+            def groups(tasks: Int, level: Int) = math.max(1, math.ceil(tasks / math.pow(aggregationFanIn, level)).toInt)
+            // The model of a task starts as the group of its number, fixed per task so that map-side aggregation
+            // still leaves one model per mapper. Each level then deals the groups below round robin over its own.
+            val numbered = new Each(pipe, Fields.NONE, new TaskNumber((groupField(0), tasksField)), Fields.ALL)
+            (1 until aggregationLevels).foldLeft(numbered: Pipe) { (p, level) =>
+                p.map((groupField(level - 1), tasksField) -> groupField(level)) { x: (Int, Int) => x._1 % groups(x._2, level) }
+                    // The reducers are planned before the tasks are known, as if there were fan in ^ levels of them.
+                    .groupBy(groupField(level), tasksField) { g => merge(g).reducers(math.pow(aggregationFanIn, aggregationLevels - level).toInt) }
+            }
+                .groupAll { merge }
+        } else {
+            pipe.groupAll { merge }
+        }
+    }
+
     protected def trainRecursively(modelPipe: Option[Pipe], modelField: Symbol, instancePipe: Pipe, instanceField: Symbol, iterations: Int): Pipe = {
         val updatedPipe = trainIteration(modelPipe, modelField, instancePipe, instanceField)
         if (iterations == 1) {
@@ -58,3 +83,10 @@ class SmallModelTrainer[L <: Label, M <: UpdateableModel[L, M]](strategy: ModelT
     }
 
 }
+
+// The number of the task and the number of tasks, e.g. mappers.
+class TaskNumber(fields: Fields) extends BaseOperation[Any](fields) with Function[Any] {
+    def operate(flowProcess: FlowProcess[_], call: FunctionCall[Any]) {
+        call.getOutputCollector.add(new Tuple(Int.box(flowProcess.getCurrentSliceNum), Int.box(flowProcess.getNumProcessSlices)))
+    }
+}
@@ -0,0 +1,116 @@
+package com.etsy.conjecture.scalding.util
+
+import cascading.flow.FlowProcess
+import cascading.operation.{BaseOperation, Function, FunctionCall, OperationCall}
+import cascading.pipe.{Each, Pipe}
+import cascading.tuple.{Fields, Tuple}
+
+import com.etsy.conjecture.data.{ClusterPrediction, Label, LabeledInstance, MulticlassPrediction, StringKeyedVector}
+import com.etsy.conjecture.model.{ClusteringModel, UpdateableLinearModel, UpdateableModel, UpdateableMulticlassLinearModel}
+
+import java.util.{Arrays, HashMap => JHashMap}
+
+/**
+ * Scores the instances of a pipe crossed with a model in batches, with UpdateableModel.predictBatch into score rows
+ * reused across batches, rather than predicting a label per tuple. Tuples are held until a batch is full or the task
+ * ends, so the output is only the fields of the function: (instance, prediction, explanation). The prediction is the
+ * score of a linear model, the MulticlassPrediction of a multiclass model or the ClusterPrediction of a clustering
+ * model, and the explanation that of the explainTop largest contributions to the prediction of a linear or multiclass
+ * model (all of them for -1), else null.
+ *
+ *   BatchScorer.score(instances.crossWithTiny(model), 'model, 'instance, 'pred, 'explain)
+ */
+object BatchScorer {
+
+  val DEFAULT_BATCH_SIZE = 1024
+
+  def score(pipe: Pipe, modelField: Fields, instanceField: Fields, predictionField: Symbol, explainField: Symbol,
+            batchSize: Int = DEFAULT_BATCH_SIZE, explainTop: Int = 0): Pipe = {
+    val declared = instanceField.append(new Fields(predictionField.name, explainField.name))
+    new Each(pipe, modelField.append(instanceField), new ScoreFunction(declared, batchSize, explainTop), Fields.RESULTS)
+  }
+
+  class Batch(size: Int) {
+    var model: UpdateableModel[_, _] = null
+    // The categories or clusters of the columns of the scores, null for a linear model.
+    var names: Array[String] = null
+    val instances = new Array[AnyRef](size)
+    val vectors = new Array[StringKeyedVector](size)
+    var scores = Array.ofDim[Double](size, 1)
+    var count = 0
+
+    def width: Int = if (names == null) 1 else names.length
+
+    def setModel(m: UpdateableModel[_, _]) {
+      model = m
+      names = m match {
+        case multiclass: UpdateableMulticlassLinearModel => multiclass.getCategories
+        case clustering: ClusteringModel[_] => clustering.getClusters
+        case _ => null
+      }
+      if (scores(0).length < width) {
+        scores = Array.ofDim[Double](size, width)
+      }
+    }
+  }
+
+  class ScoreFunction(declared: Fields, batchSize: Int, explainTop: Int)
+      extends BaseOperation[Batch](declared) with Function[Batch] {
+
+    override def prepare(flowProcess: FlowProcess[_], call: OperationCall[Batch]) {
+      call.setContext(new Batch(batchSize))
+    }
+
+    def operate(flowProcess: FlowProcess[_], call: FunctionCall[Batch]) {
+      val batch = call.getContext
+      val model = call.getArguments.getObject(0).asInstanceOf[UpdateableModel[_, _]]
+      // A batch is scored by one model, which is the same object for every tuple crossed with a tiny pipe.
+      if (batch.model ne model) {
+        emit(call, batch)
+        batch.setModel(model)
+      }
+      val instance = call.getArguments.getObject(1).asInstanceOf[LabeledInstance[_ <: Label]]
+      batch.instances(batch.count) = instance
+      batch.vectors(batch.count) = instance.getVector
+      batch.count += 1
+      if (batch.count == batchSize) {
+        emit(call, batch)
+      }
+    }
+
+    // Called at the end of the task, rather than for a tuple.
+    override def flush(flowProcess: FlowProcess[_], call: OperationCall[Batch]) {
+      emit(call.asInstanceOf[FunctionCall[Batch]], call.getContext)
+    }
+
+    private def emit(call: FunctionCall[Batch], batch: Batch) {
+      if (batch.count > 0) {
+        batch.model.predictBatch(batch.vectors, batch.count, batch.scores)
+        for (i <- 0 until batch.count) {
+          call.getOutputCollector.add(new Tuple(batch.instances(i), prediction(batch, batch.scores(i)), explain(batch.model, batch.vectors(i))))
+          batch.instances(i) = null
+          batch.vectors(i) = null
+        }
+        batch.count = 0
+      }
+    }
+
+    private def prediction(batch: Batch, row: Array[Double]): AnyRef = batch.model match {
+      case _: UpdateableMulticlassLinearModel => new MulticlassPrediction(batch.names, Arrays.copyOf(row, batch.width))
+      case _: ClusteringModel[_] =>
+        val scores = new JHashMap[String, java.lang.Double]()
+        for (k <- 0 until batch.width) {
+          scores.put(batch.names(k), row(k))
+        }
+        new ClusterPrediction(scores)
+      case _ => java.lang.Double.valueOf(row(0))
+    }
+
+    private def explain(model: UpdateableModel[_, _], vector: StringKeyedVector): String = model match {
+      case _ if explainTop == 0 => null
+      case linear: UpdateableLinearModel[_] => linear.explainPrediction(vector, explainTop)
+      case multiclass: UpdateableMulticlassLinearModel => multiclass.explainPrediction(vector, explainTop)
+      case _ => null
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.etsy.conjecture.scalding.util
+
+import java.nio.ByteBuffer
+
+import cascading.flow.{FlowDef, FlowProcess}
+import cascading.operation.{BaseOperation, Function, FunctionCall, OperationCall}
+import cascading.pipe.{Each, Pipe}
+import cascading.tuple.{Fields, Tuple}
+
+import com.etsy.conjecture.data._
+import com.twitter.scalding._
+
+import org.apache.hadoop.io.{BytesWritable, NullWritable}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Training instances cached as ColumnarInstanceBlocks in a sequence file of (NullWritable, BytesWritable), for jobs
+ * which read the same instances every epoch. The blocks are several times smaller than kryo serialized instances and
+ * decode without reflection or hashing any feature names. Instance ids and supporting data are not kept, and the
+ * vectors are read back as SortedKeyedVectors with float precision values.
+ *
+ *   ColumnarInstances.write(instances, 'instance, "cache", hashBits = 64)
+ *   ColumnarInstances.read("cache") // field 'instance
+ *
+ * Outside of hadoop, the same blocks can be written to and mapped from a local file with ColumnarInstanceWriter and
+ * ColumnarInstanceReader.
+ */
+object ColumnarInstances {
+
+  def source(path: String) = WritableSequenceFile[NullWritable, BytesWritable](path, ('key, 'block))
+
+  def read(path: String, instanceField: Symbol = 'instance)(implicit flowDef: FlowDef, mode: Mode): Pipe = {
+    source(path).read
+      .flatMapTo('block -> instanceField) { b: BytesWritable =>
+        ColumnarInstanceBlock.decode(ByteBuffer.wrap(b.getBytes, 0, b.getLength)).asScala
+      }
+  }
+
+  def write(instances: Pipe, instanceField: Symbol, path: String, hashBits: Int = 64,
+            blockSize: Int = ColumnarInstanceWriter.DEFAULT_BLOCK_SIZE)(implicit flowDef: FlowDef, mode: Mode): Pipe = {
+    new Each(instances, new Fields(instanceField.name), new BlockFunction(hashBits, blockSize), Fields.RESULTS)
+      .write(source(path))
+  }
+
+  /**
+   * Collects the instances of a task into blocks of blockSize, emitting each as (key, block).
+   */
+  class BlockFunction(hashBits: Int, blockSize: Int)
+      extends BaseOperation[ColumnarInstanceBlock.Builder](new Fields("key", "block"))
+      with Function[ColumnarInstanceBlock.Builder] {
+
+    override def prepare(flowProcess: FlowProcess[_], call: OperationCall[ColumnarInstanceBlock.Builder]) {
+      call.setContext(new ColumnarInstanceBlock.Builder(hashBits))
+    }
+
+    def operate(flowProcess: FlowProcess[_], call: FunctionCall[ColumnarInstanceBlock.Builder]) {
+      val block = call.getContext
+      block.add(call.getArguments.getObject(0).asInstanceOf[LabeledInstance[_ <: Label]])
+      if (block.size >= blockSize) {
+        emit(call, block)
+      }
+    }
+
+    // Called at the end of the task, rather than for a tuple.
+    override def flush(flowProcess: FlowProcess[_], call: OperationCall[ColumnarInstanceBlock.Builder]) {
+      emit(call.asInstanceOf[FunctionCall[ColumnarInstanceBlock.Builder]], call.getContext)
+    }
+
+    private def emit(call: FunctionCall[ColumnarInstanceBlock.Builder], block: ColumnarInstanceBlock.Builder) {
+      if (block.size > 0) {
+        call.getOutputCollector.add(new Tuple(NullWritable.get, new BytesWritable(block.toBytes)))
+        block.clear()
+      }
+    }
+  }
+}
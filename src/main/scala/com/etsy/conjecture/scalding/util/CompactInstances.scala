@@ -0,0 +1,60 @@
+package com.etsy.conjecture.scalding.util
+
+import cascading.flow.FlowDef
+import cascading.pipe.Pipe
+
+import com.esotericsoftware.kryo.Kryo
+import com.esotericsoftware.kryo.io.{Input, Output}
+import com.etsy.conjecture.data._
+import com.twitter.scalding._
+
+import org.apache.hadoop.io.{BytesWritable, NullWritable}
+
+import org.objenesis.strategy.StdInstantiatorStrategy
+
+/**
+ * Training instances cached in a sequence file of (NullWritable, BytesWritable), each encoded with the compact
+ * serializers of ConjectureKryoRegistrar by a kryo of its own rather than the kryo of the job. Unlike ConjectureKryo,
+ * which registers the serializers for everything a job writes, only the cache depends on them, and the instances
+ * keep their ids, supporting data and double values, unlike ColumnarInstances.
+ *
+ *   CompactInstances.write(instances, 'instance, "cache")
+ *   CompactInstances.read("cache") // field 'instance
+ */
+object CompactInstances {
+
+  def source(path: String) = WritableSequenceFile[NullWritable, BytesWritable](path, ('key, 'bytes))
+
+  def read(path: String, instanceField: Symbol = 'instance, prefixKeys: Boolean = false)(implicit flowDef: FlowDef, mode: Mode): Pipe = {
+    val codec = new Codec(prefixKeys)
+    source(path).read
+      .mapTo('bytes -> instanceField) { b: BytesWritable => codec.decode(b) }
+  }
+
+  def write(instances: Pipe, instanceField: Symbol, path: String, prefixKeys: Boolean = false)(implicit flowDef: FlowDef, mode: Mode): Pipe = {
+    val codec = new Codec(prefixKeys)
+    instances
+      .mapTo(instanceField -> ('key, 'bytes)) { i: LabeledInstance[_ <: Label] => (NullWritable.get, codec.encode(i)) }
+      .write(source(path))
+  }
+
+  // A kryo with the compact serializers registered, made once per task.
+  class Codec(prefixKeys: Boolean) extends Serializable {
+    @transient lazy val kryo: Kryo = {
+      val k = new Kryo
+      k.setInstantiatorStrategy(new StdInstantiatorStrategy)
+      new ConjectureKryoRegistrar(prefixKeys).registerClasses(k)
+      k
+    }
+
+    @transient lazy val output = new Output(4096, -1)
+
+    def encode(instance: LabeledInstance[_ <: Label]): BytesWritable = {
+      output.clear()
+      kryo.writeClassAndObject(output, instance)
+      new BytesWritable(output.toBytes)
+    }
+
+    def decode(b: BytesWritable): AnyRef = kryo.readClassAndObject(new Input(b.getBytes, 0, b.getLength))
+  }
+}
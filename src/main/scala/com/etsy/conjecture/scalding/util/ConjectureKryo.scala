@@ -0,0 +1,37 @@
+package com.etsy.conjecture.scalding.util
+
+import com.esotericsoftware.kryo.Kryo
+import com.etsy.conjecture.data.ConjectureKryoRegistrar
+import com.twitter.chill.config.{Config, ConfiguredInstantiator}
+import com.twitter.scalding.Job
+import com.twitter.scalding.serialization.KryoHadoop
+
+/**
+ * Scalding's kryo with the compact serializers of the conjecture data classes registered.
+ * Set "conjecture.kryo.prefix_keys" to prefix compress the sorted feature names of vectors.
+ */
+class ConjectureKryoHadoop(config : Config) extends KryoHadoop(config) {
+  override def newKryo : Kryo = {
+    val kryo = super.newKryo
+    new ConjectureKryoRegistrar(config.getBoolean(ConjectureKryo.PrefixKeys, false)).registerClasses(kryo)
+    kryo
+  }
+}
+
+object ConjectureKryo {
+  val PrefixKeys = "conjecture.kryo.prefix_keys"
+}
+
+/**
+ * Mix into a job to shuffle instances, labels and vectors with the compact serializers, e.g.
+ *
+ *   class MyTrainer(args : Args) extends Job(args) with ConjectureKryo
+ *
+ * Sequence files written by such a job should be read by jobs which also mix this in.
+ * Pass --kryo_prefix_keys to prefix compress feature names.
+ */
+trait ConjectureKryo extends Job {
+  override def config : Map[AnyRef, AnyRef] =
+    super.config ++ Map(ConfiguredInstantiator.KEY -> classOf[ConjectureKryoHadoop].getName,
+                        ConjectureKryo.PrefixKeys -> args.boolean("kryo_prefix_keys").toString)
+}
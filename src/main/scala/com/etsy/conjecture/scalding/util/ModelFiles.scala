@@ -0,0 +1,73 @@
+package com.etsy.conjecture.scalding.util
+
+import cascading.flow.FlowDef
+import cascading.pipe.Pipe
+
+import com.twitter.scalding._
+
+import java.io.IOException
+import java.util.Arrays
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.hadoop.io.{BytesWritable, NullWritable, SequenceFile => HadoopSequenceFile}
+
+/**
+ * Single files made from a model, such as model.bin for BinaryModelReader. Tasks never write them directly: the
+ * bytes go through a sequence file sink of (NullWritable, BytesWritable) like any other output, and the submitter
+ * copies them out once the flow has completed (from Job.next), with the configuration of the job, through a
+ * temporary file renamed into place.
+ *
+ *   ModelFiles.write(model_pipe, 'model, out_dir + "/model_bin") { m: M => bytes(m) }
+ *   override def next = { ModelFiles.copy(out_dir + "/model_bin", out_dir + "/model.bin", mode); None }
+ */
+object ModelFiles {
+
+  def source(path: String) = WritableSequenceFile[NullWritable, BytesWritable](path, ('key, 'bytes))
+
+  def write[T](pipe: Pipe, field: Symbol, path: String)(fn: T => Array[Byte])(implicit flowDef: FlowDef, mode: Mode): Pipe = {
+    pipe
+      .mapTo(field -> ('key, 'bytes)) { x: T => (NullWritable.get, new BytesWritable(fn(x))) }
+      .write(source(path))
+  }
+
+  // Copies the one record at path to file. Under test modes the sink is a buffer, so there is nothing to copy.
+  def copy(path: String, file: String, mode: Mode): Unit = mode match {
+    case _: TestMode =>
+    case _ =>
+      val conf = mode match {
+        case hadoop: HadoopMode => hadoop.jobConf
+        case _ => new Configuration
+      }
+      val p = new Path(path)
+      val fs = p.getFileSystem(conf)
+      val parts = if (fs.getFileStatus(p).isDirectory) fs.listStatus(p).map { _.getPath }.filter { _.getName.startsWith("part") } else Array(p)
+      val records = parts.sortBy { _.getName }.toList.flatMap { f =>
+        val in = new HadoopSequenceFile.Reader(conf, HadoopSequenceFile.Reader.file(f))
+        try {
+          val key = NullWritable.get
+          val value = new BytesWritable
+          var found = List[Array[Byte]]()
+          while (in.next(key, value)) {
+            found = Arrays.copyOf(value.getBytes, value.getLength) :: found
+          }
+          found.reverse
+        } finally {
+          in.close()
+        }
+      }
+      require(records.size == 1, "expected one record in " + path + ", found " + records.size)
+      val target = new Path(file)
+      val tmp = new Path(file + ".tmp")
+      val out = fs.create(tmp, true)
+      try {
+        out.write(records.head)
+      } finally {
+        out.close()
+      }
+      fs.delete(target, false)
+      if (!fs.rename(tmp, target)) {
+        throw new IOException("could not rename " + tmp + " to " + target)
+      }
+  }
+}
@@ -3,13 +3,16 @@ package com.etsy.scalding.jobs.conjecture
 import com.twitter.scalding.{Args, Job, Mode, SequenceFile, Tsv}
 import com.etsy.conjecture.scalding.evaluate.BinaryCrossValidator
 import com.etsy.conjecture.scalding.train.BinaryModelTrainer
-import com.etsy.conjecture.data.{BinaryLabel,BinaryLabeledInstance,StringKeyedVector}
-import com.etsy.conjecture.model.UpdateableLinearModel
+import com.etsy.conjecture.data.{BinaryLabel,BinaryLabeledInstance,HashedVectorSerializer,StringKeyedVector}
+import com.etsy.conjecture.model.{BinaryModelWriter, ModelJsonWriter, UpdateableLinearModel}
+import com.etsy.conjecture.scalding.util.{ColumnarInstances, ModelFiles}
 
-import com.google.gson.Gson
 
+import cascading.pipe.Pipe
 import cascading.tuple.Fields
 
+import java.io.{BufferedWriter, ByteArrayOutputStream, OutputStreamWriter}
+
 class AdHocClassifier(args : Args) extends Job(args) {
 
   val input = args.getOrElse("input", "specify_an_input_dir")
@@ -24,16 +27,53 @@ class AdHocClassifier(args : Args) extends Job(args) {
   val data_fields = data_field_names.tail.foldLeft(new Fields(data_field_names.head)) { (x,y) => x.append(new Fields(y)) }
   val instance_field = Symbol(args.getOrElse("instance_field", "instance"))
 
-  // assumes input instances are a sequence file
-  val instances = SequenceFile(input, data_fields).project(instance_field)
+  // assumes input instances are a sequence file, or with --columnar the output of ColumnarInstanceCache.
+  val instances : Pipe = if (args.boolean("columnar")) {
+    ColumnarInstances.read(input, instance_field)
+  } else {
+    SequenceFile(input, data_fields).project(instance_field)
+  }
 
   val model_pipe = new BinaryModelTrainer(args)
     .train(instances, instance_field, 'model)
 
   model_pipe
     .write(SequenceFile(out_dir + "/model"))
-    .mapTo('model -> 'json) { x : UpdateableLinearModel[BinaryLabel] => new Gson().toJson(x) }
-    .write(Tsv(out_dir + "/model_json"))
+
+  // The model json for the php client: only the model type and the weights, unless --full_json. Weights under
+  // --json_threshold are left out and --json_digits rounds them. With --json_file the json is also streamed, as bytes
+  // rather than one string, to out_dir/model_json_file, and next copies it to out_dir/model.json.
+  {
+    val fullJson = args.boolean("full_json")
+    val threshold = args.getOrElse("json_threshold", "0.0").toDouble
+    val digits = args.getOrElse("json_digits", "0").toInt
+    model_pipe
+      .mapTo('model -> 'json) { x : UpdateableLinearModel[BinaryLabel] =>
+        if (fullJson) HashedVectorSerializer.newGson().toJson(x) else new ModelJsonWriter().setThreshold(threshold).setDigits(digits).toJson(x)
+      }
+      .write(Tsv(out_dir + "/model_json"))
+
+    if (args.boolean("json_file")) {
+      ModelFiles.write(model_pipe, 'model, out_dir + "/model_json_file") { x : UpdateableLinearModel[BinaryLabel] =>
+        val bytes = new ByteArrayOutputStream
+        val out = new BufferedWriter(new OutputStreamWriter(bytes, "UTF-8"))
+        new ModelJsonWriter().setThreshold(threshold).setDigits(digits).write(x, out)
+        out.close()
+        bytes.toByteArray
+      }
+    }
+  }
+
+  // Also write the model for BinaryModelReader to out_dir/model.bin, with --binary_model (and --double_weights).
+  // The bytes go to out_dir/model_bin and next copies them to the file once the flow has completed.
+  if (args.boolean("binary_model")) {
+    val doubleWeights = args.boolean("double_weights")
+    ModelFiles.write(model_pipe, 'model, out_dir + "/model_bin") { x : UpdateableLinearModel[BinaryLabel] =>
+      val bytes = new ByteArrayOutputStream
+      BinaryModelWriter.write(x, bytes, doubleWeights)
+      bytes.toByteArray
+    }
+  }
 
   if(folds > 0) {
     val eval_pred = new BinaryCrossValidator(args, folds)
@@ -49,4 +89,14 @@ class AdHocClassifier(args : Args) extends Job(args) {
         "mapreduce.map.memory.mb" -> containerMemory.toString,
         "mapreduce.reduce.memory.mb" -> containerMemory.toString
     )
+
+  override def next: Option[Job] = {
+    if (args.boolean("json_file")) {
+      ModelFiles.copy(out_dir + "/model_json_file", out_dir + "/model.json", mode)
+    }
+    if (args.boolean("binary_model")) {
+      ModelFiles.copy(out_dir + "/model_bin", out_dir + "/model.bin", mode)
+    }
+    None
+  }
 }
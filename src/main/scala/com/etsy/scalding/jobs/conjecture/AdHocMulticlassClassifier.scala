@@ -3,13 +3,16 @@ package com.etsy.scalding.jobs.conjecture
 import com.twitter.scalding.{Args, Job, Mode, SequenceFile, Tsv}
 import com.etsy.conjecture.scalding.evaluate.MulticlassCrossValidator
 import com.etsy.conjecture.scalding.train.MulticlassModelTrainer
-import com.etsy.conjecture.data.{MulticlassLabeledInstance, StringKeyedVector}
-import com.etsy.conjecture.model.UpdateableMulticlassLinearModel
+import com.etsy.conjecture.data.{HashedVectorSerializer, MulticlassLabeledInstance, StringKeyedVector}
+import com.etsy.conjecture.model.{ModelJsonWriter, UpdateableMulticlassLinearModel}
+import com.etsy.conjecture.scalding.util.{ColumnarInstances, ModelFiles}
 
-import com.google.gson.Gson
 
+import cascading.pipe.Pipe
 import cascading.tuple.Fields
 
+import java.io.{BufferedWriter, ByteArrayOutputStream, OutputStreamWriter}
+
 class AdHocMulticlassClassifier(args : Args) extends Job(args) {
 
   val input = args("input")
@@ -25,16 +28,42 @@ class AdHocMulticlassClassifier(args : Args) extends Job(args) {
   val data_fields = data_field_names.tail.foldLeft(new Fields(data_field_names.head)) { (x,y) => x.append(new Fields(y)) }
   val instance_field = Symbol(args.getOrElse("instance_field", "instance"))
 
-  // assumes input instances are a sequence file
-  val instances = SequenceFile(input, data_fields).project(instance_field)
+  // assumes input instances are a sequence file, or with --columnar the output of ColumnarInstanceCache.
+  val instances : Pipe = if (args.boolean("columnar")) {
+    ColumnarInstances.read(input, instance_field)
+  } else {
+    SequenceFile(input, data_fields).project(instance_field)
+  }
 
   val model_pipe = new MulticlassModelTrainer(args, categories)
     .train(instances, instance_field, 'model)
 
   model_pipe
     .write(SequenceFile(out_dir + "/model"))
-    .mapTo('model -> 'json) { x : UpdateableMulticlassLinearModel => new Gson().toJson(x) }
-    .write(Tsv(out_dir + "/model_json"))
+
+  // The model json for the php client: only the model type and the weights, unless --full_json. Weights under
+  // --json_threshold are left out and --json_digits rounds them. With --json_file the json is also streamed, as bytes
+  // rather than one string, to out_dir/model_json_file, and next copies it to out_dir/model.json.
+  {
+    val fullJson = args.boolean("full_json")
+    val threshold = args.getOrElse("json_threshold", "0.0").toDouble
+    val digits = args.getOrElse("json_digits", "0").toInt
+    model_pipe
+      .mapTo('model -> 'json) { x : UpdateableMulticlassLinearModel =>
+        if (fullJson) HashedVectorSerializer.newGson().toJson(x) else new ModelJsonWriter().setThreshold(threshold).setDigits(digits).toJson(x)
+      }
+      .write(Tsv(out_dir + "/model_json"))
+
+    if (args.boolean("json_file")) {
+      ModelFiles.write(model_pipe, 'model, out_dir + "/model_json_file") { x : UpdateableMulticlassLinearModel =>
+        val bytes = new ByteArrayOutputStream
+        val out = new BufferedWriter(new OutputStreamWriter(bytes, "UTF-8"))
+        new ModelJsonWriter().setThreshold(threshold).setDigits(digits).write(x, out)
+        out.close()
+        bytes.toByteArray
+      }
+    }
+  }
 
   if(folds > 0) {
     val eval_pred = new MulticlassCrossValidator(args, folds, categories)
@@ -49,4 +78,11 @@ class AdHocMulticlassClassifier(args : Args) extends Job(args) {
     Map("mapred.child.java.opts" -> "-Xmx%dG".format(xmx),
         "mapreduce.map.memory.mb" -> containerMemory.toString,
         "mapreduce.reduce.memory.mb" -> containerMemory.toString)
+
+  override def next: Option[Job] = {
+    if (args.boolean("json_file")) {
+      ModelFiles.copy(out_dir + "/model_json_file", out_dir + "/model.json", mode)
+    }
+    None
+  }
 }
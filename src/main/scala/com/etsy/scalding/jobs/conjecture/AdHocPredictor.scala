@@ -3,9 +3,7 @@ package com.etsy.scalding.jobs.conjecture
 import com.twitter.scalding.{Args, Job, Mode, SequenceFile, Tsv}
 import com.etsy.conjecture.scalding.evaluate.BinaryEvaluator
 import com.etsy.conjecture.data.{BinaryLabeledInstance, BinaryLabel}
-import com.etsy.conjecture.model.UpdateableLinearModel
-
-import com.google.gson.Gson
+import com.etsy.conjecture.scalding.util.BatchScorer
 
 import cascading.tuple.Fields
 
@@ -16,8 +14,14 @@ class AdHocPredictor(args : Args) extends Job(args) {
   val model = args.getOrElse("model", "specify a model")
   val problemName = args.getOrElse("name", "demo_problem")
   val xmx = args.getOrElse("xmx", "3").toInt
-  val skipFinalSort = args.boolean("skip_final_sort")
   val containerMemory = (xmx * 1024 * 1.16).toInt
+  val batchSize = args.getOrElse("batch_size", BatchScorer.DEFAULT_BATCH_SIZE.toString).toInt
+  // With --explain, also the features of the --explain_top largest contributions to each prediction, -1 for all.
+  val explainTop = if (args.boolean("explain")) args.getOrElse("explain_top", "10").toInt else 0
+  // How the predictions are ordered: none (the default) keeps the job map only, top_k keeps the --top_k highest,
+  // taken map side before one reducer, and global sorts every prediction through one reducer.
+  val sort = if (args.boolean("skip_final_sort")) "none" else args.getOrElse("sort", "none")
+  val topK = args.getOrElse("top_k", "1000").toInt
 
   // Let the user configure the field names on the command line.
   val data_field_names = args.getOrElse("data_fields", "instance").split(",")
@@ -29,20 +33,22 @@ class AdHocPredictor(args : Args) extends Job(args) {
 
   val model_pipe = SequenceFile(model, model_field).read
 
-  val predictions = instances.crossWithTiny(model_pipe)
-    .map((model_field, instance_field) -> ('pred, 'explain)) {
-        x : (UpdateableLinearModel[BinaryLabel], BinaryLabeledInstance) =>
-        (x._1.predict(x._2.getVector), x._1.explainPrediction(x._2.getVector))
-    }
-    .discard(model_field)
+  val predictions = BatchScorer.score(instances.crossWithTiny(model_pipe), model_field, instance_field, 'pred,
+      'explain, batchSize, explainTop)
     .map(instance_field -> 'supporting_data) { x : BinaryLabeledInstance => x.getSupportingData() }
-    .project('supporting_data, 'pred)
-    .map('pred -> 'pred) { in : BinaryLabel => in.getValue() }
-
-  val output = if (skipFinalSort)
-    predictions
-  else
-    predictions.groupAll { _.sortBy('pred).reverse }
+    .project('supporting_data, 'pred, 'explain)
+
+  val sorted = sort match {
+    case "none" => predictions
+    case "global" => predictions.groupAll { _.sortBy('pred).reverse }
+    case "top_k" =>
+      predictions
+        .groupAll { _.sortWithTake[(String, Double, String)](('supporting_data, 'pred, 'explain) -> 'top, topK) { (a, b) => a._2 > b._2 } }
+        .flattenTo[(String, Double, String)]('top -> ('supporting_data, 'pred, 'explain))
+    case _ => throw new IllegalArgumentException("sort must be none, top_k or global, given: " + sort)
+  }
+
+  val output = if (explainTop != 0) sorted else sorted.project('supporting_data, 'pred)
 
   output.write(SequenceFile(out_dir + "/pred"))
 
@@ -0,0 +1,23 @@
+package com.etsy.scalding.jobs.conjecture
+
+import com.twitter.scalding.{Args, Job, SequenceFile}
+import com.etsy.conjecture.scalding.util.ColumnarInstances
+
+import cascading.tuple.Fields
+
+/**
+ * Converts a sequence file of instances to the columnar cache read by --columnar in the ad hoc classifiers.
+ */
+class ColumnarInstanceCache(args : Args) extends Job(args) {
+
+  val input = args.getOrElse("input", "specify_an_input_dir")
+  val output = args.getOrElse("output", input + "_columnar")
+  val hashBits = args.getOrElse("hash_bits", "64").toInt
+  val blockSize = args.getOrElse("block_size", "4096").toInt
+
+  val data_field_names = args.getOrElse("data_fields", "instance").split(",")
+  val data_fields = data_field_names.tail.foldLeft(new Fields(data_field_names.head)) { (x,y) => x.append(new Fields(y)) }
+  val instance_field = Symbol(args.getOrElse("instance_field", "instance"))
+
+  ColumnarInstances.write(SequenceFile(input, data_fields).read, instance_field, output, hashBits, blockSize)
+}
@@ -0,0 +1,108 @@
+package com.etsy.conjecture.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ColumnarInstanceTest {
+
+    List<LabeledInstance<?>> roundTrip(List<? extends LabeledInstance<?>> instances,
+            int hashBits) throws Exception {
+        File file = File.createTempFile("columnar", ".bin");
+        file.deleteOnExit();
+        ColumnarInstanceWriter writer = new ColumnarInstanceWriter(file, hashBits, 3);
+        for (LabeledInstance<?> instance : instances) {
+            writer.write(instance);
+        }
+        writer.close();
+        ColumnarInstanceReader reader = new ColumnarInstanceReader(file);
+        List<LabeledInstance<?>> res = new ArrayList<LabeledInstance<?>>();
+        for (LabeledInstance<?> instance : reader) {
+            res.add(instance);
+        }
+        // - a second pass reads the same instances.
+        int n = 0;
+        for (LabeledInstance<?> instance : reader) {
+            n++;
+        }
+        assertEquals(res.size(), n);
+        reader.close();
+        return res;
+    }
+
+    void assertSameVector(StringKeyedVector expected, StringKeyedVector actual) {
+        assertEquals(expected.size(), actual.size());
+        for (String key : expected.keySet()) {
+            assertEquals(expected.getCoordinate(key), actual.getCoordinate(key), 1e-6);
+        }
+    }
+
+    @Test
+    public void testBinaryInstances() throws Exception {
+        List<BinaryLabeledInstance> instances = new ArrayList<BinaryLabeledInstance>();
+        for (int i = 0; i < 10; i++) {
+            BinaryLabeledInstance instance = new BinaryLabeledInstance(i % 2, i == 4 ? 2.5 : 1.0);
+            instance.addTerm("bias");
+            instance.addTerm("term_" + i);
+            instance.addTermWithNamespace("x" + (i % 3), "ns", 0.5 * i);
+            instances.add(instance);
+        }
+        List<LabeledInstance<?>> res = roundTrip(instances, 64);
+        assertEquals(instances.size(), res.size());
+        for (int i = 0; i < instances.size(); i++) {
+            BinaryLabeledInstance actual = (BinaryLabeledInstance)res.get(i);
+            assertEquals(instances.get(i).getLabel().getValue(), actual.getLabel().getValue(), 0.0);
+            assertEquals(instances.get(i).getWeight(), actual.getWeight(), 0.0);
+            assertTrue(actual.getVector() instanceof SortedKeyedVector);
+            assertSameVector(instances.get(i).getVector(), actual.getVector());
+        }
+    }
+
+    @Test
+    public void testMulticlassInstances() throws Exception {
+        List<MulticlassLabeledInstance> instances = new ArrayList<MulticlassLabeledInstance>();
+        String[] categories = { "a", "b", "\u00fc" };
+        for (int i = 0; i < 7; i++) {
+            MulticlassLabeledInstance instance = new MulticlassLabeledInstance(categories[i % 3]);
+            instance.addTerm("t" + i);
+            instance.addTerm("shared");
+            instances.add(instance);
+        }
+        List<LabeledInstance<?>> res = roundTrip(instances, 64);
+        assertEquals(instances.size(), res.size());
+        for (int i = 0; i < instances.size(); i++) {
+            MulticlassLabeledInstance actual = (MulticlassLabeledInstance)res.get(i);
+            assertEquals(categories[i % 3], actual.getLabel().getLabel());
+            assertEquals(1.0, actual.getWeight(), 0.0);
+            assertSameVector(instances.get(i).getVector(), actual.getVector());
+        }
+    }
+
+    @Test
+    public void testHashedInstances() throws Exception {
+        List<RealValueLabeledInstance> instances = new ArrayList<RealValueLabeledInstance>();
+        for (int i = 0; i < 5; i++) {
+            RealValueLabeledInstance instance = new RealValueLabeledInstance(i * 1.5);
+            instance.addTerm("a" + i, 2.0);
+            instance.addTerm("b", -1.0);
+            instances.add(instance.hashFeatures(false, 20));
+        }
+        List<LabeledInstance<?>> res = roundTrip(instances, 20);
+        for (int i = 0; i < instances.size(); i++) {
+            RealValueLabeledInstance actual = (RealValueLabeledInstance)res.get(i);
+            assertEquals(i * 1.5, actual.getLabel().getValue(), 0.0);
+            SortedKeyedVector vector = (SortedKeyedVector)actual.getVector();
+            assertEquals(20, vector.getHashBits());
+            assertFalse(vector.hasNames());
+            assertEquals(2, vector.size());
+            assertEquals(2.0, vector.getCoordinate(FeatureHasher.hash("a" + i, 20)), 0.0);
+            assertEquals(-1.0, vector.getCoordinate(FeatureHasher.hash("b", 20)), 0.0);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.etsy.conjecture.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConjectureKryoRegistrarTest {
+
+    Kryo buildKryo(ConjectureKryoRegistrar registrar) {
+        Kryo kryo = new Kryo();
+        if (registrar != null) {
+            registrar.registerClasses(kryo);
+        }
+        return kryo;
+    }
+
+    byte[] write(Kryo kryo, Object o) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Output ko = new Output(bos);
+        kryo.writeClassAndObject(ko, o);
+        ko.flush();
+        return bos.toByteArray();
+    }
+
+    Object read(Kryo kryo, byte[] bytes) {
+        Input ki = new Input(new ByteArrayInputStream(bytes));
+        return kryo.readClassAndObject(ki);
+    }
+
+    StringKeyedVector buildVector() {
+        StringKeyedVector vector = new StringKeyedVector();
+        for (int i = 0; i < 20; i++) {
+            vector.setCoordinate("title___word_" + i, 1.0);
+            vector.setCoordinate("tag___word_" + i, i);
+        }
+        return vector;
+    }
+
+    void checkVector(StringKeyedVector expected, StringKeyedVector actual) {
+        assertEquals(expected.size(), actual.size());
+        for (java.util.Map.Entry<String, Double> e : expected) {
+            assertEquals(e.getValue(), actual.getCoordinate(e.getKey()), 0.0);
+        }
+    }
+
+    @Test
+    public void testInstances() {
+        for (boolean prefixKeys : new boolean[] {false, true}) {
+            BinaryLabeledInstance binary = new BinaryLabeledInstance(1.0, buildVector(), 2.5);
+            binary.setId("listing_1");
+            byte[] bytes = write(buildKryo(new ConjectureKryoRegistrar(prefixKeys)), binary);
+            BinaryLabeledInstance b = (BinaryLabeledInstance)read(buildKryo(new ConjectureKryoRegistrar(prefixKeys)), bytes);
+            assertEquals(1.0, b.getLabel().getValue(), 0.0);
+            assertEquals(2.5, b.getWeight(), 0.0);
+            assertEquals("listing_1", b.getId());
+            assertNull(b.getSupportingData());
+            checkVector(binary.getVector(), b.getVector());
+
+            MulticlassLabeledInstance multiclass = new MulticlassLabeledInstance("a", buildVector());
+            bytes = write(buildKryo(new ConjectureKryoRegistrar(prefixKeys)), multiclass);
+            MulticlassLabeledInstance m = (MulticlassLabeledInstance)read(buildKryo(new ConjectureKryoRegistrar(prefixKeys)), bytes);
+            assertEquals("a", m.getLabel().getLabel());
+            assertEquals(1.0, m.getWeight(), 0.0);
+            checkVector(multiclass.getVector(), m.getVector());
+
+            RealValueLabeledInstance real = new RealValueLabeledInstance(-0.25, buildVector());
+            real.setSupportingData("some data");
+            bytes = write(buildKryo(new ConjectureKryoRegistrar(prefixKeys)), real);
+            RealValueLabeledInstance r = (RealValueLabeledInstance)read(buildKryo(new ConjectureKryoRegistrar(prefixKeys)), bytes);
+            assertEquals(-0.25, r.getLabel().getValue(), 0.0);
+            assertEquals("some data", r.getSupportingData());
+            checkVector(real.getVector(), r.getVector());
+        }
+    }
+
+    @Test
+    public void testHashedInstance() {
+        BinaryLabeledInstance binary = new BinaryLabeledInstance(0.5, buildVector()).hashFeatures(false);
+        BinaryLabeledInstance b = (BinaryLabeledInstance)read(buildKryo(new ConjectureKryoRegistrar()),
+                                                              write(buildKryo(new ConjectureKryoRegistrar()), binary));
+        assertTrue(b.getVector() instanceof HashedKeyedVector);
+        assertEquals(0.5, b.getLabel().getValue(), 0.0);
+        assertEquals(binary.getVector().size(), b.getVector().size());
+    }
+
+    @Test
+    public void testCompactness() {
+        BinaryLabeledInstance binary = new BinaryLabeledInstance(1.0, buildVector());
+        int plain = write(buildKryo(null), binary).length;
+        int compact = write(buildKryo(new ConjectureKryoRegistrar()), binary).length;
+        int prefixed = write(buildKryo(new ConjectureKryoRegistrar(true)), binary).length;
+        assertTrue(compact < plain);
+        assertTrue(prefixed < compact);
+    }
+
+    @Test
+    public void testLazyVector() {
+        LazyVector vector = new LazyVector();
+        vector.setCoordinate("title___a", 0.5);
+        vector.setCoordinate("title___b", -2.0);
+        LazyVector v = (LazyVector)read(buildKryo(new ConjectureKryoRegistrar()),
+                                        write(buildKryo(new ConjectureKryoRegistrar()), vector));
+        checkVector(vector, v);
+        v.setCoordinate("title___c", 1.0);
+        assertEquals(3, v.size());
+    }
+}
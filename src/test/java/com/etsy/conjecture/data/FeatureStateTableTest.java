@@ -0,0 +1,94 @@
+package com.etsy.conjecture.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FeatureStateTableTest {
+
+    final double eps = 0.000001;
+
+    public FeatureStateTable buildTable(boolean useFloats) {
+        FeatureStateTable table = new FeatureStateTable(3, useFloats, 2);
+        for (long key = 0; key < 1000; key++) {
+            int slot = table.insert(key * 31);
+            for (int f = 0; f < 3; f++) {
+                table.set(slot, f, key + f / 4.0);
+            }
+        }
+        return table;
+    }
+
+    public void checkTable(FeatureStateTable table) {
+        assertEquals(1000, table.size());
+        assertEquals(-1, table.indexOf(1));
+        for (long key = 0; key < 1000; key++) {
+            int slot = table.indexOf(key * 31);
+            assertEquals(slot, table.insert(key * 31));
+            for (int f = 0; f < 3; f++) {
+                assertEquals(key + f / 4.0, table.get(slot, f), eps);
+            }
+        }
+    }
+
+    @Test
+    public void testSlots() {
+        checkTable(buildTable(false));
+        checkTable(buildTable(true));
+        FeatureStateTable table = new FeatureStateTable(2, true);
+        table.set(table.insert(7L), 0, 0.1);
+        assertEquals(0.1f, table.get(table.indexOf(7L), 0), 0.0);
+        assertEquals(0.0, table.get(table.indexOf(7L), 1), 0.0);
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.indexOf(7L));
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        for (boolean useFloats : new boolean[] { false, true }) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(buildTable(useFloats));
+            oos.flush();
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                    bos.toByteArray()));
+            FeatureStateTable des = (FeatureStateTable)ois.readObject();
+            assertEquals(useFloats, des.usesFloats());
+            checkTable(des);
+        }
+    }
+
+    @Test
+    public void testKryoSerialization() {
+        for (boolean useFloats : new boolean[] { false, true }) {
+            Kryo kryo = new Kryo();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            Output ko = new Output(bos);
+            kryo.writeObject(ko, buildTable(useFloats));
+            ko.flush();
+            Input ki = new Input(new ByteArrayInputStream(bos.toByteArray()));
+            FeatureStateTable des = kryo.readObject(ki, FeatureStateTable.class);
+            assertEquals(useFloats, des.usesFloats());
+            checkTable(des);
+        }
+    }
+
+    @Test
+    public void testWideRowsAllocateOnUse() {
+        // - 16 segments of 10 rows of this many doubles would not fit in memory.
+        FeatureStateTable table = new FeatureStateTable(1 << 26, false);
+        assertEquals(0, table.size());
+        assertEquals(-1, table.indexOf(7L));
+        assertEquals(0, table.keys().length);
+    }
+}
@@ -0,0 +1,146 @@
+package com.etsy.conjecture.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class HashedKeyedVectorTest {
+
+    final double eps = 0.000001;
+
+    final static LazyVector.UpdateFunction uf = new LazyVector.UpdateFunction() {
+
+        private static final long serialVersionUID = -4616446263914569917L;
+        public double lazyUpdate(String k, double p, long a, long b) {
+            return p * Math.pow(0.9, b - a);
+        }
+    };
+
+    public HashedKeyedVector buildHKV(boolean keepDictionary) {
+        HashedKeyedVector hkv = new HashedKeyedVector(keepDictionary);
+        hkv.setCoordinate("foo", 1.0);
+        hkv.addToCoordinate("bar", -2.0);
+        hkv.addToCoordinate("baz", 0.0);
+        hkv.setCoordinate("dave", 5.0);
+        hkv.deleteCoordinate("dave");
+        return hkv;
+    }
+
+    @Test
+    public void testHashNames() {
+        long h = FeatureHasher.hash("foo");
+        assertEquals(h, FeatureHasher.hash(FeatureHasher.hashName(h)));
+        assertTrue(FeatureHasher.isHashName(FeatureHasher.hashName(h)));
+        assertFalse(FeatureHasher.isHashName("foo"));
+        assertEquals(h & 0xffffffffL, FeatureHasher.hash("foo", 32));
+    }
+
+    @Test
+    public void testCoordinates() {
+        HashedKeyedVector hkv = buildHKV(false);
+        assertEquals(2, hkv.size());
+        assertEquals(1.0, hkv.getCoordinate("foo"), eps);
+        assertEquals(-2.0, hkv.getCoordinate("bar"), eps);
+        assertEquals(0.0, hkv.getCoordinate("baz"), eps);
+        assertEquals(0.0, hkv.getCoordinate("dave"), eps);
+        assertEquals(1.0, hkv.getCoordinate(FeatureHasher.hash("foo")), eps);
+        // without a dictionary names are synthetic, but hash back to the key.
+        for (String name : hkv.keySet()) {
+            assertTrue(FeatureHasher.isHashName(name));
+            assertTrue(hkv.getCoordinate(name) != 0.0);
+        }
+    }
+
+    @Test
+    public void testDictionary() {
+        HashedKeyedVector hkv = buildHKV(true);
+        assertTrue(hkv.keySet().contains("foo"));
+        assertTrue(hkv.keySet().contains("bar"));
+        assertEquals(2, hkv.getMap().size());
+        assertEquals(1.0, hkv.getMap().get("foo"), eps);
+    }
+
+    @Test
+    public void testDotAndAdd() {
+        HashedKeyedVector hkv = buildHKV(true);
+        StringKeyedVector skv = new StringKeyedVector();
+        skv.setCoordinate("foo", 2.0);
+        skv.setCoordinate("bar", 1.0);
+        assertEquals(0.0, hkv.dot(skv), eps);
+        assertEquals(0.0, skv.dot(hkv), eps);
+        assertEquals(5.0, hkv.dot(hkv), eps);
+        skv.add(hkv);
+        assertEquals(3.0, skv.getCoordinate("foo"), eps);
+        assertEquals(-1.0, skv.getCoordinate("bar"), eps);
+        hkv.addScaled(skv, 2.0);
+        assertEquals(7.0, hkv.getCoordinate("foo"), eps);
+        assertEquals(-4.0, hkv.getCoordinate("bar"), eps);
+    }
+
+    @Test
+    public void testHashedLazyVector() {
+        HashedLazyVector lv = new HashedLazyVector(uf, true);
+        lv.addScaled(buildHKV(true), 1.0);
+        assertEquals(2, lv.size());
+        lv.incrementIteration();
+        assertEquals(0.9, lv.getCoordinate("foo"), eps);
+        assertEquals(-1.8, lv.getCoordinate(FeatureHasher.hash("bar")), eps);
+        lv.incrementIteration();
+        assertEquals(0.81 * 1.0 - 1.62 * -2.0, lv.dot(buildHKV(false)), eps);
+        assertTrue(lv.keySet().contains("foo"));
+        StringKeyedVector skv = new StringKeyedVector(lv);
+        assertEquals(0.81, skv.getCoordinate("foo"), eps);
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        HashedLazyVector lv = new HashedLazyVector(uf, true);
+        lv.addScaled(buildHKV(true), 1.0);
+        lv.incrementIteration();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(lv);
+        oos.flush();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                bos.toByteArray()));
+        HashedLazyVector des = (HashedLazyVector)ois.readObject();
+        assertEquals(2, des.size());
+        assertEquals(0.9, des.getCoordinate("foo"), eps);
+        assertTrue(des.keySet().contains("bar"));
+        des.incrementIteration();
+        assertEquals(-1.62, des.getCoordinate("bar"), eps);
+    }
+
+    @Test
+    public void testKryoSerialization() throws Exception {
+        Kryo kry = new Kryo();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Output ko = new Output(bos);
+        kry.writeObject(ko, buildHKV(true));
+        HashedLazyVector lv = new HashedLazyVector(uf, false);
+        lv.addScaled(buildHKV(false), 1.0);
+        lv.incrementIteration();
+        kry.writeObject(ko, lv);
+        ko.flush();
+        Input ki = new Input(new ByteArrayInputStream(bos.toByteArray()));
+        HashedKeyedVector hkv = kry.readObject(ki, HashedKeyedVector.class);
+        assertEquals(2, hkv.size());
+        assertTrue(hkv.keySet().contains("foo"));
+        assertEquals(-2.0, hkv.getCoordinate("bar"), eps);
+        HashedLazyVector des = kry.readObject(ki, HashedLazyVector.class);
+        assertEquals(0.9, des.getCoordinate("foo"), eps);
+        des.incrementIteration();
+        assertEquals(-1.62, des.getCoordinate("bar"), eps);
+    }
+}
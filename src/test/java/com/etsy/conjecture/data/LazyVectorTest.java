@@ -234,6 +234,31 @@ public class LazyVectorTest {
         assertEquals(-1.62, des.getCoordinate("bar"), eps);
     }
 
+    /**
+     * The iteration of each coordinate has to follow it through rehashing.
+     */
+    @Test
+    public void testIterationsSurviveRehash() {
+        LazyVector lv = new LazyVector(uf);
+        for (int i = 0; i < 1000; i++) {
+            lv.setCoordinate("f" + i, 1.0);
+            if (i % 3 == 0) {
+                lv.deleteCoordinate("f" + (i / 2));
+            }
+            if (i % 100 == 99) {
+                lv.incrementIteration();
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            double expected = Math.pow(0.9, 10 - i / 100);
+            if (lv.vector.containsKey("f" + i)) {
+                assertEquals(expected, lv.getCoordinate("f" + i), eps);
+            }
+        }
+        assertEquals(0.9, lv.getCoordinate("f999"), eps);
+        assertEquals(0.0, lv.getCoordinate("f0"), eps);
+    }
+
     /**
      * Make sure Gson serializes this thing properly.
      */
@@ -0,0 +1,90 @@
+package com.etsy.conjecture.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class MulticlassParameterTableTest {
+
+    final double eps = 0.000001;
+
+    // - past the long values a double holds exactly.
+    final long iteration = (1L << 53) + 1;
+
+    public MulticlassParameterTable buildTable() {
+        String[] categories = new String[1000];
+        for (int k = 0; k < categories.length; k++) {
+            categories[k] = "c" + k;
+        }
+        MulticlassParameterTable table = new MulticlassParameterTable(categories, false, 64);
+        table.getColumn(7).skipToIteration(iteration);
+        table.getColumn(7).setCoordinate("foo", 2.0);
+        table.getColumn(3).setCoordinate("foo", -1.0);
+        table.getColumn(999).setCoordinate("bar", 0.5);
+        return table;
+    }
+
+    public void checkTable(MulticlassParameterTable table) {
+        assertEquals(2, table.size());
+        // - a row holds the categories with a weight, in column order.
+        MulticlassParameterTable.Row row = table.rowOf(table.hash("foo"));
+        assertEquals(2, row.size);
+        assertEquals(3, row.columns[0]);
+        assertEquals(7, row.columns[1]);
+        assertEquals(iteration, row.iterations[1]);
+        assertEquals(1, table.rowOf(table.hash("bar")).size);
+        assertNull(table.rowOf(table.hash("baz")));
+        double[] scores = new double[1000];
+        StringKeyedVector x = new StringKeyedVector();
+        x.setCoordinate("foo", 1.0);
+        x.setCoordinate("bar", 2.0);
+        table.innerProducts(x, scores);
+        assertEquals(-1.0, scores[3], eps);
+        assertEquals(2.0, scores[7], eps);
+        assertEquals(1.0, scores[999], eps);
+        assertEquals(0.0, scores[0], eps);
+    }
+
+    @Test
+    public void testSparseRows() {
+        MulticlassParameterTable table = buildTable();
+        checkTable(table);
+        // - a weight reaching zero leaves its row.
+        table.getColumn(3).addToCoordinate("foo", 1.0);
+        assertEquals(1, table.rowOf(table.hash("foo")).size);
+        assertEquals(0.0, table.getColumn(3).getCoordinate("foo"), eps);
+        assertEquals(2.0, table.getColumn(7).getCoordinate("foo"), eps);
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(buildTable());
+        oos.flush();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                bos.toByteArray()));
+        checkTable((MulticlassParameterTable)ois.readObject());
+    }
+
+    @Test
+    public void testKryoSerialization() {
+        Kryo kryo = new Kryo();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Output ko = new Output(bos);
+        kryo.writeObject(ko, buildTable());
+        ko.flush();
+        Input ki = new Input(new ByteArrayInputStream(bos.toByteArray()));
+        checkTable(kryo.readObject(ki, MulticlassParameterTable.class));
+    }
+}
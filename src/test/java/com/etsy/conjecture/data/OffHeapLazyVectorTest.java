@@ -0,0 +1,152 @@
+package com.etsy.conjecture.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ReadOnlyBufferException;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class OffHeapLazyVectorTest {
+
+    final double eps = 0.000001;
+
+    final static LazyVector.UpdateFunction uf = new LazyVector.UpdateFunction() {
+
+        private static final long serialVersionUID = 3702432532624744409L;
+        public double lazyUpdate(String k, double p, long a, long b) {
+            return p * Math.pow(0.9, b - a);
+        }
+    };
+
+    public OffHeapLazyVector buildOHV(File file) {
+        OffHeapLazyVector ohv = new OffHeapLazyVector(file, 10, uf, 64);
+        ohv.setCoordinate("foo", 1.0);
+        ohv.addToCoordinate("bar", -2.0);
+        ohv.addToCoordinate("baz", 0.0);
+        ohv.setCoordinate("dave", 5.0);
+        ohv.deleteCoordinate("dave");
+        return ohv;
+    }
+
+    @Test
+    public void testCoordinatesLazy() {
+        OffHeapLazyVector ohv = buildOHV(null);
+        assertEquals(2, ohv.size());
+        assertEquals(-2.0, ohv.getCoordinate("bar"), eps);
+        assertEquals(0.0, ohv.getCoordinate("dave"), eps);
+        ohv.incrementIteration();
+        assertEquals(0.9, ohv.getCoordinate("foo"), eps);
+        ohv.addToCoordinate("bar", 1.8);
+        assertEquals(1, ohv.size());
+        assertEquals(0.0, ohv.getCoordinate("bar"), eps);
+        ohv.incrementIteration();
+        assertEquals(0.81, ohv.dot(buildOHV(null)), eps);
+        assertEquals(0.81, new HashedKeyedVector(ohv, false).getCoordinate("foo"), eps);
+    }
+
+    @Test
+    public void testGrowthAndRemoval() {
+        OffHeapLazyVector ohv = new OffHeapLazyVector(10, uf, 64);
+        for (int i = 0; i < 5000; i++) {
+            ohv.setCoordinate("f" + i, i + 1.0);
+            if (i % 2 == 0) {
+                ohv.deleteCoordinate("f" + (i / 2));
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < 5000; i++) {
+            double v = ohv.getCoordinate("f" + i);
+            assertTrue(v == 0.0 || v == i + 1.0);
+            count += v == 0.0 ? 0 : 1;
+        }
+        assertEquals(count, ohv.size());
+        // - removing through the iterator, as thresholding does.
+        for (java.util.Iterator<java.util.Map.Entry<String, Double>> it = ohv
+                .iterator(); it.hasNext();) {
+            if (it.next().getValue() < 1000.0) {
+                it.remove();
+            }
+        }
+        assertEquals(0.0, ohv.getCoordinate("f998"), eps);
+        assertEquals(4000.0, ohv.getCoordinate("f3999"), eps);
+    }
+
+    @Test
+    public void testMappedFile() throws Exception {
+        File file = File.createTempFile("offheap", ".bin");
+        file.deleteOnExit();
+        OffHeapLazyVector ohv = buildOHV(file);
+        for (int i = 0; i < 100; i++) {
+            ohv.setCoordinate("f" + i, 1.0);
+        }
+        ohv.incrementIteration();
+        ohv.flush();
+        OffHeapLazyVector ro = OffHeapLazyVector.open(file, uf, true);
+        assertEquals(102, ro.size());
+        assertEquals(0.9, ro.getCoordinate("foo"), eps);
+        assertEquals(-1.8, ro.getCoordinate(FeatureHasher.hash("bar")), eps);
+        ro.setCoordinate("new", 1.0);
+        assertEquals(0.0, ro.getCoordinate("new"), eps);
+        OffHeapLazyVector rw = OffHeapLazyVector.open(file, uf, false);
+        rw.incrementIteration();
+        assertEquals(0.81, rw.getCoordinate("foo"), eps);
+        try {
+            ro.incrementIteration();
+            ro.getCoordinate("bar");
+            fail("read only vectors can not be updated");
+        } catch (ReadOnlyBufferException e) {
+        }
+    }
+
+    @Test
+    public void testMetaKeptOnRehash() throws Exception {
+        File file = File.createTempFile("offheap", ".bin");
+        file.deleteOnExit();
+        for (OffHeapHashTable table : new OffHeapHashTable[] {
+                new OffHeapHashTable(4), new OffHeapHashTable(file, 4) }) {
+            for (int f = 0; f < OffHeapHashTable.META_FIELDS; f++) {
+                table.setMeta(f, 100 + f);
+            }
+            long capacity = table.capacity;
+            for (long k = 1; k <= 1000; k++) {
+                table.put(k, k, 0L);
+            }
+            assertTrue(table.capacity > capacity);
+            for (int f = 0; f < OffHeapHashTable.META_FIELDS; f++) {
+                assertEquals(100 + f, table.getMeta(f));
+            }
+            table.flush();
+        }
+        OffHeapHashTable reopened = OffHeapHashTable.open(file, true);
+        assertEquals(1000, reopened.size);
+        for (int f = 0; f < OffHeapHashTable.META_FIELDS; f++) {
+            assertEquals(100 + f, reopened.getMeta(f));
+        }
+    }
+
+    @Test
+    public void testKryoSerialization() throws Exception {
+        OffHeapLazyVector ohv = buildOHV(null);
+        ohv.incrementIteration();
+        Kryo kry = new Kryo();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Output ko = new Output(bos);
+        kry.writeObject(ko, ohv);
+        ko.flush();
+        Input ki = new Input(new ByteArrayInputStream(bos.toByteArray()));
+        OffHeapLazyVector des = kry.readObject(ki, OffHeapLazyVector.class);
+        assertEquals(2, des.size());
+        assertEquals(0.9, des.getCoordinate("foo"), eps);
+        des.incrementIteration();
+        assertEquals(-1.62, des.getCoordinate("bar"), eps);
+    }
+}
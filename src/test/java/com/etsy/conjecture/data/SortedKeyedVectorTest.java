@@ -0,0 +1,182 @@
+package com.etsy.conjecture.data;
+
+import gnu.trove.function.TDoubleFunction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.gson.Gson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class SortedKeyedVectorTest {
+
+    final double eps = 0.000001;
+
+    public StringKeyedVector buildSKV() {
+        StringKeyedVector skv = new StringKeyedVector();
+        for (int i = 0; i < 50; i++) {
+            skv.setCoordinate("f" + i, i + 1.0);
+        }
+        return skv;
+    }
+
+    @Test
+    public void testCoordinates() {
+        SortedKeyedVector sv = new SortedKeyedVector(buildSKV());
+        assertEquals(50, sv.size());
+        for (int i = 1; i < sv.size(); i++) {
+            assertTrue(sv.keyAt(i - 1) <= sv.keyAt(i));
+        }
+        assertEquals(8.0, sv.getCoordinate("f7"), eps);
+        assertEquals(8.0, sv.getCoordinate(FeatureHasher.hash("f7")), eps);
+        assertEquals(0.0, sv.getCoordinate("f70"), eps);
+        assertTrue(sv.keySet().contains("f49"));
+        assertEquals(buildSKV().LPNorm(2.0), sv.LPNorm(2.0), eps);
+        try {
+            sv.setCoordinate("f1", 2.0);
+            fail("sorted vectors are immutable");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void testDotAndAdd() {
+        StringKeyedVector skv = buildSKV();
+        SortedKeyedVector sv = new SortedKeyedVector(buildSKV());
+        double expected = skv.dot(buildSKV());
+        assertEquals(expected, sv.dot(skv), eps);
+        assertEquals(expected, skv.dot(sv), eps);
+        assertEquals(expected, sv.dot(sv), eps);
+        LazyVector lv = new LazyVector();
+        lv.add(sv);
+        assertEquals(expected, lv.dot(sv), eps);
+        HashedKeyedVector hkv = new HashedKeyedVector(skv, false);
+        assertEquals(expected, hkv.dot(sv), eps);
+        assertEquals(expected, sv.dot(hkv), eps);
+        // - copies are scaled without touching the original.
+        StringKeyedVector gradient = sv.copy();
+        gradient.mul(-2.0);
+        skv.add(gradient);
+        assertEquals(-8.0, skv.getCoordinate("f7"), eps);
+        assertEquals(8.0, sv.getCoordinate("f7"), eps);
+    }
+
+    @Test
+    public void testWithoutNames() {
+        SortedKeyedVector sv = new SortedKeyedVector(new HashedKeyedVector(
+                buildSKV(), false, 20));
+        assertTrue(!sv.hasNames());
+        assertEquals(20, sv.getHashBits());
+        assertEquals(8.0, sv.getCoordinate("f7"), eps);
+        HashedLazyVector hlv = new HashedLazyVector(10, new LazyVector().updater,
+                false, 20);
+        hlv.add(sv);
+        assertEquals(8.0, hlv.getCoordinate("f7"), eps);
+        assertEquals(sv.dot(sv), hlv.dot(sv), eps);
+    }
+
+    @Test
+    public void testInheritedAccessors() {
+        StringKeyedVector skv = buildSKV();
+        SortedKeyedVector sv = new SortedKeyedVector(buildSKV());
+        // - none of these may read the unused inherited map.
+        Map<String, Double> expected = new HashMap<String, Double>(skv.getMap());
+        assertEquals(expected, sv.getMap());
+        assertEquals(skv.keySet(), sv.keySet());
+        assertEquals(skv.values(), sv.values());
+        assertEquals(skv.max(), sv.max(), eps);
+        assertEquals(skv.LPNorm(1.0), sv.LPNorm(1.0), eps);
+        assertTrue(sv.contains("f3") && !sv.contains("f70"));
+        int n = 0;
+        for (Map.Entry<String, Double> e : sv) {
+            assertEquals(skv.getCoordinate(e.getKey()), e.getValue(), eps);
+            n++;
+        }
+        assertEquals(50, n);
+        assertEquals(50, new Gson().fromJson(sv.toString(), Map.class).size());
+        assertEquals(expected, sv.copy().getMap());
+        // - and a plain vector reads a sorted argument through its methods.
+        StringKeyedVector sum = buildSKV();
+        sum.addScaled(sv, 2.0);
+        assertEquals(24.0, sum.getCoordinate("f7"), eps);
+        assertEquals(64.0, skv.multiplyPointwise(sv).getCoordinate("f7"), eps);
+        assertEquals(64.0, sv.multiplyPointwise(skv).getCoordinate("f7"), eps);
+        StringKeyedVector one = new StringKeyedVector();
+        one.setCoordinate("f7", 3.0);
+        assertEquals(1, sv.projectOntoNonZeroCoordinates(one).size());
+        assertEquals(8.0, sv.projectOntoNonZeroCoordinates(one).getCoordinate(
+                "f7"), eps);
+        assertEquals(50, skv.projectOntoNonZeroCoordinates(sv).size());
+        assertEquals(skv.dot(skv), skv.dot(sv), eps);
+        sv.transformValues(new TDoubleFunction() {
+            public double execute(double v) {
+                return v > 10.0 ? 0.0 : v;
+            }
+        });
+        sv.removeZeroCoordinates();
+        assertEquals(10, sv.size());
+        try {
+            sv.add(skv);
+            fail("sorted vectors are immutable");
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            sv.deleteCoordinate("f1");
+            fail("sorted vectors are immutable");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void testFreezeInstance() {
+        BinaryLabeledInstance bli = new BinaryLabeledInstance(1.0);
+        bli.addTerm("foo").addTerm("bar", 2.0);
+        bli.freeze();
+        assertTrue(bli.getVector() instanceof SortedKeyedVector);
+        assertEquals(2.0, bli.getVector().getCoordinate("bar"), eps);
+    }
+
+    @Test
+    public void testKryoSerialization() throws Exception {
+        StringKeyedVector ones = new StringKeyedVector();
+        ones.setCoordinate("a", 1.0);
+        ones.setCoordinate("b", 1.0);
+        Kryo kry = new Kryo();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Output ko = new Output(bos);
+        kry.writeObject(ko, new SortedKeyedVector(buildSKV()));
+        kry.writeObject(ko, new SortedKeyedVector(ones));
+        ko.flush();
+        Input ki = new Input(new ByteArrayInputStream(bos.toByteArray()));
+        SortedKeyedVector des = kry.readObject(ki, SortedKeyedVector.class);
+        assertEquals(50, des.size());
+        assertEquals(8.0, des.getCoordinate("f7"), eps);
+        des = kry.readObject(ki, SortedKeyedVector.class);
+        assertEquals(1.0, des.getCoordinate("b"), eps);
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(new SortedKeyedVector(buildSKV()));
+        oos.flush();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                bos.toByteArray()));
+        SortedKeyedVector des = (SortedKeyedVector)ois.readObject();
+        assertEquals(50, des.size());
+        assertEquals(50.0, des.getCoordinate("f49"), eps);
+    }
+}
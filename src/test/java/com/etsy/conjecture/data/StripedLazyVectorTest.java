@@ -0,0 +1,99 @@
+package com.etsy.conjecture.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StripedLazyVectorTest {
+
+    final double eps = 0.000001;
+
+    final static LazyVector.UpdateFunction uf = new LazyVector.UpdateFunction() {
+
+        private static final long serialVersionUID = -4807062370542412377L;
+        public double lazyUpdate(String k, double p, long a, long b) {
+            return p * Math.pow(0.9, b - a);
+        }
+    };
+
+    public StripedLazyVector buildSLV() {
+        StripedLazyVector slv = new StripedLazyVector(4, uf, true, 64);
+        slv.setCoordinate("foo", 1.0);
+        slv.addToCoordinate("bar", -2.0);
+        slv.addToCoordinate("baz", 0.0);
+        slv.setCoordinate("dave", 5.0);
+        slv.deleteCoordinate("dave");
+        return slv;
+    }
+
+    @Test
+    public void testCoordinatesLazy() {
+        StripedLazyVector slv = buildSLV();
+        assertEquals(2, slv.size());
+        assertEquals(-2.0, slv.getCoordinate("bar"), eps);
+        slv.incrementIteration();
+        assertEquals(0.9, slv.getCoordinate("foo"), eps);
+        slv.addToCoordinate("bar", 1.8);
+        assertEquals(1, slv.size());
+        assertTrue(slv.keySet().contains("foo"));
+        slv.incrementIteration();
+        assertEquals(0.81, slv.dot(buildSLV()), eps);
+        assertEquals(0.81, slv.merge().getCoordinate("foo"), eps);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final StripedLazyVector slv = new StripedLazyVector(8, uf, false, 64);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        slv.addToCoordinate("f" + (i % 100), 1.0);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(100, slv.size());
+        assertEquals(400.0, slv.getCoordinate("f7"), eps);
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        StripedLazyVector slv = buildSLV();
+        slv.incrementIteration();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(slv);
+        out.close();
+        HashedLazyVector merged = (HashedLazyVector)new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(0.9, merged.getCoordinate("foo"), eps);
+        assertEquals(slv.getIteration(), merged.getIteration());
+
+        Kryo kryo = new Kryo();
+        Output output = new Output(new ByteArrayOutputStream());
+        kryo.writeObject(output, slv);
+        StripedLazyVector read = kryo.readObject(new Input(output.toBytes()),
+                StripedLazyVector.class);
+        assertEquals(4, read.getStripes());
+        assertEquals(-1.8, read.getCoordinate("bar"), eps);
+        read.incrementIteration();
+        assertEquals(0.81, read.getCoordinate("foo"), eps);
+    }
+}
@@ -0,0 +1,169 @@
+package com.etsy.conjecture.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.etsy.conjecture.data.BinaryLabel;
+import com.etsy.conjecture.data.BinaryLabeledInstance;
+import com.etsy.conjecture.data.MulticlassLabeledInstance;
+import com.etsy.conjecture.data.RealValueLabeledInstance;
+import com.etsy.conjecture.data.StringKeyedVector;
+
+public class BinaryModelTest {
+
+    final double eps = 0.000001;
+
+    BinaryLabeledInstance getInstance(int i) {
+        BinaryLabeledInstance instance = new BinaryLabeledInstance(i % 2);
+        instance.setCoordinate("bias", 1.0);
+        instance.setCoordinate("f" + (i % 7), 1.0);
+        instance.setCoordinate("g" + (i % 3), 0.5);
+        return instance;
+    }
+
+    File write(UpdateableLinearModel<BinaryLabel> model, boolean doubleWeights) throws Exception {
+        File file = File.createTempFile("model", ".bin");
+        file.deleteOnExit();
+        BinaryModelWriter.write(model, new FileOutputStream(file), doubleWeights);
+        return file;
+    }
+
+    @Test
+    public void testLinearModel() throws Exception {
+        LogisticRegression model = new LogisticRegression(new ElasticNetOptimizer());
+        model.setArgString("--model logistic_regression");
+        for (int i = 0; i < 30; i++) {
+            model.update(getInstance(i));
+        }
+        BinaryModelReader reader = new BinaryModelReader(write(model, true));
+        assertEquals("logistic_regression", reader.getModelType());
+        assertEquals("--model logistic_regression", reader.getArgString());
+        assertEquals(30, reader.getEpoch());
+        assertEquals(64, reader.getHashBits());
+        assertTrue(reader.hasNames());
+        assertEquals(LinkFunction.LOGISTIC, reader.getLinkFunction());
+        for (int i = 0; i < 7; i++) {
+            StringKeyedVector x = getInstance(i).getVector();
+            assertEquals(model.predict(x).getValue(), reader.score(x), eps);
+            assertEquals(model.predict(x).getValue(), reader.score(getInstance(i).freeze().getVector()), eps);
+        }
+        assertEquals(model.getParam().getCoordinate("f3"), reader.getWeight("f3"), eps);
+        assertEquals(0.0, reader.getWeight("unseen"), 0.0);
+
+        // - floats are close, and the weights load back into a model.
+        BinaryModelReader floats = new BinaryModelReader(write(model, false));
+        assertEquals(model.getParam().getCoordinate("f3"), floats.getWeight("f3"), 1e-6);
+        LogisticRegression loaded = reader.loadInto(new LogisticRegression(new ElasticNetOptimizer()), 0);
+        assertEquals(model.getParam().getCoordinate("g1"), loaded.getParam().getCoordinate("g1"), eps);
+        assertEquals(30, loaded.getEpoch());
+    }
+
+    @Test
+    public void testHashedModel() throws Exception {
+        LeastSquaresRegressionModel model = new LeastSquaresRegressionModel(new ElasticNetOptimizer());
+        model.setHashedParameters(false, 24);
+        for (int i = 0; i < 20; i++) {
+            model.update(new RealValueLabeledInstance(i % 5)
+                    .setCoordinate("x" + (i % 4), 1.0).hashFeatures(false, 24));
+        }
+        File file = File.createTempFile("model", ".bin");
+        file.deleteOnExit();
+        BinaryModelWriter.write(model, new FileOutputStream(file), true);
+        BinaryModelReader reader = new BinaryModelReader(file);
+        assertEquals(24, reader.getHashBits());
+        assertFalse(reader.hasNames());
+        assertEquals(LinkFunction.IDENTITY, reader.getLinkFunction());
+        assertEquals(4, reader.size());
+        StringKeyedVector x = new RealValueLabeledInstance(0.0)
+            .setCoordinate("x2", 1.0).hashFeatures(false, 24).getVector();
+        assertEquals(model.predict(x).getValue(), reader.score(x), eps);
+    }
+
+    @Test
+    public void testMulticlassModel() throws Exception {
+        String[] categories = { "c", "a", "b" };
+        Map<String, UpdateableLinearModel<BinaryLabel>> param = new HashMap<String, UpdateableLinearModel<BinaryLabel>>();
+        for (String c : categories) {
+            param.put(c, new LogisticRegression(new ElasticNetOptimizer()));
+        }
+        UpdateableMulticlassLinearModel model = new UpdateableMulticlassLinearModel(param);
+        for (int i = 0; i < 30; i++) {
+            MulticlassLabeledInstance instance = new MulticlassLabeledInstance(categories[i % 3]);
+            instance.setCoordinate("is_" + categories[i % 3], 1.0);
+            instance.setCoordinate("bias", 1.0);
+            model.update(instance);
+        }
+        File file = File.createTempFile("model", ".bin");
+        file.deleteOnExit();
+        BinaryModelWriter.write(model, new FileOutputStream(file), true);
+        BinaryModelReader reader = new BinaryModelReader(file);
+        String[] columns = reader.getCategories();
+        assertEquals("a", columns[0]);
+        StringKeyedVector x = new MulticlassLabeledInstance("b").setCoordinate("is_b", 1.0).setCoordinate("bias", 1.0).getVector();
+        double[] inner = new double[columns.length];
+        reader.innerProducts(x, inner);
+        for (int k = 0; k < columns.length; k++) {
+            assertEquals(model.getCategoryModel(columns[k]).dotWithParam(x), inner[k], eps);
+        }
+    }
+
+    @Test
+    public void testSmallChunks() throws Exception {
+        LogisticRegression model = new LogisticRegression(new ElasticNetOptimizer());
+        for (int i = 0; i < 30; i++) {
+            model.update(getInstance(i));
+        }
+        // - 8 and 16 byte chunks split every section, the names included.
+        for (boolean doubleWeights : new boolean[] { true, false }) {
+            File file = write(model, doubleWeights);
+            BinaryModelReader whole = new BinaryModelReader(file);
+            for (int shift = 3; shift <= 4; shift++) {
+                BinaryModelReader chunked = new BinaryModelReader(file, shift);
+                assertEquals(whole.size(), chunked.size());
+                for (int i = 0; i < whole.size(); i++) {
+                    assertEquals(whole.keyAt(i), chunked.keyAt(i));
+                    assertEquals(whole.nameAt(i), chunked.nameAt(i));
+                    assertEquals(whole.weightAt(i, 0), chunked.weightAt(i, 0), 0.0);
+                }
+                StringKeyedVector x = getInstance(3).getVector();
+                assertEquals(model.predict(x).getValue(), chunked.score(x), 1e-6);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedRows() throws Exception {
+        BinaryModelWriter writer = new BinaryModelWriter(new ByteArrayOutputStream(),
+                "", "", 0, 64, new String[] { "" }, true, LinkFunction.IDENTITY);
+        writer.write(new BinaryModelWriter.Rows() {
+            public int size() {
+                return 2;
+            }
+
+            public long keyAt(int i) {
+                return 2 - i;
+            }
+
+            public double weightAt(int i, int column) {
+                return 1.0;
+            }
+
+            public boolean hasNames() {
+                return false;
+            }
+
+            public String nameAt(int i) {
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,66 @@
+package com.etsy.conjecture.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.etsy.conjecture.data.ClusterPrediction;
+import com.etsy.conjecture.data.StringKeyedVector;
+
+public class KMeansTest {
+
+    final double eps = 0.000001;
+
+    StringKeyedVector vector(double a, double b) {
+        StringKeyedVector v = new StringKeyedVector();
+        v.setCoordinate("a", a);
+        v.setCoordinate("b", b);
+        return v;
+    }
+
+    @Test
+    public void testPredictBatch() {
+        Map<String, StringKeyedVector> centers = new HashMap<String, StringKeyedVector>();
+        centers.put("z", vector(0.5, 0.5));
+        centers.put("x", vector(1.0, 0.0));
+        centers.put("y", vector(0.0, 1.0));
+        KMeans kmeans = new KMeans(centers);
+        StringKeyedVector[] batch = { vector(1.0, 0.0), vector(0.0, 1.0), vector(0.6, 0.4) };
+        for (StringKeyedVector v : batch) {
+            kmeans.update(v.copy());
+        }
+
+        String[] clusters = kmeans.getClusters();
+        assertEquals(kmeans.param.size(), clusters.length);
+        double[][] scores = new double[batch.length][clusters.length];
+        kmeans.predictBatch(batch, batch.length, scores);
+        for (int i = 0; i < batch.length; i++) {
+            ClusterPrediction p = kmeans.predict(batch[i]);
+            for (int k = 0; k < clusters.length; k++) {
+                assertEquals(p.getMap().get(clusters[k]), scores[i][k], eps);
+            }
+        }
+
+        // - the sorted order is kept between batches, and follows new clusters.
+        assertSame(kmeans.clusterOrder(), kmeans.clusterOrder());
+        kmeans.param.put("w", vector(2.0, 2.0));
+        String[] more = kmeans.getClusters();
+        assertEquals(clusters.length + 1, more.length);
+        assertEquals("w", more[more.length - 4]);
+    }
+
+    @Test
+    public void testClustersSorted() {
+        KMeans kmeans = new KMeans(new String[] {"c", "a", "b"});
+        String[] clusters = kmeans.getClusters();
+        String[] sorted = clusters.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(sorted, clusters);
+    }
+}
@@ -0,0 +1,61 @@
+package com.etsy.conjecture.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.etsy.conjecture.data.BinaryLabel;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ModelJsonWriterTest {
+
+    final double eps = 0.000001;
+
+    @Test
+    public void testLinearModel() {
+        LogisticRegression model = new LogisticRegression(new ElasticNetOptimizer());
+        model.setParameter("foo", 0.5);
+        model.setParameter("b\"a\\r", -1.25);
+        model.setParameter("tiny", 1e-9);
+        model.setParameter("<html>", 0.123456789);
+
+        JsonObject json = new JsonParser().parse(new ModelJsonWriter().toJson(model)).getAsJsonObject();
+        assertEquals("logistic_regression", json.get("modelType").getAsString());
+        JsonObject vector = json.getAsJsonObject("param").getAsJsonObject("vector");
+        assertEquals(4, vector.entrySet().size());
+        assertEquals(0.5, vector.get("foo").getAsDouble(), 0.0);
+        assertEquals(-1.25, vector.get("b\"a\\r").getAsDouble(), 0.0);
+        assertEquals(1e-9, vector.get("tiny").getAsDouble(), 0.0);
+
+        String lean = new ModelJsonWriter().setThreshold(1e-6).setDigits(3).toJson(model);
+        // - nothing which stripslashes would break.
+        assertTrue(lean.contains("\"<html>\":0.123"));
+        vector = new JsonParser().parse(lean).getAsJsonObject().getAsJsonObject("param").getAsJsonObject("vector");
+        assertFalse(vector.has("tiny"));
+        assertEquals(0.123, vector.get("<html>").getAsDouble(), 0.0);
+    }
+
+    @Test
+    public void testMulticlassModel() {
+        Map<String, UpdateableLinearModel<BinaryLabel>> param = new HashMap<String, UpdateableLinearModel<BinaryLabel>>();
+        for (String c : new String[] { "a", "b" }) {
+            LogisticRegression m = new LogisticRegression(new ElasticNetOptimizer());
+            m.setParameter("is_" + c, 2.0);
+            param.put(c, m);
+        }
+        UpdateableMulticlassLinearModel model = new UpdateableMulticlassLinearModel(param);
+        model.setModelType("logistic_regression");
+        JsonObject json = new JsonParser().parse(new ModelJsonWriter().toJson(model)).getAsJsonObject();
+        assertEquals("logistic_regression", json.get("modelType").getAsString());
+        JsonObject categories = json.getAsJsonObject("param");
+        assertEquals(2, categories.entrySet().size());
+        assertEquals(2.0, categories.getAsJsonObject("b").getAsJsonObject("vector").get("is_b").getAsDouble(), eps);
+        assertFalse(categories.getAsJsonObject("b").getAsJsonObject("vector").has("is_a"));
+    }
+}
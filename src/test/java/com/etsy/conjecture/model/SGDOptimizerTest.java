@@ -0,0 +1,92 @@
+package com.etsy.conjecture.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.etsy.conjecture.data.BinaryLabeledInstance;
+
+public class SGDOptimizerTest {
+
+    final double eps = 0.000001;
+
+    double loopedSum(SGDOptimizer optimizer, long start, long end, int power) {
+        double sum = 0.0;
+        for (long t = start + 1; t <= end; t++) {
+            sum += Math.pow(optimizer.getDecreasingLearningRate(t), power);
+        }
+        return sum;
+    }
+
+    void checkLazyUpdate(SGDOptimizer optimizer, double param, long start, long end) {
+        double looped = optimizer.setUseClosedFormLazyUpdate(false)
+            .lazyUpdate("foo", param, start, end);
+        double closed = optimizer.setUseClosedFormLazyUpdate(true)
+            .lazyUpdate("foo", param, start, end);
+        assertEquals(looped, closed, 1e-3 * Math.abs(param));
+    }
+
+    @Test
+    public void testLearningRateSums() {
+        SGDOptimizer linear = new ElasticNetOptimizer().setExamplesPerEpoch(100);
+        SGDOptimizer exponential = new ElasticNetOptimizer().setExamplesPerEpoch(100)
+            .setUseExponentialLearningRate(true).setExponentialLearningRateBase(0.9);
+        long[][] ranges = { { 0, 10 }, { 5, 500 }, { 90, 110 }, { 1000, 200000 } };
+        for (long[] r : ranges) {
+            for (int power = 1; power <= 2; power++) {
+                assertEquals(loopedSum(linear, r[0], r[1], power),
+                    power == 1 ? linear.getLearningRateSum(r[0], r[1])
+                    : linear.getSquaredLearningRateSum(r[0], r[1]), eps);
+                assertEquals(loopedSum(exponential, r[0], r[1], power),
+                    power == 1 ? exponential.getLearningRateSum(r[0], r[1])
+                    : exponential.getSquaredLearningRateSum(r[0], r[1]), eps);
+            }
+        }
+    }
+
+    @Test
+    public void testClosedFormLazyUpdateMatchesLoop() {
+        SGDOptimizer laplace = new ElasticNetOptimizer().setExamplesPerEpoch(100)
+            .setLaplaceRegularizationWeight(0.001);
+        SGDOptimizer gaussian = new ElasticNetOptimizer().setExamplesPerEpoch(100)
+            .setGaussianRegularizationWeight(0.1);
+        SGDOptimizer elasticNet = new ElasticNetOptimizer().setExamplesPerEpoch(100)
+            .setLaplaceRegularizationWeight(0.0005)
+            .setGaussianRegularizationWeight(0.1);
+        SGDOptimizer exponential = new ElasticNetOptimizer().setExamplesPerEpoch(100)
+            .setUseExponentialLearningRate(true)
+            .setExponentialLearningRateBase(0.99)
+            .setLaplaceRegularizationWeight(0.0005)
+            .setGaussianRegularizationWeight(0.1);
+        for (SGDOptimizer o : new SGDOptimizer[] { laplace, gaussian, elasticNet, exponential }) {
+            checkLazyUpdate(o, 2.0, 0, 50);
+            checkLazyUpdate(o, -2.0, 10, 1000);
+            checkLazyUpdate(o, 0.5, 1000, 100000);
+        }
+        // l1 large enough to zero out the parameter.
+        laplace.setLaplaceRegularizationWeight(1.0);
+        assertEquals(0.0, laplace.lazyUpdate("foo", 0.1, 0, 1000), 0.0);
+    }
+
+    @Test
+    public void testCopyConfiguration() {
+        BinaryLabeledInstance instance = new BinaryLabeledInstance(1.0);
+        instance.setCoordinate("foo", 1.0);
+        FTRLOptimizer ftrl = (FTRLOptimizer)new FTRLOptimizer().setAlpha(0.5).setBeta(1.0)
+            .setFeatureAdmission(new BloomFilterFeatureAdmission(1));
+        LogisticRegression trained = new LogisticRegression(ftrl);
+        trained.update(instance);
+        double first = trained.getParam().getCoordinate("foo");
+        trained.update(instance);
+
+        // - the copy trains as the original did from scratch.
+        FTRLOptimizer copy = (FTRLOptimizer)ftrl.copyConfiguration();
+        assertSame(ftrl.admission, copy.admission);
+        assertEquals(0.0, copy.getRegularizedWeight("foo"), 0.0);
+        LogisticRegression fresh = new LogisticRegression(copy);
+        fresh.update(instance);
+        assertEquals(first, fresh.getParam().getCoordinate("foo"), eps);
+        assertEquals(first, copy.getRegularizedWeight("foo"), eps);
+    }
+}
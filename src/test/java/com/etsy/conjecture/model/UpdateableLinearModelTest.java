@@ -4,9 +4,33 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import com.etsy.conjecture.data.StringKeyedVector;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.junit.Test;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
+import com.etsy.conjecture.data.BinaryLabel;
 import com.etsy.conjecture.data.BinaryLabeledInstance;
+import com.etsy.conjecture.data.HashedVector;
+import com.etsy.conjecture.data.HashedVectorSerializer;
+import com.etsy.conjecture.data.RealValueLabeledInstance;
+import com.etsy.conjecture.data.StripedLazyVector;
 
 public class UpdateableLinearModelTest {
 
@@ -93,6 +117,227 @@ public class UpdateableLinearModelTest {
         assertTrue(p.predict(getNegativeInstance().getVector()).getValue() < 0.5);
     }
 
+    @Test
+    public void testHashedParameters() {
+        LogisticRegression slr = new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1));
+        LogisticRegression hlr = new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1));
+        hlr.setHashedParameters(true, 64);
+        for (int i = 0; i < 5; i++) {
+            slr.update(getPositiveInstance());
+            slr.update(getNegativeInstance());
+            hlr.update(getPositiveInstance().hashFeatures(false));
+            hlr.update(getNegativeInstance());
+        }
+        assertEquals(slr.getParam().getCoordinate("foo"), hlr.getParam().getCoordinate("foo"), eps);
+        assertEquals(slr.getParam().getCoordinate("baz"), hlr.getParam().getCoordinate("baz"), eps);
+        assertEquals(slr.predict(getPositiveInstance().getVector()).getValue(),
+                     hlr.predict(getPositiveInstance().hashFeatures(false).getVector()).getValue(), eps);
+        assertEquals(slr.explainPrediction(getPositiveInstance().getVector()),
+                     hlr.explainPrediction(getPositiveInstance().getVector()));
+    }
+
+    @Test
+    public void testHashedParameterKeys() {
+        checkParameterKeys(new LogisticRegression(new ElasticNetOptimizer()), false);
+        checkParameterKeys(new LogisticRegression(new ElasticNetOptimizer()).setHashedParameters(false, 64), true);
+        checkParameterKeys(new LogisticRegression(new ElasticNetOptimizer()).setHashedParameters(true, 64), true);
+        checkParameterKeys(new LogisticRegression(new ElasticNetOptimizer()).setStripedParameters(4, false, 20), true);
+    }
+
+    // - the keys requested for the features of the instances are those of
+    // the decomposed parameters, as the ShardedModelTrainer joins them.
+    void checkParameterKeys(UpdateableLinearModel<BinaryLabel> model, boolean hashed) {
+        Set<String> requested = new HashSet<String>();
+        for (BinaryLabeledInstance instance : Arrays.asList(getPositiveInstance(), getNegativeInstance())) {
+            model.update(instance);
+            for (Iterator<Map.Entry<String, Double>> it = instance.getVector().iterator(); it.hasNext();) {
+                requested.add(model.parameterKey(it.next().getKey()));
+            }
+        }
+        Set<String> decomposed = new HashSet<String>();
+        for (Iterator<Map.Entry<String, Double>> it = model.decompose(); it.hasNext();) {
+            decomposed.add(model.parameterKey(it.next().getKey()));
+        }
+        assertEquals(requested, decomposed);
+        assertEquals(hashed, !model.parameterKey("foo").equals("foo"));
+    }
+
+    @Test
+    public void testOffHeapParameters() {
+        LogisticRegression hlr = new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1));
+        LogisticRegression olr = new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1));
+        hlr.setHashedParameters(false, 64);
+        olr.update(getPositiveInstance());
+        olr.setOffHeapParameters(null, 64);
+        hlr.update(getPositiveInstance());
+        for (int i = 0; i < 5; i++) {
+            hlr.update(getNegativeInstance());
+            olr.update(getNegativeInstance().hashFeatures(false));
+        }
+        assertEquals(hlr.getParam().getCoordinate("foo"), olr.getParam().getCoordinate("foo"), eps);
+        assertEquals(hlr.getParam().getCoordinate("bar"), olr.getParam().getCoordinate("bar"), eps);
+        assertEquals(hlr.predict(getNegativeInstance().getVector()).getValue(),
+                     olr.predict(getNegativeInstance().getVector()).getValue(), eps);
+    }
+
+    @Test
+    public void testFrozenInstances() {
+        LogisticRegression slr = new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1));
+        LogisticRegression flr = new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1));
+        for (int i = 0; i < 5; i++) {
+            slr.update(getPositiveInstance());
+            slr.update(getNegativeInstance());
+            flr.update(getPositiveInstance().freeze());
+            flr.update(getNegativeInstance().freeze());
+        }
+        assertEquals(slr.getParam().getCoordinate("foo"), flr.getParam().getCoordinate("foo"), eps);
+        assertEquals(slr.getParam().getCoordinate("baz"), flr.getParam().getCoordinate("baz"), eps);
+        assertEquals(slr.predict(getPositiveInstance().getVector()).getValue(),
+                     flr.predict(getPositiveInstance().freeze().getVector()).getValue(), eps);
+    }
+
+    // - the update path used before optimizers applied updates in place.
+    void updateWithUpdateVector(UpdateableLinearModel model, BinaryLabeledInstance instance) {
+        model.optimizer.model = model;
+        if (model.epoch > 0) {
+            model.param.incrementIteration();
+        }
+        model.param.add(model.optimizer.getUpdate(instance));
+        model.epoch++;
+    }
+
+    void checkAppliedUpdates(UpdateableLinearModel fused, UpdateableLinearModel unfused) {
+        for (int i = 0; i < 5; i++) {
+            fused.update(getPositiveInstance());
+            fused.update(getNegativeInstance().freeze());
+            updateWithUpdateVector(unfused, getPositiveInstance());
+            updateWithUpdateVector(unfused, getNegativeInstance());
+        }
+        for (String f : new String[] { "foo", "bar", "baz" }) {
+            assertEquals(unfused.getParam().getCoordinate(f), fused.getParam().getCoordinate(f), eps);
+        }
+    }
+
+    @Test
+    public void testAppliedUpdates() {
+        checkAppliedUpdates(new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1)),
+                            new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1)));
+        checkAppliedUpdates(new LogisticRegression(new AdagradOptimizer()),
+                            new LogisticRegression(new AdagradOptimizer()));
+        checkAppliedUpdates(new Hinge(new ControlOptimizer()).setThreshold(1.0),
+                            new Hinge(new ControlOptimizer()).setThreshold(1.0));
+        checkAppliedUpdates(new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0).setLaplaceRegularizationWeight(0.01)),
+                            new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0).setLaplaceRegularizationWeight(0.01)));
+        checkAppliedUpdates(new MIRA(), new MIRA());
+        checkAppliedUpdates(new LogisticRegression(new AdagradOptimizer()).setHashedParameters(true, 64),
+                            new LogisticRegression(new AdagradOptimizer()));
+        checkAppliedUpdates(new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0)).setOffHeapParameters(null, 64),
+                            new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0)));
+    }
+
+    @Test
+    public void testFTRLFloatState() {
+        LogisticRegression dlr = new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0));
+        LogisticRegression flr = new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0).setUseFloatState(true));
+        for (int i = 0; i < 5; i++) {
+            dlr.update(getPositiveInstance());
+            dlr.update(getNegativeInstance());
+            flr.update(getPositiveInstance());
+            flr.update(getNegativeInstance());
+        }
+        assertTrue(dlr.getParam().getCoordinate("bar") > 0.0);
+        assertEquals(dlr.getParam().getCoordinate("bar"), flr.getParam().getCoordinate("bar"), 0.0001);
+        assertEquals(dlr.getParam().getCoordinate("baz"), flr.getParam().getCoordinate("baz"), 0.0001);
+    }
+
+    @Test
+    public void testFTRLUpdateAfterKryoRoundTrip() {
+        LogisticRegression lr = new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0));
+        lr.update(getPositiveInstance());
+        // - as scalding's kryo does, which builds objects without calling their constructors.
+        Kryo kryo = new Kryo();
+        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Output output = new Output(bos);
+        kryo.writeClassAndObject(output, lr);
+        output.flush();
+        LogisticRegression copy = (LogisticRegression)kryo.readClassAndObject(
+                new Input(new ByteArrayInputStream(bos.toByteArray())));
+        lr.update(getNegativeInstance());
+        copy.update(getNegativeInstance());
+        assertEquals(lr.getParam().getCoordinate("baz"), copy.getParam().getCoordinate("baz"), eps);
+        assertEquals(lr.getParam().getCoordinate("bar"), copy.getParam().getCoordinate("bar"), eps);
+    }
+
+    @Test
+    public void testFeatureAdmission() {
+        // - bar is only admitted on its third sighting.
+        LogisticRegression lr = new LogisticRegression(new AdagradOptimizer()
+                .setFeatureAdmission(new BloomFilterFeatureAdmission(3, 1024, 3)));
+        lr.update(getPositiveInstance());
+        lr.update(getPositiveInstance());
+        assertEquals(0.0, lr.getParam().getCoordinate("bar"), eps);
+        assertEquals(4, lr.getRejectedFeatures());
+        lr.update(getPositiveInstance());
+        assertTrue(lr.getParam().getCoordinate("bar") > 0.0);
+        assertEquals(4, lr.getRejectedFeatures());
+
+        LogisticRegression ftrl = new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0)
+                .setFeatureAdmission(new PoissonFeatureAdmission(0.5, new java.util.Random(1234))));
+        for (int i = 0; i < 20; i++) {
+            ftrl.update(getNegativeInstance());
+        }
+        assertTrue(ftrl.getRejectedFeatures() > 0);
+        assertTrue(ftrl.getParam().getCoordinate("baz") > 0.0);
+        LogisticRegression other = new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0)
+                .setFeatureAdmission(new BloomFilterFeatureAdmission(2)));
+        other.update(getNegativeInstance());
+        long rejected = ftrl.getRejectedFeatures();
+        ftrl.merge(other, 1.0);
+        assertEquals(rejected + 2, ftrl.getRejectedFeatures());
+    }
+
+    @Test
+    public void testFeatureAdmissionNotShipped() {
+        LogisticRegression lr = new LogisticRegression(new AdagradOptimizer()
+                .setFeatureAdmission(new BloomFilterFeatureAdmission(2)));
+        lr.update(getPositiveInstance());
+        Kryo kryo = new Kryo();
+        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Output output = new Output(bos);
+        kryo.writeClassAndObject(output, lr);
+        output.flush();
+        // - the 16 MB of counters stay behind, and the copy counts afresh.
+        assertTrue(bos.size() < 1 << 16);
+        LogisticRegression copy = (LogisticRegression)kryo.readClassAndObject(
+                new Input(new ByteArrayInputStream(bos.toByteArray())));
+        copy.update(getNegativeInstance());
+        assertEquals(0.0, copy.getParam().getCoordinate("baz"), 0.0);
+        copy.update(getNegativeInstance());
+        assertTrue(copy.getParam().getCoordinate("baz") != 0.0);
+        assertTrue(HashedVectorSerializer.newGson().toJson(lr).length() < 1 << 16);
+    }
+
+    void checkHogwild(UpdateableLinearModel<BinaryLabel> model) throws Exception {
+        List<BinaryLabeledInstance> instances = new ArrayList<BinaryLabeledInstance>();
+        for (int i = 0; i < 2000; i++) {
+            instances.add(i % 2 == 0 ? getPositiveInstance() : getNegativeInstance());
+        }
+        new HogwildTrainer<BinaryLabel>(model, 4, 8).setBlockSize(16).train(instances);
+        assertEquals(2000, model.getEpoch());
+        assertTrue(model.getParam() instanceof StripedLazyVector);
+        assertTrue(model.predict(getPositiveInstance().getVector()).getValue() > 0.5);
+        assertTrue(model.predict(getNegativeInstance().getVector()).getValue() < 0.5);
+    }
+
+    @Test
+    public void testHogwildTraining() throws Exception {
+        checkHogwild(new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.01)));
+        checkHogwild(new LogisticRegression(new AdagradOptimizer()).setHashedParameters(true, 64));
+        checkHogwild(new LogisticRegression(new FTRLOptimizer().setAlpha(0.5).setBeta(1.0)));
+    }
+
     public void testInstanceNotModified(UpdateableLinearModel model) {
         BinaryLabeledInstance instance = getPositiveInstance();
         StringKeyedVector instanceCopy = instance.getVector().copy();
@@ -131,4 +376,120 @@ public class UpdateableLinearModelTest {
         testInstanceNotModified(hModel);
     }
 
+    @Test
+    public void testFreeze() {
+        LogisticRegression slr = new LogisticRegression(new ElasticNetOptimizer().setLaplaceRegularizationWeight(0.01));
+        LogisticRegression hlr = new LogisticRegression(new ElasticNetOptimizer().setLaplaceRegularizationWeight(0.01));
+        hlr.setHashedParameters(false, 20);
+        LeastSquaresRegressionModel ls = new LeastSquaresRegressionModel(new ElasticNetOptimizer());
+        for (int i = 0; i < 5; i++) {
+            slr.update(getPositiveInstance());
+            slr.update(getNegativeInstance());
+            hlr.update(getPositiveInstance().hashFeatures(false, 20));
+            hlr.update(getNegativeInstance().hashFeatures(false, 20));
+            ls.update(new RealValueLabeledInstance(2.0).setCoordinate("foo", 1.0));
+        }
+        // - lazy regularization is caught up by the frozen copy, and the
+        // same instance scores the same in any of its forms.
+        StringKeyedVector x = getNegativeInstance().getVector();
+        double expected = slr.predict(x).getValue();
+        FrozenLinearModel frozen = slr.freeze();
+        assertEquals(expected, frozen.score(x), eps);
+        // - later updates are not seen.
+        slr.update(getPositiveInstance());
+        assertEquals(expected, frozen.score(x), eps);
+        assertEquals(expected, frozen.score(getNegativeInstance().freeze().getVector()), eps);
+        assertTrue(frozen.score(x) < 0.5);
+        assertTrue(frozen.score(getPositiveInstance().getVector()) > 0.5);
+
+        FrozenLinearModel hashed = hlr.freeze();
+        assertEquals(hlr.predict(getPositiveInstance().hashFeatures(false, 20).getVector()).getValue(),
+                     hashed.score(getPositiveInstance().hashFeatures(false, 20).getVector()), eps);
+        assertEquals(hashed.score(getPositiveInstance().hashFeatures(false, 20).getVector()),
+                     hashed.score(getPositiveInstance().hashFeatures(false, 20).freeze().getVector()), eps);
+
+        StringKeyedVector foo = new RealValueLabeledInstance(0.0).setCoordinate("foo", 1.0).getVector();
+        assertEquals(ls.predict(foo).getValue(), ls.freeze().score(foo), eps);
+        assertEquals(ls.predict(foo).getValue(), ls.freeze().innerProduct(foo), eps);
+    }
+
+    @Test
+    public void testPredictBatch() {
+        LogisticRegression slr = new LogisticRegression(new ElasticNetOptimizer().setLaplaceRegularizationWeight(0.01));
+        LogisticRegression hlr = new LogisticRegression(new ElasticNetOptimizer().setLaplaceRegularizationWeight(0.01));
+        hlr.setHashedParameters(false, 20);
+        for (int i = 0; i < 5; i++) {
+            slr.update(getPositiveInstance());
+            slr.update(getNegativeInstance());
+            hlr.update(getPositiveInstance().hashFeatures(false, 20));
+            hlr.update(getNegativeInstance().hashFeatures(false, 20));
+        }
+        // - only count instances are scored.
+        StringKeyedVector[] batch = {
+            getPositiveInstance().getVector(), getNegativeInstance().getVector(),
+            getPositiveInstance().hashFeatures(false, 20).getVector(),
+            getNegativeInstance().hashFeatures(false, 20).freeze().getVector(), null };
+        double[] scores = new double[5];
+        slr.predictBatch(batch, 2, scores);
+        assertEquals(slr.predict(batch[0]).getValue(), scores[0], eps);
+        assertEquals(slr.predict(batch[1]).getValue(), scores[1], eps);
+        assertEquals(0.0, scores[2], 0.0);
+
+        hlr.predictBatch(batch, 4, scores);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(hlr.predict(batch[i]).getValue(), scores[i], eps);
+        }
+        // - a batch sees the updates before it.
+        hlr.update(getPositiveInstance().hashFeatures(false, 20));
+        hlr.predictBatch(batch, 1, scores);
+        assertEquals(hlr.predict(batch[0]).getValue(), scores[0], eps);
+
+        // - through UpdateableModel, the first column of each row.
+        UpdateableModel<BinaryLabel, ?> model = hlr;
+        double[][] rows = new double[5][1];
+        model.predictBatch(batch, 4, rows);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(hlr.predict(batch[i]).getValue(), rows[i][0], eps);
+        }
+        assertEquals(0.0, rows[4][0], 0.0);
+    }
+
+    @Test
+    public void testExplainPrediction() {
+        LogisticRegression lr = new LogisticRegression(new ElasticNetOptimizer());
+        lr.setParameter("a", 1.0);
+        lr.setParameter("b", -3.0);
+        lr.setParameter("c", 0.5);
+        StringKeyedVector x = new BinaryLabeledInstance(1.0)
+            .setCoordinate("a", 2.0)
+            .setCoordinate("b", 1.0)
+            .setCoordinate("c", 1.0)
+            .setCoordinate("unseen", 5.0)
+            .getVector();
+        // - largest contributions |x_i * w_i| first, features without a weight left out.
+        assertEquals("b:1.00->-3.00 a:2.00->1.00 c:1.00->0.50 ", lr.explainPrediction(x));
+        assertEquals("b:1.00->-3.00 a:2.00->1.00 ", lr.explainPrediction(x, 2));
+        assertEquals("b:1.00->-3.00 a:2.00->1.00 c:1.00->0.50 ", lr.explainPrediction(x, 10));
+        assertEquals("", lr.explainPrediction(x, 0));
+    }
+
+    @Test
+    public void testHashedGsonExport() {
+        LogisticRegression hlr = new LogisticRegression(new ElasticNetOptimizer());
+        hlr.setHashedParameters(false, 20);
+        for (int i = 0; i < 5; i++) {
+            hlr.update(getPositiveInstance().hashFeatures(false, 20));
+            hlr.update(getNegativeInstance().hashFeatures(false, 20));
+        }
+        String json = HashedVectorSerializer.newGson().toJson(hlr);
+        JsonObject vector = new JsonParser().parse(json).getAsJsonObject()
+            .getAsJsonObject("param").getAsJsonObject("vector");
+        // - every weight comes back under a name which hashes to its key.
+        HashedVector param = (HashedVector)hlr.getParam();
+        assertEquals(param.size(), vector.entrySet().size());
+        assertTrue(param.size() > 0);
+        for (Map.Entry<String, JsonElement> e : vector.entrySet()) {
+            assertEquals(param.getCoordinate(param.hash(e.getKey())), e.getValue().getAsDouble(), eps);
+        }
+    }
 }
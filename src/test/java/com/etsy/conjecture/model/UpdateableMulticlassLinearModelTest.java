@@ -0,0 +1,295 @@
+package com.etsy.conjecture.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.etsy.conjecture.data.BinaryLabel;
+import com.etsy.conjecture.data.LabeledInstance;
+import com.etsy.conjecture.data.MulticlassLabel;
+import com.etsy.conjecture.data.MulticlassLabeledInstance;
+import com.etsy.conjecture.data.MulticlassPrediction;
+import com.etsy.conjecture.data.StringKeyedVector;
+
+public class UpdateableMulticlassLinearModelTest {
+
+    final double eps = 0.000001;
+
+    final String[] categories = {"a", "b", "c", "d", "e"};
+
+    UpdateableMulticlassLinearModel buildModel(SGDOptimizer optimizer) {
+        Map<String, UpdateableLinearModel<BinaryLabel>> param = new HashMap<String, UpdateableLinearModel<BinaryLabel>>();
+        for (String c : categories) {
+            param.put(c, new LogisticRegression(optimizer));
+        }
+        return new UpdateableMulticlassLinearModel(param);
+    }
+
+    List<LabeledInstance<MulticlassLabel>> getInstances() {
+        List<LabeledInstance<MulticlassLabel>> instances = new ArrayList<LabeledInstance<MulticlassLabel>>();
+        for (int i = 0; i < 50; i++) {
+            String c = categories[i % categories.length];
+            MulticlassLabeledInstance instance = new MulticlassLabeledInstance(c);
+            instance.setCoordinate("is_" + c, 1.0);
+            instance.setCoordinate("bias", 1.0);
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    @Test
+    public void testParallelUpdates() {
+        UpdateableMulticlassLinearModel serial = buildModel(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1));
+        UpdateableMulticlassLinearModel parallel = buildModel(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1))
+            .setUpdateThreads(3);
+        assertNotSame(parallel.param.get("a").optimizer, parallel.param.get("b").optimizer);
+
+        List<LabeledInstance<MulticlassLabel>> instances = getInstances();
+        serial.update(instances.get(0));
+        parallel.update(instances.get(0));
+        serial.update(instances.subList(1, instances.size()));
+        parallel.update(instances.subList(1, instances.size()));
+
+        assertEquals(serial.getEpoch(), parallel.getEpoch());
+        for (String c : categories) {
+            for (String f : new String[] {"is_a", "is_c", "bias"}) {
+                assertEquals(serial.param.get(c).getParam().getCoordinate(f),
+                             parallel.param.get(c).getParam().getCoordinate(f), eps);
+            }
+        }
+        assertEquals("c", parallel.predict(instances.get(2).getVector()).getLabel());
+        parallel.teardown();
+    }
+
+    @Test
+    public void testSharedParameters() throws Exception {
+        Map<String, UpdateableLinearModel<BinaryLabel>> separateParam = new HashMap<String, UpdateableLinearModel<BinaryLabel>>();
+        Map<String, UpdateableLinearModel<BinaryLabel>> sharedParam = new HashMap<String, UpdateableLinearModel<BinaryLabel>>();
+        for (String c : categories) {
+            separateParam.put(c, new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1))
+                              .setHashedParameters(false, 64));
+            sharedParam.put(c, new LogisticRegression(new ElasticNetOptimizer().setGaussianRegularizationWeight(0.1)));
+        }
+        UpdateableMulticlassLinearModel separate = new UpdateableMulticlassLinearModel(separateParam);
+        UpdateableMulticlassLinearModel shared = new UpdateableMulticlassLinearModel(sharedParam)
+            .setSharedParameters(true, 64);
+        assertEquals(5, shared.getSharedParameters().getCategoryCount());
+
+        List<LabeledInstance<MulticlassLabel>> instances = getInstances();
+        separate.update(instances);
+        shared.update(instances);
+        assertEquals(6, shared.getSharedParameters().size());
+        for (String c : categories) {
+            for (String f : new String[] {"is_a", "is_e", "bias"}) {
+                assertEquals(separate.param.get(c).getParam().getCoordinate(f),
+                             shared.param.get(c).getParam().getCoordinate(f), eps);
+            }
+        }
+        assertTrue(shared.param.get("b").getParam().keySet().contains("is_b"));
+
+        MulticlassPrediction expected = separate.predict(instances.get(3).getVector());
+        MulticlassPrediction prediction = shared.predict(instances.get(3).getVector());
+        assertEquals("d", prediction.getLabel());
+        assertEquals(categories.length, prediction.size());
+        for (String c : categories) {
+            assertEquals(expected.getProb(c), prediction.getProb(c), eps);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(shared);
+        out.close();
+        UpdateableMulticlassLinearModel read = (UpdateableMulticlassLinearModel)new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        read.update(instances.get(0));
+        shared.update(instances.get(0));
+        for (String c : categories) {
+            assertEquals(shared.predict(instances.get(4).getVector()).getProb(c),
+                         read.predict(instances.get(4).getVector()).getProb(c), eps);
+        }
+    }
+
+    @Test
+    public void testParallelUpdatesShareAdmission() {
+        UpdateableMulticlassLinearModel model = buildModel(new AdagradOptimizer()
+            .setFeatureAdmission(new BloomFilterFeatureAdmission(2, 1024, 3)))
+            .setUpdateThreads(3);
+        for (String c : categories) {
+            assertSame(model.param.get("a").optimizer.admission, model.param.get(c).optimizer.admission);
+        }
+        // - is_a and bias are refused by whichever category sees them first,
+        // a filter per category would refuse each of them five times.
+        model.update(getInstances().get(0));
+        assertTrue(model.getRejectedFeatures() >= 2);
+        assertTrue(model.getRejectedFeatures() < 10);
+        model.teardown();
+    }
+
+    @Test
+    public void testSoftmaxLogisticRegression() {
+        SoftmaxLogisticRegression model = new SoftmaxLogisticRegression(categories, new ElasticNetOptimizer());
+        List<LabeledInstance<MulticlassLabel>> instances = getInstances();
+        // - from zero weights every category has probability 1/k.
+        double eta = model.getCategoryModel("a").optimizer.getDecreasingLearningRate(0);
+        model.update(instances.get(0));
+        assertEquals(eta * (1.0 - 0.2), model.getCategoryModel("a").getParam().getCoordinate("is_a"), eps);
+        assertEquals(-eta * 0.2, model.getCategoryModel("b").getParam().getCoordinate("is_a"), eps);
+        assertEquals(1, model.getEpoch());
+
+        for (SGDOptimizer optimizer : new SGDOptimizer[] {new ElasticNetOptimizer().setInitialLearningRate(0.5),
+                                                          new AdagradOptimizer(),
+                                                          new FTRLOptimizer().setAlpha(0.5).setBeta(1.0)}) {
+            SoftmaxLogisticRegression softmax = new SoftmaxLogisticRegression(categories, optimizer);
+            double before = softmax.loss(instances.get(1));
+            for (int i = 0; i < 5; i++) {
+                softmax.update(instances);
+            }
+            assertTrue(softmax.loss(instances.get(1)) < before);
+            MulticlassPrediction prediction = softmax.predict(instances.get(1).getVector());
+            assertEquals("b", prediction.getLabel());
+            double total = 0.0;
+            for (int k = 0; k < prediction.size(); k++) {
+                total += prediction.getProb(k);
+            }
+            assertEquals(1.0, total, eps);
+        }
+    }
+
+    @Test
+    public void testSoftmaxHashBits() {
+        // - the table is built once with the given bits and dictionary.
+        SoftmaxLogisticRegression softmax = new SoftmaxLogisticRegression(categories,
+                new AdagradOptimizer(), true, 20);
+        assertEquals(20, softmax.table.getHashBits());
+        assertTrue(softmax.table.hasDictionary());
+        List<LabeledInstance<MulticlassLabel>> instances = getInstances();
+        for (int i = 0; i < 5; i++) {
+            for (LabeledInstance<MulticlassLabel> instance : instances) {
+                softmax.update(((MulticlassLabeledInstance)instance).hashFeatures(false, 20));
+            }
+        }
+        MulticlassLabeledInstance b = (MulticlassLabeledInstance)instances.get(1);
+        assertEquals("b", softmax.predict(b.hashFeatures(false, 20).getVector()).getLabel());
+        assertEquals("b", softmax.predict(b.getVector()).getLabel());
+    }
+
+    @Test
+    public void testSoftmaxCategoryLoss() {
+        SoftmaxLogisticRegression model = new SoftmaxLogisticRegression(categories, new ElasticNetOptimizer());
+        List<LabeledInstance<MulticlassLabel>> instances = getInstances();
+        model.update(instances);
+        LabeledInstance<MulticlassLabel> instance = instances.get(0);
+        MulticlassPrediction prediction = model.predict(instance.getVector());
+        // - the true category's loss is the softmax loss, the others' that of not being chosen.
+        assertEquals(model.loss(instance), model.getCategoryModel("a").loss(
+            new UpdateableMulticlassLinearModel.CategoryInstance("a", instance)), eps);
+        assertEquals(-Math.log(1.0 - prediction.getProb("b")), model.getCategoryModel("b").loss(
+            new UpdateableMulticlassLinearModel.CategoryInstance("b", instance)), eps);
+    }
+
+    @Test
+    public void testSampledSoftmax() {
+        List<LabeledInstance<MulticlassLabel>> instances = getInstances();
+        for (SoftmaxLogisticRegression.NegativeSampling sampling : SoftmaxLogisticRegression.NegativeSampling.values()) {
+            SoftmaxLogisticRegression model = new SoftmaxLogisticRegression(categories, new ElasticNetOptimizer().setInitialLearningRate(0.5));
+            model.setSampledNegatives(2, sampling).setRandom(new Random(17));
+            // - only the true category and two negatives take a step.
+            model.update(instances.get(0));
+            int changed = 0;
+            for (String c : categories) {
+                if (model.getCategoryModel(c).getParam().getCoordinate("is_a") != 0.0) {
+                    changed++;
+                }
+            }
+            assertEquals(3, changed);
+            assertTrue(model.getCategoryModel("a").getParam().getCoordinate("is_a") > 0.0);
+            assertEquals(1, model.getEpoch());
+
+            for (int i = 0; i < 10; i++) {
+                model.update(instances);
+            }
+            for (int k = 0; k < categories.length; k++) {
+                MulticlassPrediction prediction = model.predict(instances.get(k).getVector());
+                assertEquals(categories[k], prediction.getLabel());
+                assertEquals(categories.length, prediction.size());
+            }
+        }
+    }
+
+    void checkFrozen(UpdateableMulticlassLinearModel model) {
+        FrozenMulticlassLinearModel frozen = model.freeze();
+        double[] scores = new double[frozen.getCategoryCount()];
+        for (LabeledInstance<MulticlassLabel> instance : getInstances().subList(0, 5)) {
+            MulticlassPrediction expected = model.predict(instance.getVector());
+            frozen.score(instance.getVector(), scores);
+            String[] frozenCategories = frozen.getCategories();
+            for (int k = 0; k < scores.length; k++) {
+                assertEquals(expected.getProb(frozenCategories[k]), scores[k], eps);
+            }
+            assertEquals(expected.getLabel(), frozen.predict(instance.getVector()).getLabel());
+        }
+    }
+
+    @Test
+    public void testFreeze() {
+        UpdateableMulticlassLinearModel separate = buildModel(new ElasticNetOptimizer().setLaplaceRegularizationWeight(0.01));
+        UpdateableMulticlassLinearModel shared = buildModel(new ElasticNetOptimizer().setLaplaceRegularizationWeight(0.01))
+            .setSharedParameters(false, 64);
+        SoftmaxLogisticRegression softmax = new SoftmaxLogisticRegression(categories, new ElasticNetOptimizer());
+        for (int i = 0; i < 3; i++) {
+            separate.update(getInstances());
+            shared.update(getInstances());
+            softmax.update(getInstances());
+        }
+        checkFrozen(separate);
+        checkFrozen(shared);
+        checkFrozen(softmax);
+    }
+
+    void checkPredictBatch(UpdateableMulticlassLinearModel model) {
+        List<LabeledInstance<MulticlassLabel>> instances = getInstances();
+        StringKeyedVector[] batch = new StringKeyedVector[instances.size()];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = instances.get(i).getVector();
+        }
+        String[] order = model.getCategories();
+        double[][] scores = new double[batch.length][order.length];
+        model.predictBatch(batch, batch.length, scores);
+        for (int i = 0; i < batch.length; i++) {
+            MulticlassPrediction p = model.predict(batch[i]);
+            for (int k = 0; k < order.length; k++) {
+                assertEquals(p.getProb(order[k]), scores[i][k], eps);
+            }
+        }
+    }
+
+    @Test
+    public void testPredictBatch() {
+        UpdateableMulticlassLinearModel separate = buildModel(new ElasticNetOptimizer().setLaplaceRegularizationWeight(0.01));
+        UpdateableMulticlassLinearModel shared = buildModel(new ElasticNetOptimizer().setLaplaceRegularizationWeight(0.01))
+            .setSharedParameters(false, 64);
+        SoftmaxLogisticRegression softmax = new SoftmaxLogisticRegression(categories, new ElasticNetOptimizer());
+        for (int i = 0; i < 3; i++) {
+            separate.update(getInstances());
+            shared.update(getInstances());
+            softmax.update(getInstances());
+        }
+        checkPredictBatch(separate);
+        checkPredictBatch(shared);
+        checkPredictBatch(softmax);
+    }
+}